@@ -0,0 +1,91 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import ch.epfl.bio410.segmentation.DistanceTransform;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results.getClosestNonZeroLabel (used by assignTracksToColonies) against a lookup in the feature transform
+ * of the frame (DistanceTransform.featureTransform), queried at background positions of a synthetic label image
+ * (the only positions where the closest label is searched).
+ * Scores are per query ; nearestLabel excludes the feature transform of the frame (see DistanceTransformBenchmark).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClosestLabelBenchmark {
+    private static final int QUERIES = 10000;
+
+    @Param({"512", "2048"})
+    public int size;
+
+    private FloatProcessor labels;
+    private int[] queryX;
+    private int[] queryY;
+    private int[] nearest;
+
+    @Setup
+    public void setup() {
+        labels = SyntheticData.labelImage(size, 64, 42).labels;
+        SplittableRandom random = new SplittableRandom(42);
+        queryX = new int[QUERIES];
+        queryY = new int[QUERIES];
+        nearest = DistanceTransform.featureTransform(labels);
+        for (int q = 0; q < QUERIES; ) {
+            int x = random.nextInt(size);
+            int y = random.nextInt(size);
+            if (labels.getPixel(x, y) != 0) continue;
+            queryX[q] = x;
+            queryY[q] = y;
+            q++;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long getClosestNonZeroLabel() {
+        long sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            sum += Results.getClosestNonZeroLabel(labels, queryX[q], queryY[q]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long nearestLabel() {
+        long sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            sum += nearestLabel(labels, nearest, queryX[q], queryY[q], Results.CLOSEST_LABEL_MAX_DISTANCE);
+        }
+        return sum;
+    }
+
+    /**
+     * Label of the closest labelled pixel within a maximum distance, from the feature transform of the frame.
+     * @param labels Label image, 0 is the background
+     * @param nearest Feature transform of the label image (see DistanceTransform.featureTransform)
+     * @param x Position x
+     * @param y Position y
+     * @param maxDistance Maximum distance to the labelled pixel, in pixels
+     * @return the label of the closest labelled pixel, 0 if there is none within maxDistance or the position is outside the image
+     */
+    private static int nearestLabel(ImageProcessor labels, int[] nearest, int x, int y, double maxDistance) {
+        int width = labels.getWidth();
+        if (x < 0 || y < 0 || x >= width || y >= labels.getHeight()) return 0;
+        int feature = nearest[y * width + x];
+        if (feature < 0) return 0;
+        int dx = x - feature % width;
+        int dy = y - feature / width;
+        if ((double) dx * dx + (double) dy * dy > maxDistance * maxDistance) return 0;
+        return (int) labels.getf(feature);
+    }
+}
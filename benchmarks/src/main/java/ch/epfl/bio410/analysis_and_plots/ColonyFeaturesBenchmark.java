@@ -0,0 +1,72 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import ch.epfl.bio410.segmentation.ColonyStatsService;
+import ch.epfl.bio410.utils.utils;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The image-based Results.getColonyFeatures for every track of a synthetic movie :
+ * statistics computed again for each track (as when each call computed its frames), and shared by all the tracks
+ * (one Results, so one ColonyStatsService, for the whole loop).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColonyFeaturesBenchmark {
+    private static final int SIZE = 256;
+    private static final int FRAMES = 30;
+
+    @Param({"10", "100"})
+    public int nTracks;
+
+    private SyntheticData.TimeLapse movie;
+    private List<CSVRecord> tracks;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() throws IOException {
+        stdout = SyntheticData.silenceStdout();
+        movie = SyntheticData.timeLapse(SIZE, FRAMES, 8, 20, 42);
+        File tracksFile = Files.createTempFile("replisome-bench", ".csv").toFile();
+        SyntheticData.writeTracksCsv(tracksFile, nTracks, FRAMES, SIZE * 0.103, 42);
+        tracks = utils.readCsv(tracksFile, 3);
+        tracksFile.delete();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public int perTrack() {
+        int n = 0;
+        for (int t = 0; t < nTracks; t++) {
+            ColonyStatsService service = new ColonyStatsService(movie.colonyLabels, movie.dic);
+            n += new Results().getColonyFeatures(Integer.toString(t), tracks, service).size();
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int shared() {
+        Results results = new Results();
+        int n = 0;
+        for (int t = 0; t < nTracks; t++) {
+            n += results.getColonyFeatures(Integer.toString(t), tracks, movie.colonyLabels, movie.dic).size();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,82 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import ch.epfl.bio410.utils.utils;
+import org.apache.commons.csv.CSVRecord;
+import org.knowm.xchart.Histogram;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binning behind plotHistogram, plotHeatmap and the joint plot, without any chart rendering
+ * (charts need a display, and rendering is not what scales with the number of rows).
+ * jointPerPair bins like the joint plot used to, one histogram per column and one heatmap per pair,
+ * jointPairPlot bins each column once through PairPlot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlotsBinningBenchmark {
+    private static final int BINS = 20;
+    private static final List<String> COLUMNS = Arrays.asList(
+            "TRACK_DURATION", "TRACK_DISPLACEMENT", "TRACK_MEAN_SPEED", "TRACK_MAX_SPEED",
+            "TRACK_MEDIAN_SPEED", "TOTAL_DISTANCE_TRAVELED", "CONFINEMENT_RATIO", "MEAN_DIRECTIONAL_CHANGE_RATE");
+
+    @Param({"1000", "10000", "100000"})
+    public int nRows;
+
+    private List<CSVRecord> rows;
+
+    @Setup
+    public void setup() throws IOException {
+        File file = Files.createTempFile("replisome-bench", ".csv").toFile();
+        try {
+            SyntheticData.writeTracksCsv(file, nRows, 100, 100, 42);
+            rows = utils.readCsv(file, 3);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public Histogram histogram() {
+        return Plots.histogramBins(rows, COLUMNS.get(0), BINS);
+    }
+
+    @Benchmark
+    public int[] heatmap() {
+        int[] counts = new int[BINS * BINS];
+        Plots.heatmapBins(rows, COLUMNS.get(0), COLUMNS.get(1), BINS, BINS, counts);
+        return counts;
+    }
+
+    @Benchmark
+    public long jointPerPair() {
+        long sum = 0;
+        for (String column : COLUMNS) {
+            sum += Plots.histogramBins(rows, column, BINS).getyAxisData().size();
+        }
+        for (int x = 0; x < COLUMNS.size(); x++) {
+            for (int y = x + 1; y < COLUMNS.size(); y++) {
+                int[] counts = new int[BINS * BINS];
+                Plots.heatmapBins(rows, COLUMNS.get(x), COLUMNS.get(y), BINS, BINS, counts);
+                sum += counts[0];
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public PairPlot jointPairPlot() {
+        return new PairPlot(rows, COLUMNS, BINS);
+    }
+}
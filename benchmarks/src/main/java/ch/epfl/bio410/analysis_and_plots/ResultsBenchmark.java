@@ -0,0 +1,84 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import ch.epfl.bio410.segmentation.LabelStore;
+import ch.epfl.bio410.utils.AsyncIO;
+import ch.epfl.bio410.utils.utils;
+import ij.ImagePlus;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * assignTracksToColonies over a whole synthetic movie, including the CSV export (waited for, see AsyncIO),
+ * with the labels in memory and read frame by frame from a compressed LabelStore (as when the analysis reopens them).
+ * The neighborhood search alone is measured by ClosestLabelBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultsBenchmark {
+    private static final int SIZE = 512;
+    private static final int FRAMES = 50;
+    private static final double PIXEL_SIZE = 0.1;
+
+    @Param({"1000", "10000", "100000"})
+    public int nTracks;
+
+    private ImagePlus colonyLabels;
+    private ImagePlus storedLabels;
+    private List<CSVRecord> tracks;
+    private File folder;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() throws IOException {
+        stdout = SyntheticData.silenceStdout();
+        colonyLabels = SyntheticData.labelStack(SIZE, FRAMES, 64, PIXEL_SIZE, 42);
+        folder = Files.createTempDirectory("replisome-bench").toFile();
+        File results = new File(folder, "results");
+        results.mkdirs();
+        File tracksFile = new File(folder, "tracks.csv");
+        SyntheticData.writeTracksCsv(tracksFile, nTracks, FRAMES, SIZE * PIXEL_SIZE, 42);
+        tracks = utils.readCsv(tracksFile, 3);
+        File storeFile = new File(folder, "labels.lbl");
+        try (LabelStore.Writer store = new LabelStore.Writer(SIZE, SIZE)) {
+            for (int i = 1; i <= FRAMES; i++) store.add(colonyLabels.getStack().getProcessor(i));
+            store.write(storeFile, null);
+        }
+        storedLabels = LabelStore.open(storeFile, null).toImagePlus("Stored labels");
+        storedLabels.setCalibration(colonyLabels.getCalibration());
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+        File[] files = new File(folder, "results").listFiles();
+        if (files != null) for (File file : files) file.delete();
+        new File(folder, "results").delete();
+        new File(folder, "tracks.csv").delete();
+        new File(folder, "labels.lbl").delete();
+        folder.delete();
+    }
+
+    @Benchmark
+    public void assignTracksToColonies() throws IOException {
+        Results.assignTracksToColonies(tracks, colonyLabels, "bench", folder.getPath());
+        AsyncIO.shared().flush();
+    }
+
+    @Benchmark
+    public void assignTracksToColoniesFromStore() throws IOException {
+        Results.assignTracksToColonies(tracks, storedLabels, "bench", folder.getPath());
+        AsyncIO.shared().flush();
+    }
+}
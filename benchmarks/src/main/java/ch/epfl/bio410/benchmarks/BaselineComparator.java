@@ -0,0 +1,212 @@
+package ch.epfl.bio410.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Compares a JMH JSON result file (-rf json) to a baseline recorded the same way.
+ * A benchmark regresses when its score is worse than the baseline by more than the threshold,
+ * and the difference is larger than the sum of both error margins.
+ * Usage : java -cp target/benchmarks.jar ch.epfl.bio410.benchmarks.BaselineComparator baseline.json results.json [threshold]
+ * The exit code is 1 if any benchmark regressed, so it can gate a CI job.
+ */
+public class BaselineComparator {
+    /** Default relative threshold (10%). */
+    public static final double DEFAULT_THRESHOLD = 0.10;
+
+    /** Score of one benchmark with one set of parameters. */
+    static class Score {
+        final String key;
+        final double score;
+        final double error;
+        final String unit;
+        final boolean higherIsBetter;
+
+        Score(String key, double score, double error, String unit, boolean higherIsBetter) {
+            this.key = key;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage : BaselineComparator baseline.json results.json [threshold]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+        Map<String, Score> baseline = readScores(args[0]);
+        Map<String, Score> current = readScores(args[1]);
+        int regressions = 0;
+        System.out.println(String.format(Locale.ROOT, "%-80s %14s %14s %9s", "Benchmark", "Baseline", "Current", "Change"));
+        for (Score score : current.values()) {
+            Score reference = baseline.get(score.key);
+            if (reference == null) {
+                System.out.println(String.format(Locale.ROOT, "%-80s %14s %14.3f %9s", score.key, "-", score.score, "new"));
+                continue;
+            }
+            double change = (score.score - reference.score) / reference.score;
+            double worse = score.higherIsBetter ? -change : change;
+            boolean regressed = worse > threshold && Math.abs(score.score - reference.score) > score.error + reference.error;
+            if (regressed) regressions++;
+            System.out.println(String.format(Locale.ROOT, "%-80s %14.3f %14.3f %+8.1f%% %s",
+                    score.key, reference.score, score.score, 100 * change, regressed ? "REGRESSION" : ""));
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) System.out.println(String.format(Locale.ROOT, "%-80s %14s", key, "missing"));
+        }
+        System.out.println(regressions + " regression(s) above " + Math.round(100 * threshold) + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Read the primary scores of a JMH JSON result file.
+     * @param path Path to the file
+     * @return scores by "benchmark{param=value, ...}", in file order
+     * @throws IOException If the file cannot be read
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Score> readScores(String path) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (Object entry : (List<Object>) new JsonReader(json).read()) {
+            Map<String, Object> result = (Map<String, Object>) entry;
+            String key = (String) result.get("benchmark");
+            Object params = result.get("params");
+            if (params != null) key += new TreeMap<>((Map<String, Object>) params);
+            Map<String, Object> metric = (Map<String, Object>) result.get("primaryMetric");
+            Object error = metric.get("scoreError");
+            scores.put(key, new Score(key,
+                    ((Number) metric.get("score")).doubleValue(),
+                    error instanceof Number ? ((Number) error).doubleValue() : 0, // "NaN" with a single iteration
+                    (String) metric.get("scoreUnit"),
+                    "thrpt".equals(result.get("mode"))));
+        }
+        return scores;
+    }
+
+    /**
+     * Minimal JSON reader for the JMH result files : objects become LinkedHashMap, arrays ArrayList,
+     * numbers Double, and strings, booleans and null their Java counterparts.
+     */
+    static class JsonReader {
+        private final String text;
+        private int position = 0;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        Object read() {
+            skipWhitespace();
+            char c = text.charAt(position);
+            switch (c) {
+                case '{':
+                    return readObject();
+                case '[':
+                    return readArray();
+                case '"':
+                    return readString();
+                case 't':
+                    return readLiteral("true", Boolean.TRUE);
+                case 'f':
+                    return readLiteral("false", Boolean.FALSE);
+                case 'n':
+                    return readLiteral("null", null);
+                default:
+                    return readNumber();
+            }
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++; // {
+            skipWhitespace();
+            if (text.charAt(position) == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                object.put(key, read());
+                skipWhitespace();
+                if (text.charAt(position++) == '}') return object;
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> array = new ArrayList<>();
+            position++; // [
+            skipWhitespace();
+            if (text.charAt(position) == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(read());
+                skipWhitespace();
+                if (text.charAt(position++) == ']') return array;
+            }
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder builder = new StringBuilder();
+            while (true) {
+                char c = text.charAt(position++);
+                if (c == '"') return builder.toString();
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'n': builder.append('\n'); break;
+                    case 't': builder.append('\t'); break;
+                    case 'r': builder.append('\r'); break;
+                    case 'b': builder.append('\b'); break;
+                    case 'f': builder.append('\f'); break;
+                    case 'u':
+                        builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default: builder.append(escaped);
+                }
+            }
+        }
+
+        private Object readLiteral(String literal, Object value) {
+            if (!text.startsWith(literal, position)) throw error("Expected " + literal);
+            position += literal.length();
+            return value;
+        }
+
+        private Double readNumber() {
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) position++;
+            if (start == position) throw error("Unexpected character '" + text.charAt(position) + "'");
+            return Double.parseDouble(text.substring(start, position));
+        }
+
+        private void expect(char c) {
+            if (text.charAt(position) != c) throw error("Expected '" + c + "'");
+            position++;
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package ch.epfl.bio410.benchmarks;
+
+import ch.epfl.bio410.analysis_and_plots.*;
+import ch.epfl.bio410.segmentation.Colonies;
+import ch.epfl.bio410.segmentation.Segmentation;
+import ch.epfl.bio410.tracking.Tracking;
+import ch.epfl.bio410.utils.AsyncIO;
+import ch.epfl.bio410.utils.ResourceUsage;
+import ch.epfl.bio410.utils.TaskMonitor;
+import ch.epfl.bio410.utils.TrackingConfig;
+import ch.epfl.bio410.utils.utils;
+import fiji.plugin.trackmate.Model;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.FloatProcessor;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * End-to-end benchmark of the stages of Replisome_Analysis.run, replayed headless.
+ * Inputs are either synthetic time-lapses (see SyntheticData.timeLapse), swept over image sizes and frame counts,
+ * or existing results/ folders such as the bundled DATA/results (analysis stages only).
+ * For each stage, the wall time, process CPU time, allocated bytes and peak heap are recorded (see ResourceUsage),
+ * and written to a JSON report.
+ * When a stage cannot run in this environment (e.g. CLIJ2 without an OpenCL device), it is reported as failed,
+ * and the next stages run on ground truth or synthetic inputs instead, which is noted in the report.
+ *
+ * Usage : java -Djava.awt.headless=true -cp target/benchmarks.jar ch.epfl.bio410.benchmarks.PipelineBenchmark [options]
+ * --sizes 256,512      image sizes of the synthetic sweep (pixels)
+ * --frames 10,20,40    frame counts of the synthetic sweep
+ * --colonies 8         colonies per synthetic image
+ * --spots 40           GFP spots per synthetic frame
+ * --data DATA/results  also replay the analysis on the acquisitions of a results folder
+ * --no-synthetic       skip the synthetic sweep
+ * --work dir           working folder for the outputs of the pipeline (default : target/pipeline-work)
+ * --output file        JSON report (default : target/pipeline-report.json)
+ * --verbose            keep the log output of the pipeline
+ * --progress           show the progress of the colonies and tracking stages on stderr
+ */
+public class PipelineBenchmark {
+    private static final List<String> JOINT_FEATURES = Arrays.asList(
+            "NUMBER_SPOTS", "NUMBER_GAPS", "LONGEST_GAP", "TRACK_DURATION", "TRACK_START", "TRACK_STOP", "TRACK_DISPLACEMENT", "TRACK_X_LOCATION", "TRACK_Y_LOCATION", "TRACK_MEAN_SPEED", "TRACK_MAX_SPEED", "TRACK_MIN_SPEED", "TRACK_MEDIAN_SPEED", "TRACK_STD_SPEED", "TRACK_MEAN_QUALITY", "TOTAL_DISTANCE_TRAVELED", "MAX_DISTANCE_TRAVELED", "CONFINEMENT_RATIO", "MEAN_STRAIGHT_LINE_SPEED", "LINEARITY_OF_FORWARD_PROGRESSION", "MEAN_DIRECTIONAL_CHANGE_RATE"
+    );
+    private static final List<String> HISTOGRAM_FEATURES = Arrays.asList(
+            "TRACK_DURATION", "TRACK_DISPLACEMENT", "TRACK_MEAN_SPEED", "TOTAL_DISTANCE_TRAVELED", "CONFINEMENT_RATIO", "MEAN_DIRECTIONAL_CHANGE_RATE"
+    );
+    private static final int JOINT_PLOT_PANEL_SIZE = 250;
+    private static final int MAX_SINGLE_IMAGE_SIZE = 4096;
+    /** Pixel size of the label images made up for existing results (no image is bundled with them). */
+    private static final double DATA_PIXEL_SIZE = 0.5;
+    private static final long SEED = 42;
+    private static TaskMonitor monitor = TaskMonitor.NONE;
+
+    /** Work done by a stage. Returns a note on the inputs or outputs, or null. */
+    interface StageBody {
+        String run() throws Exception;
+    }
+
+    /** Measures of one stage. */
+    static class StageResult {
+        final String name;
+        String status = "ok";
+        String note;
+        String error;
+        ResourceUsage usage;
+
+        StageResult(String name) {
+            this.name = name;
+        }
+    }
+
+    /** One replay of the pipeline, on one input. */
+    static class Run {
+        final Map<String, Object> parameters = new LinkedHashMap<>();
+        final List<StageResult> stages = new ArrayList<>();
+
+        Run(String input) {
+            parameters.put("input", input);
+        }
+
+        /**
+         * Run and measure a stage. Errors are recorded, not thrown.
+         * @return true if the stage completed
+         */
+        boolean measure(String name, StageBody body) {
+            StageResult result = new StageResult(name);
+            stages.add(result);
+            System.gc();
+            ResourceUsage usage = ResourceUsage.start();
+            try {
+                result.note = body.run();
+            } catch (Throwable e) {
+                result.status = "failed";
+                result.error = e.getClass().getSimpleName() + (e.getMessage() != null ? " : " + e.getMessage() : "");
+            }
+            result.usage = usage.stop();
+            return result.status.equals("ok");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Integer> sizes = Arrays.asList(256, 512);
+        List<Integer> frames = Arrays.asList(10, 20, 40);
+        int nColonies = 8;
+        int nSpots = 40;
+        List<File> dataFolders = new ArrayList<>();
+        boolean synthetic = true;
+        boolean verbose = false;
+        File work = new File("target", "pipeline-work");
+        File output = new File("target", "pipeline-report.json");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sizes": sizes = parseInts(args[++i]); break;
+                case "--frames": frames = parseInts(args[++i]); break;
+                case "--colonies": nColonies = Integer.parseInt(args[++i]); break;
+                case "--spots": nSpots = Integer.parseInt(args[++i]); break;
+                case "--data": dataFolders.add(new File(args[++i])); break;
+                case "--no-synthetic": synthetic = false; break;
+                case "--work": work = new File(args[++i]); break;
+                case "--output": output = new File(args[++i]); break;
+                case "--verbose": verbose = true; break;
+                case "--progress": monitor = TaskMonitor.console(System.err); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        preinitLegacyPatcher();
+        PrintStream stdout = System.out;
+        List<Run> runs = new ArrayList<>();
+        if (synthetic) {
+            for (int size : sizes) {
+                for (int nFrames : frames) {
+                    stdout.println("Synthetic " + size + "x" + size + ", " + nFrames + " frames");
+                    if (!verbose) SyntheticData.silenceStdout();
+                    runs.add(runSynthetic(size, nFrames, nColonies, nSpots, new File(work, "synthetic_" + size + "_" + nFrames)));
+                    System.setOut(stdout);
+                }
+            }
+        }
+        for (File folder : dataFolders) {
+            for (AcquisitionFiles acquisition : AcquisitionFiles.find(folder)) {
+                stdout.println("Results " + acquisition.name + " from " + folder);
+                if (!verbose) SyntheticData.silenceStdout();
+                runs.add(runResults(acquisition, new File(work, "data_" + acquisition.name)));
+                System.setOut(stdout);
+            }
+        }
+
+        printSummary(runs, stdout);
+        File parent = output.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) throw new IOException("Cannot create " + parent);
+        writeReport(runs, output);
+        stdout.println("Report saved to " + output.getPath());
+    }
+
+    /**
+     * Replay the whole pipeline on a synthetic time-lapse.
+     */
+    static Run runSynthetic(int size, int nFrames, int nColonies, int nSpots, File folder) throws IOException {
+        Run run = new Run("synthetic");
+        run.parameters.put("size", size);
+        run.parameters.put("frames", nFrames);
+        run.parameters.put("colonies", nColonies);
+        run.parameters.put("spots", nSpots);
+        String name = "synthetic";
+        File results = createFolder(new File(folder, "results"));
+        TrackingConfig config = new TrackingConfig();
+        SyntheticData.TimeLapse data = SyntheticData.timeLapse(size, nFrames, nColonies, nSpots, SEED);
+        ImagePlus imageDIC = data.dic;
+
+        // The ImageJ commands, on a copy, for comparison with the pure Java segmentation used by the plugin.
+        // IJ.run reports errors in the log instead of throwing them, so check that the commands had an effect
+        ImagePlus macroDIC = imageDIC.duplicate();
+        run.measure("denoise_macro", () -> {
+            Object before = macroDIC.getStack().getProcessor(1).duplicate().getPixels();
+            utils.remove_noise(macroDIC);
+            if (Arrays.equals((short[]) before, (short[]) macroDIC.getStack().getProcessor(1).getPixels())) {
+                throw new IllegalStateException("Median filter did not run");
+            }
+            return null;
+        });
+        run.measure("segment_macro", () -> {
+            Segmentation.segment(macroDIC);
+            if (macroDIC.getBitDepth() != 8) throw new IllegalStateException("Convert to Mask did not run");
+            return null;
+        });
+        macroDIC.close();
+        // The segmentation of the whole stack alone, for comparison with the colonies stage which fuses it
+        // with the labeling of each frame, as in the plugin
+        ImagePlus[] masks = {null};
+        run.measure("segment", () -> {
+            masks[0] = Segmentation.denoiseAndSegment(imageDIC, AutoThresholder.Method.Otsu);
+            return null;
+        });
+        Colonies[] colonies = {null};
+        run.measure("colonies", () -> {
+            Colonies computed = new Colonies(imageDIC);
+            computed.setMonitor(monitor);
+            computed.setPreprocessing(Segmentation.MEDIAN_RADIUS, AutoThresholder.Method.Otsu);
+            computed.runColoniesComputation(config.colony_min_area);
+            computed.saveResults(results.getPath(), name);
+            // Timed with the writes (see AsyncIO)
+            AsyncIO.shared().flush();
+            colonies[0] = computed;
+            return null;
+        });
+        if (colonies[0] != null) {
+            imageDIC.setStack(colonies[0].masks.getStack());
+        } else if (masks[0] != null) {
+            imageDIC.setStack(masks[0].getStack());
+        }
+
+        Tracking tracker = new Tracking();
+        tracker.setConfig(config);
+        tracker.setMonitor(monitor);
+        Model[] model = {null};
+        run.measure("tracking", () -> {
+            model[0] = tracker.runTracking(data.gfp, false);
+            if (model[0] == null) throw new IllegalStateException("TrackMate did not complete");
+            return null;
+        });
+        File spotsFile = new File(results, "spots_" + name + ".csv");
+        File tracksFile = new File(results, "tracks_" + name + ".csv");
+        run.measure("export", () -> {
+            if (model[0] == null) throw new IllegalStateException("No tracking results");
+            tracker.saveFeaturesToCSV(model[0], spotsFile, tracksFile, name);
+            AsyncIO.shared().flush();
+            return null;
+        });
+        if (!tracksFile.exists()) {
+            // Random tracks over the same field of view, for the analysis stages
+            double extent = size * data.gfp.getCalibration().pixelWidth;
+            SyntheticData.writeTracksCsv(tracksFile, nSpots, nFrames, extent, SEED);
+            SyntheticData.writeSpotsCsv(spotsFile, nSpots, nFrames, extent, SEED);
+            lastStage(run).note = "tracks and spots replaced by SyntheticData CSVs";
+        }
+
+        ImagePlus labels = colonies[0] != null ? colonies[0].colonyLabels : data.colonyLabels;
+        String labelsNote = colonies[0] != null ? null : "ground truth colony labels";
+        runAnalysis(run, name, folder, labels, labelsNote, imageDIC, colonies[0] != null ? colonies[0].colonyStats : null);
+        return run;
+    }
+
+    /** Files of an acquisition in an existing results/ folder. */
+    static class AcquisitionFiles {
+        final String name;
+        final File tracksFile;
+
+        AcquisitionFiles(String name, File tracksFile) {
+            this.name = name;
+            this.tracksFile = tracksFile;
+        }
+
+        static List<AcquisitionFiles> find(File folder) {
+            List<AcquisitionFiles> found = new ArrayList<>();
+            File[] files = folder.listFiles((dir, file) -> file.startsWith("tracks_") && !file.startsWith("tracks_with_colonylabels_") && file.endsWith(".csv"));
+            if (files == null) return found;
+            Arrays.sort(files);
+            for (File file : files) {
+                String fileName = file.getName();
+                found.add(new AcquisitionFiles(fileName.substring("tracks_".length(), fileName.length() - ".csv".length()), file));
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Replay the analysis stages on an existing TrackMate export.
+     * No image comes with the exports : colony labels are made up to cover the tracks, see SyntheticData.labelStack.
+     */
+    static Run runResults(AcquisitionFiles acquisition, File folder) throws IOException {
+        Run run = new Run("results");
+        run.parameters.put("acquisition", acquisition.name);
+        String name = acquisition.name;
+        File results = createFolder(new File(folder, "results"));
+        File spotsSource = new File(acquisition.tracksFile.getParentFile(), "spots_" + name + ".csv");
+        File tracksFile = new File(results, "tracks_" + name + ".csv");
+        File spotsFile = new File(results, "spots_" + name + ".csv");
+        List<CSVRecord> tracks = new ArrayList<>();
+        run.measure("load", () -> {
+            Files.copy(acquisition.tracksFile.toPath(), tracksFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            if (spotsSource.exists()) {
+                Files.copy(spotsSource.toPath(), spotsFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            }
+            tracks.addAll(utils.readCsv(tracksFile, 3));
+            return null;
+        });
+        run.parameters.put("tracks", tracks.size());
+
+        // Label stack covering all tracks
+        double extent = 0;
+        int nFrames = 1;
+        for (CSVRecord track : tracks) {
+            extent = Math.max(extent, Math.max(Double.parseDouble(track.get("TRACK_X_LOCATION")), Double.parseDouble(track.get("TRACK_Y_LOCATION"))));
+            nFrames = Math.max(nFrames, (int) Double.parseDouble(track.get("TRACK_STOP")) + 1);
+        }
+        int size = (int) Math.ceil(extent / DATA_PIXEL_SIZE) + 1;
+        run.parameters.put("size", size);
+        run.parameters.put("frames", nFrames);
+        ImagePlus labels = SyntheticData.labelStack(size, nFrames, 64, DATA_PIXEL_SIZE, SEED);
+        runAnalysis(run, name, folder, labels, "SyntheticData label stack", null, null);
+        return run;
+    }
+
+    /**
+     * The analysis part of the pipeline : assignment of tracks to colonies, colony statistics per track, plots.
+     * @param run Run to add the stages to
+     * @param name Name of the acquisition
+     * @param folder Folder containing results/
+     * @param labels Colony labels
+     * @param labelsNote Note on where the labels come from, or null
+     * @param imageDIC DIC channel for the statistics, or null to compute them from the labels alone
+     * @param colonyStats Statistics from the colonies stage, or null to compute them
+     */
+    private static void runAnalysis(Run run, String name, File folder, ImagePlus labels, String labelsNote,
+                                    ImagePlus imageDIC, Map<Integer, double[][]> colonyStats) throws IOException {
+        File results = new File(folder, "results");
+        File tracksFile = new File(results, "tracks_" + name + ".csv");
+        File spotsFile = new File(results, "spots_" + name + ".csv");
+        List<CSVRecord> tracks = new ArrayList<>();
+        run.measure("assignment", () -> {
+            tracks.addAll(utils.readCsv(tracksFile, 3));
+            Results.assignTracksToColonies(tracks, labels, name, folder.getPath());
+            AsyncIO.shared().flush();
+            return labelsNote;
+        });
+
+        Map<Integer, Map<Integer, double[]>> trackStats = new HashMap<>();
+        run.measure("stats", () -> {
+            Map<Integer, double[][]> stats = colonyStats;
+            String note = null;
+            if (stats == null && imageDIC != null) {
+                try {
+                    stats = Colonies.computeStats(labels, imageDIC);
+                } catch (Throwable e) {
+                    note = "CLIJ2 unavailable (" + e.getClass().getSimpleName() + "), statistics from SyntheticData.labelStats";
+                }
+            }
+            if (stats == null) {
+                if (note == null) note = "statistics from SyntheticData.labelStats";
+                stats = new HashMap<>();
+                ImageStack stack = labels.getStack();
+                for (int i = 1; i <= stack.getSize(); i++) {
+                    stats.put(i, SyntheticData.labelStats((FloatProcessor) stack.getProcessor(i).convertToFloat()));
+                }
+            }
+            List<CSVRecord> tracksWithLabels = utils.readCsv(new File(results, "tracks_with_colonylabels_" + name + ".csv"), 0);
+            Results resultsAnalysis = new Results();
+            for (Map.Entry<Integer, List<CSVRecord>> entry : Plots.groupByTrackId(tracksWithLabels).entrySet()) {
+                trackStats.put(entry.getKey(), resultsAnalysis.getColonyFeatures(Integer.toString(entry.getKey()), entry.getValue(), stats));
+            }
+            return note;
+        });
+
+        run.measure("plots", () -> {
+            File plots = createFolder(new File(results, "plots"));
+            Plots.saveChartAsPNG(Plots.colonyFeaturePerTrackChart(trackStats, "PIXEL_COUNT", new SeriesAggregation.Options()),
+                    new File(plots, "area_per_track_" + name).getPath());
+            String jointPlotPath = new File(plots, "joint_plot_" + name).getPath();
+            PairPlot pairPlot = new PairPlot(tracks, JOINT_FEATURES, 20);
+            if (JOINT_FEATURES.size() * JOINT_PLOT_PANEL_SIZE <= MAX_SINGLE_IMAGE_SIZE) {
+                Plots.saveChartPanelAsPNG(pairPlot.toPanel(JOINT_PLOT_PANEL_SIZE, -1), jointPlotPath);
+            } else {
+                PlotExport.TileGrid grid = pairPlot.asTileGrid(JOINT_PLOT_PANEL_SIZE, -1);
+                PlotExport.saveAsTiledPNG(grid, jointPlotPath);
+                PlotExport.saveAsSVG(grid, jointPlotPath);
+            }
+            for (String feature : HISTOGRAM_FEATURES) {
+                Plots.saveChartAsPNG(Plots.histogramChart(tracks, feature, 50, 1600, 1000, true),
+                        new File(plots, "hist_" + feature + "_" + name).getPath());
+            }
+            if (spotsFile.exists()) {
+                Kinematics kinematics = Kinematics.fromSpots(utils.readCsv(spotsFile, 3));
+                Kinematics.saveFeaturesToCSV(kinematics.computeFeatures(), new File(results, "track_kinematics_" + name + ".csv"));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Commands run through IJ.run open a GenericDialog, which needs a display unless the ImageJ legacy patcher
+     * (part of the imagej dependency) is installed before the first ImageJ class is loaded.
+     * Without it, the denoise_macro and segment_macro stages are reported as failed when headless.
+     */
+    private static void preinitLegacyPatcher() {
+        try {
+            Class.forName("net.imagej.patcher.LegacyInjector").getMethod("preinit").invoke(null);
+        } catch (Throwable e) {
+            System.err.println("ImageJ legacy patcher not available (" + e.getClass().getSimpleName() + ")");
+        }
+    }
+
+    private static StageResult lastStage(Run run) {
+        return run.stages.get(run.stages.size() - 1);
+    }
+
+    private static File createFolder(File folder) throws IOException {
+        if (!folder.exists() && !folder.mkdirs()) throw new IOException("Cannot create " + folder);
+        return folder;
+    }
+
+    private static List<Integer> parseInts(String list) {
+        List<Integer> values = new ArrayList<>();
+        for (String value : list.split(",")) values.add(Integer.parseInt(value.trim()));
+        return values;
+    }
+
+    private static void printSummary(List<Run> runs, PrintStream out) {
+        out.println(String.format(Locale.ROOT, "%-40s %-11s %-7s %10s %10s %12s %12s",
+                "Run", "Stage", "Status", "Wall (ms)", "CPU (ms)", "Alloc (MB)", "Peak (MB)"));
+        for (Run run : runs) {
+            String label = run.parameters.toString();
+            for (StageResult stage : run.stages) {
+                out.println(String.format(Locale.ROOT, "%-40s %-11s %-7s %10.1f %10.1f %12.1f %12.1f",
+                        label.length() > 40 ? label.substring(0, 40) : label, stage.name, stage.status,
+                        stage.usage.getWallNanos() / 1e6, stage.usage.getCpuNanos() / 1e6,
+                        stage.usage.getAllocatedBytes() / 1048576.0, stage.usage.getPeakHeapBytes() / 1048576.0));
+                label = "";
+            }
+        }
+    }
+
+    /**
+     * Write the report : environment, then each run with its parameters and per-stage measures.
+     */
+    static void writeReport(List<Run> runs, File output) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+            writer.write("{\n");
+            writer.write("  \"environment\" : {");
+            writer.write("\"javaVersion\" : " + quote(System.getProperty("java.version")));
+            writer.write(", \"availableProcessors\" : " + Runtime.getRuntime().availableProcessors());
+            writer.write(", \"maxHeapBytes\" : " + Runtime.getRuntime().maxMemory());
+            writer.write(", \"osName\" : " + quote(System.getProperty("os.name")));
+            writer.write(", \"osArch\" : " + quote(System.getProperty("os.arch")));
+            writer.write("},\n");
+            writer.write("  \"runs\" : [");
+            for (int r = 0; r < runs.size(); r++) {
+                Run run = runs.get(r);
+                writer.write(r == 0 ? "\n" : ",\n");
+                writer.write("    {\"parameters\" : {");
+                int p = 0;
+                for (Map.Entry<String, Object> parameter : run.parameters.entrySet()) {
+                    if (p++ > 0) writer.write(", ");
+                    Object value = parameter.getValue();
+                    writer.write(quote(parameter.getKey()) + " : " + (value instanceof Number ? value.toString() : quote(String.valueOf(value))));
+                }
+                writer.write("},\n     \"stages\" : [");
+                for (int s = 0; s < run.stages.size(); s++) {
+                    StageResult stage = run.stages.get(s);
+                    writer.write(s == 0 ? "\n" : ",\n");
+                    writer.write("       {\"name\" : " + quote(stage.name));
+                    writer.write(", \"status\" : " + quote(stage.status));
+                    writer.write(", \"wallNanos\" : " + stage.usage.getWallNanos());
+                    writer.write(", \"cpuNanos\" : " + stage.usage.getCpuNanos());
+                    writer.write(", \"allocatedBytes\" : " + stage.usage.getAllocatedBytes());
+                    writer.write(", \"peakHeapBytes\" : " + stage.usage.getPeakHeapBytes());
+                    if (stage.note != null) writer.write(", \"note\" : " + quote(stage.note));
+                    if (stage.error != null) writer.write(", \"error\" : " + quote(stage.error));
+                    writer.write("}");
+                }
+                writer.write("\n     ]}");
+            }
+            writer.write("\n  ]\n}\n");
+        }
+    }
+
+    private static String quote(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    if (c < 0x20) builder.append(String.format("\\u%04x", (int) c));
+                    else builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
@@ -0,0 +1,410 @@
+package ch.epfl.bio410.benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic inputs for the benchmarks, shaped like what the plugin sees in practice.
+ * - label images : disk-shaped colonies (labels 1..nColonies) plus small specks to be filtered out
+ * - Voronoi diagrams of those colonies (nearest colony center)
+ * - statistics tables with the CLIJ2 layout (only IDENTIFIER and PIXEL_COUNT are filled)
+ * - TrackMate tracks and spots CSV exports, with the same columns and 3 extra header rows
+ * - time-lapse acquisitions : DIC-like colonies of rod-shaped bacteria, and GFP spots moving inside them
+ * Everything is seeded, so a given size always produces the same data.
+ */
+public class SyntheticData {
+    /** Number of columns of the CLIJ2 statistics table. */
+    public static final int STATS_COLUMNS = 36;
+    /** Radius of the specks added around the colonies, in pixels. */
+    public static final int SPECK_RADIUS = 2;
+
+    public static final String[] TRACK_COLUMNS = {
+            "LABEL", "TRACK_INDEX", "TRACK_ID", "NUMBER_SPOTS", "NUMBER_GAPS", "NUMBER_SPLITS", "NUMBER_MERGES",
+            "NUMBER_COMPLEX", "LONGEST_GAP", "TRACK_DURATION", "TRACK_START", "TRACK_STOP", "TRACK_DISPLACEMENT",
+            "TRACK_X_LOCATION", "TRACK_Y_LOCATION", "TRACK_Z_LOCATION", "TRACK_MEAN_SPEED", "TRACK_MAX_SPEED",
+            "TRACK_MIN_SPEED", "TRACK_MEDIAN_SPEED", "TRACK_STD_SPEED", "TRACK_MEAN_QUALITY", "TOTAL_DISTANCE_TRAVELED",
+            "MAX_DISTANCE_TRAVELED", "CONFINEMENT_RATIO", "MEAN_STRAIGHT_LINE_SPEED", "LINEARITY_OF_FORWARD_PROGRESSION",
+            "MEAN_DIRECTIONAL_CHANGE_RATE"
+    };
+
+    /** Columns written as integers, as TrackMate does. */
+    private static final Set<String> INTEGER_COLUMNS = new HashSet<>(Arrays.asList(
+            "TRACK_INDEX", "TRACK_ID", "NUMBER_SPOTS", "NUMBER_GAPS", "NUMBER_SPLITS", "NUMBER_MERGES",
+            "NUMBER_COMPLEX", "LONGEST_GAP", "ID", "FRAME", "VISIBILITY"
+    ));
+
+    public static final String[] SPOT_COLUMNS = {
+            "LABEL", "ID", "TRACK_ID", "QUALITY", "POSITION_X", "POSITION_Y", "POSITION_Z", "POSITION_T", "FRAME",
+            "RADIUS", "VISIBILITY", "MANUAL_SPOT_COLOR", "MEAN_INTENSITY_CH1", "MEDIAN_INTENSITY_CH1",
+            "MIN_INTENSITY_CH1", "MAX_INTENSITY_CH1", "TOTAL_INTENSITY_CH1", "STD_INTENSITY_CH1", "CONTRAST_CH1", "SNR_CH1"
+    };
+
+    /** A label image with the centers of its colonies. */
+    public static class Labels {
+        public final FloatProcessor labels;
+        public final double[][] centers; // {x, y} of colony i + 1
+        public final int nSpecks;
+
+        Labels(FloatProcessor labels, double[][] centers, int nSpecks) {
+            this.labels = labels;
+            this.centers = centers;
+            this.nSpecks = nSpecks;
+        }
+    }
+
+    /**
+     * Generate a label image with disk-shaped colonies, filling about a third of the image,
+     * and as many small specks (labels nColonies+1..) placed at random.
+     * @param size Width and height of the image
+     * @param nColonies Number of colonies
+     * @param seed Seed of the generator
+     * @return the label image and colony centers
+     */
+    public static Labels labelImage(int size, int nColonies, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        FloatProcessor labels = new FloatProcessor(size, size);
+        double radius = Math.sqrt(size * size / 3.0 / (Math.PI * nColonies));
+        double[][] centers = new double[nColonies][];
+        for (int c = 0; c < nColonies; c++) {
+            centers[c] = new double[]{random.nextDouble() * size, random.nextDouble() * size};
+            fillDisk(labels, centers[c][0], centers[c][1], radius * (0.5 + random.nextDouble()), c + 1);
+        }
+        for (int s = 0; s < nColonies; s++) {
+            fillDisk(labels, random.nextDouble() * size, random.nextDouble() * size, SPECK_RADIUS, nColonies + s + 1);
+        }
+        return new Labels(labels, centers, nColonies);
+    }
+
+    private static void fillDisk(FloatProcessor image, double cx, double cy, double radius, int label) {
+        float[] pixels = (float[]) image.getPixels();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int x0 = Math.max(0, (int) (cx - radius));
+        int x1 = Math.min(width - 1, (int) (cx + radius));
+        int y0 = Math.max(0, (int) (cy - radius));
+        int y1 = Math.min(height - 1, (int) (cy + radius));
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= radius * radius) pixels[y * width + x] = label;
+            }
+        }
+    }
+
+    /**
+     * Voronoi diagram of the colonies : each pixel gets the label of the closest colony center.
+     * @param labels Label image from labelImage
+     * @return the Voronoi diagram
+     */
+    public static FloatProcessor voronoi(Labels labels) {
+        int width = labels.labels.getWidth();
+        int height = labels.labels.getHeight();
+        FloatProcessor voronoi = new FloatProcessor(width, height);
+        float[] pixels = (float[]) voronoi.getPixels();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double best = Double.MAX_VALUE;
+                int bestLabel = 0;
+                for (int c = 0; c < labels.centers.length; c++) {
+                    double dx = x - labels.centers[c][0];
+                    double dy = y - labels.centers[c][1];
+                    double d = dx * dx + dy * dy;
+                    if (d < best) {
+                        best = d;
+                        bestLabel = c + 1;
+                    }
+                }
+                pixels[y * width + x] = bestLabel;
+            }
+        }
+        return voronoi;
+    }
+
+    /**
+     * Statistics table of a label image, laid out like CLIJ2 statisticsOfBackgroundAndLabelledPixels
+     * (row i is label i, row 0 is the background). Only IDENTIFIER (0) and PIXEL_COUNT (15) are filled.
+     * @param labels Label image
+     * @return the statistics table
+     */
+    public static double[][] labelStats(FloatProcessor labels) {
+        float[] pixels = (float[]) labels.getPixels();
+        int maxLabel = 0;
+        for (float pixel : pixels) maxLabel = Math.max(maxLabel, (int) pixel);
+        double[][] stats = new double[maxLabel + 1][STATS_COLUMNS];
+        for (int label = 0; label <= maxLabel; label++) stats[label][0] = label;
+        for (float pixel : pixels) stats[(int) pixel][15]++;
+        return stats;
+    }
+
+    /**
+     * Stack of label images (one labelImage per frame), calibrated in microns.
+     * Frames are 16-bit, like label images saved by the plugin and opened again.
+     * @param size Width and height of each frame
+     * @param nFrames Number of frames
+     * @param nColonies Number of colonies
+     * @param pixelSize Pixel size in microns
+     * @param seed Seed of the generator
+     * @return the label stack
+     */
+    public static ImagePlus labelStack(int size, int nFrames, int nColonies, double pixelSize, long seed) {
+        ImageStack stack = new ImageStack(size, size);
+        for (int f = 0; f < nFrames; f++) {
+            stack.addSlice(labelImage(size, nColonies, seed + f).labels.convertToShort(false));
+        }
+        ImagePlus image = new ImagePlus("Synthetic labels", stack);
+        image.getCalibration().pixelWidth = pixelSize;
+        image.getCalibration().pixelHeight = pixelSize;
+        return image;
+    }
+
+    /** A synthetic 2-channel time-lapse, already split, with its ground truth colony labels. */
+    public static class TimeLapse {
+        public final ImagePlus dic;
+        public final ImagePlus gfp;
+        public final ImagePlus colonyLabels;
+
+        TimeLapse(ImagePlus dic, ImagePlus gfp, ImagePlus colonyLabels) {
+            this.dic = dic;
+            this.gfp = gfp;
+            this.colonyLabels = colonyLabels;
+        }
+    }
+
+    /**
+     * Generate a time-lapse shaped like the plugin inputs (16-bit, 0.103 um pixels, 1 s frames).
+     * DIC channel : light noisy background, with colonies of darker rod-shaped bacteria that grow over time.
+     * GFP channel : dark noisy background, with Gaussian spots doing a random walk inside the bacteria.
+     * Colony labels are 16-bit.
+     * @param size Width and height of each frame
+     * @param nFrames Number of frames
+     * @param nColonies Number of colonies
+     * @param nSpots Number of spots per frame
+     * @param seed Seed of the generator
+     * @return the DIC and GFP channels, and the colony labels
+     */
+    public static TimeLapse timeLapse(int size, int nFrames, int nColonies, int nSpots, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        double pixelSize = 0.103;
+        double cellLength = 2.0 / pixelSize;
+        double cellWidth = 0.8 / pixelSize;
+        int cellsPerColony = 16;
+        // Colonies : a center, and cells at random positions and orientations, revealed as the colony grows
+        double[][] cells = new double[nColonies * cellsPerColony][]; // {x, y, angle, colony}
+        for (int c = 0; c < nColonies; c++) {
+            double cx = size * (0.1 + 0.8 * random.nextDouble());
+            double cy = size * (0.1 + 0.8 * random.nextDouble());
+            for (int k = 0; k < cellsPerColony; k++) {
+                double r = cellLength * Math.sqrt(k) * 0.8;
+                double theta = random.nextDouble() * 2 * Math.PI;
+                cells[c * cellsPerColony + k] = new double[]{
+                        cx + r * Math.cos(theta), cy + r * Math.sin(theta), random.nextDouble() * Math.PI, c + 1};
+            }
+        }
+        // Spots start in the first cell of a random colony
+        double[][] spots = new double[nSpots][];
+        for (int s = 0; s < nSpots; s++) {
+            double[] cell = cells[random.nextInt(nColonies) * cellsPerColony];
+            spots[s] = new double[]{cell[0], cell[1]};
+        }
+
+        ImageStack dic = new ImageStack(size, size);
+        ImageStack gfp = new ImageStack(size, size);
+        ImageStack labels = new ImageStack(size, size);
+        for (int f = 0; f < nFrames; f++) {
+            // Colonies grow from 4 cells to all of them over the movie
+            int visibleCells = 4 + (cellsPerColony - 4) * f / Math.max(1, nFrames - 1);
+            short[] dicPixels = new short[size * size];
+            short[] gfpPixels = new short[size * size];
+            short[] labelPixels = new short[size * size];
+            for (int i = 0; i < dicPixels.length; i++) {
+                dicPixels[i] = (short) Math.max(0, 3000 + 150 * gaussian(random));
+                gfpPixels[i] = (short) Math.max(0, 300 + 30 * gaussian(random));
+            }
+            for (int c = 0; c < nColonies; c++) {
+                for (int k = 0; k < visibleCells; k++) {
+                    fillRod(dicPixels, labelPixels, size, cells[c * cellsPerColony + k], cellLength, cellWidth, random);
+                }
+            }
+            for (double[] spot : spots) {
+                spot[0] = Math.min(size - 1, Math.max(0, spot[0] + 0.5 * gaussian(random)));
+                spot[1] = Math.min(size - 1, Math.max(0, spot[1] + 0.5 * gaussian(random)));
+                addGaussianSpot(gfpPixels, size, spot[0], spot[1], 0.31 / pixelSize / 2, 800);
+            }
+            dic.addSlice(new ShortProcessor(size, size, dicPixels, null));
+            gfp.addSlice(new ShortProcessor(size, size, gfpPixels, null));
+            labels.addSlice(new ShortProcessor(size, size, labelPixels, null));
+        }
+        ImagePlus[] images = {
+                new ImagePlus("C1-Synthetic", dic),
+                new ImagePlus("C2-Synthetic", gfp),
+                new ImagePlus("Synthetic_colony_labels", labels)
+        };
+        for (ImagePlus image : images) {
+            image.setDimensions(1, 1, nFrames);
+            image.getCalibration().pixelWidth = pixelSize;
+            image.getCalibration().pixelHeight = pixelSize;
+            image.getCalibration().setUnit("micron");
+            image.getCalibration().frameInterval = 1;
+        }
+        return new TimeLapse(images[0], images[1], images[2]);
+    }
+
+    private static void fillRod(short[] dic, short[] labels, int size, double[] cell, double length, double width, SplittableRandom random) {
+        double cos = Math.cos(cell[2]);
+        double sin = Math.sin(cell[2]);
+        int extent = (int) Math.ceil(length / 2 + width);
+        for (int y = (int) cell[1] - extent; y <= (int) cell[1] + extent; y++) {
+            for (int x = (int) cell[0] - extent; x <= (int) cell[0] + extent; x++) {
+                if (x < 0 || y < 0 || x >= size || y >= size) continue;
+                // Distance to the axis segment of the rod (a capsule)
+                double u = (x - cell[0]) * cos + (y - cell[1]) * sin;
+                double v = -(x - cell[0]) * sin + (y - cell[1]) * cos;
+                double along = Math.max(0, Math.abs(u) - length / 2);
+                if (along * along + v * v > width * width / 4) continue;
+                dic[y * size + x] = (short) Math.max(0, 1500 + 150 * gaussian(random));
+                labels[y * size + x] = (short) cell[3];
+            }
+        }
+    }
+
+    private static void addGaussianSpot(short[] gfp, int size, double cx, double cy, double sigma, double amplitude) {
+        int extent = (int) Math.ceil(3 * sigma);
+        for (int y = (int) cy - extent; y <= (int) cy + extent; y++) {
+            for (int x = (int) cx - extent; x <= (int) cx + extent; x++) {
+                if (x < 0 || y < 0 || x >= size || y >= size) continue;
+                double d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                int value = (gfp[y * size + x] & 0xffff) + (int) (amplitude * Math.exp(-d2 / (2 * sigma * sigma)));
+                gfp[y * size + x] = (short) Math.min(65535, value);
+            }
+        }
+    }
+
+    /** Standard normal sample (Box-Muller). */
+    private static double gaussian(SplittableRandom random) {
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    /**
+     * Write a TrackMate tracks export with random tracks.
+     * @param file File to write
+     * @param nTracks Number of tracks
+     * @param nFrames Number of frames of the movie (tracks start and stop within it)
+     * @param extent Size of the field of view, in microns
+     * @param seed Seed of the generator
+     * @throws IOException If the file cannot be written
+     */
+    public static void writeTracksCsv(File file, int nTracks, int nFrames, double extent, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writeHeader(writer, TRACK_COLUMNS);
+            double[] row = new double[TRACK_COLUMNS.length];
+            for (int t = 0; t < nTracks; t++) {
+                int start = random.nextInt(nFrames);
+                int stop = start + random.nextInt(nFrames - start);
+                for (int c = 0; c < row.length; c++) row[c] = random.nextDouble();
+                row[1] = t;
+                row[2] = t;
+                row[3] = stop - start + 1;
+                row[9] = stop - start;
+                row[10] = start;
+                row[11] = stop;
+                row[13] = random.nextDouble() * extent;
+                row[14] = random.nextDouble() * extent;
+                row[15] = 0;
+                writer.write("Track_" + t);
+                writeValues(writer, TRACK_COLUMNS, row);
+            }
+        }
+    }
+
+    /**
+     * Write a TrackMate spots export with random walks, one spot per frame of each track.
+     * @param file File to write
+     * @param nTracks Number of tracks
+     * @param spotsPerTrack Number of spots in each track
+     * @param extent Size of the field of view, in microns
+     * @param seed Seed of the generator
+     * @throws IOException If the file cannot be written
+     */
+    public static void writeSpotsCsv(File file, int nTracks, int spotsPerTrack, double extent, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writeHeader(writer, SPOT_COLUMNS);
+            double[] row = new double[SPOT_COLUMNS.length];
+            int id = 0;
+            for (int t = 0; t < nTracks; t++) {
+                double x = random.nextDouble() * extent;
+                double y = random.nextDouble() * extent;
+                for (int s = 0; s < spotsPerTrack; s++) {
+                    x += random.nextDouble() - 0.5;
+                    y += random.nextDouble() - 0.5;
+                    for (int c = 0; c < row.length; c++) row[c] = random.nextDouble() * 1000;
+                    row[1] = id;
+                    row[2] = t;
+                    row[4] = x;
+                    row[5] = y;
+                    row[6] = 0;
+                    row[7] = s;
+                    row[8] = s;
+                    row[10] = 1;
+                    writer.write("ID" + id);
+                    writeValues(writer, SPOT_COLUMNS, row);
+                    id++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard everything written to System.out, where IJ.log writes when ImageJ runs headless.
+     * Otherwise the per-label and per-track log lines of the measured code flood the benchmark output.
+     * @return the previous System.out, to restore after the benchmark
+     */
+    public static PrintStream silenceStdout() {
+        PrintStream previous = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return previous;
+    }
+
+    /** Header row, plus the 3 rows of names, short names and units written by TrackMate. */
+    private static void writeHeader(BufferedWriter writer, String[] columns) throws IOException {
+        String header = String.join(",", columns);
+        writer.write(header);
+        writer.newLine();
+        writer.write(header);
+        writer.newLine();
+        writer.write(header);
+        writer.newLine();
+        writer.write(new String(new char[columns.length - 1]).replace('\0', ','));
+        writer.newLine();
+    }
+
+    /** Values of a row, after the LABEL column. */
+    private static void writeValues(BufferedWriter writer, String[] columns, double[] row) throws IOException {
+        for (int c = 1; c < row.length; c++) {
+            writer.write(',');
+            writer.write(INTEGER_COLUMNS.contains(columns[c]) ? Long.toString((long) row[c]) : Double.toString(row[c]));
+        }
+        writer.newLine();
+    }
+}
@@ -0,0 +1,87 @@
+package ch.epfl.bio410.segmentation;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame label operations of Colonies, on synthetic label images of several sizes,
+ * and the colony statistics of RegionStats, with the default columns and with all of them.
+ * binarize works in place, so every benchmark starts from a copy of the frame :
+ * copyFrame measures that copy alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColoniesBenchmark {
+    @Param({"256", "1024", "2048"})
+    public int size;
+
+    @Param({"64"})
+    public int nColonies;
+
+    private FloatProcessor labels;
+    private ImagePlus voronoi;
+    private ImagePlus binary;
+    private double[][] stats;
+    private double minLabelArea;
+    private RegionStats defaultStats;
+    private RegionStats allStats;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() {
+        stdout = SyntheticData.silenceStdout();
+        SyntheticData.Labels generated = SyntheticData.labelImage(size, nColonies, 42);
+        labels = generated.labels;
+        voronoi = new ImagePlus("Voronoi", SyntheticData.voronoi(generated));
+        binary = Colonies.binarize(new ImagePlus("Labels", labels.duplicate()));
+        stats = SyntheticData.labelStats(labels);
+        // Removes the specks, keeps the colonies
+        minLabelArea = Math.PI * (SyntheticData.SPECK_RADIUS + 1) * (SyntheticData.SPECK_RADIUS + 1);
+        defaultStats = new RegionStats(RegionStats.DEFAULT_FEATURES);
+        allStats = new RegionStats(Colonies.getColumnMapping().keySet().toArray(new String[0]));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public ImagePlus copyFrame() {
+        return new ImagePlus("Labels", labels.duplicate());
+    }
+
+    @Benchmark
+    public ImagePlus binarize() {
+        return Colonies.binarize(new ImagePlus("Labels", labels.duplicate()));
+    }
+
+    @Benchmark
+    public ImagePlus assignLabelsFromVoronoi() {
+        return Colonies.assignLabelsFromVoronoi(voronoi, binary);
+    }
+
+    @Benchmark
+    public ImagePlus filterLabelsByArea() {
+        return Colonies.filterLabelsByArea(new ImagePlus("Labels", labels), minLabelArea, stats);
+    }
+
+    @Benchmark
+    public double[][] regionStatsDefault() {
+        return defaultStats.compute(labels, null);
+    }
+
+    @Benchmark
+    public double[][] regionStatsAll() {
+        return allStats.compute(labels, binary.getProcessor());
+    }
+}
@@ -0,0 +1,88 @@
+package ch.epfl.bio410.segmentation;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Voronoi diagram of a synthetic label image : DistanceTransform on the CPU against extendLabelingViaVoronoi in CLIJ2,
+ * with the transfers to and from the GPU as in Colonies.
+ * The CLIJ2 benchmark needs an OpenCL device : without one, its setup fails and only the CPU benchmarks are reported.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceTransformBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Frame {
+        @Param({"512", "2048"})
+        public int size;
+
+        FloatProcessor labels;
+        int[] nearest;
+        private PrintStream stdout;
+
+        @Setup
+        public void setup() {
+            stdout = SyntheticData.silenceStdout();
+            labels = SyntheticData.labelImage(size, 64, 42).labels;
+            nearest = DistanceTransform.featureTransform(labels);
+        }
+
+        @TearDown
+        public void tearDown() {
+            System.setOut(stdout);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Gpu {
+        CLIJ2 clij2;
+
+        @Setup
+        public void setup() {
+            clij2 = CLIJ2.getInstance();
+        }
+
+        @TearDown
+        public void tearDown() {
+            if (clij2 != null) clij2.clear();
+        }
+    }
+
+    @Benchmark
+    public int[] featureTransform(Frame frame) {
+        return DistanceTransform.featureTransform(frame.labels);
+    }
+
+    @Benchmark
+    public float[] distances(Frame frame) {
+        return DistanceTransform.distances(frame.nearest, frame.size);
+    }
+
+    @Benchmark
+    public ImageProcessor expandLabels(Frame frame) {
+        return DistanceTransform.expandLabels(frame.labels);
+    }
+
+    @Benchmark
+    public ImagePlus extendLabelingViaVoronoiClij2(Frame frame, Gpu gpu) {
+        ClearCLBuffer input = gpu.clij2.push(new ImagePlus("Labels", frame.labels));
+        ClearCLBuffer destination = gpu.clij2.create(input);
+        gpu.clij2.extendLabelingViaVoronoi(input, destination);
+        ImagePlus voronoi = gpu.clij2.pull(destination);
+        gpu.clij2.release(input);
+        gpu.clij2.release(destination);
+        return voronoi;
+    }
+}
@@ -0,0 +1,88 @@
+package ch.epfl.bio410.segmentation;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import ij.ImageStack;
+import ij.plugin.filter.RankFilters;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Denoising and segmentation of the DIC channel, on a synthetic 16-bit time-lapse :
+ * ImageJ's RankFilters median (behind the Median... command) against Segmentation.medianFilter,
+ * the fused per-frame and per-stack segmentation of Segmentation,
+ * and the full FramePreprocessor chain (segmentation, connected components, area filter) used by Colonies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentationBenchmark {
+    private static final int FRAMES = 8;
+
+    @Param({"256", "1024"})
+    public int size;
+
+    private ImageStack dic;
+    private ImageStack masks;
+    private ImageProcessor frame;
+    private byte[] mask;
+    private FramePreprocessor preprocessor;
+    private ByteProcessor maskProcessor;
+    private ShortProcessor labels;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() {
+        stdout = SyntheticData.silenceStdout();
+        dic = SyntheticData.timeLapse(size, FRAMES, 8, 10, 42).dic.getStack();
+        frame = dic.getProcessor(FRAMES);
+        mask = new byte[size * size];
+        masks = Segmentation.denoiseAndSegment(dic, Segmentation.MEDIAN_RADIUS, AutoThresholder.Method.Otsu, true, null);
+        preprocessor = new FramePreprocessor(Segmentation.MEDIAN_RADIUS, AutoThresholder.Method.Otsu, true, 50);
+        maskProcessor = new ByteProcessor(size, size);
+        labels = new ShortProcessor(size, size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public ImageProcessor medianRankFilters() {
+        ImageProcessor copy = frame.duplicate();
+        new RankFilters().rank(copy, Segmentation.MEDIAN_RADIUS, RankFilters.MEDIAN);
+        return copy;
+    }
+
+    @Benchmark
+    public ImageStack medianFilter() {
+        ImageStack single = new ImageStack(size, size);
+        single.addSlice(frame);
+        return Segmentation.medianFilter(single, Segmentation.MEDIAN_RADIUS);
+    }
+
+    @Benchmark
+    public byte[] segmentFrame() {
+        return Segmentation.segmentFrame(frame, Segmentation.MEDIAN_RADIUS, AutoThresholder.Method.Otsu, true, mask);
+    }
+
+    @Benchmark
+    public FramePreprocessor.Frame preprocessFrame() {
+        return preprocessor.process(frame, maskProcessor, labels);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public ImageStack denoiseAndSegmentStack() {
+        return Segmentation.denoiseAndSegment(dic, Segmentation.MEDIAN_RADIUS, AutoThresholder.Method.Otsu, true, masks);
+    }
+}
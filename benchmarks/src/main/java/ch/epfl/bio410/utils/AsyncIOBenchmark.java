@@ -0,0 +1,66 @@
+package ch.epfl.bio410.utils;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import ch.epfl.bio410.segmentation.Colonies;
+import ij.IJ;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The colonies stage saving its labels as TIFF, followed by the statistics of the next stage :
+ * the TIFF written by the stage (as before AsyncIO), or in the background while the statistics are computed
+ * (flushed at the end, as before the analysis reads the files back).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncIOBenchmark {
+    private static final int FRAMES = 20;
+
+    @Param({"512", "1024"})
+    public int size;
+
+    private ImagePlus labels;
+    private File folder;
+
+    @Setup
+    public void setup() throws IOException {
+        labels = SyntheticData.labelStack(size, FRAMES, 64, 0.1, 42);
+        folder = Files.createTempDirectory("replisome-bench").toFile();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        AsyncIO.shared().flush();
+        File[] files = folder.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        folder.delete();
+    }
+
+    private int nextStage() {
+        return Colonies.computeStats(labels, labels).size();
+    }
+
+    @Benchmark
+    public int writeThenCompute() {
+        IJ.saveAsTiff(labels, new File(folder, "labels.tif").getPath());
+        return nextStage();
+    }
+
+    @Benchmark
+    public int writeInBackground() throws IOException {
+        String path = new File(folder, "labels.tif").getPath();
+        AsyncIO.shared().submit(path, () -> IJ.saveAsTiff(labels, path));
+        int sum = nextStage();
+        AsyncIO.shared().flush();
+        return sum;
+    }
+}
@@ -0,0 +1,82 @@
+package ch.epfl.bio410.utils;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Export of the tracks with their colony labels (as in Results.assignTracksToColonies) :
+ * a CSVPrinter with a list per record (before CsvWriter), and CsvWriter streaming the parsed fields.
+ * Both write the same bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvWriterBenchmark {
+    @Param({"10000", "100000"})
+    public int nRows;
+
+    private List<CSVRecord> tracks;
+    private int[] labels;
+    private File output;
+
+    @Setup
+    public void setup() throws IOException {
+        File input = Files.createTempFile("replisome-bench", ".csv").toFile();
+        SyntheticData.writeTracksCsv(input, nRows, 100, 100, 42);
+        tracks = utils.readCsv(input, 0);
+        input.delete();
+        SplittableRandom random = new SplittableRandom(42);
+        labels = new int[tracks.size()];
+        for (int i = 0; i < labels.length; i++) labels[i] = random.nextInt(64);
+        output = Files.createTempFile("replisome-bench", ".csv").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        output.delete();
+    }
+
+    @Benchmark
+    public void csvPrinter() throws IOException {
+        try (CSVPrinter csvPrinter = new CSVPrinter(new BufferedWriter(new FileWriter(output)), CSVFormat.DEFAULT)) {
+            List<String> header = new ArrayList<>(tracks.get(0).toMap().keySet());
+            header.add("COLONY_LABEL");
+            csvPrinter.printRecord(header);
+            for (int i = 0; i < tracks.size(); i++) {
+                List<String> newRecord = new ArrayList<>();
+                for (String value : tracks.get(i)) newRecord.add(value);
+                newRecord.add(String.valueOf(labels[i]));
+                csvPrinter.printRecord(newRecord);
+            }
+        }
+    }
+
+    @Benchmark
+    public void csvWriter() throws IOException {
+        try (CsvWriter csv = new CsvWriter(output)) {
+            for (String head : tracks.get(0).toMap().keySet()) csv.field(head);
+            csv.field("COLONY_LABEL").endRecord();
+            for (int i = 0; i < tracks.size(); i++) {
+                CSVRecord record = tracks.get(i);
+                for (int j = 0; j < record.size(); j++) csv.field(record.get(j));
+                csv.field(labels[i]).endRecord();
+            }
+        }
+    }
+}
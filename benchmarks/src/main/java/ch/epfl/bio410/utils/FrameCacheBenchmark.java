@@ -0,0 +1,72 @@
+package ch.epfl.bio410.utils;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import ch.epfl.bio410.segmentation.LabelStore;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stage reading every frame of a virtual label stack (decoded from a LabelStore) that an earlier stage already read,
+ * as the track assignment after the colony statistics : decoded again, copied out of FrameCache,
+ * and read in place in FrameCache (FrameCache.getFrame, as RegionStats and LabelSource : no copy). The cache is filled in the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCacheBenchmark {
+    private static final int FRAMES = 50;
+
+    @Param({"512", "1024"})
+    public int size;
+
+    private File storeFile;
+    private ImagePlus labels;
+
+    @Setup
+    public void setup() throws IOException {
+        ImagePlus stack = SyntheticData.labelStack(size, FRAMES, 64, 0.1, 42);
+        storeFile = Files.createTempFile("replisome-bench", ".lbl").toFile();
+        try (LabelStore.Writer store = new LabelStore.Writer(size, size)) {
+            for (int i = 1; i <= FRAMES; i++) store.add(stack.getStack().getProcessor(i));
+            store.write(storeFile, null);
+        }
+        labels = LabelStore.open(storeFile, null).toImagePlus("Stored labels");
+        // Earlier stage
+        for (int i = 1; i <= FRAMES; i++) FrameCache.getProcessor(labels, "labels", i);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FrameCache.shared().clear();
+        storeFile.delete();
+    }
+
+    @Benchmark
+    public long decodeAgain() {
+        long sum = 0;
+        for (int i = 1; i <= FRAMES; i++) sum += labels.getStack().getProcessor(i).get(size / 2, size / 2);
+        return sum;
+    }
+
+    @Benchmark
+    public long frameCacheProcessor() {
+        long sum = 0;
+        for (int i = 1; i <= FRAMES; i++) sum += FrameCache.getProcessor(labels, "labels", i).get(size / 2, size / 2);
+        return sum;
+    }
+
+    @Benchmark
+    public long frameCacheView() {
+        long sum = 0;
+        for (int i = 1; i <= FRAMES; i++) sum += FrameCache.getFrame(labels, "labels", i).get(size / 2, size / 2);
+        return sum;
+    }
+}
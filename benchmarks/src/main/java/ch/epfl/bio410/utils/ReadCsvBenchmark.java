@@ -0,0 +1,51 @@
+package ch.epfl.bio410.utils;
+
+import ch.epfl.bio410.benchmarks.SyntheticData;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * utils.readCsv on TrackMate exports of several sizes.
+ * Spots exports have 50 spots per track, so nRows spots come from nRows / 50 tracks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadCsvBenchmark {
+    @Param({"tracks", "spots"})
+    public String kind;
+
+    @Param({"1000", "10000", "100000"})
+    public int nRows;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("replisome-bench", ".csv").toFile();
+        if (kind.equals("tracks")) {
+            SyntheticData.writeTracksCsv(file, nRows, 100, 100, 42);
+        } else {
+            SyntheticData.writeSpotsCsv(file, nRows / 50, 50, 100, 42);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public List<CSVRecord> readCsv() throws IOException {
+        return utils.readCsv(file, 3);
+    }
+}
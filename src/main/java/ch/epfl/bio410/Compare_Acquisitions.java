@@ -0,0 +1,115 @@
+package ch.epfl.bio410;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.scijava.command.Command;
+import org.scijava.plugin.Plugin;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+
+import ch.epfl.bio410.analysis_and_plots.AcquisitionTable;
+import ch.epfl.bio410.analysis_and_plots.ComparativeStats;
+
+
+/**
+ * Compares track features across images (and colonies), from the results of previous runs of Replisome Analysis.
+ * Every results/ folder found under the chosen folder is ingested, and for each selected feature :
+ * - summary statistics per image and per colony are saved
+ * - the image means are compared pairwise with a bootstrap
+ * Outputs are written to a comparison/ folder next to the chosen folder's content.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>BII>Compare Acquisitions")
+public class Compare_Acquisitions implements Command {
+		private String path = Paths.get(System.getProperty("user.home")).toString();
+		private final String features = "TRACK_MEAN_SPEED,TRACK_DURATION,TRACK_DISPLACEMENT,CONFINEMENT_RATIO,KINEMATICS_DIFFUSION_COEFFICIENT";
+		private final int nResamples = 10000;
+		private final long seed = 42;
+
+	/**
+	 * This method is called when the command is run.
+	 */
+	public void run() {
+		GenericDialog dlg = new GenericDialog("Compare Acquisitions");
+		dlg.addDirectoryField("Folder containing results folders", path);
+		dlg.addStringField("Features (comma separated)", features, 60);
+		dlg.addNumericField("Bootstrap resamples", nResamples, 0);
+		dlg.showDialog();
+		if (dlg.wasCanceled()) return;
+
+		String path = dlg.getNextString();
+		String featureList = dlg.getNextString();
+		int nResamples = (int) dlg.getNextNumber();
+
+		List<File> resultsFolders = findResultsFolders(new File(path));
+		List<AcquisitionTable.Acquisition> acquisitions = AcquisitionTable.findAcquisitions(resultsFolders);
+		if (acquisitions.isEmpty()) {
+			IJ.log("ERROR : No tracks_with_colonylabels_*.csv found under " + path + ". Please run the analysis first.");
+			return;
+		}
+		Set<String> names = new HashSet<>();
+		for (AcquisitionTable.Acquisition acquisition : acquisitions) {
+			if (!names.add(acquisition.name)) {
+				IJ.log("ERROR : Two acquisitions are named " + acquisition.name + ". Please rename one of them.");
+				return;
+			}
+		}
+		IJ.log("Found " + acquisitions.size() + " acquisitions in " + resultsFolders.size() + " results folders");
+
+		try {
+			AcquisitionTable table = AcquisitionTable.load(acquisitions);
+			File outputFolder = Paths.get(path, "comparison").toFile();
+			if (!outputFolder.exists() && !outputFolder.mkdirs()) {
+				throw new RuntimeException("Failed to create comparison directory. Aborting.");
+			}
+			for (String feature : featureList.split(",")) {
+				feature = feature.trim();
+				if (!table.getFeatures().contains(feature)) {
+					IJ.log("Skipping unknown feature " + feature);
+					continue;
+				}
+				IJ.log("Comparing " + feature + " across images");
+				ComparativeStats.saveSummaries(feature, ComparativeStats.summarize(table, feature, false),
+						new File(outputFolder, "summary_by_image_" + feature + ".csv"));
+				ComparativeStats.saveSummaries(feature, ComparativeStats.summarize(table, feature, true),
+						new File(outputFolder, "summary_by_colony_" + feature + ".csv"));
+				ComparativeStats.saveComparisons(feature, ComparativeStats.bootstrapImages(table, feature, nResamples, seed),
+						new File(outputFolder, "bootstrap_" + feature + ".csv"));
+			}
+			IJ.log("Comparison saved to " + outputFolder.getAbsolutePath());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Finds the results folders to ingest : the folder itself if it holds results,
+	 * and any "results" folder up to two levels below it.
+	 * @param folder Folder chosen by the user
+	 * @return List of results folders
+	 */
+	private static List<File> findResultsFolders(File folder) {
+		List<File> found = new ArrayList<>();
+		if (!AcquisitionTable.findAcquisitions(Collections.singletonList(folder)).isEmpty()) {
+			found.add(folder);
+		}
+		File[] children = folder.listFiles(File::isDirectory);
+		if (children == null) return found;
+		for (File child : children) {
+			if (child.getName().equals("results")) {
+				found.add(child);
+				continue;
+			}
+			File nested = new File(child, "results");
+			if (nested.isDirectory()) found.add(nested);
+		}
+		return found;
+	}
+}
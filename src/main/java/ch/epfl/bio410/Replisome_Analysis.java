@@ -6,9 +6,11 @@ import java.awt.event.TextListener;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import org.apache.commons.csv.CSVRecord;
 import org.scijava.command.Command;
@@ -22,13 +24,23 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.process.AutoThresholder;
 
 // import tracking from local package
 import ch.epfl.bio410.utils.utils;
+import ch.epfl.bio410.utils.AsyncIO;
+import ch.epfl.bio410.utils.PipelineMetrics;
+import ch.epfl.bio410.utils.StageScheduler;
+import ch.epfl.bio410.utils.TaskMonitor;
 import ch.epfl.bio410.utils.TrackingConfig;
 import ch.epfl.bio410.segmentation.Segmentation;
 import ch.epfl.bio410.segmentation.Colonies;
+import ch.epfl.bio410.segmentation.ColonyStatsIO;
+import ch.epfl.bio410.segmentation.LabelSource;
 import ch.epfl.bio410.tracking.Tracking;
+import ch.epfl.bio410.analysis_and_plots.Kinematics;
+import ch.epfl.bio410.analysis_and_plots.PairPlot;
+import ch.epfl.bio410.analysis_and_plots.PlotExport;
 import ch.epfl.bio410.analysis_and_plots.Plots;
 import ch.epfl.bio410.analysis_and_plots.Results;
 import static ch.epfl.bio410.analysis_and_plots.Results.assignTracksToColonies;
@@ -54,6 +66,9 @@ public class Replisome_Analysis implements Command {
 		private final double maxGapDistance = 1.0; // Tracking parameters, max gap distance to close a track across frames
 		private final int maxFrameGap = 4; // Tracking parameters, max frame gap allowed for tracking
 		private final double durationFilter = 8.0; // Tracking parameters, duration filter (min duration of a track)
+		// Plot parameters
+		private final int jointPlotPanelSize = 250; // Plot parameters, size of each tile of the joint plot
+		private final int maxSingleImageSize = 4096; // Plot parameters, above this width the joint plot is exported as tiles + SVG
 		// Config
 		private TrackingConfig config;
 
@@ -118,44 +133,16 @@ public class Replisome_Analysis implements Command {
 		dlg.addMessage("__________________________");
 		// Config
 		dlg.addMessage("Use existing config, or set new parameters :");
-		try {
-			List<String> configList = TrackingConfig.listAvailableConfigs();
-			if (configList == null || configList.isEmpty()) {
-				IJ.log("No config files found in folder, please set the parameters manually");
-				isConfigAvailable = false;
-			} else {
-				isConfigAvailable = true;
-			}
-			dlg.addChoice("Config", configList.toArray(new String[0]), configList.size() > 0 ? configList.get(0) : "");
-		} catch (NullPointerException e) {
-			// try to load by copying the file to Downloads (backup if loading from resources fails)
-			// NOTE : to avoid additional issues, this does not delete the copied files once it's done
-			// However they are extremely lightweight and should not be an issue
-			List<String> configList = Arrays.asList("configs/Merged1_config.properties", "configs/Merged2_config.properties", "configs/Merged3_config.properties");
-			List<String> copiedFiles = new ArrayList<>();
-			String copiedFile;
-			for (String config : configList) {
-				try {
-					copiedFile = TrackingConfig.copyFromResources(config);
-				} catch (NullPointerException e2) {
-					copiedFile = null;
-				}
-				if (copiedFile != null) {
-					copiedFiles.add(copiedFile);
-				}
-			}
-			// Add the paths of the copied files to the list
-			if (copiedFiles.size() > 0) {
-				configList = copiedFiles;
-				isConfigAvailable = true;
-				IJ.log("Using backup configs : copying to Downloads folder");
-				dlg.addChoice("Config", configList.toArray(new String[0]), configList.size() > 0 ? configList.get(0) : "");
-			} else {
-				IJ.log("No config files found in folder, please set the parameters manually");
-				isConfigAvailable = false;
-				// Add None as a choice
-				dlg.addChoice("Config", new String[]{"None"}, "None");
-			}
+		// Configs of the user folder and bundled configs, indexed once (see ConfigRegistry)
+		List<String> configList = TrackingConfig.listAvailableConfigs();
+		if (configList.isEmpty()) {
+			IJ.log("No config files found in folder, please set the parameters manually");
+			isConfigAvailable = false;
+			// Add None as a choice
+			dlg.addChoice("Config", new String[]{"None"}, "None");
+		} else {
+			isConfigAvailable = true;
+			dlg.addChoice("Config", configList.toArray(new String[0]), configList.get(0));
 		}
 		dlg.addCheckbox("Use existing config", isConfigAvailable);
 		//////// PARAMETERS (if not using existing config) ///////////
@@ -164,6 +151,7 @@ public class Replisome_Analysis implements Command {
 		// Colony assignment parameters
 		dlg.addMessage("Colony assignment parameters");
 		dlg.addNumericField("Minimum colony area", colony_min_area, 0);
+		dlg.addCheckbox("Match colonies by overlap (instead of Voronoi regions)", false);
 		// detection parameters
 		dlg.addMessage("Detection parameters");
 		dlg.addNumericField("Radius (um)", radius, 2);
@@ -196,6 +184,7 @@ public class Replisome_Analysis implements Command {
 		boolean useExistingConfig = dlg.getNextBoolean();
 		// Colony detection parameters
 		int colony_min_area = (int) dlg.getNextNumber();
+		boolean overlapTracking = dlg.getNextBoolean();
 		// Detection parameters
 		double radius = dlg.getNextNumber();
 		double threshold = dlg.getNextNumber();
@@ -210,28 +199,28 @@ public class Replisome_Analysis implements Command {
 		boolean showAllPlots = dlg.getNextBoolean();
 
 		// Set the config if needed (use existing if set or no config available)
-		if (!useExistingConfig || !isConfigAvailable) {
-			this.config = new TrackingConfig(
-					colony_min_area,
-					radius,
-					threshold,
-					medianFilter,
-					maxLinkDistance,
-					maxGapDistance,
-					maxFrameGap,
-					durationFilter
-			);
-		} else {
-			// if the configName contains :, it is a path and should be loaded as such
-			// this only occurs if the config had to be copied from the resources to Downloads
-			if (configName.contains(":")) {
-				File configFile = new File(configName);
-				// we use the overloaded constructor that takes a File
-				this.config = TrackingConfig.createFromPropertiesFile(configFile);
+		try {
+			if (!useExistingConfig || !isConfigAvailable) {
+				this.config = new TrackingConfig(
+						colony_min_area,
+						radius,
+						threshold,
+						medianFilter,
+						maxLinkDistance,
+						maxGapDistance,
+						maxFrameGap,
+						durationFilter
+				);
+				this.config.validate();
 			} else {
-				// otherwise, we load it from the resources as String
+				// Parsed and validated once, from the user folder or the resources
 				this.config = TrackingConfig.createFromPropertiesFile(configName);
 			}
+		} catch (IllegalArgumentException | UncheckedIOException e) {
+			// Not valid, missing or unreadable config
+			IJ.log("ERROR : " + e.getMessage());
+			IJ.showMessage("Replisome Analysis", e.getMessage());
+			return;
 		}
 
 		// show the image
@@ -242,7 +231,10 @@ public class Replisome_Analysis implements Command {
 		// create "results" folder if it doesn't exist
 		String resultsPath = Paths.get(path, "results").toString();
 		File resultsFolder = new File(resultsPath);
-
+		// Timings, memory and counters of each stage, saved to results/ at the end
+		PipelineMetrics metrics = PipelineMetrics.startRun(imageNameWithoutExtension);
+		// Progress of the long stages, press Esc to cancel them
+		TaskMonitor monitor = TaskMonitor.imageJ();
 
 
 		ImagePlus imp = IJ.openImage(imagePath);
@@ -258,74 +250,95 @@ public class Replisome_Analysis implements Command {
 		// Tile
 		IJ.run("Tile");
 
+		// Colonies (DIC channel) and tracking (GFP channel) are independent : they run at the same time,
+		// and the analysis starts once both are done (see StageScheduler)
+		StageScheduler scheduler = new StageScheduler();
+		// A failed stage cancels the other one
+		scheduler.setMonitor(monitor);
+		Colonies colonies = null;
 		if (computeColonies) {
 			IJ.log("------------------ COLONIES ------------------");
 			// Print the configuration
 			this.config.printColonyConfig();
-			// Removing noise
-			IJ.log("Removing noise in DIC channel");
-			ImagePlus denoised = utils.remove_noise(imageDIC);
-			denoised.show();
-
-			// Segmentation
-			IJ.log("Segmentation of DIC channel");
-			Segmentation.segment(denoised);
-			denoised.show();
-
-			// Assign colonies
-			Colonies colonies = new Colonies(imageDIC);
-			colonies.runColoniesComputation(this.config.colony_min_area, showColonyVoronoi);
-			this.colonyLabels = colonies.colonyLabels;
-			this.colonyLabels.show();
-			this.colonyStats = colonies.colonyStats;
 
-			if (showColonyVoronoi) {
-				colonies.voronoiDiagrams.show();
-			}
-			IJ.run("Tile");
-			try {
-				// If results folder does not exist, create it
-				if (!resultsFolder.exists()) {
-					if (resultsFolder.mkdir()) {
-						IJ.log("Directory is created!");
-					} else {
-						IJ.log("Failed to create directory!");
-						throw new RuntimeException("Failed to create results directory. Aborting.");
-					}
-				}
-				colonies.saveResults(Paths.get(path, "results").toString(), imageNameWithoutExtension);
-			} catch (Exception e) {
-				IJ.log("ERROR : Failed to save colonies results.");
-				throw new RuntimeException(e);
+			// Removing noise and segmentation are fused with the labeling of each frame
+			// (same result as utils.remove_noise then Segmentation.segment)
+			IJ.log("Removing noise, segmentation and colonies of DIC channel");
+			colonies = new Colonies(imageDIC);
+			colonies.setMonitor(monitor);
+			colonies.setPreprocessing(Segmentation.MEDIAN_RADIUS, AutoThresholder.Method.Otsu);
+			colonies.setOverlapTracking(overlapTracking);
+			// Assign colonies, resuming from the labels of a cancelled run with the same parameters if the user wants to
+			ImagePlus partialLabels = colonies.loadPartialResults(resultsPath, imageNameWithoutExtension, this.config.colony_min_area);
+			if (partialLabels != null && !IJ.showMessageWithCancel("Resume colonies",
+					"Colony labels of a cancelled run were found for " + partialLabels.getStackSize() + " frames.\n" +
+					"Resume from frame " + (partialLabels.getStackSize() + 1) + " ? (Cancel starts from the first frame)")) {
+				partialLabels = null;
 			}
+			Colonies coloniesStage = colonies;
+			ImagePlus resumeLabels = partialLabels;
+			// The labeling of a frame is sequential : one thread, the encoder of the label stores is mostly idle
+			// (declaring it would leave tracking, on the other threads, waiting for colonies to finish) ;
+			// the labels, masks and Voronoi diagrams are about 3 times the DIC channel
+			scheduler.add("colonies", () -> runColonies(coloniesStage, resumeLabels, showColonyVoronoi, metrics, resultsFolder, imageNameWithoutExtension))
+					.outputs("colonyLabels").gpu().memory((long) (3 * imageDIC.getSizeInBytes()));
 		}
 
+		Tracking tracker = new Tracking();
+		Model[] model = {null};
 		if (computeTracking) {
-
-			Tracking tracker = new Tracking();
 			tracker.setConfig(config);
-			// Note : model and config are exposed for later if needed
-			Model model = tracker.runTracking(imageGFP);
-			FeatureModel featureModel = model.getFeatureModel();
-			// see https://imagej.net/plugins/trackmate/scripting/scripting#display-spot-edge-and-track-numerical-features-after-tracking for ways to get the features
-
-			if (!resultsFolder.exists()) {
-				if (resultsFolder.mkdir()) {
-					IJ.log("Directory is created!");
-				} else {
-					IJ.log("Failed to create directory!");
-					throw new RuntimeException("Failed to create results directory. Aborting.");
+			tracker.setMonitor(monitor);
+			// The spots carry the label of their colony : computed in this run, they are labeled and exported
+			// once both stages are done, otherwise right after tracking, with the labels saved by a previous run
+			boolean labelSpotsLater = computeColonies;
+			// TrackMate detects the spots of several frames at once, with the other threads
+			scheduler.add("tracking", () -> {
+				model[0] = runTracking(tracker, imageGFP, metrics, resultsFolder, imageNameWithoutExtension);
+				if (!labelSpotsLater) {
+					File labelsFile = Paths.get(resultsPath, imageNameWithoutExtension + "_colony_labels.tif").toFile();
+					ImagePlus savedLabels = labelsFile.exists() ? LabelSource.openImage(labelsFile, labelsFile.getName()) : null;
+					exportSpots(tracker, model[0], savedLabels, imageGFP, metrics, resultsFolder, imageNameWithoutExtension);
 				}
+			}).outputs("tracks").threads(Runtime.getRuntime().availableProcessors() - 1).memory((long) (2 * imageGFP.getSizeInBytes()));
+			if (labelSpotsLater) {
+				Colonies labeledColonies = colonies;
+				scheduler.add("spots", () -> exportSpots(tracker, model[0], labeledColonies.colonyLabels, imageGFP, metrics, resultsFolder, imageNameWithoutExtension))
+						.inputs("colonyLabels", "tracks");
 			}
-			File csvSpotsPath = Paths.get(resultsPath, "spots_" + imageNameWithoutExtension + ".csv").toFile();
-			File csvTracksPath = Paths.get(resultsPath, "tracks_" + imageNameWithoutExtension + ".csv").toFile();
-			try {
-				tracker.saveFeaturesToCSV(model, csvSpotsPath, csvTracksPath, imagePath);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+		}
+
+		try {
+			scheduler.run();
+		} catch (CancellationException e) {
+			IJ.log(e.getMessage());
+			if (computeColonies && model[0] != null) {
+				// Colonies were cancelled : the spots are exported without their colony
+				exportSpots(tracker, model[0], null, imageGFP, metrics, resultsFolder, imageNameWithoutExtension);
 			}
+			finishRun(metrics, resultsFolder, imageNameWithoutExtension);
+			return;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
 		}
 
+		// Independent : they must have run at the same time (see StageScheduler)
+		if (computeColonies && computeTracking) metrics.checkOverlapped("colonies", "tracking");
+
+		if (colonies != null) {
+			// Display the results of the colonies once both stages are done
+			imageDIC.setStack(colonies.masks.getStack());
+			this.colonyLabels = colonies.colonyLabels;
+			this.colonyLabels.show();
+			this.colonyStats = colonies.colonyStats;
+			if (showColonyVoronoi) {
+				colonies.voronoiDiagrams.show();
+			}
+			IJ.run("Tile");
+		}
+
+		// The analysis reads back the results written in the background
+		flushWrites();
 		if(computeAnalysis){
 			IJ.log("------------------ ANALYSIS ------------------");
 			String colonyFileName = imageNameWithoutExtension + "_colony_labels.tif";
@@ -335,41 +348,58 @@ public class Replisome_Analysis implements Command {
 			{
 
 				List<CSVRecord> tracks = null;
-				// Load the tracks
-				try {
-					tracks = utils.readCsv(Paths.get(resultsPath, "tracks_" + imageNameWithoutExtension + ".csv").toString(), 3);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-				// Check if an ImaagePlus called colonylabels is open
-				if (WindowManager.getImage(imageNameWithoutExtension+"_colony_labels.tif") != null) {
-					IJ.log("Assigning tracks to colony labels");
-					// Assign tracks to colonies and save the results
-					assignTracksToColonies(tracks, WindowManager.getImage(imageNameWithoutExtension+"_colony_labels.tif"), imageNameWithoutExtension, path);
-				}
-				// Or open a new one
-				else{
-					this.colonyLabels = IJ.openImage(Paths.get(resultsPath, imageNameWithoutExtension + "_colony_labels.tif").toString());
-					IJ.run("Tile");
-					this.colonyLabels.hide();
-					utils.add_pixel_size(this.colonyLabels, imageDIC);
-					IJ.log("Assigning tracks to colony labels");
-					// Assign tracks to colonies and save the results
-					assignTracksToColonies(tracks, this.colonyLabels, imageNameWithoutExtension, path); //not sure if this works
-					this.colonyLabels.show();
+				try (PipelineMetrics.Stage stage = metrics.stage("assignment")) {
+					// Load the tracks
+					try {
+						tracks = utils.readCsv(Paths.get(resultsPath, "tracks_" + imageNameWithoutExtension + ".csv").toString(), 3);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+					stage.count("assignment.tracks", tracks.size());
+					// Check if an ImaagePlus called colonylabels is open
+					if (WindowManager.getImage(imageNameWithoutExtension+"_colony_labels.tif") != null) {
+						IJ.log("Assigning tracks to colony labels");
+						// Assign tracks to colonies and save the results
+						assignTracksToColonies(tracks, WindowManager.getImage(imageNameWithoutExtension+"_colony_labels.tif"), imageNameWithoutExtension, path);
+					}
+					// Or open a new one
+					else{
+						// From the compressed store if it matches the TIFF, or from the TIFF, loading the frames only when needed
+						this.colonyLabels = LabelSource.openImage(Paths.get(resultsPath, colonyFileName).toFile(), colonyFileName);
+						IJ.run("Tile");
+						this.colonyLabels.hide();
+						utils.add_pixel_size(this.colonyLabels, imageDIC);
+						IJ.log("Assigning tracks to colony labels");
+						// Assign tracks to colonies and save the results
+						assignTracksToColonies(tracks, this.colonyLabels, imageNameWithoutExtension, path); //not sure if this works
+						this.colonyLabels.show();
+					}
 				}
 
 				// if colonies is not null, access the stats from there, otherwise recompute them
-				try {
+				try (PipelineMetrics.Stage stage = metrics.stage("stats")) {
 					IJ.log("Fetching stats for tracks and colonies");
+					File labelsFile = Paths.get(resultsPath, colonyFileName).toFile();
+					File statsFile = ColonyStatsIO.statsFile(resultsPath, imageNameWithoutExtension);
+					if (this.colonyStats == null) {
+						// Statistics saved with the colony labels, if they match them
+						this.colonyStats = ColonyStatsIO.load(statsFile, labelsFile, this.colonyLabels.getStackSize());
+						if (this.colonyStats != null) IJ.log("Loaded stats for colonies from " + statsFile.getName());
+					}
 					if (this.colonyStats == null) {
 						IJ.log("Computing stats for colonies");
 						this.colonyLabels.hide();
-						this.colonyStats = Colonies.computeStats(this.colonyLabels, imageDIC);
+						this.colonyStats = Colonies.computeStats(this.colonyLabels, imageDIC, monitor);
 						this.colonyLabels.show();
+						try {
+							ColonyStatsIO.save(this.colonyStats, statsFile, labelsFile, this.colonyLabels.getStackSize());
+						} catch (IOException e) {
+							IJ.log("Failed to save colony statistics to " + statsFile.getPath() + " : " + e.getMessage());
+						}
 					}
 					List<CSVRecord> tracks_with_labels = null;
 					Results results = new Results();
+					flushWrites();
 					try {
 					// Load the tracks features with colony labels
 						tracks_with_labels = utils.readCsv(Paths.get(resultsPath, "tracks_with_colonylabels_" + imageNameWithoutExtension + ".csv").toString(), 0);
@@ -385,18 +415,27 @@ public class Replisome_Analysis implements Command {
 					this.trackStats = new HashMap<>();
 					// Group by track ID
 					Map<Integer, List<CSVRecord>> groupedData = Plots.groupByTrackId(tracks_with_labels);
+					int processedTracks = 0;
 					for (Map.Entry<Integer, List<CSVRecord>> entry : groupedData.entrySet()) {
-						IJ.log("Processing track " + entry.getKey());
+						monitor.checkCancelled("Statistics per track");
+						stage.log("analysis.track", "Processing track " + entry.getKey());
+						stage.count("analysis.tracks", 1);
 						Integer trackId = entry.getKey();
 						String trackIdString = Integer.toString(trackId);
 						List<CSVRecord> rows = entry.getValue();
 						// Get the colony label for the track
 						Map<Integer, double[]> statsforTrack = results.getColonyFeatures(trackIdString, rows, this.colonyStats);
 						this.trackStats.put(trackId, statsforTrack);
+						monitor.progress("Statistics per track", ++processedTracks, groupedData.size());
 					}
 					IJ.log("Finished processing stats");
 					// Show the colonyLabels again
 					this.colonyLabels.show();
+				} catch (CancellationException e) {
+					IJ.log(e.getMessage());
+					this.colonyLabels.show();
+					finishRun(metrics, resultsFolder, imageNameWithoutExtension);
+					return;
 				} catch (Exception e) {
 					throw new RuntimeException(e);
 				}
@@ -417,46 +456,73 @@ public class Replisome_Analysis implements Command {
 					}
 				}
 
-				// Analysis : plot area per track //
-				JPanel areaPerTrackPlot = Plots.plotAreaPerTrack(this.trackStats);
-				try {
-					IJ.log("Plotting area per track...");
-					String areaTracksPlotPath = Paths.get(plotsPath, "area_per_track_" + imageNameWithoutExtension).toString();
-					Plots.saveChartPanelAsPNG(areaPerTrackPlot, areaTracksPlotPath);
-					Plots.showSavedPlot(areaTracksPlotPath);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
+				try (PipelineMetrics.Stage stage = metrics.stage("plots")) {
+					// Analysis : plot area per track //
+					JPanel areaPerTrackPlot = Plots.plotAreaPerTrack(this.trackStats);
+					try {
+						IJ.log("Plotting area per track...");
+						String areaTracksPlotPath = Paths.get(plotsPath, "area_per_track_" + imageNameWithoutExtension).toString();
+						Plots.saveChartPanelAsPNG(areaPerTrackPlot, areaTracksPlotPath);
+						stage.count("plots.saved", 1);
+						Plots.showSavedPlot(areaTracksPlotPath);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
 
-				// Analysis : histograms and heatmaps for track features //
-				List<String> features = Arrays.asList(
-					"NUMBER_SPOTS", "NUMBER_GAPS", "LONGEST_GAP", "TRACK_DURATION", "TRACK_START", "TRACK_STOP", "TRACK_DISPLACEMENT", "TRACK_X_LOCATION", "TRACK_Y_LOCATION", "TRACK_MEAN_SPEED", "TRACK_MAX_SPEED", "TRACK_MIN_SPEED", "TRACK_MEDIAN_SPEED", "TRACK_STD_SPEED", "TRACK_MEAN_QUALITY", "TOTAL_DISTANCE_TRAVELED", "MAX_DISTANCE_TRAVELED", "CONFINEMENT_RATIO", "MEAN_STRAIGHT_LINE_SPEED", "LINEARITY_OF_FORWARD_PROGRESSION", "MEAN_DIRECTIONAL_CHANGE_RATE"
-				);
+					// Analysis : histograms and heatmaps for track features //
+					List<String> features = Arrays.asList(
+						"NUMBER_SPOTS", "NUMBER_GAPS", "LONGEST_GAP", "TRACK_DURATION", "TRACK_START", "TRACK_STOP", "TRACK_DISPLACEMENT", "TRACK_X_LOCATION", "TRACK_Y_LOCATION", "TRACK_MEAN_SPEED", "TRACK_MAX_SPEED", "TRACK_MIN_SPEED", "TRACK_MEDIAN_SPEED", "TRACK_STD_SPEED", "TRACK_MEAN_QUALITY", "TOTAL_DISTANCE_TRAVELED", "MAX_DISTANCE_TRAVELED", "CONFINEMENT_RATIO", "MEAN_STRAIGHT_LINE_SPEED", "LINEARITY_OF_FORWARD_PROGRESSION", "MEAN_DIRECTIONAL_CHANGE_RATE"
+					);
 
-				// For each feature, plot heatmap against all other features and histogram
-				try {
-					IJ.log("Plotting heatmaps and histograms for track features...");
-					String jointPlotPath = Paths.get(plotsPath, "joint_plot_" + imageNameWithoutExtension).toString();
-					JPanel jointChart = Plots.jointPanelPlot(tracks, features);
-					Plots.saveChartPanelAsPNG(jointChart, jointPlotPath);
-					if (showAllPlots) Plots.showSavedPlot(jointPlotPath);
-				} catch (IOException e) {
-					e.printStackTrace();
+					// For each feature, plot heatmap against all other features and histogram
+					try {
+						IJ.log("Plotting heatmaps and histograms for track features...");
+						String jointPlotPath = Paths.get(plotsPath, "joint_plot_" + imageNameWithoutExtension).toString();
+						PairPlot pairPlot = new PairPlot(tracks, features, 20);
+						if (features.size() * jointPlotPanelSize <= maxSingleImageSize) {
+							Plots.saveChartPanelAsPNG(pairPlot.toPanel(jointPlotPanelSize, -1), jointPlotPath);
+							if (showAllPlots) Plots.showSavedPlot(jointPlotPath);
+						} else {
+							// Too large for a single image : render tile by tile
+							PlotExport.TileGrid grid = pairPlot.asTileGrid(jointPlotPanelSize, -1);
+							PlotExport.saveAsTiledPNG(grid, jointPlotPath);
+							PlotExport.saveAsSVG(grid, jointPlotPath);
+							if (showAllPlots) Plots.showSavedPlot(Paths.get(jointPlotPath, "overview").toString());
+						}
+						stage.count("plots.saved", 1);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+
+					// Specific histograms
+					List<String> histFeatures = Arrays.asList(
+						"TRACK_DURATION", "TRACK_DISPLACEMENT", "TRACK_MEAN_SPEED", "TOTAL_DISTANCE_TRAVELED", "CONFINEMENT_RATIO", "MEAN_DIRECTIONAL_CHANGE_RATE"
+					);
+					try {
+						for (String feature : histFeatures) {
+							String histPath = Paths.get(plotsPath, "hist_" + feature + "_" + imageNameWithoutExtension).toString();
+							JPanel histChart = Plots.plotHistogram(tracks, feature, 50);
+							Plots.saveChartPanelAsPNG(histChart, histPath);
+							stage.count("plots.saved", 1);
+							Plots.showSavedPlot(histPath);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
 				}
 
-				// Specific histograms
-				List<String> histFeatures = Arrays.asList(
-					"TRACK_DURATION", "TRACK_DISPLACEMENT", "TRACK_MEAN_SPEED", "TOTAL_DISTANCE_TRAVELED", "CONFINEMENT_RATIO", "MEAN_DIRECTIONAL_CHANGE_RATE"
-				);
-				try {
-					for (String feature : histFeatures) {
-						String histPath = Paths.get(plotsPath, "hist_" + feature + "_" + imageNameWithoutExtension).toString();
-						JPanel histChart = Plots.plotHistogram(tracks, feature, 50);
-						Plots.saveChartPanelAsPNG(histChart, histPath);
-						Plots.showSavedPlot(histPath);
+				// Per-track kinematics (speed, MSD and diffusion, turning angles, confinement) from the spots
+				File spotsFile = Paths.get(resultsPath, "spots_" + imageNameWithoutExtension + ".csv").toFile();
+				if (spotsFile.exists()) {
+					try (PipelineMetrics.Stage stage = metrics.stage("kinematics")) {
+						IJ.log("Computing track kinematics from spots...");
+						Kinematics kinematics = Kinematics.fromSpots(utils.readCsv(spotsFile, 3));
+						double[][] kinematicsTable = kinematics.computeFeatures();
+						stage.count("kinematics.tracks", kinematicsTable.length);
+						Kinematics.saveFeaturesToCSV(kinematicsTable, Paths.get(resultsPath, "track_kinematics_" + imageNameWithoutExtension + ".csv").toFile());
+					} catch (IOException e) {
+						e.printStackTrace();
 					}
-				} catch (IOException e) {
-					e.printStackTrace();
 				}
 
 				IJ.run("Tile");
@@ -464,7 +530,7 @@ public class Replisome_Analysis implements Command {
 				// Additional analysis //
 				// Goal 1 : show position of tracks : mean displacement, directionality
 				// Goal 2 : show mobility : Speed, duration
-				// Goal 3 : compare mobility across images (and also colonies ?)
+				// Goal 3 : compare mobility across images (and also colonies ?) -> see Compare_Acquisitions
 
 				IJ.log("All done!");
 
@@ -472,8 +538,151 @@ public class Replisome_Analysis implements Command {
 				IJ.log("ERROR : Cannot run analysis without both colonies and tracking results.");
 			}
 		}
+
+		finishRun(metrics, resultsFolder, imageNameWithoutExtension);
     }
 
+	/**
+	 * This method runs the colonies stage : labeling of the colonies, then saving of the results.
+	 * If it is cancelled, the labels of the completed frames are saved to resume from them.
+	 * @param colonies Colonies of the DIC channel, configured
+	 * @param partialLabels Labels of a cancelled run to resume from, or null
+	 * @param showColonyVoronoi Whether to keep the Voronoi diagrams
+	 * @param metrics Metrics of the run
+	 * @param resultsFolder Results folder
+	 * @param imageNameWithoutExtension Name of the image
+	 */
+	private void runColonies(Colonies colonies, ImagePlus partialLabels, boolean showColonyVoronoi, PipelineMetrics metrics,
+							 File resultsFolder, String imageNameWithoutExtension) {
+		try (PipelineMetrics.Stage stage = metrics.stage("colonies")) {
+			colonies.runColoniesComputation(this.config.colony_min_area, showColonyVoronoi, partialLabels);
+			stage.count("colonies.frames", colonies.colonyLabels.getStackSize());
+		} catch (CancellationException e) {
+			if (resultsFolder.exists() || resultsFolder.mkdir()) {
+				colonies.savePartialResults(resultsFolder.getPath(), imageNameWithoutExtension);
+			}
+			throw e;
+		}
+		try {
+			// If results folder does not exist, create it
+			createResultsFolder(resultsFolder);
+			colonies.saveResults(resultsFolder.getPath(), imageNameWithoutExtension);
+		} catch (Exception e) {
+			IJ.log("ERROR : Failed to save colonies results.");
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * This method runs the tracking stage : TrackMate on the GFP channel, then export of the tracks to CSV.
+	 * The spots are exported with their colony label (see exportSpots).
+	 * @param tracker Tracking, configured
+	 * @param imageGFP GFP channel
+	 * @param metrics Metrics of the run
+	 * @param resultsFolder Results folder
+	 * @param imageNameWithoutExtension Name of the image
+	 * @return the TrackMate model
+	 */
+	private Model runTracking(Tracking tracker, ImagePlus imageGFP, PipelineMetrics metrics,
+							 File resultsFolder, String imageNameWithoutExtension) {
+		// Note : model and config are exposed for later if needed
+		Model model;
+		try (PipelineMetrics.Stage stage = metrics.stage("tracking")) {
+			model = tracker.runTracking(imageGFP);
+			stage.count("tracking.spots", model.getSpots().getNSpots(true));
+			stage.count("tracking.tracks", model.getTrackModel().nTracks(true));
+		}
+		FeatureModel featureModel = model.getFeatureModel();
+		// see https://imagej.net/plugins/trackmate/scripting/scripting#display-spot-edge-and-track-numerical-features-after-tracking for ways to get the features
+
+		createResultsFolder(resultsFolder);
+		File csvTracksPath = new File(resultsFolder, "tracks_" + imageNameWithoutExtension + ".csv");
+		try (PipelineMetrics.Stage stage = metrics.stage("export")) {
+			tracker.saveTracksToCSV(model, csvTracksPath);
+			stage.count("export.tracks", model.getTrackModel().nTracks(true));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return model;
+	}
+
+	/**
+	 * This method assigns the spots to the colonies (the COLONY_LABEL spot feature, see Results.assignSpotsToColonies),
+	 * then exports the spots to CSV.
+	 * @param tracker Tracking, after runTracking
+	 * @param model TrackMate model
+	 * @param colonyLabels Colony labels, or null to export the spots without their colony
+	 * @param imageGFP GFP channel, whose calibration gives the unit of the spot positions
+	 * @param metrics Metrics of the run
+	 * @param resultsFolder Results folder
+	 * @param imageNameWithoutExtension Name of the image
+	 */
+	private void exportSpots(Tracking tracker, Model model, ImagePlus colonyLabels, ImagePlus imageGFP, PipelineMetrics metrics,
+							 File resultsFolder, String imageNameWithoutExtension) {
+		File csvSpotsPath = new File(resultsFolder, "spots_" + imageNameWithoutExtension + ".csv");
+		try (PipelineMetrics.Stage stage = metrics.stage("spots")) {
+			if (colonyLabels != null) {
+				IJ.log("Assigning spots to colony labels");
+				Results.assignSpotsToColonies(model, LabelSource.of(colonyLabels),
+						imageGFP.getCalibration().pixelWidth, imageGFP.getCalibration().pixelHeight);
+			}
+			tracker.saveSpotsToCSV(model, csvSpotsPath);
+			stage.count("spots.exported", model.getSpots().getNSpots(true));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * This method creates the results folder if it does not exist (both stages may try at the same time).
+	 * @param resultsFolder Results folder
+	 */
+	private static synchronized void createResultsFolder(File resultsFolder) {
+		if (!resultsFolder.exists()) {
+			if (resultsFolder.mkdir()) {
+				IJ.log("Directory is created!");
+			} else {
+				IJ.log("Failed to create directory!");
+				throw new RuntimeException("Failed to create results directory. Aborting.");
+			}
+		}
+	}
+
+	/**
+	 * Save the metrics of the run, and clear the progress bar. Called at the end of a run, or when it is cancelled.
+	 * @param metrics Metrics of the run
+	 * @param resultsFolder Results folder, the metrics are not saved if it does not exist
+	 * @param imageNameWithoutExtension Name of the image
+	 */
+	private void finishRun(PipelineMetrics metrics, File resultsFolder, String imageNameWithoutExtension) {
+		IJ.showProgress(1.0);
+		try {
+			AsyncIO.shared().flush();
+		} catch (IOException e) {
+			IJ.log("ERROR : " + e.getMessage());
+		}
+		if (resultsFolder.exists()) {
+			try {
+				metrics.saveReport(resultsFolder.getPath(), imageNameWithoutExtension);
+			} catch (IOException e) {
+				IJ.log("ERROR : Failed to save run metrics : " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Wait for the results written in the background (see AsyncIO), before reading them back.
+	 */
+	private void flushWrites() {
+		try {
+			AsyncIO.shared().flush();
+		} catch (IOException e) {
+			IJ.log("ERROR : " + e.getMessage());
+			throw new RuntimeException(e);
+		}
+	}
+
 
 	/**
 	 * This main function serves for development purposes.
@@ -0,0 +1,267 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import ch.epfl.bio410.utils.utils;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Combined table of tracks from any number of acquisitions (images), tagged with image and colony.
+ * Each acquisition is read from a results/ folder produced by the plugin :
+ * - tracks_with_colonylabels_[image].csv (required)
+ * - spots_[image].csv (optional, adds the Kinematics features)
+ * - [image]_colony_labels.tif (optional, path recorded only)
+ * Acquisitions are loaded in parallel. Values are stored column-wise in primitive arrays,
+ * with rows sorted by (image, colony) so that each group is a contiguous range of rows.
+ */
+public class AcquisitionTable {
+    private static final String TRACKS_PREFIX = "tracks_with_colonylabels_";
+
+    /** One acquisition found in a results folder. */
+    public static class Acquisition {
+        public final String name;
+        public final File tracksFile;
+        public final File spotsFile; // null if missing
+        public final File colonyLabelsFile; // null if missing
+
+        Acquisition(String name, File tracksFile, File spotsFile, File colonyLabelsFile) {
+            this.name = name;
+            this.tracksFile = tracksFile;
+            this.spotsFile = spotsFile;
+            this.colonyLabelsFile = colonyLabelsFile;
+        }
+    }
+
+    private final List<Acquisition> acquisitions;
+    private final List<String> features;
+    private final Map<String, Integer> featureIndex = new HashMap<>();
+    private final int[] image; // image index per row
+    private final int[] colony; // colony label per row
+    private final int[] trackId; // track ID per row
+    private final double[][] values; // [feature][row]
+    private final int[] imageOffsets; // rows of image i are [imageOffsets[i], imageOffsets[i + 1])
+
+    private AcquisitionTable(List<Acquisition> acquisitions, List<String> features, int[] image, int[] colony, int[] trackId, double[][] values) {
+        this.acquisitions = acquisitions;
+        this.features = features;
+        for (int i = 0; i < features.size(); i++) featureIndex.put(features.get(i), i);
+        this.image = image;
+        this.colony = colony;
+        this.trackId = trackId;
+        this.values = values;
+        this.imageOffsets = new int[acquisitions.size() + 1];
+        for (int r = 0; r < image.length; r++) imageOffsets[image[r] + 1]++;
+        for (int i = 0; i < acquisitions.size(); i++) imageOffsets[i + 1] += imageOffsets[i];
+    }
+
+    /**
+     * List the acquisitions available in the given results folders, sorted by name.
+     * An image found in several folders is named after the folder holding its results/ folder ("folder/image"),
+     * so that the acquisitions stay apart.
+     * @param resultsFolders results/ folders to scan
+     * @return the acquisitions, one per tracks_with_colonylabels_*.csv file
+     */
+    public static List<Acquisition> findAcquisitions(List<File> resultsFolders) {
+        List<Acquisition> found = new ArrayList<>();
+        for (File folder : resultsFolders) {
+            File[] files = folder.listFiles((dir, name) -> name.startsWith(TRACKS_PREFIX) && name.endsWith(".csv"));
+            if (files == null) continue;
+            for (File tracksFile : files) {
+                String fileName = tracksFile.getName();
+                String name = fileName.substring(TRACKS_PREFIX.length(), fileName.length() - ".csv".length());
+                File spotsFile = new File(folder, "spots_" + name + ".csv");
+                File labelsFile = new File(folder, name + "_colony_labels.tif");
+                found.add(new Acquisition(name,
+                        tracksFile,
+                        spotsFile.exists() ? spotsFile : null,
+                        labelsFile.exists() ? labelsFile : null));
+            }
+        }
+        // Same image in several folders : prefix with the folder
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (Acquisition acquisition : found) occurrences.merge(acquisition.name, 1, Integer::sum);
+        for (int i = 0; i < found.size(); i++) {
+            Acquisition acquisition = found.get(i);
+            if (occurrences.get(acquisition.name) == 1) continue;
+            File parent = acquisition.tracksFile.getAbsoluteFile().getParentFile().getParentFile();
+            String folderName = parent == null ? "" : parent.getName() + "/";
+            found.set(i, new Acquisition(folderName + acquisition.name,
+                    acquisition.tracksFile, acquisition.spotsFile, acquisition.colonyLabelsFile));
+        }
+        found.sort(Comparator.comparing(acquisition -> acquisition.name));
+        return found;
+    }
+
+    /**
+     * Load and combine the given acquisitions.
+     * Features are the numerical track columns shared by all acquisitions, followed by the Kinematics
+     * features when every acquisition has a spots file.
+     * @param acquisitions Acquisitions to load (see findAcquisitions)
+     * @return the combined table
+     * @throws IOException If a file cannot be read
+     */
+    public static AcquisitionTable load(List<Acquisition> acquisitions) throws IOException {
+        if (acquisitions.isEmpty()) {
+            throw new IllegalArgumentException("No acquisition to load");
+        }
+        boolean withKinematics = acquisitions.stream().allMatch(acquisition -> acquisition.spotsFile != null);
+
+        // Read every acquisition in parallel
+        List<LoadedAcquisition> loaded;
+        try {
+            loaded = acquisitions.parallelStream().map(acquisition -> {
+                try {
+                    return new LoadedAcquisition(acquisition, withKinematics);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // Shared numerical columns, in the order of the first acquisition
+        List<String> features = new ArrayList<>(loaded.get(0).trackColumns);
+        for (LoadedAcquisition acquisition : loaded) {
+            features.retainAll(acquisition.trackColumns);
+        }
+        int nTrackFeatures = features.size();
+        if (withKinematics) {
+            for (String feature : Kinematics.FEATURES) {
+                if (!feature.equals("TRACK_ID")) features.add("KINEMATICS_" + feature);
+            }
+        }
+
+        // Concatenate, rows sorted by (image, colony)
+        int nRows = loaded.stream().mapToInt(acquisition -> acquisition.records.size()).sum();
+        int[] image = new int[nRows];
+        int[] colony = new int[nRows];
+        int[] trackId = new int[nRows];
+        double[][] values = new double[features.size()][nRows];
+        int row = 0;
+        for (int i = 0; i < loaded.size(); i++) {
+            LoadedAcquisition acquisition = loaded.get(i);
+            Integer[] order = acquisition.colonyOrder();
+            for (Integer r : order) {
+                CSVRecord record = acquisition.records.get(r);
+                image[row] = i;
+                colony[row] = acquisition.colonies[r];
+                trackId[row] = acquisition.trackIds[r];
+                for (int f = 0; f < nTrackFeatures; f++) {
+                    values[f][row] = parse(record.get(features.get(f)));
+                }
+                if (withKinematics) {
+                    double[] kinematics = acquisition.kinematics.get(trackId[row]);
+                    for (int f = nTrackFeatures; f < features.size(); f++) {
+                        // Kinematics row : skip TRACK_ID (first column)
+                        values[f][row] = kinematics == null ? Double.NaN : kinematics[f - nTrackFeatures + 1];
+                    }
+                }
+                row++;
+            }
+        }
+        return new AcquisitionTable(acquisitions, features, image, colony, trackId, values);
+    }
+
+    /** Tracks of a single acquisition, as read from disk. */
+    private static class LoadedAcquisition {
+        final List<CSVRecord> records;
+        final List<String> trackColumns = new ArrayList<>();
+        final int[] colonies;
+        final int[] trackIds;
+        final Map<Integer, double[]> kinematics = new HashMap<>();
+
+        LoadedAcquisition(Acquisition acquisition, boolean withKinematics) throws IOException {
+            this.records = utils.readCsv(acquisition.tracksFile, 0);
+            if (!records.isEmpty()) {
+                CSVRecord first = records.get(0);
+                for (String column : first.getParser().getHeaderNames()) {
+                    if (column.equals("TRACK_ID") || column.equals("COLONY_LABEL")) continue;
+                    if (!Double.isNaN(parse(first.get(column)))) trackColumns.add(column);
+                }
+            }
+            this.colonies = new int[records.size()];
+            this.trackIds = new int[records.size()];
+            for (int r = 0; r < records.size(); r++) {
+                colonies[r] = (int) Double.parseDouble(records.get(r).get("COLONY_LABEL"));
+                trackIds[r] = Integer.parseInt(records.get(r).get("TRACK_ID"));
+            }
+            if (withKinematics) {
+                for (double[] kinematicsRow : Kinematics.fromSpots(utils.readCsv(acquisition.spotsFile, 3)).computeFeatures()) {
+                    kinematics.put((int) kinematicsRow[0], kinematicsRow);
+                }
+            }
+        }
+
+        Integer[] colonyOrder() {
+            Integer[] order = new Integer[records.size()];
+            for (int r = 0; r < order.length; r++) order[r] = r;
+            Arrays.sort(order, Comparator.comparingInt(r -> colonies[r]));
+            return order;
+        }
+    }
+
+    private static double parse(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException | NullPointerException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** @return the acquisitions in the table, in image index order */
+    public List<Acquisition> getAcquisitions() {
+        return acquisitions;
+    }
+
+    /** @return the names of the numerical features */
+    public List<String> getFeatures() {
+        return features;
+    }
+
+    /** @return the number of rows (tracks) over all acquisitions */
+    public int size() {
+        return image.length;
+    }
+
+    /**
+     * Get the values of a feature for all rows.
+     * @param feature Name of the feature
+     * @return the values (not a copy, do not modify)
+     */
+    public double[] getColumn(String feature) {
+        Integer index = featureIndex.get(feature);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown feature " + feature + ", available : " + features);
+        }
+        return values[index];
+    }
+
+    /** @return the image index of each row */
+    public int[] getImageIndex() {
+        return image;
+    }
+
+    /** @return the colony label of each row */
+    public int[] getColonyLabels() {
+        return colony;
+    }
+
+    /** @return the track ID of each row */
+    public int[] getTrackIds() {
+        return trackId;
+    }
+
+    /**
+     * Rows of an image form a contiguous range.
+     * @param imageIndex Index of the image
+     * @return {first row, last row + 1}
+     */
+    public int[] getImageRange(int imageIndex) {
+        return new int[]{imageOffsets[imageIndex], imageOffsets[imageIndex + 1]};
+    }
+}
@@ -4,8 +4,11 @@ package ch.epfl.bio410.analysis_and_plots;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Spot;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Set;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Analysis {
@@ -20,22 +23,26 @@ public class Analysis {
 
     /**
      * Get the features of all the spots in a track. Results are stored in a map with the track ID as key.
+     * Each feature holds one value per spot of the track, sorted by frame.
      * @param model The TrackMate model used for tracking
-     * @return A map with the track ID as key and a map of features as value
+     * @return A map with the track ID as key and a map of features (one value per spot) as value
      */
-    public static Map<Integer, Map<String, Double>> getSpotFeatures(Model model) {
-        // this stores the results : trackID -> feature -> value
-        Map<Integer, Map<String, Double>> results = new HashMap<>();
+    public static Map<Integer, Map<String, double[]>> getSpotFeatures(Model model) {
+        // this stores the results : trackID -> feature -> values per spot
+        Map<Integer, Map<String, double[]>> results = new HashMap<>();
+        String[] featureNames = {"POSITION_X", "POSITION_Y", "FRAME", "QUALITY", "MEAN_INTENSITY_CH1"};
 
         for (Integer id : model.getTrackModel().trackIDs(true)) {
-            Set<Spot> track = model.getTrackModel().trackSpots(id);
-            Map<String, Double> features = new HashMap<>();
-            for (Spot spot : track) {
-                features.put("POSITION_X", spot.getFeature("POSITION_X"));
-                features.put("POSITION_Y", spot.getFeature("POSITION_Y"));
-                features.put("FRAME", spot.getFeature("FRAME"));
-                features.put("QUALITY", spot.getFeature("QUALITY"));
-                features.put("MEAN_INTENSITY_CH1", spot.getFeature("MEAN_INTENSITY_CH1"));
+            List<Spot> track = new ArrayList<>(model.getTrackModel().trackSpots(id));
+            track.sort(Comparator.comparingDouble(spot -> spot.getFeature("FRAME")));
+            Map<String, double[]> features = new HashMap<>();
+            for (String featureName : featureNames) {
+                double[] values = new double[track.size()];
+                for (int i = 0; i < values.length; i++) {
+                    Double value = track.get(i).getFeature(featureName);
+                    values[i] = value == null ? Double.NaN : value;
+                }
+                features.put(featureName, values);
             }
             results.put(id, features);
         }
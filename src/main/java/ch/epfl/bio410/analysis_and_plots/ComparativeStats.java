@@ -0,0 +1,220 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Grouped summary statistics and bootstrap comparisons over an AcquisitionTable.
+ * Groups are either whole images, or colonies within an image.
+ * Groups and pairs of images are processed in parallel.
+ */
+public class ComparativeStats {
+    /** Colony value used for summaries over a whole image. */
+    public static final int ALL_COLONIES = -1;
+
+    /** Summary statistics of a feature for one group. */
+    public static class Summary {
+        public final String image;
+        public final int colony;
+        public final int n;
+        public final double mean;
+        public final double sd;
+        public final double q25;
+        public final double median;
+        public final double q75;
+
+        Summary(String image, int colony, double[] sortedValues) {
+            this.image = image;
+            this.colony = colony;
+            this.n = sortedValues.length;
+            double sum = 0;
+            for (double value : sortedValues) sum += value;
+            this.mean = n > 0 ? sum / n : Double.NaN;
+            double squares = 0;
+            for (double value : sortedValues) squares += (value - mean) * (value - mean);
+            this.sd = n > 1 ? Math.sqrt(squares / (n - 1)) : Double.NaN;
+            this.q25 = n > 0 ? SeriesAggregation.quantile(sortedValues, 0, n, 0.25) : Double.NaN;
+            this.median = n > 0 ? SeriesAggregation.quantile(sortedValues, 0, n, 0.5) : Double.NaN;
+            this.q75 = n > 0 ? SeriesAggregation.quantile(sortedValues, 0, n, 0.75) : Double.NaN;
+        }
+    }
+
+    /** Bootstrap comparison of the mean of a feature between two images. */
+    public static class Comparison {
+        public final String imageA;
+        public final String imageB;
+        public final int nA;
+        public final int nB;
+        public final double meanDifference; // mean(A) - mean(B)
+        public final double ciLow; // 2.5th percentile of the bootstrap differences
+        public final double ciHigh; // 97.5th percentile of the bootstrap differences
+        public final double pValue; // two-sided, from the bootstrap distribution centred on the pooled mean
+
+        Comparison(String imageA, String imageB, int nA, int nB, double meanDifference, double ciLow, double ciHigh, double pValue) {
+            this.imageA = imageA;
+            this.imageB = imageB;
+            this.nA = nA;
+            this.nB = nB;
+            this.meanDifference = meanDifference;
+            this.ciLow = ciLow;
+            this.ciHigh = ciHigh;
+            this.pValue = pValue;
+        }
+    }
+
+    /**
+     * Summary statistics of a feature, per image or per colony within each image.
+     * Missing values (NaN) are ignored.
+     * @param table The combined table
+     * @param feature Name of the feature
+     * @param byColony true to group by (image, colony), false to group by image
+     * @return one summary per group, sorted by image then colony
+     */
+    public static List<Summary> summarize(AcquisitionTable table, String feature, boolean byColony) {
+        double[] column = table.getColumn(feature);
+        int[] colonies = table.getColonyLabels();
+        // Groups as ranges of rows : rows are sorted by (image, colony)
+        List<int[]> groups = new ArrayList<>(); // {image, colony, from, to}
+        for (int i = 0; i < table.getAcquisitions().size(); i++) {
+            int[] range = table.getImageRange(i);
+            if (!byColony) {
+                groups.add(new int[]{i, ALL_COLONIES, range[0], range[1]});
+                continue;
+            }
+            int from = range[0];
+            for (int r = range[0] + 1; r <= range[1]; r++) {
+                if (r == range[1] || colonies[r] != colonies[from]) {
+                    groups.add(new int[]{i, colonies[from], from, r});
+                    from = r;
+                }
+            }
+        }
+        return groups.parallelStream().map(group -> new Summary(
+                table.getAcquisitions().get(group[0]).name,
+                group[1],
+                sortedValues(column, group[2], group[3])
+        )).collect(Collectors.toList());
+    }
+
+    /**
+     * Compare the mean of a feature between every pair of images with a bootstrap.
+     * Each image is resampled with replacement, independently, nResamples times.
+     * The p-value tests equal means : both images are centred on their pooled mean before resampling,
+     * and it is the fraction of null differences at least as far from zero as the observed one.
+     * Results do not depend on the number of threads : each pair gets its own seeded generator.
+     * @param table The combined table
+     * @param feature Name of the feature
+     * @param nResamples Number of bootstrap resamples
+     * @param seed Seed of the random generators
+     * @return one comparison per pair of images (A before B in image order)
+     */
+    public static List<Comparison> bootstrapImages(AcquisitionTable table, String feature, int nResamples, long seed) {
+        double[] column = table.getColumn(feature);
+        int nImages = table.getAcquisitions().size();
+        double[][] samples = new double[nImages][];
+        for (int i = 0; i < nImages; i++) {
+            int[] range = table.getImageRange(i);
+            samples[i] = sortedValues(column, range[0], range[1]);
+        }
+        List<int[]> pairs = new ArrayList<>();
+        for (int a = 0; a < nImages; a++) {
+            for (int b = a + 1; b < nImages; b++) pairs.add(new int[]{a, b});
+        }
+        return IntStream.range(0, pairs.size()).parallel().mapToObj(p -> {
+            int a = pairs.get(p)[0];
+            int b = pairs.get(p)[1];
+            return bootstrap(table.getAcquisitions().get(a).name, table.getAcquisitions().get(b).name,
+                    samples[a], samples[b], nResamples, new SplittableRandom(seed + p));
+        }).collect(Collectors.toList());
+    }
+
+    private static Comparison bootstrap(String nameA, String nameB, double[] a, double[] b, int nResamples, SplittableRandom random) {
+        double observed = mean(a) - mean(b);
+        if (a.length == 0 || b.length == 0 || nResamples <= 0) {
+            return new Comparison(nameA, nameB, a.length, b.length, observed, Double.NaN, Double.NaN, Double.NaN);
+        }
+        // Centring a group on the pooled mean shifts its resampled means by a constant,
+        // so the null difference of a resample is its difference minus the observed one
+        double[] differences = new double[nResamples];
+        int extreme = 0;
+        for (int s = 0; s < nResamples; s++) {
+            double difference = resampledMean(a, random) - resampledMean(b, random);
+            differences[s] = difference;
+            if (Math.abs(difference - observed) >= Math.abs(observed)) extreme++;
+        }
+        Arrays.sort(differences);
+        double pValue = (double) extreme / nResamples;
+        return new Comparison(nameA, nameB, a.length, b.length, observed,
+                SeriesAggregation.quantile(differences, 0, nResamples, 0.025),
+                SeriesAggregation.quantile(differences, 0, nResamples, 0.975),
+                pValue);
+    }
+
+    private static double resampledMean(double[] values, SplittableRandom random) {
+        double sum = 0;
+        for (int i = 0; i < values.length; i++) sum += values[random.nextInt(values.length)];
+        return sum / values.length;
+    }
+
+    private static double mean(double[] values) {
+        if (values.length == 0) return Double.NaN;
+        double sum = 0;
+        for (double value : values) sum += value;
+        return sum / values.length;
+    }
+
+    /** Non-NaN values of column[from, to), sorted. */
+    private static double[] sortedValues(double[] column, int from, int to) {
+        double[] values = new double[to - from];
+        int n = 0;
+        for (int r = from; r < to; r++) {
+            if (!Double.isNaN(column[r])) values[n++] = column[r];
+        }
+        values = Arrays.copyOf(values, n);
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * Save summaries to a CSV file.
+     * @param feature Name of the summarized feature
+     * @param summaries Summaries from summarize
+     * @param csvFile File to write
+     * @throws IOException If an error occurs while writing the file
+     */
+    public static void saveSummaries(String feature, List<Summary> summaries, File csvFile) throws IOException {
+        try (CSVPrinter csvPrinter = new CSVPrinter(new BufferedWriter(new FileWriter(csvFile)), CSVFormat.DEFAULT)) {
+            csvPrinter.printRecord("FEATURE", "IMAGE", "COLONY_LABEL", "N", "MEAN", "SD", "Q25", "MEDIAN", "Q75");
+            for (Summary summary : summaries) {
+                csvPrinter.printRecord(feature, summary.image,
+                        summary.colony == ALL_COLONIES ? "" : String.valueOf(summary.colony),
+                        summary.n, summary.mean, summary.sd, summary.q25, summary.median, summary.q75);
+            }
+        }
+    }
+
+    /**
+     * Save bootstrap comparisons to a CSV file.
+     * @param feature Name of the compared feature
+     * @param comparisons Comparisons from bootstrapImages
+     * @param csvFile File to write
+     * @throws IOException If an error occurs while writing the file
+     */
+    public static void saveComparisons(String feature, List<Comparison> comparisons, File csvFile) throws IOException {
+        try (CSVPrinter csvPrinter = new CSVPrinter(new BufferedWriter(new FileWriter(csvFile)), CSVFormat.DEFAULT)) {
+            csvPrinter.printRecord("FEATURE", "IMAGE_A", "IMAGE_B", "N_A", "N_B", "MEAN_DIFFERENCE", "CI_LOW", "CI_HIGH", "P_VALUE");
+            for (Comparison comparison : comparisons) {
+                csvPrinter.printRecord(feature, comparison.imageA, comparison.imageB, comparison.nA, comparison.nB,
+                        comparison.meanDifference, comparison.ciLow, comparison.ciHigh, comparison.pValue);
+            }
+        }
+    }
+}
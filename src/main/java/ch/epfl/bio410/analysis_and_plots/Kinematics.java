@@ -0,0 +1,356 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Per-track kinematics computed from the spots table (spots_*.csv exported by TrackMate).
+ * Spots are grouped by TRACK_ID and sorted by FRAME once, into primitive arrays.
+ * All features are then computed per track in tight loops, in parallel across tracks :
+ * - instantaneous speed (displacement between consecutive spots divided by the elapsed time)
+ * - mean squared displacement (MSD) per frame lag, with a diffusion coefficient fit
+ * - turning angles between consecutive displacements
+ * - confinement (confinement ratio and radius of gyration)
+ */
+public class Kinematics {
+    /** Columns of the per-track feature table, in order. */
+    public static final List<String> FEATURES = Collections.unmodifiableList(Arrays.asList(
+            "TRACK_ID", "NUMBER_SPOTS", "MEAN_SPEED", "MEDIAN_SPEED", "MAX_SPEED",
+            "TOTAL_DISTANCE", "NET_DISPLACEMENT", "CONFINEMENT_RATIO", "RADIUS_OF_GYRATION",
+            "MEAN_TURNING_ANGLE", "MEAN_ABS_TURNING_ANGLE",
+            "DIFFUSION_COEFFICIENT", "MSD_OFFSET", "MSD_ALPHA"
+    ));
+    /** Default number of lags used by the linear MSD fit. */
+    public static final int DEFAULT_FIT_POINTS = 4;
+    /** Default maximum lag (in frames) of the MSD curves. */
+    public static final int DEFAULT_MAX_LAG = 20;
+
+    private final int[] trackIds;
+    private final int[][] frames;
+    private final double[][] x;
+    private final double[][] y;
+    private final double[][] z;
+    private final double[][] t;
+    private final Map<Integer, Integer> trackIndex = new HashMap<>();
+
+    private Kinematics(int[] trackIds, int[][] frames, double[][] x, double[][] y, double[][] z, double[][] t) {
+        this.trackIds = trackIds;
+        this.frames = frames;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.t = t;
+        for (int i = 0; i < trackIds.length; i++) trackIndex.put(trackIds[i], i);
+    }
+
+    /**
+     * Group the spots by TRACK_ID and sort each track by FRAME.
+     * Spots without a track are ignored. The input list is not modified.
+     * @param spots List of CSV records from the spots table
+     * @return Kinematics object holding every track as primitive arrays
+     */
+    public static Kinematics fromSpots(List<CSVRecord> spots) {
+        int n = spots.size();
+        int[] rowTrack = new int[n];
+        int[] rowFrame = new int[n];
+        // Count the spots per track
+        Map<Integer, int[]> counts = new TreeMap<>();
+        for (int r = 0; r < n; r++) {
+            CSVRecord row = spots.get(r);
+            String trackId = row.get("TRACK_ID");
+            // Spots outside any track have an empty or "None" TRACK_ID
+            if (trackId == null || trackId.isEmpty() || trackId.equals("None")) {
+                rowTrack[r] = -1;
+                continue;
+            }
+            rowTrack[r] = (int) Double.parseDouble(trackId);
+            rowFrame[r] = (int) Double.parseDouble(row.get("FRAME"));
+            counts.computeIfAbsent(rowTrack[r], k -> new int[1])[0]++;
+        }
+
+        int nTracks = counts.size();
+        int[] trackIds = new int[nTracks];
+        Map<Integer, Integer> index = new HashMap<>();
+        long[][] keys = new long[nTracks][];
+        int k = 0;
+        for (Map.Entry<Integer, int[]> entry : counts.entrySet()) {
+            trackIds[k] = entry.getKey();
+            index.put(entry.getKey(), k);
+            keys[k] = new long[entry.getValue()[0]];
+            k++;
+        }
+        // Sort key : frame in the high bits, row in the low bits
+        int[] fill = new int[nTracks];
+        for (int r = 0; r < n; r++) {
+            if (rowTrack[r] < 0) continue;
+            int i = index.get(rowTrack[r]);
+            keys[i][fill[i]++] = ((long) rowFrame[r] << 32) | r;
+        }
+
+        int[][] frames = new int[nTracks][];
+        double[][] x = new double[nTracks][];
+        double[][] y = new double[nTracks][];
+        double[][] z = new double[nTracks][];
+        double[][] t = new double[nTracks][];
+        IntStream.range(0, nTracks).parallel().forEach(i -> {
+            long[] trackKeys = keys[i];
+            Arrays.sort(trackKeys);
+            int m = trackKeys.length;
+            frames[i] = new int[m];
+            x[i] = new double[m];
+            y[i] = new double[m];
+            z[i] = new double[m];
+            t[i] = new double[m];
+            for (int j = 0; j < m; j++) {
+                CSVRecord row = spots.get((int) (trackKeys[j] & 0xFFFFFFFFL));
+                frames[i][j] = (int) (trackKeys[j] >> 32);
+                x[i][j] = Double.parseDouble(row.get("POSITION_X"));
+                y[i][j] = Double.parseDouble(row.get("POSITION_Y"));
+                z[i][j] = Double.parseDouble(row.get("POSITION_Z"));
+                t[i][j] = Double.parseDouble(row.get("POSITION_T"));
+            }
+        });
+        return new Kinematics(trackIds, frames, x, y, z, t);
+    }
+
+    /** @return the IDs of all tracks, sorted */
+    public int[] getTrackIds() {
+        return trackIds;
+    }
+
+    /** @return true if the track is present in the spots table */
+    public boolean hasTrack(int trackId) {
+        return trackIndex.containsKey(trackId);
+    }
+
+    private int indexOf(int trackId) {
+        Integer i = trackIndex.get(trackId);
+        if (i == null) {
+            throw new IllegalArgumentException("Unknown track " + trackId);
+        }
+        return i;
+    }
+
+    /**
+     * Instantaneous speed of a track : displacement between consecutive spots over the elapsed POSITION_T.
+     * @param trackId ID of the track
+     * @return double[2][] : times (POSITION_T of the second spot of each step) and speeds
+     */
+    public double[][] getSpeeds(int trackId) {
+        int i = indexOf(trackId);
+        int m = frames[i].length;
+        if (m < 2) return new double[][]{new double[0], new double[0]};
+        double[] times = new double[m - 1];
+        double[] speeds = new double[m - 1];
+        for (int j = 1; j < m; j++) {
+            double dt = t[i][j] - t[i][j - 1];
+            times[j - 1] = t[i][j];
+            speeds[j - 1] = dt > 0 ? step(i, j) / dt : 0;
+        }
+        return new double[][]{times, speeds};
+    }
+
+    private double step(int i, int j) {
+        double dx = x[i][j] - x[i][j - 1];
+        double dy = y[i][j] - y[i][j - 1];
+        double dz = z[i][j] - z[i][j - 1];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Mean squared displacement of a track, for frame lags 1..maxLag.
+     * Only pairs of spots exactly "lag" frames apart are averaged, so gaps are handled.
+     * @param trackId ID of the track
+     * @param maxLag maximum lag, in frames
+     * @return double[maxLag + 1], MSD per lag (index 0 is 0, NaN for lags without any pair)
+     */
+    public double[] msd(int trackId, int maxLag) {
+        return msd(indexOf(trackId), maxLag, new long[maxLag + 1]);
+    }
+
+    private double[] msd(int i, int maxLag, long[] pairs) {
+        double[] sums = new double[maxLag + 1];
+        Arrays.fill(pairs, 0);
+        int[] f = frames[i];
+        int m = f.length;
+        for (int a = 0; a < m; a++) {
+            for (int b = a + 1; b < m; b++) {
+                int lag = f[b] - f[a];
+                if (lag > maxLag) break; // frames are sorted
+                double dx = x[i][b] - x[i][a];
+                double dy = y[i][b] - y[i][a];
+                double dz = z[i][b] - z[i][a];
+                sums[lag] += dx * dx + dy * dy + dz * dz;
+                pairs[lag]++;
+            }
+        }
+        for (int lag = 1; lag <= maxLag; lag++) {
+            sums[lag] = pairs[lag] > 0 ? sums[lag] / pairs[lag] : Double.NaN;
+        }
+        return sums;
+    }
+
+    /**
+     * Compute the per-track feature table, in parallel across tracks.
+     * Diffusion : MSD(lag) = 2 * dimensions * D * lag * frameInterval + offset, fitted on the first fitPoints lags.
+     * Alpha : slope of log(MSD) against log(lag), over all available lags up to maxLag.
+     * @param dimensions number of spatial dimensions (2 for the 2D+t images)
+     * @param frameInterval time between two frames (1 to express D per frame)
+     * @param maxLag maximum lag of the MSD curves, in frames
+     * @param fitPoints number of lags used for the linear fit
+     * @return double[nTracks][FEATURES.size()], rows in the order of getTrackIds()
+     */
+    public double[][] computeFeatures(int dimensions, double frameInterval, int maxLag, int fitPoints) {
+        double[][] table = new double[trackIds.length][];
+        IntStream.range(0, trackIds.length).parallel().forEach(i -> {
+            table[i] = computeTrackFeatures(i, dimensions, frameInterval, maxLag, fitPoints);
+        });
+        return table;
+    }
+    public double[][] computeFeatures() {
+        return computeFeatures(2, 1.0, DEFAULT_MAX_LAG, DEFAULT_FIT_POINTS);
+    }
+
+    private double[] computeTrackFeatures(int i, int dimensions, double frameInterval, int maxLag, int fitPoints) {
+        int m = frames[i].length;
+        double[] row = new double[FEATURES.size()];
+        Arrays.fill(row, Double.NaN);
+        row[0] = trackIds[i];
+        row[1] = m;
+        if (m < 2) return row;
+
+        // Speeds and path length
+        double[] speeds = new double[m - 1];
+        double total = 0;
+        double maxSpeed = 0;
+        double sumSpeed = 0;
+        for (int j = 1; j < m; j++) {
+            double d = step(i, j);
+            double dt = t[i][j] - t[i][j - 1];
+            double speed = dt > 0 ? d / dt : 0;
+            speeds[j - 1] = speed;
+            total += d;
+            sumSpeed += speed;
+            if (speed > maxSpeed) maxSpeed = speed;
+        }
+        Arrays.sort(speeds);
+        double dx = x[i][m - 1] - x[i][0];
+        double dy = y[i][m - 1] - y[i][0];
+        double dz = z[i][m - 1] - z[i][0];
+        double net = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        row[2] = sumSpeed / (m - 1);
+        row[3] = SeriesAggregation.quantile(speeds, 0, speeds.length, 0.5);
+        row[4] = maxSpeed;
+        row[5] = total;
+        row[6] = net;
+        row[7] = total > 0 ? net / total : Double.NaN;
+
+        // Radius of gyration
+        double cx = 0, cy = 0, cz = 0;
+        for (int j = 0; j < m; j++) {
+            cx += x[i][j];
+            cy += y[i][j];
+            cz += z[i][j];
+        }
+        cx /= m;
+        cy /= m;
+        cz /= m;
+        double gyration = 0;
+        for (int j = 0; j < m; j++) {
+            gyration += (x[i][j] - cx) * (x[i][j] - cx) + (y[i][j] - cy) * (y[i][j] - cy) + (z[i][j] - cz) * (z[i][j] - cz);
+        }
+        row[8] = Math.sqrt(gyration / m);
+
+        // Turning angles (in the XY plane) between consecutive non-zero displacements
+        double sumAngle = 0;
+        double sumAbsAngle = 0;
+        int nAngles = 0;
+        double prevX = 0, prevY = 0;
+        boolean hasPrevious = false;
+        for (int j = 1; j < m; j++) {
+            double sx = x[i][j] - x[i][j - 1];
+            double sy = y[i][j] - y[i][j - 1];
+            if (sx == 0 && sy == 0) continue;
+            if (hasPrevious) {
+                double angle = Math.atan2(prevX * sy - prevY * sx, prevX * sx + prevY * sy);
+                sumAngle += angle;
+                sumAbsAngle += Math.abs(angle);
+                nAngles++;
+            }
+            prevX = sx;
+            prevY = sy;
+            hasPrevious = true;
+        }
+        if (nAngles > 0) {
+            row[9] = sumAngle / nAngles;
+            row[10] = sumAbsAngle / nAngles;
+        }
+
+        // MSD : linear fit on the first lags, power law fit on all lags
+        double[] msd = msd(i, maxLag, new long[maxLag + 1]);
+        double[] linear = fitLine(msd, 1, Math.min(fitPoints, maxLag), frameInterval, false);
+        if (linear != null) {
+            row[11] = linear[0] / (2.0 * dimensions);
+            row[12] = linear[1];
+        }
+        double[] power = fitLine(msd, 1, maxLag, frameInterval, true);
+        if (power != null) {
+            row[13] = power[0];
+        }
+        return row;
+    }
+
+    /**
+     * Least squares fit of msd[lag] against lag * frameInterval, skipping NaN and (for log fits) non-positive values.
+     * @return {slope, intercept}, or null with fewer than 2 points
+     */
+    private static double[] fitLine(double[] msd, int fromLag, int toLag, double frameInterval, boolean logLog) {
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        int n = 0;
+        for (int lag = fromLag; lag <= toLag && lag < msd.length; lag++) {
+            double value = msd[lag];
+            if (Double.isNaN(value) || (logLog && value <= 0)) continue;
+            double tau = lag * frameInterval;
+            double px = logLog ? Math.log(tau) : tau;
+            double py = logLog ? Math.log(value) : value;
+            sx += px;
+            sy += py;
+            sxx += px * px;
+            sxy += px * py;
+            n++;
+        }
+        double denominator = n * sxx - sx * sx;
+        if (n < 2 || denominator == 0) return null;
+        double slope = (n * sxy - sx * sy) / denominator;
+        return new double[]{slope, (sy - slope * sx) / n};
+    }
+
+    /**
+     * Save the per-track feature table to a CSV file (one row per track, columns as in FEATURES).
+     * @param table Feature table from computeFeatures
+     * @param csvFile File to write
+     * @throws IOException If an error occurs while writing the file
+     */
+    public static void saveFeaturesToCSV(double[][] table, File csvFile) throws IOException {
+        try (CSVPrinter csvPrinter = new CSVPrinter(new BufferedWriter(new FileWriter(csvFile)), CSVFormat.DEFAULT)) {
+            csvPrinter.printRecord(FEATURES);
+            for (double[] row : table) {
+                List<String> record = new ArrayList<>(row.length);
+                record.add(String.valueOf((int) row[0]));
+                record.add(String.valueOf((int) row[1]));
+                for (int c = 2; c < row.length; c++) {
+                    record.add(Double.isNaN(row[c]) ? "" : String.valueOf(row[c]));
+                }
+                csvPrinter.printRecord(record);
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import org.apache.commons.csv.CSVRecord;
+import org.knowm.xchart.*;
+import org.knowm.xchart.internal.chartpart.Chart;
+import org.knowm.xchart.style.Styler;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import javax.swing.*;
+
+/**
+ * Pair plot (histograms on the diagonal, heatmaps off the diagonal) for a selection of columns.
+ * Each column is parsed, ranged and binned only once. All 2D histograms are then filled from
+ * the precomputed bin indices, in parallel over column pairs.
+ * Tiles are built only when painted, so the grid stays cheap for a large number of features.
+ */
+public class PairPlot {
+    private final List<String> columns;
+    private final int nBins;
+    private final double[] min;
+    private final double[] max;
+    private final int[][] binIndex; // [column][row], -1 for missing values
+    private final int[][] histograms; // [column][bin]
+    private final int[][] pairHistograms; // [pairIndex(x, y)][yBin * nBins + xBin], only for x < y
+
+    /**
+     * Constructor for PairPlot. Parses and bins the data immediately.
+     * @param dataRows List of CSV records
+     * @param columns List of columns to be used in the pair plot
+     * @param nBins Number of bins per column (same for histograms and heatmaps)
+     */
+    public PairPlot(List<CSVRecord> dataRows, List<String> columns, int nBins) {
+        if (nBins <= 0) {
+            throw new IllegalArgumentException("Number of bins must be positive, got " + nBins);
+        }
+        this.columns = new ArrayList<>(columns);
+        this.nBins = nBins;
+        int nColumns = columns.size();
+        int nRows = dataRows.size();
+        this.min = new double[nColumns];
+        this.max = new double[nColumns];
+        this.binIndex = new int[nColumns][];
+        this.histograms = new int[nColumns][];
+
+        // Parse, range and bin each column once
+        IntStream.range(0, nColumns).parallel().forEach(c -> {
+            double[] values = new double[nRows];
+            String column = this.columns.get(c);
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            for (int r = 0; r < nRows; r++) {
+                double value = parse(dataRows.get(r).get(column));
+                values[r] = value;
+                if (value < lo) lo = value;
+                if (value > hi) hi = value;
+            }
+            if (lo > hi) { // only missing values
+                lo = 0;
+                hi = 0;
+            }
+            min[c] = lo;
+            max[c] = hi;
+            double binSize = (hi - lo) / nBins;
+            int[] bins = new int[nRows];
+            int[] counts = new int[nBins];
+            for (int r = 0; r < nRows; r++) {
+                double value = values[r];
+                if (Double.isNaN(value)) {
+                    bins[r] = -1;
+                    continue;
+                }
+                int bin = binSize > 0 ? (int) ((value - lo) / binSize) : 0;
+                // Edge case: include maximum
+                if (bin >= nBins) bin = nBins - 1;
+                bins[r] = bin;
+                counts[bin]++;
+            }
+            binIndex[c] = bins;
+            histograms[c] = counts;
+        });
+
+        // Fill every 2D histogram from the bin indices, one pair per task
+        int nPairs = nColumns * (nColumns - 1) / 2;
+        this.pairHistograms = new int[nPairs][];
+        IntStream.range(0, nPairs).parallel().forEach(p -> {
+            // invert pairIndex : p = y * (y - 1) / 2 + x, with x < y
+            int y = (int) ((1 + Math.sqrt(1 + 8.0 * p)) / 2);
+            if (pairIndex(0, y) > p) y--;
+            if (pairIndex(0, y + 1) <= p) y++;
+            int x = p - pairIndex(0, y);
+            int[] xBins = binIndex[x];
+            int[] yBins = binIndex[y];
+            int[] counts = new int[nBins * nBins];
+            for (int r = 0; r < nRows; r++) {
+                int xBin = xBins[r];
+                int yBin = yBins[r];
+                if (xBin >= 0 && yBin >= 0) counts[yBin * nBins + xBin]++;
+            }
+            pairHistograms[p] = counts;
+        });
+    }
+
+    private static double parse(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException | NullPointerException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static int pairIndex(int x, int y) {
+        return y * (y - 1) / 2 + x;
+    }
+
+    /** @return the columns of the pair plot, in grid order */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /** @return the number of bins per column */
+    public int getNBins() {
+        return nBins;
+    }
+
+    /**
+     * Get the 1D histogram of a column.
+     * @param column Index of the column
+     * @return counts per bin (not a copy, do not modify)
+     */
+    public int[] getHistogram(int column) {
+        return histograms[column];
+    }
+
+    /**
+     * Get the 2D histogram of a pair of columns.
+     * @param columnX Index of the column on the x-axis
+     * @param columnY Index of the column on the y-axis
+     * @return counts per bin, indexed as [yBin * nBins + xBin]
+     */
+    public int[] getJointHistogram(int columnX, int columnY) {
+        if (columnX == columnY) {
+            throw new IllegalArgumentException("Joint histogram requires two different columns");
+        }
+        if (columnX < columnY) {
+            return pairHistograms[pairIndex(columnX, columnY)];
+        }
+        // Stored the other way around : transpose
+        int[] stored = pairHistograms[pairIndex(columnY, columnX)];
+        int[] transposed = new int[nBins * nBins];
+        for (int j = 0; j < nBins; j++) {
+            for (int i = 0; i < nBins; i++) {
+                transposed[j * nBins + i] = stored[i * nBins + j];
+            }
+        }
+        return transposed;
+    }
+
+    /**
+     * Whether the tile at the given grid position holds a chart.
+     * @param row Row of the grid (y column)
+     * @param col Column of the grid (x column)
+     * @param render Which side of the diagonal gets heatmaps (positive : above, negative : below, 0 : both)
+     * @return true if a histogram or a heatmap is drawn there
+     */
+    public static boolean isTileShown(int row, int col, int render) {
+        if (row == col) return true;
+        if (render > 0) return col > row;
+        if (render < 0) return col < row;
+        return true;
+    }
+
+    /**
+     * Build the chart for a single tile of the grid.
+     * Histograms are on the diagonal, heatmaps elsewhere.
+     * @param row Row of the grid (y column)
+     * @param col Column of the grid (x column)
+     * @param width Width of the tile
+     * @param height Height of the tile
+     * @param visible Whether or not to display other stuff than the data
+     * @return the chart for this tile
+     */
+    public Chart<?, ?> buildTile(int row, int col, int width, int height, boolean visible) {
+        if (row == col) {
+            return buildHistogram(col, width, height, visible);
+        }
+        return buildHeatmap(col, row, width, height, visible);
+    }
+
+    private CategoryChart buildHistogram(int column, int width, int height, boolean visible) {
+        String columnName = columns.get(column);
+        double binSize = (max[column] - min[column]) / nBins;
+        List<Double> xData = new ArrayList<>(nBins);
+        List<Integer> yData = new ArrayList<>(nBins);
+        for (int i = 0; i < nBins; i++) {
+            xData.add(min[column] + (i + 0.5) * binSize); // bin centers
+            yData.add(histograms[column][i]);
+        }
+        CategoryChart chart = new CategoryChartBuilder().width(width).height(height).title("Histogram of " + columnName).xAxisTitle(columnName).yAxisTitle("Frequency").build();
+        chart.addSeries(columnName, xData, yData);
+        chart.getStyler().setLegendPosition(Styler.LegendPosition.InsideNE);
+        chart.getStyler().setXAxisLabelRotation(90);
+        if (!visible) {
+            chart.getStyler().setChartTitleVisible(false);
+            chart.getStyler().setAxisTitlesVisible(false);
+            chart.getStyler().setAxisTicksVisible(false);
+            chart.getStyler().setPlotGridLinesVisible(false);
+            chart.getStyler().setLegendPadding(2);
+            chart.getStyler().setChartPadding(2);
+        }
+        return chart;
+    }
+
+    private HeatMapChart buildHeatmap(int columnX, int columnY, int width, int height, boolean visible) {
+        int[] counts = getJointHistogram(columnX, columnY);
+        return Plots.buildHeatmapChart(columns.get(columnX), columns.get(columnY), counts,
+                min[columnX], (max[columnX] - min[columnX]) / nBins, nBins,
+                min[columnY], (max[columnY] - min[columnY]) / nBins, nBins,
+                width, height, visible);
+    }
+
+    /**
+     * Lay out the pair plot as a grid of lazily rendered tiles.
+     * @param panelSize Size of each individual square panel
+     * @param render Which side of the diagonal gets heatmaps (positive : above, negative : below, 0 : both)
+     * @return JPanel containing the grid
+     */
+    public JPanel toPanel(int panelSize, int render) {
+        int n = columns.size();
+        JPanel chartPanel = new JPanel(new GridLayout(n, n));
+        for (int row = 0; row < n; row++) {
+            for (int col = 0; col < n; col++) {
+                JPanel tile = isTileShown(row, col, render) ? new LazyTile(row, col) : new JPanel();
+                tile.setPreferredSize(new Dimension(panelSize, panelSize));
+                chartPanel.add(tile);
+            }
+        }
+        return chartPanel;
+    }
+
+    /**
+     * View the pair plot as a grid of independent tiles, for export with PlotExport.
+     * @param panelSize Size of each individual square panel
+     * @param render Which side of the diagonal gets heatmaps (positive : above, negative : below, 0 : both)
+     * @return the tile grid
+     */
+    public PlotExport.TileGrid asTileGrid(int panelSize, int render) {
+        return new PlotExport.TileGrid() {
+            @Override
+            public int getRows() {
+                return columns.size();
+            }
+
+            @Override
+            public int getCols() {
+                return columns.size();
+            }
+
+            @Override
+            public int getTileSize() {
+                return panelSize;
+            }
+
+            @Override
+            public boolean hasTile(int row, int col) {
+                return isTileShown(row, col, render);
+            }
+
+            @Override
+            public void paintTile(Graphics2D g, int row, int col) {
+                buildTile(row, col, panelSize, panelSize, false).paint(g, panelSize, panelSize);
+            }
+        };
+    }
+
+    /**
+     * Panel that builds its chart at paint time and drops it right after,
+     * so that only the binned data is kept in memory.
+     */
+    private class LazyTile extends JPanel {
+        private static final long serialVersionUID = 1L;
+        private final int row;
+        private final int col;
+
+        LazyTile(int row, int col) {
+            this.row = row;
+            this.col = col;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            Graphics2D g2 = (Graphics2D) g.create();
+            try {
+                buildTile(row, col, getWidth(), getHeight(), false).paint(g2, getWidth(), getHeight());
+            } finally {
+                g2.dispose();
+            }
+        }
+    }
+}
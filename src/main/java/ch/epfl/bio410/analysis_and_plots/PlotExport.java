@@ -0,0 +1,211 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import de.erichseifert.vectorgraphics2d.Document;
+import de.erichseifert.vectorgraphics2d.Processor;
+import de.erichseifert.vectorgraphics2d.VectorGraphics2D;
+import de.erichseifert.vectorgraphics2d.pdf.PDFProcessor;
+import de.erichseifert.vectorgraphics2d.svg.SVGProcessor;
+import de.erichseifert.vectorgraphics2d.util.PageSize;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/**
+ * Export of large plot grids (e.g. the pair plot) with bounded memory.
+ * Instead of rasterizing the whole grid into one image (see Plots.saveChartPanelAsPNG),
+ * tiles are rendered one at a time, written out, and released immediately.
+ * Available outputs :
+ * - a single SVG file, streamed tile by tile
+ * - one PDF file per tile
+ * - a tiled PNG set (full resolution tiles + a downscaled overview image)
+ */
+public class PlotExport {
+    /** Maximum width/height in pixels of the overview image written with the PNG tiles. */
+    public static final int DEFAULT_OVERVIEW_SIZE = 2048;
+
+    /** An id attribute, a url(#id) reference or a (xlink:)href="#id" reference : the part before the id, and the id. */
+    private static final Pattern ID_REFERENCE = Pattern.compile("(\\sid=\"|url\\(#|href=\"#)([^\")]+)");
+
+    /**
+     * A grid of tiles that can be painted independently of each other.
+     */
+    public interface TileGrid {
+        /** @return number of rows of the grid */
+        int getRows();
+        /** @return number of columns of the grid */
+        int getCols();
+        /** @return size in pixels of a (square) tile */
+        int getTileSize();
+        /** @return true if something is drawn at this position, false for blank tiles */
+        boolean hasTile(int row, int col);
+        /** Paint the tile on the given graphics, in a getTileSize() x getTileSize() area at the origin. */
+        void paintTile(Graphics2D g, int row, int col);
+    }
+
+    /**
+     * Save the grid as a single SVG file. Each tile is rendered to vector commands,
+     * written as a nested svg element, and discarded before the next one is rendered.
+     * @param grid The grid to save
+     * @param filePath Path to the output file, without extension
+     * @throws IOException If an error occurs while saving the file
+     */
+    public static void saveAsSVG(TileGrid grid, String filePath) throws IOException {
+        int size = grid.getTileSize();
+        int width = grid.getCols() * size;
+        int height = grid.getRows() * size;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(Paths.get(filePath + ".svg")), StandardCharsets.UTF_8))) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+            writer.write(String.format(Locale.ROOT,
+                    "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" version=\"1.1\" width=\"%d\" height=\"%d\" viewBox=\"0 0 %d %d\">\n",
+                    width, height, width, height));
+            for (int row = 0; row < grid.getRows(); row++) {
+                for (int col = 0; col < grid.getCols(); col++) {
+                    if (!grid.hasTile(row, col)) continue;
+                    String tile = renderVectorTile(grid, row, col, new SVGProcessor());
+                    writer.write(nestSvg(tile, col * size, row * size, size, tileName(row, col) + "_"));
+                    writer.write('\n');
+                }
+            }
+            writer.write("</svg>\n");
+        }
+    }
+
+    /**
+     * Save each tile of the grid as its own PDF file, in the given folder.
+     * Files are named tile_[row]_[col].pdf. Blank tiles are skipped.
+     * @param grid The grid to save
+     * @param folderPath Path to the output folder (created if needed)
+     * @throws IOException If an error occurs while saving the files
+     */
+    public static void saveTilesAsPDF(TileGrid grid, String folderPath) throws IOException {
+        File folder = createFolder(folderPath);
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                if (!grid.hasTile(row, col)) continue;
+                Document document = renderVectorDocument(grid, row, col, new PDFProcessor(true));
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(folder, tileName(row, col) + ".pdf")))) {
+                    document.writeTo(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the grid as a set of PNG tiles, plus a downscaled overview of the whole grid.
+     * Only one full resolution tile and the overview are held in memory at any time.
+     * Layout of the output folder :
+     * - tile_[row]_[col].png : full resolution tiles (blank tiles are skipped)
+     * - overview.png : the whole grid, scaled to fit in overviewSize x overviewSize
+     * - tiles.csv : row, col, file name of each tile
+     * @param grid The grid to save
+     * @param folderPath Path to the output folder (created if needed)
+     * @param overviewSize Maximum width/height of the overview image
+     * @throws IOException If an error occurs while saving the files
+     */
+    public static void saveAsTiledPNG(TileGrid grid, String folderPath, int overviewSize) throws IOException {
+        File folder = createFolder(folderPath);
+        int size = grid.getTileSize();
+        // Downscaled tile size in the overview (at least one pixel)
+        int overviewTile = Math.max(1, Math.min(size, overviewSize / Math.max(grid.getRows(), grid.getCols())));
+        BufferedImage overview = new BufferedImage(grid.getCols() * overviewTile, grid.getRows() * overviewTile, BufferedImage.TYPE_INT_RGB);
+        Graphics2D overviewGraphics = overview.createGraphics();
+        overviewGraphics.setColor(Color.WHITE);
+        overviewGraphics.fillRect(0, 0, overview.getWidth(), overview.getHeight());
+        overviewGraphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        // Single tile buffer, reused for every tile
+        BufferedImage tile = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        try (BufferedWriter index = Files.newBufferedWriter(new File(folder, "tiles.csv").toPath(), StandardCharsets.UTF_8)) {
+            index.write("ROW,COL,FILE\n");
+            for (int row = 0; row < grid.getRows(); row++) {
+                for (int col = 0; col < grid.getCols(); col++) {
+                    if (!grid.hasTile(row, col)) continue;
+                    Graphics2D g2 = tile.createGraphics();
+                    g2.setComposite(AlphaComposite.Clear);
+                    g2.fillRect(0, 0, size, size);
+                    g2.setComposite(AlphaComposite.SrcOver);
+                    grid.paintTile(g2, row, col);
+                    g2.dispose();
+
+                    String fileName = tileName(row, col) + ".png";
+                    ImageIO.write(tile, "png", new File(folder, fileName));
+                    index.write(row + "," + col + "," + fileName + "\n");
+                    overviewGraphics.drawImage(tile, col * overviewTile, row * overviewTile, overviewTile, overviewTile, null);
+                }
+            }
+        } finally {
+            overviewGraphics.dispose();
+        }
+        ImageIO.write(overview, "png", new File(folder, "overview.png"));
+    }
+    public static void saveAsTiledPNG(TileGrid grid, String folderPath) throws IOException {
+        saveAsTiledPNG(grid, folderPath, DEFAULT_OVERVIEW_SIZE);
+    }
+
+    private static String renderVectorTile(TileGrid grid, int row, int col, Processor processor) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderVectorDocument(grid, row, col, processor).writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Document renderVectorDocument(TileGrid grid, int row, int col, Processor processor) {
+        int size = grid.getTileSize();
+        VectorGraphics2D g = new VectorGraphics2D();
+        grid.paintTile(g, row, col);
+        g.dispose();
+        return processor.getDocument(g.getCommands(), new PageSize(0.0, 0.0, size, size));
+    }
+
+    /**
+     * Turn a standalone SVG document into a nested svg element placed at (x, y).
+     * The XML prolog is dropped, and the size of the root element is replaced by the tile size in pixels.
+     * The ids of the document (e.g. its clip paths) and the references to them are prefixed, as ids are shared
+     * by the whole file : each tile would otherwise use the clip paths of the first tile with the same ids.
+     */
+    private static String nestSvg(String document, int x, int y, int size, String idPrefix) {
+        int start = document.indexOf("<svg");
+        int endOfTag = document.indexOf('>', start);
+        if (start < 0 || endOfTag < 0) {
+            throw new IllegalStateException("Unexpected SVG tile content");
+        }
+        String rootTag = document.substring(start, endOfTag);
+        String viewBox = String.format(Locale.ROOT, "0 0 %d %d", size, size);
+        int viewBoxStart = rootTag.indexOf("viewBox=\"");
+        if (viewBoxStart >= 0) {
+            int valueStart = viewBoxStart + "viewBox=\"".length();
+            viewBox = rootTag.substring(valueStart, rootTag.indexOf('"', valueStart));
+        }
+        String nestedTag = String.format(Locale.ROOT, "<svg x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\" viewBox=\"%s\"",
+                x, y, size, size, viewBox);
+        return nestedTag + prefixIds(document.substring(endOfTag).trim(), idPrefix);
+    }
+
+    /**
+     * Prefix the id attributes of an SVG fragment, and the url(#...) and href="#..." references to them.
+     */
+    static String prefixIds(String svg, String prefix) {
+        String replacement = Matcher.quoteReplacement(prefix);
+        return ID_REFERENCE.matcher(svg).replaceAll("$1" + replacement + "$2");
+    }
+
+    private static String tileName(int row, int col) {
+        return "tile_" + row + "_" + col;
+    }
+
+    private static File createFolder(String folderPath) throws IOException {
+        File folder = new File(folderPath);
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Failed to create directory " + folderPath);
+        }
+        return folder;
+    }
+}
@@ -1,10 +1,13 @@
 package ch.epfl.bio410.analysis_and_plots;
 
 import ch.epfl.bio410.segmentation.Colonies;
+import ch.epfl.bio410.utils.AsyncIO;
+import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.NewImage;
 
 import org.knowm.xchart.*;
+import org.knowm.xchart.internal.chartpart.Chart;
 import org.knowm.xchart.style.Styler;
 import org.knowm.xchart.style.markers.SeriesMarkers;
 import org.knowm.xchart.style.lines.SeriesLines;
@@ -26,6 +29,15 @@ import static ij.IJ.openImage;
  */
 
 public class Plots{
+    /** Number of rendered plots kept for showSavedPlot. */
+    private static final int RECENT_PLOTS = 4;
+    // Last plots written, by file path (least recently used first)
+    private static final Map<String, BufferedImage> recentPlots = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+            return size() > RECENT_PLOTS;
+        }
+    };
     /**
      * Empty. Not meant to be run on its own.
      */
@@ -79,14 +91,40 @@ public class Plots{
         return dataRows.stream().collect(Collectors.groupingBy(row -> Integer.parseInt(row.get("TRACK_ID"))));
     }
 
-        /**
-     * Plot the area of each track over time.
+    /**
+     * Plot a colony feature of each track over time.
      * @param tracksStats Map of track ID to map of frame to statistics
      * @param feature The feature to plot (see the CSV header for available features)
-     * @param limitOptional Optional limit on the number of tracks to plot
+     * @param limitOptional Optional limit on the number of tracks to plot : the first tracks of the map are kept
      * @return JPanel containing the chart
      */
     public static JPanel plotColonyFeaturePerTrack(Map<Integer, Map<Integer, double[]>> tracksStats, String feature, Optional<Integer> limitOptional){
+        SeriesAggregation.Options options = SeriesAggregation.Options.all();
+        options.maxSeries = limitOptional.orElse(0);
+        return plotColonyFeaturePerTrack(tracksStats, feature, options);
+    }
+
+    /**
+     * Plot a colony feature of each track over time, through the aggregation stage
+     * (series cap with top-K selection, LTTB downsampling and bands across tracks).
+     * @param tracksStats Map of track ID to map of frame to statistics
+     * @param feature The feature to plot (see the CSV header for available features)
+     * @param options Aggregation options
+     * @return JPanel containing the chart
+     */
+    public static JPanel plotColonyFeaturePerTrack(Map<Integer, Map<Integer, double[]>> tracksStats, String feature, SeriesAggregation.Options options){
+        // Put chart on a panel for easier manipulation
+        return new XChartPanel<>(colonyFeaturePerTrackChart(tracksStats, feature, options));
+    }
+
+    /**
+     * Build the chart of plotColonyFeaturePerTrack, without a panel (can be used headless, see saveChartAsPNG).
+     * @param tracksStats Map of track ID to map of frame to statistics
+     * @param feature The feature to plot (see the CSV header for available features)
+     * @param options Aggregation options
+     * @return the chart
+     */
+    public static XYChart colonyFeaturePerTrackChart(Map<Integer, Map<Integer, double[]>> tracksStats, String feature, SeriesAggregation.Options options){
         // VALID ENTRIES IN THE STATS //
         //    IDENTIFIER	BOUNDING_BOX_X	BOUNDING_BOX_Y	BOUNDING_BOX_Z	BOUNDING_BOX_END_X	BOUNDING_BOX_END_Y
         //    BOUNDING_BOX_END_Z	BOUNDING_BOX_WIDTH	BOUNDING_BOX_HEIGHT	BOUNDING_BOX_DEPTH	MINIMUM_INTENSITY
@@ -97,35 +135,81 @@ public class Plots{
         //    MAX_DISTANCE_TO_MASS_CENTER	MAX_MEAN_DISTANCE_TO_MASS_CENTER_RATIO	SUM_DISTANCE_TO_CENTROID
         //    MEAN_DISTANCE_TO_CENTROID	MAX_DISTANCE_TO_CENTROID	MAX_MEAN_DISTANCE_TO_CENTROID_RATIO
         //////////////////////
-        // Create the XYChart
-        int limit = limitOptional.orElse(tracksStats.size());
-        XYChart chart = new XYChartBuilder().width(1600).height(800).title("Area of each track over time").xAxisTitle("Frame").yAxisTitle("Area").build();
-        // For each track, extract the frame as x and the area as y
-        int limiter = 0;
+        int column = Colonies.getColumnMapping().get(feature);
+        // For each track, extract the frame as x and the feature as y, sorted by frame
+        List<String> names = new ArrayList<>(tracksStats.size());
+        List<double[]> xs = new ArrayList<>(tracksStats.size());
+        List<double[]> ys = new ArrayList<>(tracksStats.size());
         for (Map.Entry<Integer, Map<Integer, double[]>> entry : tracksStats.entrySet()) {
-            if (limit != 0 && limiter >= limit) break;
-            limiter++;
-            Integer trackId = entry.getKey();
             Map<Integer, double[]> stats = entry.getValue();
-            List<Integer> xData = new ArrayList<>();
-            List<Double> yData = new ArrayList<>();
-            // sort stats by frame (key)
-            SortedMap<Integer, double[]> sortedStats = new TreeMap<>(stats);
-            for (Map.Entry<Integer, double[]> frameStats : sortedStats.entrySet()) {
-                xData.add(frameStats.getKey());
-                yData.add(frameStats.getValue()[Colonies.getColumnMapping().get(feature)]);
+            int[] frames = new int[stats.size()];
+            int i = 0;
+            for (Integer frame : stats.keySet()) frames[i++] = frame;
+            Arrays.sort(frames);
+            double[] xData = new double[frames.length];
+            double[] yData = new double[frames.length];
+            for (i = 0; i < frames.length; i++) {
+                xData[i] = frames[i];
+                yData[i] = stats.get(frames[i])[column];
             }
-            // Add the series to the chart
+            names.add("Track " + entry.getKey());
+            xs.add(xData);
+            ys.add(yData);
+        }
+        // Create the XYChart, labelled with the plotted feature
+        String label = "PIXEL_COUNT".equals(feature) ? "Area" : feature;
+        XYChart chart = new XYChartBuilder().width(1600).height(800).title(label + " of each track over time").xAxisTitle("Frame").yAxisTitle(label).build();
+        addAggregatedSeries(chart, names, xs, ys, options);
+        return chart;
+    }
+
+    /**
+     * Add per-track series to a chart through the aggregation stage.
+     * Bands are computed over all the series, then only the top-K series are downsampled and added.
+     * @param chart The chart to add the series to
+     * @param names Name of each series
+     * @param xs x values of each series (sorted)
+     * @param ys y values of each series
+     * @param options Aggregation options
+     */
+    static void addAggregatedSeries(XYChart chart, List<String> names, List<double[]> xs, List<double[]> ys, SeriesAggregation.Options options) {
+        for (int index : SeriesAggregation.topK(ys, options.maxSeries, options.ranking)) {
+            double[][] downsampled = SeriesAggregation.lttb(xs.get(index), ys.get(index), options.maxPointsPerSeries);
             try {
-                XYSeries series = chart.addSeries("Track " + trackId, xData, yData);
+                XYSeries series = chart.addSeries(names.get(index), downsampled[0], downsampled[1]);
                 series.setMarker(SeriesMarkers.NONE);
                 series.setLineStyle(SeriesLines.SOLID);
             } catch (IllegalArgumentException e) {
-                System.out.println("Track " + trackId + " has no data for feature " + feature);
+                IJ.log(names.get(index) + " has no data to plot");
             }
         }
-        // Put chart on a panel for easier manipulation
-        return new XChartPanel<>(chart);
+        if (options.bands == SeriesAggregation.Bands.NONE || xs.isEmpty()) return;
+
+        SeriesAggregation.FrameBands bands = SeriesAggregation.computeBands(xs, ys);
+        if (bands.frames.length == 0) return;
+        if (options.bands == SeriesAggregation.Bands.MEAN_SD) {
+            double[] lower = new double[bands.frames.length];
+            double[] upper = new double[bands.frames.length];
+            for (int i = 0; i < bands.frames.length; i++) {
+                lower[i] = bands.mean[i] - bands.sd[i];
+                upper[i] = bands.mean[i] + bands.sd[i];
+            }
+            addBandSeries(chart, "Mean", bands.frames, bands.mean, SeriesLines.SOLID);
+            addBandSeries(chart, "Mean - SD", bands.frames, lower, SeriesLines.DASH_DASH);
+            addBandSeries(chart, "Mean + SD", bands.frames, upper, SeriesLines.DASH_DASH);
+        } else {
+            addBandSeries(chart, "Median", bands.frames, bands.median, SeriesLines.SOLID);
+            addBandSeries(chart, "25th percentile", bands.frames, bands.q25, SeriesLines.DASH_DASH);
+            addBandSeries(chart, "75th percentile", bands.frames, bands.q75, SeriesLines.DASH_DASH);
+        }
+    }
+
+    private static void addBandSeries(XYChart chart, String name, double[] x, double[] y, BasicStroke lineStyle) {
+        XYSeries series = chart.addSeries(name, x, y);
+        series.setMarker(SeriesMarkers.NONE);
+        series.setLineStyle(lineStyle);
+        series.setLineColor(Color.BLACK);
+        series.setLineWidth(3f);
     }
     /**
      * Plot the area of each track over time.
@@ -133,7 +217,7 @@ public class Plots{
      * @return JPanel containing the chart
      */
     public static JPanel plotAreaPerTrack(Map<Integer, Map<Integer, double[]>> tracksStats){
-        return plotColonyFeaturePerTrack(tracksStats, "PIXEL_COUNT", Optional.empty());
+        return plotColonyFeaturePerTrack(tracksStats, "PIXEL_COUNT", new SeriesAggregation.Options());
     }
 
     /**
@@ -216,55 +300,52 @@ public class Plots{
     /**
      * Plot "instantaneous" speed over time for a given collection of tracks.
      * @param trackIds List of IDs of the tracks to plot
-     * @param rows List of CSV records containing the data (sorted by frame)
+     * @param rows List of CSV records containing the spots data (not modified)
      * @param width Plot width
      * @param height Plot height
+     * @param options Aggregation options
      * @return JPanel containing the chart
      */
-    public static JPanel plotSpeed(List<Integer> trackIds, List<CSVRecord> rows, int width, int height) {
-        // Time between each frame
-        double dt = 1;
+    public static JPanel plotSpeed(List<Integer> trackIds, List<CSVRecord> rows, int width, int height, SeriesAggregation.Options options) {
+        return plotSpeed(trackIds, Kinematics.fromSpots(rows), width, height, options);
+    }
 
-        // Sort by frame
-        rows.sort(Comparator.comparingInt(row -> Integer.parseInt(row.get("FRAME"))));
-        // Separate rows per track
-        Map<Integer, List<CSVRecord>> groupedRows = groupByTrackId(rows);
+    /**
+     * Plot "instantaneous" speed over time for a given collection of tracks, from already grouped spots.
+     * Speed is the displacement between consecutive spots over the elapsed POSITION_T.
+     * @param trackIds List of IDs of the tracks to plot
+     * @param kinematics Spots grouped by track (see Kinematics.fromSpots)
+     * @param width Plot width
+     * @param height Plot height
+     * @param options Aggregation options
+     * @return JPanel containing the chart
+     */
+    public static JPanel plotSpeed(List<Integer> trackIds, Kinematics kinematics, int width, int height, SeriesAggregation.Options options) {
+        List<String> names = new ArrayList<>(trackIds.size());
+        List<double[]> ts = new ArrayList<>(trackIds.size());
+        List<double[]> speeds = new ArrayList<>(trackIds.size());
+        for (Integer trackId : trackIds) {
+            if (!kinematics.hasTrack(trackId)) {
+                IJ.log("Unable to calculate speed for track " + trackId);
+                continue;
+            }
+            double[][] trackSpeed = kinematics.getSpeeds(trackId);
+            names.add("Track " + trackId);
+            ts.add(trackSpeed[0]);
+            speeds.add(trackSpeed[1]);
+        }
 
         // Prepare chart for adding series in
         XYChart chart = new XYChartBuilder().width(width).height(height).title(
                 "POSITION_T vs SPOT_SPEED for selected tracks"
             ).xAxisTitle("POSITION_T").yAxisTitle("SPOT_SPEED").build();
-
-        for (Integer trackId : trackIds) {
-            List<CSVRecord> trackData = groupedRows.get(trackId);
-
-            // Get data
-            List<Double> xData = trackData.stream().map(row -> Double.parseDouble(row.get("POSITION_X"))).collect(Collectors.toList());
-            List<Double> yData = trackData.stream().map(row -> Double.parseDouble(row.get("POSITION_Y"))).collect(Collectors.toList());
-            List<Double> zData = trackData.stream().map(row -> Double.parseDouble(row.get("POSITION_Z"))).collect(Collectors.toList());
-            List<Double> tData = trackData.stream().map(row -> Double.parseDouble(row.get("POSITION_T"))).collect(Collectors.toList());
-
-            List<Double> trackSpeed = new ArrayList<>();
-            for (int i = 1; i < xData.size(); i++) {
-                Double rSquared = Math.pow(xData.get(i) - xData.get(i-1), 2.0) +
-                                  Math.pow(yData.get(i) - yData.get(i-1), 2.0) +
-                                  Math.pow(zData.get(i) - zData.get(i-1), 2.0);
-                trackSpeed.add(Math.pow(rSquared, 0.5)/dt);
-            }
-            tData.remove(0);  // to get array of the same size
-
-            // Add series to the chart
-            try {
-                XYSeries series = chart.addSeries("Track " + trackId, tData, trackSpeed);
-                series.setMarker(SeriesMarkers.NONE);
-                series.setLineStyle(SeriesLines.SOLID);
-            } catch (IllegalArgumentException e) {
-                System.out.println("Unable to calculate speed for track " + trackId);
-            }
-        }
+        addAggregatedSeries(chart, names, ts, speeds, options);
 
         return new XChartPanel<>(chart);
     }
+    public static JPanel plotSpeed(List<Integer> trackIds, List<CSVRecord> rows, int width, int height) {
+        return plotSpeed(trackIds, rows, width, height, SeriesAggregation.Options.all());
+    }
     public static JPanel plotSpeed(List<Integer> trackIds, List<CSVRecord> rows) {
         return plotSpeed(trackIds, rows, 1600, 800);
     }
@@ -335,18 +416,64 @@ public class Plots{
         chartPanel.doLayout();
         chartPanel.print(g2);
         g2.dispose();
-        
-        ImageIO.write(image, "png", new File(filePath + ".png"));
+
+        writePNG(image, filePath);
+    }
+
+    /**
+     * Save a chart as a PNG file, by painting it directly on an image.
+     * Unlike saveChartPanelAsPNG, this does not need a panel, and works in headless mode.
+     * @param chart The chart to save
+     * @param filePath Path to the output file, without extension
+     * @throws IOException If an error occurs while saving the file
+     */
+    public static void saveChartAsPNG(Chart<?, ?> chart, String filePath) throws IOException {
+        BufferedImage image = new BufferedImage(chart.getWidth(), chart.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = image.createGraphics();
+        chart.paint(g2, chart.getWidth(), chart.getHeight());
+        g2.dispose();
+
+        writePNG(image, filePath);
+    }
+
+    /**
+     * Write a rendered plot in the background (see AsyncIO), and keep it for showSavedPlot.
+     * @param image The rendered plot, not modified afterwards
+     * @param filePath Path to the output file, without extension
+     */
+    private static void writePNG(BufferedImage image, String filePath) {
+        synchronized (recentPlots) {
+            recentPlots.put(filePath + ".png", image);
+        }
+        AsyncIO.shared().submit(filePath + ".png", () -> {
+            if (!ImageIO.write(image, "png", new File(filePath + ".png"))) throw new IOException("No PNG writer for " + filePath);
+        });
     }
 
     /**
      * Display the file in ImageJ.
      * Not used in this file, but useful method for integration with ImageJ.
+     * A plot just saved by this class is shown from memory, while it is written in the background.
      * @param filePath Path to the image file
      * @return ImagePlus object for further manipulation with ImageJ
      */
     public static ImagePlus showSavedPlot(String filePath, String fileExtension) {
-        ImagePlus imp = openImage(filePath + "." + fileExtension);
+        BufferedImage image;
+        synchronized (recentPlots) {
+            image = recentPlots.get(filePath + "." + fileExtension);
+        }
+        ImagePlus imp;
+        if (image != null) {
+            // Plot just rendered : no need to wait for the file and read it back
+            imp = new ImagePlus(new File(filePath).getName() + "." + fileExtension, image);
+        } else {
+            try {
+                AsyncIO.shared().flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            imp = openImage(filePath + "." + fileExtension);
+        }
         imp.show();
         return imp;
     }
@@ -365,11 +492,23 @@ public class Plots{
      * @throws IOException If an error occurs while saving the file
      */
     public static JPanel plotHistogram(List<CSVRecord> dataRows, String columnName, int nBins, int width, int height, boolean visible) throws IOException {
-        // Extract data for the histogram
-        List<Double> columnData = dataRows.stream().map(row -> Double.parseDouble(row.get(columnName))).collect(Collectors.toList());
+        // Put chart on a panel for easier manipulation
+        return new XChartPanel<>(histogramChart(dataRows, columnName, nBins, width, height, visible));
+    }
 
+    /**
+     * Build the chart of plotHistogram, without a panel (can be used headless, see saveChartAsPNG).
+     * @param dataRows List of CSV records
+     * @param columnName Name of the column
+     * @param nBins Number of bins in the histogram
+     * @param width Width of output figure
+     * @param height Height of output figure
+     * @param visible Whether or not to display other stuff than the data
+     * @return the chart
+     */
+    public static CategoryChart histogramChart(List<CSVRecord> dataRows, String columnName, int nBins, int width, int height, boolean visible) {
         // Create the histogram chart
-        Histogram histogram = new Histogram(columnData, nBins);
+        Histogram histogram = histogramBins(dataRows, columnName, nBins);
         CategoryChart chart = new CategoryChartBuilder().width(width).height(height).title("Histogram of " + columnName).xAxisTitle(columnName).yAxisTitle("Frequency").build();
         chart.addSeries(columnName, histogram.getxAxisData(), histogram.getyAxisData());
         chart.getStyler().setLegendPosition(Styler.LegendPosition.InsideNE);
@@ -382,9 +521,19 @@ public class Plots{
             chart.getStyler().setLegendPadding(2);
             chart.getStyler().setChartPadding(2);
         }
+        return chart;
+    }
 
-        // Put chart on a panel for easier manipulation
-        return new XChartPanel<>(chart);
+    /**
+     * Bins a column for plotHistogram, without building any chart.
+     * @param dataRows List of CSV records
+     * @param columnName Name of the column
+     * @param nBins Number of bins in the histogram
+     * @return the binned column
+     */
+    static Histogram histogramBins(List<CSVRecord> dataRows, String columnName, int nBins) {
+        List<Double> columnData = dataRows.stream().map(row -> Double.parseDouble(row.get(columnName))).collect(Collectors.toList());
+        return new Histogram(columnData, nBins);
     }
     public static JPanel plotHistogram(List<CSVRecord> dataRows, String columnName, int nBins, int width, int height) throws IOException {
         return plotHistogram(dataRows, columnName, nBins, width, height, true);
@@ -409,12 +558,30 @@ public class Plots{
      * @throws IOException If an error occurs while saving the file
      */
     public static JPanel plotHeatmap(List<CSVRecord> dataRows, String columnX, String columnY, int nBinsX, int nBinsY, int width, int height, boolean visible) throws IOException {
+        int[] counts = new int[nBinsY * nBinsX];
+        double[] ranges = heatmapBins(dataRows, columnX, columnY, nBinsX, nBinsY, counts);
+        HeatMapChart chart = buildHeatmapChart(columnX, columnY, counts, ranges[0], ranges[1], nBinsX, ranges[2], ranges[3], nBinsY, width, height, visible);
+
+        // Put chart on a panel for easier manipulation
+        return new XChartPanel<>(chart);
+    }
+
+    /**
+     * Bins two columns into a 2D histogram for plotHeatmap, without building any chart.
+     * @param dataRows List of CSV records
+     * @param columnX Name of the X column
+     * @param columnY Name of the Y column
+     * @param nBinsX Number of bins in the x-direction
+     * @param nBinsY Number of bins in the y-direction
+     * @param counts Output counts per bin, of size nBinsX * nBinsY, indexed as [yBin * nBinsX + xBin]
+     * @return {xMin, xBinSize, yMin, yBinSize}
+     */
+    static double[] heatmapBins(List<CSVRecord> dataRows, String columnX, String columnY, int nBinsX, int nBinsY, int[] counts) {
         // Extract data for the heatmap
         List<Double> xData = dataRows.stream().map(row -> Double.parseDouble(row.get(columnX))).collect(Collectors.toList());
         List<Double> yData = dataRows.stream().map(row -> Double.parseDouble(row.get(columnY))).collect(Collectors.toList());
 
         // Create a 2D histogram for the heatmap
-        int[][] bins = new int[nBinsY][nBinsX];
         double xMin = Collections.min(xData);
         double xMax = Collections.max(xData);
         double yMin = Collections.min(yData);
@@ -431,21 +598,45 @@ public class Plots{
             if (xBin == nBinsX) xBin--;
             if (yBin == nBinsY) yBin--;
 
-            bins[yBin][xBin]++;
+            counts[yBin * nBinsX + xBin]++;
         }
+        return new double[]{xMin, xBinSize, yMin, yBinSize};
+    }
 
+    /**
+     * Builds a heatmap chart from an already binned 2D histogram.
+     * Shared by plotHeatmap and the pair plot tiles.
+     * @param columnX Name of the X column
+     * @param columnY Name of the Y column
+     * @param counts Counts per bin, indexed as [yBin * nBinsX + xBin]
+     * @param xMin Lower edge of the first x bin
+     * @param xBinSize Width of the x bins
+     * @param nBinsX Number of bins in the x-direction
+     * @param yMin Lower edge of the first y bin
+     * @param yBinSize Width of the y bins
+     * @param nBinsY Number of bins in the y-direction
+     * @param width Width of output figure
+     * @param height Height of output figure
+     * @param visible Whether or not to display other stuff than the data
+     * @return the heatmap chart
+     */
+    static HeatMapChart buildHeatmapChart(String columnX, String columnY, int[] counts,
+                                          double xMin, double xBinSize, int nBinsX,
+                                          double yMin, double yBinSize, int nBinsY,
+                                          int width, int height, boolean visible) {
         // Compute bin edges for display
-        List<Double> xBins = new ArrayList<>();
-        List<Double> yBins = new ArrayList<>();
+        List<Double> xBins = new ArrayList<>(nBinsX);
+        List<Double> yBins = new ArrayList<>(nBinsY);
         for (int i = 0; i < nBinsX; i++) xBins.add(xMin + i * xBinSize);
         for (int i = 0; i < nBinsY; i++) yBins.add(yMin + i * yBinSize);
 
         // Change bins (sparse matrix) into list of (coordinates + value) for display
         List<Number[]> zData = new ArrayList<Number[]>();
-        for (Integer j = 0; j < nBinsY; j++) {
-            for (Integer i = 0; i < nBinsX; i++) {
-                if (bins[j][i] != 0) zData.add(new Number[]{i, j, bins[j][i]});
-            } 
+        for (int j = 0; j < nBinsY; j++) {
+            for (int i = 0; i < nBinsX; i++) {
+                int count = counts[j * nBinsX + i];
+                if (count != 0) zData.add(new Number[]{i, j, count});
+            }
         }
 
         // Create and configure the heatmap chart
@@ -461,9 +652,7 @@ public class Plots{
             chart.getStyler().setLegendVisible(false);
             chart.getStyler().setChartPadding(2);
         }
-
-        // Put chart on a panel for easier manipulation
-        return new XChartPanel<>(chart);
+        return chart;
     }
     public static JPanel plotHeatmap(List<CSVRecord> dataRows, String columnX, String columnY, int nBinsX, int nBinsY, int width, int height) throws IOException {
         return plotHeatmap(dataRows, columnX, columnY, nBinsX, nBinsY, width, height, true);
@@ -477,39 +666,14 @@ public class Plots{
 
     /**
      * Creates a histogram/heatmap jointplot from selected columns of a dataframe.
+     * Columns are binned once through PairPlot, and tiles are only rendered when painted.
      * @param dataRows List of CSV records
      * @param columns List of columns to be used in the jointplot
      * @param panelSize Size of each individual square panel
      * @param render Which side of the diagonal gets heatmaps
      */
     public static JPanel jointPanelPlot(List<CSVRecord> dataRows, List<String> columns, int panelSize, int render) throws IOException {
-        // Prepare the panel on which we draw the jointplot
-        JPanel chartPanel = new JPanel(new GridLayout(columns.size(), columns.size()));
-        boolean show;
-
-        for (int j = 0; j < columns.size(); j++) {
-            for (int i = 0; i < columns.size(); i++) {
-                // Option for heatmap layout
-                if (render > 0) {  // Display heatmaps above diagonal
-                    show = i > j;
-                } else if (render < 0) {  // Display below diagonal
-                    show = i < j;
-                } else show = i != j;  // Both above and below
-
-                // Tile the charts!
-                if (i == j) {  // Histogram on the diagonal
-                    chartPanel.add(plotHistogram(dataRows, columns.get(j), 20, panelSize, panelSize, false));
-                } else if (show) {  // Heatmaps according to the previous conditions
-                    chartPanel.add(plotHeatmap(dataRows, columns.get(i), columns.get(j), 20, 20, panelSize, panelSize, false));
-                } else {  // Blank everywhere else
-                    JPanel blankPanel = new JPanel();
-                    blankPanel.setSize(panelSize, panelSize);
-                    chartPanel.add(blankPanel);
-                }
-            }
-        }
-
-        return chartPanel;
+        return new PairPlot(dataRows, columns, 20).toPanel(panelSize, render);
     }
     public static JPanel jointPanelPlot(List<CSVRecord> dataRows, List<String> columns) throws IOException {
         return jointPanelPlot(dataRows, columns, 250, -1);
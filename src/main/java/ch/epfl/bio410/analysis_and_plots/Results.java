@@ -1,23 +1,31 @@
 package ch.epfl.bio410.analysis_and_plots;
 
-import ch.epfl.bio410.segmentation.Colonies;
+import ch.epfl.bio410.segmentation.ColonyStatsService;
+import ch.epfl.bio410.segmentation.LabelSource;
+import ch.epfl.bio410.utils.AsyncIO;
+import ch.epfl.bio410.utils.CsvWriter;
+import ch.epfl.bio410.utils.FrameCache;
+import ch.epfl.bio410.utils.PipelineMetrics;
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.process.ImageProcessor;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.File;
 import java.nio.file.FileSystems;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class implements functions to analyze the results of the tracking
@@ -25,136 +33,268 @@ import java.util.Map;
  */
 
 public class Results {
-
+    /** Maximum distance to the closest colony of a track outside the colonies : the 5x5 pixel neighborhood. */
+    public static final double CLOSEST_LABEL_MAX_DISTANCE = 2 * Math.sqrt(2);
+    /** Spot feature holding the colony label of each spot (see assignSpotsToColonies), exported with the spots. */
+    public static final String COLONY_LABEL = "COLONY_LABEL";
+    /** Number of colony label frames kept in memory while assigning tracks. */
+    private static final int LABEL_CACHE_FRAMES = 8;
+    /** Statistics of the last images passed to getColonyFeatures, shared by the tracks. */
+    private ColonyStatsService statsService;
 
     /**
      * This method assigns labels to tracks based on the position of the colonies in the first frame of the track.
      * Assign each track to a colony label (unique color).
      * Also checks label != 0 and assigns to closest, or zero label if it is.
+     * Only the frames where tracks start are read, once each and in order (see LabelSource) :
+     * colonyLabels can be a virtual stack (e.g. from LabelSource.openImage).
      * @param tracks List of tracks from the tracking CSV file
      * @param colonyLabels ImagePlus object containing the image with colony labels
      */
     public static void assignTracksToColonies(
             List<CSVRecord> tracks , ImagePlus colonyLabels, String imageNameWithoutExtension, String path){
-        ImageStack stack = colonyLabels.getImageStack();
+        // get the pixel size in microns
+        double pixelWidth = colonyLabels.getCalibration().pixelWidth;
+        double pixelHeight = colonyLabels.getCalibration().pixelHeight;
+        assignTracksToColonies(tracks, LabelSource.cached(LabelSource.of(colonyLabels), LABEL_CACHE_FRAMES),
+                pixelWidth, pixelHeight, imageNameWithoutExtension, path);
+    }
+
+    /**
+     * This method assigns labels to tracks, reading the colony labels from a LabelSource.
+     * The tracks are grouped by start frame, and each frame is fetched once, in increasing order.
+     * @param tracks List of tracks from the tracking CSV file
+     * @param colonyLabels Frames of the colony labels
+     * @param pixelWidth Width of a pixel, in the unit of the track positions
+     * @param pixelHeight Height of a pixel, in the unit of the track positions
+     */
+    public static void assignTracksToColonies(List<CSVRecord> tracks, LabelSource colonyLabels, double pixelWidth, double pixelHeight,
+                                              String imageNameWithoutExtension, String path) {
         int[] labelsArray = new int[tracks.size()];
+        int[] frames = new int[tracks.size()];
+        int[] xPixels = new int[tracks.size()];
+        int[] yPixels = new int[tracks.size()];
         int index = 0;
         for (CSVRecord track : tracks) {
-            int frame = (int) Double.parseDouble(track.get("TRACK_START")); // for each track get start_frame
+            frames[index] = (int) Double.parseDouble(track.get("TRACK_START")); // for each track get start_frame
             double x_micron = Double.parseDouble(track.get("TRACK_X_LOCATION"));
             double y_micron = Double.parseDouble(track.get("TRACK_Y_LOCATION"));
-
-            // get the pixel size in microns
-            double pixelWidth = colonyLabels.getCalibration().pixelWidth;
-            double pixelHeight = colonyLabels.getCalibration().pixelHeight;
             // convert the micron coordinates to pixel coordinates
-            int x_pixel = (int) (x_micron / pixelWidth);
-            int y_pixel = (int) (y_micron / pixelHeight);
-
-            // get the label of the colony at the position of the track
-            ImageProcessor ip = stack.getProcessor(frame+1); // frame 0 in csv but frames start at 1 in imageJ
-            int label = ip.getPixel(x_pixel, y_pixel); // getInterpolatedPixel
-            // if the label is 0, get the label of the closest non-zero pixel
-            if (label == 0) {
-                label = getClosestNonZeroLabel(ip, x_pixel, y_pixel);
-            }
-            labelsArray[index] = label;
+            xPixels[index] = (int) (x_micron / pixelWidth);
+            yPixels[index] = (int) (y_micron / pixelHeight);
             index++;
         }
 
+        // Tracks in order of start frame, to look them up frame by frame
+        Integer[] order = new Integer[tracks.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(i -> frames[i]));
+        int closestLabelSearches = 0;
+        int framesRead = 0;
+        for (int start = 0; start < order.length; ) {
+            int frame = frames[order[start]];
+            int end = start;
+            while (end < order.length && frames[order[end]] == frame) end++;
+            FrameCache.Frame ip = colonyLabels.getFrame(frame + 1); // frame 0 in csv but frames start at 1 in imageJ
+            framesRead++;
+            for (int k = start; k < end; k++) {
+                int i = order[k];
+                // get the label of the colony at the position of the track
+                int label = ip.get(xPixels[i], yPixels[i]); // read in place, 0 outside the frame
+                // if the label is 0, get the label of the closest non-zero pixel
+                // (a scan of the 5x5 neighborhood is much cheaper than a DistanceTransform of the frame for this distance)
+                if (label == 0) {
+                    label = getClosestNonZeroLabel(ip, xPixels[i], yPixels[i]);
+                    closestLabelSearches++;
+                }
+                labelsArray[i] = label;
+            }
+            start = end;
+        }
+
+        PipelineMetrics metrics = PipelineMetrics.current();
+        metrics.count("results.tracksAssigned", tracks.size());
+        metrics.count("results.closestLabelSearches", closestLabelSearches);
+        metrics.count("results.labelFramesRead", framesRead);
+
         // add labelsarray as new feature of tracks
         // and save to new csv in results folder
         String tracksPath = path + "tracks_with_colonylabels_" + imageNameWithoutExtension + ".csv";
         IJ.log("Saving tracks with colony labels to " + tracksPath);
-        try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(Paths.get(path, "results", "tracks_with_colonylabels_" + imageNameWithoutExtension + ".csv").toString()));
-            CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT);
-
-            // Write header
-            List<String> header = new ArrayList<>();
-            for (String head : tracks.get(0).toMap().keySet()) {
-                header.add(head);
+        String csvPath = Paths.get(path, "results", "tracks_with_colonylabels_" + imageNameWithoutExtension + ".csv").toString();
+        // Written in the background (see AsyncIO) : tracks and labelsArray are not modified afterwards
+        AsyncIO.shared().submit(csvPath, () -> {
+            // Same bytes as a CSVPrinter with CSVFormat.DEFAULT, without a list per record (see CsvWriter)
+            try (CsvWriter csv = new CsvWriter(new File(csvPath))) {
+                // Write header (the columns of toMap(), built once)
+                for (String head : tracks.get(0).toMap().keySet()) {
+                    csv.field(head);
+                }
+                csv.field("COLONY_LABEL").endRecord();
+
+                // Write records : the parsed fields as they are, then the label
+                for (int i = 0; i < tracks.size(); i++) {
+                    CSVRecord record = tracks.get(i);
+                    for (int j = 0; j < record.size(); j++) {
+                        csv.field(record.get(j));
+                    }
+                    csv.field(labelsArray[i]).endRecord();
+                }
             }
-            header.add("COLONY_LABEL");
-            csvPrinter.printRecord(header);
-
-            // Write records
-            for (int i = 0; i < tracks.size(); i++) {
-                CSVRecord record = tracks.get(i);
-                List<String> newRecord = new ArrayList<>();
-                for (String value : record) {
-                    newRecord.add(value);
+        });
+    }
+
+
+    /**
+     * This method assigns each spot of a TrackMate model to a colony label, stored as the spot feature COLONY_LABEL :
+     * TrackMate exports it with the other spot features (see Tracking.saveFeaturesToCSV), so that the spots table
+     * needs no join with the colonies afterwards.
+     * Same label as for the tracks : the label under the spot, or the closest non-zero label (see getClosestNonZeroLabel).
+     * @param model TrackMate model, with the spots in the unit of the colony labels calibration
+     * @param colonyLabels ImagePlus object containing the image with colony labels
+     */
+    public static void assignSpotsToColonies(Model model, ImagePlus colonyLabels) {
+        assignSpotsToColonies(model, LabelSource.of(colonyLabels),
+                colonyLabels.getCalibration().pixelWidth, colonyLabels.getCalibration().pixelHeight);
+    }
+
+    /**
+     * This method assigns each spot of a TrackMate model to a colony label, reading the colony labels from a LabelSource.
+     * The spots are looked up by frame (TrackMate keeps them grouped by FRAME), the frames in parallel ;
+     * each frame of the labels is read once. Spots after the last frame of the labels get the label 0.
+     * @param model TrackMate model
+     * @param colonyLabels Frames of the colony labels
+     * @param pixelWidth Width of a pixel, in the unit of the spot positions
+     * @param pixelHeight Height of a pixel, in the unit of the spot positions
+     */
+    public static void assignSpotsToColonies(Model model, LabelSource colonyLabels, double pixelWidth, double pixelHeight) {
+        model.getFeatureModel().declareSpotFeatures(
+                Collections.singletonList(COLONY_LABEL),
+                Collections.singletonMap(COLONY_LABEL, "Colony label"),
+                Collections.singletonMap(COLONY_LABEL, "Colony"),
+                Collections.singletonMap(COLONY_LABEL, Dimension.NONE),
+                Collections.singletonMap(COLONY_LABEL, Boolean.TRUE));
+        SpotCollection spots = model.getSpots();
+        List<Integer> frames = new ArrayList<>(spots.keySet());
+        Object readLock = new Object();
+        AtomicInteger spotsAssigned = new AtomicInteger();
+        AtomicInteger closestLabelSearches = new AtomicInteger();
+        frames.parallelStream().forEach(frame -> {
+            FrameCache.Frame ip = null;
+            if (frame < colonyLabels.getSize()) {
+                // The frames are read one at a time, the lookups run in parallel
+                synchronized (readLock) {
+                    ip = colonyLabels.getFrame(frame + 1); // frame 0 in TrackMate but frames start at 1 in imageJ
+                }
+            }
+            for (Spot spot : spots.iterable(frame, false)) {
+                int label = 0;
+                if (ip != null) {
+                    int x = (int) (spot.getDoublePosition(0) / pixelWidth);
+                    int y = (int) (spot.getDoublePosition(1) / pixelHeight);
+                    label = ip.get(x, y);
+                    if (label == 0) {
+                        label = getClosestNonZeroLabel(ip, x, y);
+                        closestLabelSearches.incrementAndGet();
+                    }
                 }
-                newRecord.add(String.valueOf(labelsArray[i]));
-                csvPrinter.printRecord(newRecord);
+                spot.putFeature(COLONY_LABEL, (double) label);
+                spotsAssigned.incrementAndGet();
             }
+        });
 
-            csvPrinter.flush();
-            csvPrinter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        PipelineMetrics metrics = PipelineMetrics.current();
+        metrics.count("results.spotsAssigned", spotsAssigned.get());
+        metrics.count("results.spotClosestLabelSearches", closestLabelSearches.get());
+        metrics.count("results.spotLabelFramesRead", Math.min(frames.size(), colonyLabels.getSize()));
     }
 
 
     /**
      * When the label zero is assigned, this function finds closest non-zero colony label, if any, and returns it
      * By default this will search in a 5x5 pixel neighborhood.
+     * Same closest label as a lookup in the feature transform of the frame (DistanceTransform.featureTransform)
+     * within CLOSEST_LABEL_MAX_DISTANCE (up to ties), without the transform.
      * @param ip ImageProcessor of the image
      * @param x track position x
      * @param y track position y
      * @return non-zero label of the closest colony
      */
     public static int getClosestNonZeroLabel(ImageProcessor ip, int x, int y) {
+        return getClosestNonZeroLabel(FrameCache.Frame.of(ip), x, y);
+    }
+
+    /**
+     * Same as getClosestNonZeroLabel(ImageProcessor, int, int), on a frame read in place (see LabelSource).
+     * @param ip Frame of the labels
+     * @param x track position x
+     * @param y track position y
+     * @return non-zero label of the closest colony
+     */
+    public static int getClosestNonZeroLabel(FrameCache.Frame ip, int x, int y) {
+        int closest = 0;
+        int closestDistance = Integer.MAX_VALUE;
         for (int i = -2; i <= 2; i++) {
             for (int j = -2; j <= 2; j++) {
                 // skip the center pixel
                 if (i == 0 && j == 0) continue;
                 if (x + i >= 0 && x + i < ip.getWidth() && y + j >= 0 && y + j < ip.getHeight()) {
-                    try {
-                        // get the label of the neighboring pixel
-                        int label = ip.getPixel(x + i, y + j);
-                        // if the label is non-zero, return it
-                        if (label != 0) return label;
-                    } catch (ArrayIndexOutOfBoundsException e) {
-                        // skip if the pixel is out of bounds
-                        e.printStackTrace();
+                    // get the label of the neighboring pixel, and keep it if it is the closest non-zero one so far
+                    int label = ip.get(x + i, y + j);
+                    int distance = i * i + j * j;
+                    if (label != 0 && distance < closestDistance) {
+                        closest = label;
+                        closestDistance = distance;
                     }
                 }
             }
         }
-        // If no non-zero label was found within the 3 pixel neighborhood, return 0
-        return 0;
+        // 0 if no non-zero label was found within the 5x5 neighborhood
+        return closest;
     }
 
 
     /**
-     * This method obtains the features of a colony for each frame of a track
+     * This method obtains the features of a colony for each frame of a track.
+     * The statistics of each frame are computed once, on the CPU, and kept for the next tracks with the same images
+     * (see ColonyStatsService) ; the frames of the track are computed in parallel.
      * @param track_ID ID of the track
      * @param tracks List of tracks from the tracking CSV file
      * @param labels ImagePlus object containing the image with colony labels
      * @param imageDIC ImagePlus object containing the DIC image
      */
     public List<double[][]> getColonyFeatures(String track_ID, List<CSVRecord> tracks, ImagePlus labels, ImagePlus imageDIC) {
-        Colonies colony = new Colonies(labels);
-        List<double[][]> colonyFeatures = new ArrayList<>();
+        if (statsService == null || !statsService.isFor(labels, imageDIC)) {
+            statsService = new ColonyStatsService(labels, imageDIC);
+        }
+        return getColonyFeatures(track_ID, tracks, statsService);
+    }
+
+    /**
+     * This method obtains the features of a colony for each frame of a track, from a ColonyStatsService
+     * shared by all the tracks.
+     * @param track_ID ID of the track
+     * @param tracks List of tracks from the tracking CSV file
+     * @param statsService Statistics of the colony labels, computed once per frame
+     */
+    public List<double[][]> getColonyFeatures(String track_ID, List<CSVRecord> tracks, ColonyStatsService statsService) {
+        List<Integer> frames = new ArrayList<>();
         for (CSVRecord track : tracks) {
             if (track.get("TRACK_ID").equals(track_ID)) {
                 int start_frame = (int)Double.parseDouble(track.get("TRACK_START"));
                 int end_frame = (int)Double.parseDouble(track.get("TRACK_STOP"));
-                IJ.log("Track " + track_ID + " from frame " + start_frame + " to " + end_frame);
+                PipelineMetrics.current().log("results.track", "Track " + track_ID + " from frame " + start_frame + " to " + end_frame);
                 for(int i = start_frame; i <= end_frame; i++){
-                    IJ.log("Frame " + i + " out of " + end_frame);
-                    // Get the label statistics for the colony in the current frame
-                    ImageProcessor ip_labels = labels.getImageStack().getProcessor(i+1); // get frame i of labels
-                    ImagePlus label = new ImagePlus("Frame", ip_labels.duplicate()); //get imageplus of frame i
-                    ImageProcessor ip_DIC = imageDIC.getImageStack().getProcessor(i+1); // get frame i of dic
-                    ImagePlus DICframe = new ImagePlus("Frame", ip_DIC.duplicate()); //get imageplus of frame i for dic too
-                    double[][] stats = Colonies.getLabelStats(label, DICframe);
-                    colonyFeatures.add(stats);
+                    frames.add(i+1); // frame i is slice i+1 of the stacks
                 }
             }
         }
+        statsService.prefetch(frames);
+        List<double[][]> colonyFeatures = new ArrayList<>();
+        for (int frame : frames) {
+            // Get the label statistics for the colony in the current frame
+            colonyFeatures.add(statsService.get(frame));
+        }
         return colonyFeatures;
     }
     /** This method obtaines the features of a colony for each frame of a track, from precomputed statistics
@@ -168,7 +308,7 @@ public class Results {
             if (track.get("TRACK_ID").equals(track_ID)) {
                 int start_frame = (int) Double.parseDouble(track.get("TRACK_START"));
                 int end_frame = (int) Double.parseDouble(track.get("TRACK_STOP"));
-                System.out.println("Track " + track_ID + " from frame " + start_frame + " to " + end_frame);
+                PipelineMetrics.current().log("results.track", "Track " + track_ID + " from frame " + start_frame + " to " + end_frame);
                 for (int i = start_frame+1; i <= end_frame; i++) {
                     // Get the label statistics for the colony in the current frame
                     double[][] stats_colonies = stats.get(i+1);
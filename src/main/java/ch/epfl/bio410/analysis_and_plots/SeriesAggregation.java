@@ -0,0 +1,292 @@
+package ch.epfl.bio410.analysis_and_plots;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aggregation stage for per-track time series, applied before anything reaches XChart.
+ * - LTTB (Largest-Triangle-Three-Buckets) downsampling of each series
+ * - mean +/- SD or quantile bands across tracks, per frame
+ * - a cap on the number of series, keeping the top-K tracks for a given ranking
+ * Everything works on primitive arrays (one double[] for x and one for y per series).
+ */
+public class SeriesAggregation {
+
+    /** Kind of band computed across all tracks. */
+    public enum Bands {
+        NONE,
+        MEAN_SD, // mean, mean - SD, mean + SD
+        QUANTILES // median, 25th and 75th percentiles
+    }
+
+    /** How tracks are ranked when only the top-K are kept. */
+    public enum Ranking {
+        FIRST, // first tracks, in the order given
+        LONGEST, // most points
+        HIGHEST_MEAN, // highest mean value
+        HIGHEST_VARIANCE // most variable
+    }
+
+    /**
+     * Options for the aggregation stage. Fields are public, set them directly.
+     * - maxSeries : maximum number of individual tracks drawn (0 for no limit)
+     * - maxPointsPerSeries : LTTB threshold for each drawn track (0 to disable downsampling)
+     * - bands : bands computed across all tracks, including those that are not drawn
+     * - ranking : which tracks are kept when there are more than maxSeries
+     */
+    public static class Options {
+        public int maxSeries = 50;
+        public int maxPointsPerSeries = 500;
+        public Bands bands = Bands.MEAN_SD;
+        public Ranking ranking = Ranking.LONGEST;
+
+        /** @return options that keep every track and every point, without bands (previous behavior) */
+        public static Options all() {
+            Options options = new Options();
+            options.maxSeries = 0;
+            options.maxPointsPerSeries = 0;
+            options.bands = Bands.NONE;
+            options.ranking = Ranking.FIRST;
+            return options;
+        }
+    }
+
+    /**
+     * Statistics across tracks for each frame. All arrays have one entry per frame present in the data.
+     */
+    public static class FrameBands {
+        public final double[] frames;
+        public final int[] count;
+        public final double[] mean;
+        public final double[] sd;
+        public final double[] q25;
+        public final double[] median;
+        public final double[] q75;
+
+        FrameBands(int n) {
+            this.frames = new double[n];
+            this.count = new int[n];
+            this.mean = new double[n];
+            this.sd = new double[n];
+            this.q25 = new double[n];
+            this.median = new double[n];
+            this.q75 = new double[n];
+        }
+    }
+
+    /**
+     * Downsample a series with the Largest-Triangle-Three-Buckets algorithm.
+     * The first and last points are always kept. Series shorter than the threshold are returned as is.
+     * @param x x values, sorted
+     * @param y y values
+     * @param threshold number of points to keep (at least 3 for downsampling to happen)
+     * @return double[2][] with the downsampled x and y values
+     */
+    public static double[][] lttb(double[] x, double[] y, int threshold) {
+        int n = x.length;
+        if (threshold <= 0 || threshold >= n || threshold < 3) {
+            return new double[][]{x, y};
+        }
+        double[] outX = new double[threshold];
+        double[] outY = new double[threshold];
+        double bucketSize = (double) (n - 2) / (threshold - 2);
+        int a = 0; // index of the previously selected point
+        outX[0] = x[0];
+        outY[0] = y[0];
+        for (int i = 0; i < threshold - 2; i++) {
+            // Average point of the next bucket
+            int nextStart = (int) Math.floor((i + 1) * bucketSize) + 1;
+            int nextEnd = Math.min((int) Math.floor((i + 2) * bucketSize) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                avgX += x[j];
+                avgY += y[j];
+            }
+            int nextLength = nextEnd - nextStart;
+            avgX /= nextLength;
+            avgY /= nextLength;
+
+            // Point of the current bucket forming the largest triangle with a and the average
+            int start = (int) Math.floor(i * bucketSize) + 1;
+            int end = (int) Math.floor((i + 1) * bucketSize) + 1;
+            double maxArea = -1;
+            int selected = start;
+            for (int j = start; j < end; j++) {
+                double area = Math.abs((x[a] - avgX) * (y[j] - y[a]) - (x[a] - x[j]) * (avgY - y[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    selected = j;
+                }
+            }
+            outX[i + 1] = x[selected];
+            outY[i + 1] = y[selected];
+            a = selected;
+        }
+        outX[threshold - 1] = x[n - 1];
+        outY[threshold - 1] = y[n - 1];
+        return new double[][]{outX, outY};
+    }
+
+    /**
+     * Compute per-frame statistics across all series.
+     * Points are grouped by their exact x value, so that calibrated time points (POSITION_T) are kept apart.
+     * @param xs x values of each series (frames or times)
+     * @param ys y values of each series
+     * @return the statistics for each frame, sorted by frame
+     */
+    public static FrameBands computeBands(List<double[]> xs, List<double[]> ys) {
+        // Distinct x values, sorted
+        int total = 0;
+        for (double[] x : xs) total += x.length;
+        if (total == 0) {
+            return new FrameBands(0);
+        }
+        double[] frames = new double[total];
+        int p = 0;
+        for (double[] x : xs) {
+            System.arraycopy(x, 0, frames, p, x.length);
+            p += x.length;
+        }
+        Arrays.sort(frames);
+        int nFrames = 0;
+        for (int i = 0; i < total; i++) {
+            if (i == 0 || Double.compare(frames[i], frames[nFrames - 1]) != 0) frames[nFrames++] = frames[i];
+        }
+
+        // Bucket the values per frame (compressed rows : offsets + flat values)
+        int[] offsets = new int[nFrames + 1];
+        for (double[] x : xs) {
+            for (double value : x) offsets[Arrays.binarySearch(frames, 0, nFrames, value) + 1]++;
+        }
+        for (int f = 0; f < nFrames; f++) offsets[f + 1] += offsets[f];
+        double[] values = new double[offsets[nFrames]];
+        int[] fill = Arrays.copyOf(offsets, nFrames);
+        for (int s = 0; s < xs.size(); s++) {
+            double[] x = xs.get(s);
+            double[] y = ys.get(s);
+            for (int i = 0; i < x.length; i++) {
+                values[fill[Arrays.binarySearch(frames, 0, nFrames, x[i])]++] = y[i];
+            }
+        }
+
+        // Statistics for each frame (never empty)
+        FrameBands bands = new FrameBands(nFrames);
+        for (int f = 0; f < nFrames; f++) {
+            int from = offsets[f];
+            int to = offsets[f + 1];
+            int n = to - from;
+            double sum = 0;
+            for (int i = from; i < to; i++) sum += values[i];
+            double mean = sum / n;
+            double squares = 0;
+            for (int i = from; i < to; i++) squares += (values[i] - mean) * (values[i] - mean);
+            Arrays.sort(values, from, to);
+            bands.frames[f] = frames[f];
+            bands.count[f] = n;
+            bands.mean[f] = mean;
+            bands.sd[f] = n > 1 ? Math.sqrt(squares / (n - 1)) : 0;
+            bands.q25[f] = quantile(values, from, to, 0.25);
+            bands.median[f] = quantile(values, from, to, 0.5);
+            bands.q75[f] = quantile(values, from, to, 0.75);
+        }
+        return bands;
+    }
+
+    /**
+     * Linear interpolation quantile of a sorted range.
+     */
+    static double quantile(double[] sorted, int from, int to, double q) {
+        double position = q * (to - from - 1);
+        int lower = (int) Math.floor(position);
+        int upper = (int) Math.ceil(position);
+        double fraction = position - lower;
+        return sorted[from + lower] * (1 - fraction) + sorted[from + upper] * fraction;
+    }
+
+    /**
+     * Select the indices of the top-K series for a ranking.
+     * Indices are returned in their original order, so that colors stay stable between runs.
+     * @param ys y values of each series
+     * @param k number of series to keep (0 or more than the number of series keeps all)
+     * @param ranking ranking of the series
+     * @return indices of the kept series
+     */
+    public static int[] topK(List<double[]> ys, int k, Ranking ranking) {
+        int n = ys.size();
+        if (k <= 0 || k >= n) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) all[i] = i;
+            return all;
+        }
+        if (ranking == Ranking.FIRST) {
+            int[] first = new int[k];
+            for (int i = 0; i < k; i++) first[i] = i;
+            return first;
+        }
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++) scores[i] = score(ys.get(i), ranking);
+
+        // Min-heap of the best k indices (root is the worst of the kept ones)
+        int[] heap = new int[k];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (size < k) {
+                heap[size] = i;
+                siftUp(heap, size++, scores);
+            } else if (scores[i] > scores[heap[0]]) {
+                heap[0] = i;
+                siftDown(heap, size, scores);
+            }
+        }
+        Arrays.sort(heap);
+        return heap;
+    }
+
+    private static double score(double[] y, Ranking ranking) {
+        if (y.length == 0) return Double.NEGATIVE_INFINITY;
+        switch (ranking) {
+            case HIGHEST_MEAN:
+            case HIGHEST_VARIANCE:
+                double sum = 0;
+                for (double value : y) sum += value;
+                double mean = sum / y.length;
+                if (ranking == Ranking.HIGHEST_MEAN) return mean;
+                double squares = 0;
+                for (double value : y) squares += (value - mean) * (value - mean);
+                return squares / y.length;
+            case LONGEST:
+            default:
+                return y.length;
+        }
+    }
+
+    private static void siftUp(int[] heap, int i, double[] scores) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (scores[heap[i]] >= scores[heap[parent]]) break;
+            swap(heap, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, double[] scores) {
+        int i = 0;
+        while (true) {
+            int left = 2 * i + 1;
+            int right = left + 1;
+            int smallest = i;
+            if (left < size && scores[heap[left]] < scores[heap[smallest]]) smallest = left;
+            if (right < size && scores[heap[right]] < scores[heap[smallest]]) smallest = right;
+            if (smallest == i) return;
+            swap(heap, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, int i, int j) {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+}
@@ -0,0 +1,223 @@
+package ch.epfl.bio410.batch;
+
+import ch.epfl.bio410.utils.ConfigRegistry;
+import ch.epfl.bio410.utils.TaskMonitor;
+import ch.epfl.bio410.utils.TrackingConfig;
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Worker processing the jobs of a WorkQueue, one at a time, until none is left : several workers, on one machine
+ * or on machines sharing the queue folder, split a set of images between them.
+ * While a job runs, its lease is renewed in the background ; if the worker dies, the job goes back to the queue
+ * once the lease expires. If a renewal fails (the lease expired, and the job may be running on another worker),
+ * the job is cancelled through its TaskMonitor, so that two workers do not write the same results.
+ * A failed job is retried, up to the maximum number of attempts.
+ * Usage (from the command line, with the plugin and Fiji jars on the class path) :
+ * java -Djava.awt.headless=true -cp "Fiji.app/jars/*:Fiji.app/plugins/*" ch.epfl.bio410.batch.BatchWorker command queue [options]
+ * submit queue image|folder...  add images (the .tif files of a folder) to the queue
+ * work queue                    process jobs until the queue is empty
+ *   --config file|name          colonies and tracking parameters : properties file, or name of a config of the
+ *                               search path (see ConfigRegistry) ; default values otherwise. Changes are used from the next job
+ *   --lease seconds             lease of a claimed job (default 600)
+ *   --attempts n                attempts of a job before it is failed (default 3)
+ *   --worker id                 name of the worker (default : host and process id)
+ *   --progress                  show the progress of the stages on stderr
+ * status queue                  number of pending, claimed, done and failed jobs
+ * index queue                   merge the results of the jobs into queue/index.csv
+ */
+public class BatchWorker {
+    /** Time between two looks at the queue while other workers hold the remaining jobs. */
+    private static final long POLL_MILLIS = 5000;
+
+    /** Work done for a job. */
+    public interface JobRunner {
+        /**
+         * @param image Image of the job
+         * @param monitor Monitor of the job, cancelled if its lease is lost : the stages of the job must check it
+         * @return the result of the job, saved in the index
+         * @throws Exception If the job failed (it is retried)
+         */
+        Map<String, String> run(File image, TaskMonitor monitor) throws Exception;
+    }
+
+    private final WorkQueue queue;
+    private final String worker;
+    private final JobRunner runner;
+    private final long leaseMillis;
+    private TaskMonitor monitor = TaskMonitor.NONE;
+
+    /**
+     * @param queue Queue of the jobs
+     * @param worker Name of the worker, without dots
+     * @param runner Work done for a job, e.g. a HeadlessPipeline on the monitor of the job
+     * @param leaseMillis Lease of the jobs of the queue, renewed three times per lease
+     */
+    public BatchWorker(WorkQueue queue, String worker, JobRunner runner, long leaseMillis) {
+        this.queue = queue;
+        this.worker = worker.replaceAll("[^A-Za-z0-9_-]", "_");
+        this.runner = runner;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Set the monitor receiving the progress of the jobs. Each job runs on its own child monitor (see TaskMonitor.child),
+     * cancelled if its lease is lost.
+     * @param monitor TaskMonitor, e.g. TaskMonitor.console(System.err)
+     */
+    public void setMonitor(TaskMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * This method processes jobs until no job is pending or claimed by another worker.
+     * @return the number of jobs this worker completed
+     * @throws IOException If the queue cannot be read or written
+     * @throws InterruptedException If interrupted while waiting for the jobs of other workers
+     */
+    public int run() throws IOException, InterruptedException {
+        int completed = 0;
+        ScheduledExecutorService renewal = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replisome-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            while (true) {
+                WorkQueue.Job job = queue.claim(worker);
+                if (job == null) {
+                    Map<String, Integer> status = queue.status();
+                    if (status.get("pending") == 0 && status.get("claimed") == 0) break;
+                    // Jobs of other workers may come back if their lease expires
+                    Thread.sleep(Math.min(POLL_MILLIS, leaseMillis));
+                    continue;
+                }
+                IJ.log("[" + worker + "] " + job.id + " : attempt " + job.attempt + " on " + job.image.getPath());
+                long period = Math.max(1, leaseMillis / 3);
+                TaskMonitor jobMonitor = monitor.child();
+                AtomicBoolean leaseLost = new AtomicBoolean();
+                ScheduledFuture<?> renewing = renewal.scheduleAtFixedRate(() -> {
+                    if (!job.renew() && leaseLost.compareAndSet(false, true)) {
+                        // The job may already run on another worker : stop writing its results
+                        IJ.log("[" + worker + "] " + job.id + " : lease lost, cancelling the job");
+                        jobMonitor.cancel();
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+                Map<String, String> result = null;
+                Throwable error = null;
+                try {
+                    result = runner.run(job.image, jobMonitor);
+                } catch (Throwable e) {
+                    error = e;
+                } finally {
+                    renewing.cancel(false);
+                }
+                if (leaseLost.get()) {
+                    // Neither done nor failed by this worker : the job is no longer its own
+                    IJ.log("[" + worker + "] " + job.id + " : lease lost, attempt abandoned");
+                } else if (error == null) {
+                    if (queue.complete(job, result)) {
+                        completed++;
+                        IJ.log("[" + worker + "] " + job.id + " : done");
+                    } else {
+                        IJ.log("[" + worker + "] " + job.id + " : lease lost, result discarded");
+                    }
+                } else {
+                    IJ.log("[" + worker + "] " + job.id + " : attempt " + job.attempt + " failed : " + error);
+                    queue.fail(job, error);
+                }
+            }
+        } finally {
+            renewal.shutdownNow();
+        }
+        queue.writeIndex();
+        return completed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) usage();
+        String command = args[0];
+        File folder = new File(args[1]);
+        long leaseMillis = WorkQueue.DEFAULT_LEASE_MILLIS;
+        int attempts = WorkQueue.DEFAULT_MAX_ATTEMPTS;
+        String worker = ManagementFactory.getRuntimeMXBean().getName();
+        String configName = null;
+        TaskMonitor monitor = TaskMonitor.NONE;
+        int i = 2;
+        if (command.equals("work")) {
+            for (; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--config": configName = args[++i]; break;
+                    case "--lease": leaseMillis = Long.parseLong(args[++i]) * 1000; break;
+                    case "--attempts": attempts = Integer.parseInt(args[++i]); break;
+                    case "--worker": worker = args[++i]; break;
+                    case "--progress": monitor = TaskMonitor.console(System.err); break;
+                    default: usage();
+                }
+            }
+        }
+        WorkQueue queue = new WorkQueue(folder, leaseMillis, attempts);
+        switch (command) {
+            case "submit":
+                for (; i < args.length; i++) {
+                    File input = new File(args[i]);
+                    File[] images = input.isDirectory() ? input.listFiles((dir, name) -> name.endsWith(".tif")) : new File[]{input};
+                    if (images == null) continue;
+                    Arrays.sort(images);
+                    for (File image : images) {
+                        String id = queue.submit(image);
+                        System.out.println(id != null ? "Submitted " + id : "Already queued : " + image.getPath());
+                    }
+                }
+                break;
+            case "work":
+                ConfigRegistry registry = ConfigRegistry.shared();
+                String config = configName == null ? null
+                        : new File(configName).isFile() ? registry.register(new File(configName)) : configName;
+                if (config != null) {
+                    // Fails before the first job if the config is not valid
+                    registry.get(config).printFullConfig();
+                    String workerName = worker;
+                    registry.watch(changed -> {
+                        if (changed.equals(config)) IJ.log("[" + workerName + "] Config " + changed + " changed, used from the next job");
+                    });
+                }
+                JobRunner runner = (image, jobMonitor) -> {
+                    // Parsed again only if the config changed since the last job
+                    HeadlessPipeline pipeline = new HeadlessPipeline(config == null ? new TrackingConfig() : registry.get(config));
+                    pipeline.setMonitor(jobMonitor);
+                    return pipeline.run(image);
+                };
+                BatchWorker batchWorker = new BatchWorker(queue, worker, runner, leaseMillis);
+                batchWorker.setMonitor(monitor);
+                int completed = batchWorker.run();
+                System.out.println("Completed " + completed + " job(s), index : " + new File(folder, "index.csv").getPath());
+                break;
+            case "status":
+                System.out.println(queue.status());
+                break;
+            case "index":
+                System.out.println("Index saved to " + queue.writeIndex().getPath());
+                break;
+            default:
+                usage();
+        }
+        // TrackMate and ImageJ may leave non-daemon threads behind
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage : BatchWorker submit|work|status|index queue [images...] [--config file|name] [--lease seconds] [--attempts n] [--worker id] [--progress]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,173 @@
+package ch.epfl.bio410.batch;
+
+import ch.epfl.bio410.analysis_and_plots.Kinematics;
+import ch.epfl.bio410.analysis_and_plots.Results;
+import ch.epfl.bio410.segmentation.Colonies;
+import ch.epfl.bio410.segmentation.LabelSource;
+import ch.epfl.bio410.segmentation.Segmentation;
+import ch.epfl.bio410.tracking.Tracking;
+import ch.epfl.bio410.utils.AsyncIO;
+import ch.epfl.bio410.utils.PipelineMetrics;
+import ch.epfl.bio410.utils.StageScheduler;
+import ch.epfl.bio410.utils.TaskMonitor;
+import ch.epfl.bio410.utils.TrackingConfig;
+import ch.epfl.bio410.utils.utils;
+import fiji.plugin.trackmate.Model;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.ChannelSplitter;
+import ij.process.AutoThresholder;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The pipeline of Replisome_Analysis on one image, without display or dialogs :
+ * colonies (DIC channel) and tracking (GFP channel) at the same time (see StageScheduler), then the assignment
+ * of the spots and tracks to the colonies and the kinematics of the tracks.
+ * The results are saved as by the plugin, in the results folder next to the image, with the run metrics.
+ * Usage :
+ * Map<String, String> summary = new HeadlessPipeline(new TrackingConfig()).run(new File("DATA/Merged-1.tif"));
+ */
+public class HeadlessPipeline {
+    private final TrackingConfig config;
+    private TaskMonitor monitor = TaskMonitor.NONE;
+
+    /**
+     * @param config Colonies and tracking parameters
+     */
+    public HeadlessPipeline(TrackingConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Set the monitor receiving the progress of the colonies and tracking stages.
+     * @param monitor TaskMonitor, e.g. TaskMonitor.console(System.err)
+     */
+    public void setMonitor(TaskMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * This method runs the pipeline on an image.
+     * @param imageFile Image, with the DIC channel first and the GFP channel second
+     * @return a summary of the run : results folder, number of frames, spots and tracks, wall time, and whether colonies and tracking ran at the same time (concurrent)
+     * @throws Exception If the image cannot be read, or a stage fails
+     */
+    public Map<String, String> run(File imageFile) throws Exception {
+        long start = System.nanoTime();
+        ImagePlus imp = IJ.openImage(imageFile.getPath());
+        if (imp == null) throw new IOException("Cannot open " + imageFile.getPath());
+        // Closed whether the job succeeds or not : a worker runs many jobs
+        try {
+            return run(imageFile, imp, start);
+        } finally {
+            imp.close();
+        }
+    }
+
+    private Map<String, String> run(File imageFile, ImagePlus imp, long start) throws Exception {
+        ImagePlus[] channels = ChannelSplitter.split(imp);
+        if (channels.length < 2) throw new IOException(imageFile.getName() + " has " + channels.length + " channel(s) instead of 2");
+        ImagePlus imageDIC = channels[0];
+        ImagePlus imageGFP = channels[1];
+
+        String name = imageFile.getName().contains(".") ? imageFile.getName().substring(0, imageFile.getName().lastIndexOf('.')) : imageFile.getName();
+        String path = imageFile.getAbsoluteFile().getParent();
+        File resultsFolder = new File(path, "results");
+        if (!resultsFolder.exists() && !resultsFolder.mkdirs() && !resultsFolder.isDirectory()) {
+            throw new IOException("Cannot create " + resultsFolder);
+        }
+        PipelineMetrics metrics = PipelineMetrics.startRun(name);
+
+        // A failed stage cancels the other ones through the monitor of this run, not the one shared by the jobs
+        TaskMonitor runMonitor = monitor.child();
+        Colonies colonies = new Colonies(imageDIC);
+        colonies.setMonitor(runMonitor);
+        colonies.setPreprocessing(Segmentation.MEDIAN_RADIUS, AutoThresholder.Method.Otsu);
+        Tracking tracker = new Tracking();
+        tracker.setConfig(config);
+        tracker.setMonitor(runMonitor);
+        Model[] model = {null};
+        File spotsFile = new File(resultsFolder, "spots_" + name + ".csv");
+        File tracksFile = new File(resultsFolder, "tracks_" + name + ".csv");
+
+        StageScheduler scheduler = new StageScheduler();
+        scheduler.setMonitor(runMonitor);
+        scheduler.add("colonies", () -> {
+            try (PipelineMetrics.Stage stage = metrics.stage("colonies")) {
+                colonies.runColoniesComputation(config.colony_min_area);
+                stage.count("colonies.frames", colonies.colonyLabels.getStackSize());
+            }
+            runMonitor.checkCancelled("Colonies");
+            colonies.saveResults(resultsFolder.getPath(), name);
+        }).outputs("colonyLabels").gpu().memory((long) (3 * imageDIC.getSizeInBytes())); // one thread, as in Replisome_Analysis
+        scheduler.add("tracking", () -> {
+            try (PipelineMetrics.Stage stage = metrics.stage("tracking")) {
+                model[0] = tracker.runTracking(imageGFP, false);
+                stage.count("tracking.spots", model[0].getSpots().getNSpots(true));
+                stage.count("tracking.tracks", model[0].getTrackModel().nTracks(true));
+            }
+            runMonitor.checkCancelled("Tracking");
+            try (PipelineMetrics.Stage stage = metrics.stage("export")) {
+                tracker.saveTracksToCSV(model[0], tracksFile);
+                stage.count("export.tracks", model[0].getTrackModel().nTracks(true));
+            }
+        }).outputs("tracks").threads(Runtime.getRuntime().availableProcessors() - 1).memory((long) (2 * imageGFP.getSizeInBytes()));
+        // The steps without a monitor of their own check it before they start : a cancelled job writes no more results
+        // The spots are exported with the label of their colony
+        scheduler.add("spots", () -> {
+            runMonitor.checkCancelled("Spots");
+            try (PipelineMetrics.Stage stage = metrics.stage("spots")) {
+                Results.assignSpotsToColonies(model[0], LabelSource.of(colonies.colonyLabels),
+                        imageGFP.getCalibration().pixelWidth, imageGFP.getCalibration().pixelHeight);
+                tracker.saveSpotsToCSV(model[0], spotsFile);
+                stage.count("spots.exported", model[0].getSpots().getNSpots(true));
+            }
+        }).inputs("colonyLabels", "tracks").outputs("spots");
+        scheduler.add("analysis", () -> {
+            // The tracks and spots are read back from their CSV, written in the background (see AsyncIO)
+            AsyncIO.shared().flush();
+            runMonitor.checkCancelled("Analysis");
+            try (PipelineMetrics.Stage stage = metrics.stage("assignment")) {
+                List<CSVRecord> tracks = utils.readCsv(tracksFile, 3);
+                Results.assignTracksToColonies(tracks, colonies.colonyLabels, name, path);
+                stage.count("assignment.tracks", tracks.size());
+            }
+            runMonitor.checkCancelled("Kinematics");
+            try (PipelineMetrics.Stage stage = metrics.stage("kinematics")) {
+                Kinematics kinematics = Kinematics.fromSpots(utils.readCsv(spotsFile, 3));
+                double[][] kinematicsTable = kinematics.computeFeatures();
+                stage.count("kinematics.tracks", kinematicsTable.length);
+                Kinematics.saveFeaturesToCSV(kinematicsTable, new File(resultsFolder, "track_kinematics_" + name + ".csv"));
+            }
+        }).inputs("colonyLabels", "tracks", "spots");
+        try {
+            scheduler.run();
+        } catch (Exception e) {
+            // Do not leave the writes of a failed job to the next one
+            try {
+                AsyncIO.shared().flush();
+            } catch (IOException writeError) {
+                e.addSuppressed(writeError);
+            }
+            throw e;
+        }
+        AsyncIO.shared().flush();
+        metrics.saveReport(resultsFolder.getPath(), name);
+
+        Map<String, String> summary = new TreeMap<>();
+        summary.put("status", "done");
+        summary.put("results", resultsFolder.getPath());
+        summary.put("frames", Integer.toString(imageDIC.getStackSize()));
+        summary.put("spots", Integer.toString(model[0].getSpots().getNSpots(true)));
+        summary.put("tracks", Integer.toString(model[0].getTrackModel().nTracks(true)));
+        summary.put("concurrent", Boolean.toString(metrics.checkOverlapped("colonies", "tracking")));
+        summary.put("wall_ms", Long.toString((System.nanoTime() - start) / 1000000));
+        return summary;
+    }
+}
@@ -0,0 +1,336 @@
+package ch.epfl.bio410.batch;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Queue of images to analyze, in a folder shared by the workers (local, or mounted on several machines),
+ * without any other service : the state of a job is the folder its file is in, and it changes by atomic renames,
+ * so that a job is claimed by one worker only.
+ * Layout of the queue folder :
+ * - pending/{job}.{attempt}.job : jobs waiting for a worker (a properties file with the image path)
+ * - claimed/{job}.{attempt}.{worker}.job : jobs being processed ; the worker touches the file to renew its lease
+ * - done/{job}.job and done/{job}.result : finished jobs, with their result (see BatchWorker)
+ * - failed/{job}.job and failed/{job}.result : jobs that failed maxAttempts times, with the last error
+ * - index.csv : all the finished and failed jobs, written by writeIndex
+ * A claimed job whose lease expired (the worker died or lost the shared folder) goes back to pending,
+ * for its next attempt, the next time a worker claims a job.
+ * Usage :
+ * WorkQueue queue = new WorkQueue(new File("/shared/queue"), 10 * 60 * 1000, 3);
+ * queue.submit(new File("/shared/DATA/Merged-1.tif"));
+ * WorkQueue.Job job = queue.claim("node1-1234"); // null if no job is pending
+ * ... job.renew() regularly ...
+ * queue.complete(job, result);
+ */
+public class WorkQueue {
+    /** Lease of a claimed job, in milliseconds, unless given. */
+    public static final long DEFAULT_LEASE_MILLIS = 10 * 60 * 1000;
+    /** Number of attempts of a job before it is failed, unless given. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final String JOB = ".job";
+    private static final String RESULT = ".result";
+    private static final String PROCESS = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9]", "_");
+
+    private final File pending;
+    private final File claimed;
+    private final File done;
+    private final File failed;
+    private final File folder;
+    private final long leaseMillis;
+    private final int maxAttempts;
+
+    /**
+     * A job claimed by a worker.
+     */
+    public class Job {
+        /** Identifier of the job, from the image name. */
+        public final String id;
+        /** Attempt, from 1. */
+        public final int attempt;
+        /** Image to analyze. */
+        public final File image;
+        private final File file;
+
+        private Job(String id, int attempt, File image, File file) {
+            this.id = id;
+            this.attempt = attempt;
+            this.image = image;
+            this.file = file;
+        }
+
+        /**
+         * Renew the lease of the job.
+         * @return false if the lease was lost (the job went back to pending, or to another worker)
+         */
+        public boolean renew() {
+            return file.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @param folder Queue folder, created if needed
+     * @param leaseMillis Lease of a claimed job : a job not renewed for that long goes back to pending
+     * @param maxAttempts Number of attempts of a job before it is failed
+     * @throws IOException If the folders cannot be created
+     */
+    public WorkQueue(File folder, long leaseMillis, int maxAttempts) throws IOException {
+        this.folder = folder;
+        this.pending = createFolder(new File(folder, "pending"));
+        this.claimed = createFolder(new File(folder, "claimed"));
+        this.done = createFolder(new File(folder, "done"));
+        this.failed = createFolder(new File(folder, "failed"));
+        this.leaseMillis = leaseMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * This method adds an image to the queue, unless it is already in it (in any state).
+     * @param image Image to analyze
+     * @return the identifier of the job, or null if the image was already in the queue
+     * @throws IOException If the job cannot be written
+     */
+    public String submit(File image) throws IOException {
+        String path = image.getAbsolutePath();
+        String name = image.getName().replaceAll("[^A-Za-z0-9_-]", "_");
+        // The hash of the path tells apart images with the same name in different folders
+        String id = name + "-" + String.format("%08x", path.hashCode());
+        if (!find(id).isEmpty()) return null;
+        Properties job = new Properties();
+        job.setProperty("image", path);
+        writeAtomically(job, new File(pending, id + ".1" + JOB));
+        return id;
+    }
+
+    /**
+     * This method claims a pending job for a worker, after putting back the jobs whose lease expired.
+     * @param worker Identifier of the worker (without dots), e.g. host name and process id
+     * @return the job, or null if no job is pending
+     * @throws IOException If the queue cannot be read
+     */
+    public Job claim(String worker) throws IOException {
+        reclaimExpired();
+        File[] jobs = pending.listFiles((dir, name) -> name.endsWith(JOB));
+        if (jobs == null) return null;
+        Arrays.sort(jobs);
+        for (File file : jobs) {
+            String[] parts = parse(file.getName(), 2);
+            File target = new File(claimed, parts[0] + "." + parts[1] + "." + worker + JOB);
+            if (!move(file, target)) continue; // claimed by another worker in the meantime
+            target.setLastModified(System.currentTimeMillis());
+            Properties properties = read(target);
+            return new Job(parts[0], Integer.parseInt(parts[1]), new File(properties.getProperty("image")), target);
+        }
+        return null;
+    }
+
+    /**
+     * This method records a finished job.
+     * @param job Job claimed by this worker
+     * @param result Result of the job (e.g. status, results folder, counts), saved in the index
+     * @return false if the lease of the job was lost : the result is then discarded, another attempt will run
+     * @throws IOException If the result cannot be written
+     */
+    public boolean complete(Job job, Map<String, String> result) throws IOException {
+        return finish(job, done, result);
+    }
+
+    /**
+     * This method records a failed attempt : the job goes back to pending for the next attempt,
+     * or to failed after maxAttempts attempts.
+     * @param job Job claimed by this worker
+     * @param error Error of the attempt
+     * @return false if the lease of the job was lost
+     * @throws IOException If the result cannot be written
+     */
+    public boolean fail(Job job, Throwable error) throws IOException {
+        if (job.attempt < maxAttempts) {
+            return move(job.file, new File(pending, job.id + "." + (job.attempt + 1) + JOB));
+        }
+        Map<String, String> result = new TreeMap<>();
+        result.put("status", "failed");
+        result.put("error", error.getClass().getSimpleName() + (error.getMessage() != null ? " : " + error.getMessage() : ""));
+        return finish(job, failed, result);
+    }
+
+    private boolean finish(Job job, File state, Map<String, String> result) throws IOException {
+        if (!job.file.exists()) return false;
+        Properties properties = new Properties();
+        properties.putAll(result);
+        properties.setProperty("image", job.image.getPath());
+        properties.setProperty("attempts", Integer.toString(job.attempt));
+        properties.setProperty("worker", parse(job.file.getName(), 3)[2]);
+        File resultFile = new File(state, job.id + RESULT);
+        writeAtomically(properties, resultFile);
+        if (!move(job.file, new File(state, job.id + JOB))) {
+            Files.deleteIfExists(resultFile.toPath());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method puts back the claimed jobs whose lease expired : to pending for their next attempt,
+     * or to failed after maxAttempts attempts.
+     * @return the number of jobs put back
+     * @throws IOException If a job cannot be moved
+     */
+    public int reclaimExpired() throws IOException {
+        File[] jobs = claimed.listFiles((dir, name) -> name.endsWith(JOB));
+        if (jobs == null) return 0;
+        int reclaimed = 0;
+        long now = System.currentTimeMillis();
+        for (File file : jobs) {
+            long modified = file.lastModified();
+            if (modified == 0 || now - modified < leaseMillis) continue;
+            String[] parts = parse(file.getName(), 3);
+            int attempt = Integer.parseInt(parts[1]);
+            if (attempt < maxAttempts) {
+                if (move(file, new File(pending, parts[0] + "." + (attempt + 1) + JOB))) reclaimed++;
+            } else {
+                // Claim it to fail it, so that only one worker does
+                File failing = new File(claimed, parts[0] + "." + parts[1] + ".reclaimed" + JOB);
+                if (!move(file, failing)) continue;
+                Job job = new Job(parts[0], attempt, new File(read(failing).getProperty("image")), failing);
+                if (finish(job, failed, leaseExpired())) reclaimed++;
+            }
+        }
+        return reclaimed;
+    }
+
+    private static Map<String, String> leaseExpired() {
+        Map<String, String> result = new TreeMap<>();
+        result.put("status", "failed");
+        result.put("error", "Lease expired");
+        return result;
+    }
+
+    /**
+     * @return the number of jobs in each state : pending, claimed, done, failed
+     */
+    public Map<String, Integer> status() {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (File state : new File[]{pending, claimed, done, failed}) {
+            File[] jobs = state.listFiles((dir, name) -> name.endsWith(JOB));
+            counts.put(state.getName(), jobs == null ? 0 : jobs.length);
+        }
+        return counts;
+    }
+
+    /**
+     * This method merges the results of the finished and failed jobs into index.csv, in the queue folder,
+     * one row per job, with the union of the result keys as columns.
+     * @return the index file
+     * @throws IOException If the index cannot be written
+     */
+    public File writeIndex() throws IOException {
+        Map<String, Properties> results = new TreeMap<>();
+        List<String> columns = new ArrayList<>(Arrays.asList("job", "status", "image", "attempts", "worker"));
+        for (File state : new File[]{done, failed}) {
+            File[] files = state.listFiles((dir, name) -> name.endsWith(RESULT));
+            if (files == null) continue;
+            for (File file : files) {
+                Properties result = read(file);
+                if (!result.containsKey("status")) result.setProperty("status", state.getName());
+                results.put(file.getName().substring(0, file.getName().length() - RESULT.length()), result);
+                for (String key : new TreeSet<>(result.stringPropertyNames())) {
+                    if (!columns.contains(key)) columns.add(key);
+                }
+            }
+        }
+        File index = new File(folder, "index.csv");
+        File temporary = temporary(index);
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8));
+             CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+            printer.printRecord(columns);
+            for (Map.Entry<String, Properties> entry : results.entrySet()) {
+                List<String> row = new ArrayList<>();
+                row.add(entry.getKey());
+                for (String column : columns.subList(1, columns.size())) row.add(entry.getValue().getProperty(column, ""));
+                printer.printRecord(row);
+            }
+        }
+        Files.move(temporary.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return index;
+    }
+
+    /** Files of a job in any state. */
+    private List<File> find(String id) {
+        List<File> found = new ArrayList<>();
+        for (File state : new File[]{pending, claimed, done, failed}) {
+            File[] files = state.listFiles((dir, name) -> name.startsWith(id + "."));
+            if (files != null) found.addAll(Arrays.asList(files));
+        }
+        return found;
+    }
+
+    /**
+     * Rename a file, atomically : fails if the source is gone (another worker moved it) or the target exists.
+     * @return whether this call moved the file
+     */
+    private static boolean move(File source, File target) throws IOException {
+        Path targetPath = target.toPath();
+        try {
+            if (Files.exists(targetPath)) return false;
+            Files.move(source.toPath(), targetPath, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (NoSuchFileException | FileAlreadyExistsException e) {
+            return false;
+        } catch (AtomicMoveNotSupportedException e) {
+            throw new IOException("The queue folder must support atomic renames : " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeAtomically(Properties properties, File file) throws IOException {
+        File temporary = temporary(file);
+        try (Writer writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Properties read(File file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    /** Split {job}.{attempt}[.{worker}].job into its parts. */
+    private static String[] parse(String fileName, int nParts) {
+        String[] parts = fileName.substring(0, fileName.length() - JOB.length()).split("\\.");
+        if (parts.length != nParts) throw new IllegalArgumentException("Not a job file : " + fileName);
+        return parts;
+    }
+
+    private static File createFolder(File folder) throws IOException {
+        if (!folder.exists() && !folder.mkdirs() && !folder.isDirectory()) throw new IOException("Cannot create " + folder);
+        return folder;
+    }
+
+    /** Temporary file next to a file, unique to this process and thread, renamed to the file once written. */
+    private static File temporary(File file) {
+        return new File(file.getPath() + "." + PROCESS + "_" + Thread.currentThread().getId() + ".tmp");
+    }
+}
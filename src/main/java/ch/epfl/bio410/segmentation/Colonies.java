@@ -3,16 +3,29 @@ package ch.epfl.bio410.segmentation;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.process.AutoThresholder;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.LUT;
+import ij.process.ShortProcessor;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import ch.epfl.bio410.utils.AsyncIO;
+import ch.epfl.bio410.utils.FrameCache;
+import ch.epfl.bio410.utils.PipelineMetrics;
+import ch.epfl.bio410.utils.TaskMonitor;
 import ch.epfl.bio410.utils.utils;
 
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileSystems;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 public class Colonies {
     /** The goal of this class is to group clusters of bacteria into colonies.
@@ -28,6 +41,17 @@ public class Colonies {
     public Map<Integer, double[][]> colonyStats = new HashMap<>(); // holds the statistics for each frame
     private CLIJ2 clij2; // the CLIJ2 instance used for image processing
     private final LUT glasbeyLUT = utils.getGlasbeyLUT();
+    private TaskMonitor monitor = TaskMonitor.NONE; // progress and cancellation, checked once per frame
+    private int medianRadius = -1; // if >= 0, imageDIC is the raw channel, segmented frame by frame (see setPreprocessing)
+    private AutoThresholder.Method thresholdMethod;
+    private boolean voronoiOnGpu = false; // Voronoi diagrams with CLIJ2 instead of DistanceTransform
+    private boolean overlapTracking = false; // labels carried over by overlap instead of the Voronoi diagram
+    private String[] statistics = RegionStats.DEFAULT_FEATURES; // columns of this.colonyStats (see setStatistics)
+    private LabelStore.Writer labelStore; // compressed colony labels, encoded during the run (see saveResults)
+    private LabelStore.Writer voronoiStore; // compressed Voronoi diagrams, if kept
+    private ImageStack maskStack; // masks of the raw channel, if segmented here
+    private double minLabelArea = -1; // minimum area of the last run, saved with its partial results
+    public ImagePlus masks; // masks of the raw channel, if segmented here (see setPreprocessing)
     public final Map<String, Integer> columnMapping = new HashMap<>();
 
     /**
@@ -42,6 +66,58 @@ public class Colonies {
         setColumnMapping();
     }
 
+    /**
+     * Set the monitor receiving the progress of runColoniesComputation, and checked for cancellation once per frame.
+     * @param monitor TaskMonitor, e.g. TaskMonitor.imageJ()
+     */
+    public void setMonitor(TaskMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Choose how the Voronoi diagram of each frame is computed : with extendLabelingViaVoronoi from CLIJ2,
+     * or on the CPU with the exact Euclidean feature transform of DistanceTransform (default).
+     * @param onGpu Whether to use CLIJ2
+     */
+    public void setVoronoiOnGpu(boolean onGpu) {
+        this.voronoiOnGpu = onGpu;
+    }
+
+    /**
+     * Choose the statistics computed for each colony in each frame (this.colonyStats).
+     * They are computed on the CPU, in the layout of CLIJ2 statisticsOfBackgroundAndLabelledPixels (see RegionStats),
+     * the other columns being left at 0. By default, only IDENTIFIER and PIXEL_COUNT, the columns used by the pipeline.
+     * @param features Names of the columns (see getColumnMapping())
+     */
+    public void setStatistics(String... features) {
+        new RegionStats(features); // check the names before the run
+        this.statistics = features;
+    }
+
+    /**
+     * Choose how the colony labels are carried over from one frame to the next :
+     * from the Voronoi diagram of the previous frame (default), or by overlap of the connected components of the frame
+     * with the colonies of the previous frame (see ColonyOverlapTracker). The overlap mode needs no Voronoi diagram,
+     * and gives new labels to colonies entering the field.
+     * @param enabled Whether to match colonies by overlap
+     */
+    public void setOverlapTracking(boolean enabled) {
+        this.overlapTracking = enabled;
+    }
+
+    /**
+     * Take the raw DIC channel instead of a segmented one : in runColoniesComputation, each frame goes through
+     * the fused FramePreprocessor (median filter, threshold, connected components, area filter) just before
+     * being assigned to colonies, instead of full-stack passes of utils.remove_noise and Segmentation.segment.
+     * The masks are available in this.masks afterwards.
+     * @param medianRadius Radius of the median filter (Segmentation.MEDIAN_RADIUS as utils.remove_noise), 0 for none
+     * @param method Threshold method (Otsu as Segmentation.segment)
+     */
+    public void setPreprocessing(int medianRadius, AutoThresholder.Method method) {
+        this.medianRadius = medianRadius;
+        this.thresholdMethod = method;
+    }
+
 
 
     /**
@@ -153,6 +229,42 @@ public class Colonies {
      * @param keepVoronoi boolean to keep the Voronoi diagrams
      */
     public void runColoniesComputation(double minLabelArea, boolean keepVoronoi) {
+        runColoniesComputation(minLabelArea, keepVoronoi, null);
+    }
+
+    /**
+     * This method finds colony in a thresholded DIC channel, resuming from the labels of a cancelled run.
+     * The frames of partialLabels are kept as they are (their statistics are computed again),
+     * and the computation continues from the Voronoi diagram of the last of them.
+     * If the monitor is cancelled, the method stops before the next frame and throws a CancellationException :
+     * this.colonyLabels and this.colonyStats then hold the completed frames (see savePartialResults).
+     * @param minLabelArea minimum area of a label to be considered a colony
+     * @param keepVoronoi boolean to keep the Voronoi diagrams
+     * @param partialLabels colony labels of the first frames, from a cancelled run, or null to start from the first frame
+     *                      (see loadPartialResults, which also checks the parameters they were computed with)
+     * @throws IllegalArgumentException If partialLabels do not match the DIC channel (size, bit depth or number of frames)
+     */
+    public void runColoniesComputation(double minLabelArea, boolean keepVoronoi, ImagePlus partialLabels) {
+        if (partialLabels != null) {
+            String mismatch = checkPartialLabels(partialLabels);
+            if (mismatch != null) throw new IllegalArgumentException("Cannot resume from the partial colony labels : " + mismatch);
+        }
+        this.minLabelArea = minLabelArea;
+        closeStores(); // of a previous run that was not saved
+        boolean completed = false;
+        try {
+            labelColonies(minLabelArea, keepVoronoi, partialLabels);
+            completed = true;
+        } finally {
+            // On cancellation or failure, the frames encoded so far are dropped (saveResults closes them otherwise)
+            if (!completed) closeStores();
+        }
+    }
+
+    /**
+     * Body of runColoniesComputation, once partialLabels are checked.
+     */
+    private void labelColonies(double minLabelArea, boolean keepVoronoi, ImagePlus partialLabels) {
         //////////////////////////////////////////////////
         // Improved method :
         // - Get conn comp labels for the first frame
@@ -166,6 +278,13 @@ public class Colonies {
         // Create a stack to hold the processed frames
         ImageStack processedStack = new ImageStack(this.imageDIC.getWidth(), this.imageDIC.getHeight());
         ImagePlus prevFrameVoronoi = null; // used to store the Voronoi diagram of the previous frame
+        ImageProcessor prevFrameLabels = null; // used to store the labels of the previous frame (overlap tracking)
+        ColonyOverlapTracker tracker = overlapTracking ? new ColonyOverlapTracker(ColonyOverlapTracker.DEFAULT_MIN_IOU) : null;
+        RegionStats regionStats = new RegionStats(statistics); // statistics kept for each frame
+        RegionStats areaStats = new RegionStats(RegionStats.DEFAULT_FEATURES); // areas of the connected components, for filtering
+        // Frames are compressed in the background as they are labelled, for saveResults
+        this.labelStore = new LabelStore.Writer(this.imageDIC.getWidth(), this.imageDIC.getHeight());
+        this.voronoiStore = keepVoronoi ? new LabelStore.Writer(this.imageDIC.getWidth(), this.imageDIC.getHeight()) : null;
         if (keepVoronoi) {
             this.voronoiDiagramStack = new ImageStack(this.imageDIC.getWidth(), this.imageDIC.getHeight());
         }
@@ -173,11 +292,57 @@ public class Colonies {
         // ImageStack regionDiagramStack = new ImageStack(this.imageDIC.getWidth(), this.imageDIC.getHeight());
         IJ.log("Computing labels for bacteria");
         IJ.log("Processing " + this.imageDIC.getStackSize() + " frames");
+        PipelineMetrics metrics = PipelineMetrics.current();
+        int nFrames = this.imageDIC.getStackSize();
+        int firstFrame = 1;
+        FramePreprocessor preprocessor = null;
+        if (medianRadius >= 0) {
+            preprocessor = new FramePreprocessor(medianRadius, thresholdMethod, true, minLabelArea);
+            this.maskStack = new ImageStack(this.imageDIC.getWidth(), this.imageDIC.getHeight());
+        }
+        if (partialLabels != null) {
+            // Resume : keep the completed frames, and start again from the Voronoi diagram of the last one
+            int resumed = partialLabels.getStackSize();
+            IJ.log("Resuming from frame " + (resumed + 1) + " with the labels of a previous run");
+            for (int i = 1; i <= resumed; i++) {
+                ImageProcessor labels = partialLabels.getStack().getProcessor(i);
+                if (tracker != null) {
+                    // Same type as the frames labelled by the tracker, whose new colonies must not reuse these labels
+                    if (!(labels instanceof ShortProcessor)) labels = labels.convertToShort(false);
+                    tracker.reserveLabels(labels);
+                }
+                ImagePlus labelsImagePlus = new ImagePlus("Labels", labels);
+                ImageProcessor frame = FrameCache.getProcessor(this.imageDIC, "dic", i);
+                if (preprocessor != null) {
+                    frame = new ByteProcessor(frame.getWidth(), frame.getHeight(),
+                            Segmentation.segmentFrame(frame, medianRadius, thresholdMethod, true, null));
+                    this.maskStack.addSlice(frame);
+                }
+                this.colonyStats.put(i, regionStats.compute(labels, frame));
+                if (keepVoronoi || (i == resumed && tracker == null)) {
+                    prevFrameVoronoi = voronoiDiagram(labelsImagePlus);
+                    if (keepVoronoi) {
+                        this.voronoiDiagramStack.addSlice(prevFrameVoronoi.getProcessor());
+                        this.voronoiStore.add(prevFrameVoronoi.getProcessor());
+                    }
+                }
+                processedStack.addSlice(labels);
+                this.labelStore.add(labels);
+                prevFrameLabels = labels;
+                monitor.progress("Colonies", i, nFrames);
+            }
+            firstFrame = resumed + 1;
+        }
         // Loop through each slice in the stack
-        for (int i = 1; i <= this.imageDIC.getStackSize(); i++) {
-            // Extract and copy the slice using substack
-            ImageProcessor frame = this.imageDIC.getStack().getProcessor(i);
-            ImagePlus slice = new ImagePlus("Slice", frame.duplicate());
+        for (int i = firstFrame; i <= nFrames; i++) {
+            if (monitor.isCancelled()) {
+                // Keep the completed frames, consistent with each other, so that the run can be resumed
+                setResults(processedStack, keepVoronoi);
+                throw new CancellationException("Colonies cancelled after frame " + (i - 1) + "/" + nFrames);
+            }
+            long frameStart = System.nanoTime();
+            ImageProcessor frame = FrameCache.getProcessor(this.imageDIC, "dic", i);
+            ImagePlus slice;
 
             // Process the first frame with connected components labeling
             // Subsequent frames are processed with Voronoi diagram assignment
@@ -188,54 +353,104 @@ public class Colonies {
             // from colonies, and will then evade the filtering as they will be considered part of a colony.
             // Therefore, we need to get the CC labels for the current frame, and filter the labels based on that.
             // It's a large slowdown, but it's the only way to ensure that we don't assign small labels to colonies.
-            destinationImagePlus = connectedComponentsLabeling(slice);
-            double[][] connCompStats = getLabelStats(destinationImagePlus, slice); // these stats are only used for filtering
-            // Filter labels by area
-            destinationImagePlus = filterLabelsByArea(destinationImagePlus, minLabelArea, connCompStats);
+            if (preprocessor != null) {
+                // Raw frame : median filter, threshold, connected components and area filter in one go
+                FramePreprocessor.Frame preprocessed = preprocessor.process(frame);
+                this.maskStack.addSlice(preprocessed.mask);
+                slice = new ImagePlus("Slice", preprocessed.mask);
+                destinationImagePlus = new ImagePlus("Filtered labels", preprocessed.labels);
+                metrics.count("colonies.labelsRemoved", preprocessed.nRemoved);
+            } else {
+                // The slice is only read (pushed to the GPU and measured), no need to copy it
+                slice = new ImagePlus("Slice", frame);
+                destinationImagePlus = connectedComponentsLabeling(slice);
+                double[][] connCompStats = areaStats.compute(destinationImagePlus.getProcessor(), null); // these stats are only used for filtering
+                // Filter labels by area
+                destinationImagePlus = filterLabelsByArea(destinationImagePlus, minLabelArea, connCompStats);
+            }
+            if (i == 1 && tracker != null && !(destinationImagePlus.getProcessor() instanceof ShortProcessor)) {
+                // The tracker labels the next frames in 16-bit : the stack would otherwise scale them to 8-bit
+                destinationImagePlus = new ImagePlus("Labels", destinationImagePlus.getProcessor().convertToShort(false));
+            }
             // use the prev. frame's Voronoi diagram to assign labels
-            if (i != 1) {
+            if (i != 1 && tracker != null) {
+                // or match the connected components to the colonies of the previous frame
+                destinationImagePlus = new ImagePlus("Labels", tracker.track(prevFrameLabels, destinationImagePlus.getProcessor()));
+                metrics.count("colonies.overlapMatches", tracker.getLastMatched());
+                metrics.count("colonies.newColonies", tracker.getLastNew());
+            } else if (i != 1) {
                 // Binarize the labels after filtering (for assignment from Voronoi diagram)
                 destinationImagePlus = binarize(destinationImagePlus);
                 destinationImagePlus = assignLabelsFromVoronoi(prevFrameVoronoi, destinationImagePlus);
             }
 
-            // get statistics from clij
-            double[][] stats = getLabelStats(destinationImagePlus, slice); // these are the stats we want to keep
+            // get statistics of the colonies, in the same layout as clij
+            double[][] stats = regionStats.compute(destinationImagePlus.getProcessor(), slice.getProcessor()); // these are the stats we want to keep
             this.colonyStats.put(i, stats);
 
 
-            // Get Voronoi diagram of this frame and save it for next frame
-            prevFrameVoronoi = voronoiDiagram(destinationImagePlus);
+            // Get Voronoi diagram of this frame and save it for next frame (only to show it with overlap tracking)
+            if (tracker == null || keepVoronoi) {
+                prevFrameVoronoi = voronoiDiagram(destinationImagePlus);
+            }
             if (keepVoronoi) {
                 this.voronoiDiagramStack.addSlice(prevFrameVoronoi.getProcessor());
+                this.voronoiStore.add(prevFrameVoronoi.getProcessor());
             }
+            prevFrameLabels = destinationImagePlus.getProcessor();
 
             // Record the processed frame
             processedStack.addSlice(destinationImagePlus.getProcessor());
+            this.labelStore.add(destinationImagePlus.getProcessor());
 
             // Remove any intermediate images
             slice.close();
             destinationImagePlus.close();
-            IJ.log("Finished labeling frame " + i + "/" + this.imageDIC.getStackSize());
+            metrics.recordFrame("colonies", i, System.nanoTime() - frameStart);
+            metrics.log("colonies.frame", "Finished labeling frame " + i + "/" + this.imageDIC.getStackSize());
+            monitor.progress("Colonies", i, nFrames);
             //////////////
             // only first ten frames (for testing)
 //            if (i == 10) {
 //                break;
 //            }
         }
+        setResults(processedStack, keepVoronoi);
+    }
 
-    this.colonyLabels = new ImagePlus("Colony labels", processedStack);
-    // Set Glasbey LUT
-    this.colonyLabels.setLut(this.glasbeyLUT);
+    /**
+     * Stop encoding the frames of the stores, and drop them.
+     */
+    private void closeStores() {
+        if (this.labelStore != null) this.labelStore.close();
+        if (this.voronoiStore != null) this.voronoiStore.close();
+        this.labelStore = null;
+        this.voronoiStore = null;
+    }
 
-    // save pixel width "metadata" to ColonyLabels image too
-        utils.add_pixel_size(colonyLabels, imageDIC);
+    /**
+     * Set the colony labels (and Voronoi diagrams, if kept) from the processed frames.
+     * @param processedStack colony labels of the processed frames
+     * @param keepVoronoi boolean to keep the Voronoi diagrams
+     */
+    private void setResults(ImageStack processedStack, boolean keepVoronoi) {
+        if (processedStack.getSize() == 0) return; // cancelled before the first frame
+        this.colonyLabels = new ImagePlus("Colony labels", processedStack);
+        // Set Glasbey LUT
+        this.colonyLabels.setLut(this.glasbeyLUT);
 
+        // save pixel width "metadata" to ColonyLabels image too
+        utils.add_pixel_size(colonyLabels, imageDIC);
 
         if (keepVoronoi) {
-        this.voronoiDiagrams = new ImagePlus("Voronoi Diagrams", this.voronoiDiagramStack);
-        this.voronoiDiagramStack = null;
-        this.voronoiDiagrams.setLut(this.glasbeyLUT);
+            this.voronoiDiagrams = new ImagePlus("Voronoi Diagrams", this.voronoiDiagramStack);
+            this.voronoiDiagramStack = null;
+            this.voronoiDiagrams.setLut(this.glasbeyLUT);
+        }
+        if (this.maskStack != null && this.maskStack.getSize() > 0) {
+            this.masks = new ImagePlus("Masks", this.maskStack);
+            this.maskStack = null;
+            utils.add_pixel_size(masks, imageDIC);
         }
     }
     /**
@@ -245,22 +460,54 @@ public class Colonies {
      * @return Map<Integer, double[][]> containing the statistics for each label in each frame
      */
     public static Map<Integer, double[][]> computeStats(ImagePlus labels, ImagePlus channelDIC) {
+        return computeStats(labels, channelDIC, TaskMonitor.NONE);
+    }
+
+    /**
+     * This method computes the statistics for each label in the labels image
+     * (IDENTIFIER and PIXEL_COUNT, see RegionStats.DEFAULT_FEATURES).
+     * @param labels ImagePlus object containing the labels
+     * @param channelDIC ImagePlus object containing the DIC channel
+     * @param monitor TaskMonitor receiving the progress, checked for cancellation once per frame
+     * @return Map<Integer, double[][]> containing the statistics for each label in each frame
+     */
+    public static Map<Integer, double[][]> computeStats(ImagePlus labels, ImagePlus channelDIC, TaskMonitor monitor) {
+        return computeStats(labels, channelDIC, monitor, RegionStats.DEFAULT_FEATURES);
+    }
+
+    /**
+     * This method computes the statistics for each label in the labels image, on the CPU (see RegionStats).
+     * @param labels ImagePlus object containing the labels
+     * @param channelDIC ImagePlus object containing the DIC channel
+     * @param monitor TaskMonitor receiving the progress, checked for cancellation once per frame
+     * @param features Names of the statistics to compute (see getColumnMapping()), the other columns are left at 0
+     * @return Map<Integer, double[][]> containing the statistics for each label in each frame
+     */
+    public static Map<Integer, double[][]> computeStats(ImagePlus labels, ImagePlus channelDIC, TaskMonitor monitor, String... features) {
+        RegionStats regionStats = new RegionStats(features);
         Map<Integer, double[][]> stats = new HashMap<>();
+        PipelineMetrics metrics = PipelineMetrics.current();
         for (int i = 1; i <= labels.getStackSize(); i++) {
-            ImageProcessor frame = channelDIC.getStack().getProcessor(i);
-            ImageProcessor slice = labels.getStack().getProcessor(i);
-            double[][] sliceStats = getLabelStats(new ImagePlus("Slice", slice), new ImagePlus("DIC", frame));
+            monitor.checkCancelled("Colony statistics");
+            long frameStart = System.nanoTime();
+            // The DIC frame is only read when an intensity statistic is requested
+            FrameCache.Frame frame = regionStats.needsIntensity() ? FrameCache.getFrame(channelDIC, "dic", i) : null;
+            FrameCache.Frame slice = FrameCache.getFrame(labels, "labels", i);
+            double[][] sliceStats = regionStats.compute(slice, frame);
             stats.put(i, sliceStats);
-            IJ.log("Computed stats for frame " + i + "/" + labels.getStackSize());
+            metrics.recordFrame("colony_stats", i, System.nanoTime() - frameStart);
+            metrics.log("colonies.stats", "Computed stats for frame " + i + "/" + labels.getStackSize());
+            monitor.progress("Colony statistics", i, labels.getStackSize());
         }
         return stats;
     }
     /**
      * This method binarizes an image by setting all non-zero pixels to 1.
+     * Note : the pixels of the given slice are modified in place.
      * @param slice ImagePlus object to binarize
      * @return ImagePlus object with binarized pixels
      */
-    private ImagePlus binarize(ImagePlus slice) {
+    static ImagePlus binarize(ImagePlus slice) {
         ImageProcessor processor = slice.getProcessor();
         for (int y = 0; y < processor.getHeight(); y++) {
             for (int x = 0; x < processor.getWidth(); x++) {
@@ -277,7 +524,7 @@ public class Colonies {
      * @param frameToLabel ImagePlus object containing the frame to label
      * @return ImagePlus object with assigned labels
      */
-    private ImagePlus assignLabelsFromVoronoi(ImagePlus prevFrameVoronoi, ImagePlus frameToLabel) {
+    static ImagePlus assignLabelsFromVoronoi(ImagePlus prevFrameVoronoi, ImagePlus frameToLabel) {
         // For the current frame, loop over the pixels in Voronoi.
         // If the frameToLabel pixel is not 0, assign the Voronoi pixel value to it
         ImageProcessor voronoi = prevFrameVoronoi.getProcessor();
@@ -305,9 +552,10 @@ public class Colonies {
   
     public static double[][] getLabelStats(ImagePlus labels, ImagePlus DICFrame) {
         CLIJ2 clij2 = CLIJ2.getInstance();
-        ClearCLBuffer input = clij2.push(DICFrame);
-        ClearCLBuffer labelmap = clij2.push(labels);
+        ClearCLBuffer input = push(clij2, DICFrame);
+        ClearCLBuffer labelmap = push(clij2, labels);
         double[][] stats = clij2.statisticsOfBackgroundAndLabelledPixels(input, labelmap);
+        PipelineMetrics.current().count("clij2.kernels", 1);
         //    IDENTIFIER	BOUNDING_BOX_X	BOUNDING_BOX_Y	BOUNDING_BOX_Z	BOUNDING_BOX_END_X	BOUNDING_BOX_END_Y
         //    BOUNDING_BOX_END_Z	BOUNDING_BOX_WIDTH	BOUNDING_BOX_HEIGHT	BOUNDING_BOX_DEPTH	MINIMUM_INTENSITY
         //    MAXIMUM_INTENSITY	MEAN_INTENSITY	SUM_INTENSITY	STANDARD_DEVIATION_INTENSITY
@@ -321,20 +569,82 @@ public class Colonies {
         return stats;
     }
     /**
-     * This method saves the colony labels and Voronoi diagrams to the specified path.
+     * This method saves the colony labels and Voronoi diagrams to the specified path,
+     * as TIFF and as compressed label stores next to them (see LabelStore), with the colony statistics.
      * @param path String containing the path to save the results
      * @param filename String containing the filename of the source image
      */
     public void saveResults(String path, String filename) {
-        // Save the colony labels
+        // Written in the background (see AsyncIO) : the stores and statistics are checked against the TIFF,
+        // so they are written after it, by the same task
+        Map<Integer, double[][]> stats = this.colonyStats;
+        LabelStore.Writer labels_store = this.labelStore;
         String coloniesPath = path + FileSystems.getDefault().getSeparator() + filename + "_colony_labels.tif";
+        // Named after the file here, as a synchronous save would : the analysis looks the open labels up by this title
+        this.colonyLabels.setTitle(new File(coloniesPath).getName());
+        ImagePlus labels = detached(this.colonyLabels);
         IJ.log("Saving colony labels to " + coloniesPath);
-        IJ.saveAsTiff(this.colonyLabels, coloniesPath);
+        AsyncIO.shared().submit(coloniesPath, () -> {
+            try {
+                // Save the colony labels
+                if (!IJ.saveAsTiff(labels, coloniesPath)) throw new IOException("Failed to save " + coloniesPath);
+                // Save the statistics with them, to reload them instead of computing them again (see ColonyStatsIO)
+                File statsFile = ColonyStatsIO.statsFile(path, filename);
+                try {
+                    ColonyStatsIO.save(stats, statsFile, new File(coloniesPath), labels.getStackSize());
+                } catch (IOException e) {
+                    IJ.log("Failed to save colony statistics to " + statsFile.getPath() + " : " + e.getMessage());
+                }
+                saveStore(labels_store, new File(coloniesPath));
+            } finally {
+                if (labels_store != null) labels_store.close();
+            }
+        });
+        // The complete labels replace those of a cancelled run
+        for (File partial : new File[]{new File(path, partialLabelsFileName(filename)), new File(path, partialParametersFileName(filename))}) {
+            if (partial.exists() && !partial.delete()) IJ.log("Failed to delete " + partial.getPath());
+        }
         // Save the Voronoi diagrams
         if (this.voronoiDiagrams != null) {
+            ImagePlus voronoi = detached(this.voronoiDiagrams);
+            LabelStore.Writer voronoi_store = this.voronoiStore;
             String voronoiPath = path + FileSystems.getDefault().getSeparator() + filename + "_voronoi_diagrams.tif";
             IJ.log("Saving Voronoi diagrams to " + voronoiPath);
-            IJ.saveAsTiff(this.voronoiDiagrams, voronoiPath);
+            AsyncIO.shared().submit(voronoiPath, () -> {
+                try {
+                    if (!IJ.saveAsTiff(voronoi, voronoiPath)) throw new IOException("Failed to save " + voronoiPath);
+                    saveStore(voronoi_store, new File(voronoiPath));
+                } finally {
+                    if (voronoi_store != null) voronoi_store.close();
+                }
+            });
+        }
+        this.labelStore = null;
+        this.voronoiStore = null;
+    }
+
+    /**
+     * An image sharing the stack and calibration of a result, to save it in the background : FileSaver renames
+     * the image it saves, which must not happen to a displayed image outside of the event dispatch thread.
+     * The stack of the result is not modified afterwards.
+     */
+    private static ImagePlus detached(ImagePlus image) {
+        ImagePlus copy = image.createImagePlus();
+        copy.setStack(image.getTitle(), image.getStack());
+        copy.setDimensions(image.getNChannels(), image.getNSlices(), image.getNFrames());
+        return copy;
+    }
+
+    /**
+     * Write the compressed store of a label stack next to its TIFF, if its frames were encoded during the run.
+     */
+    private static void saveStore(LabelStore.Writer store, File tiffFile) {
+        if (store == null) return;
+        File storeFile = LabelStore.storeFile(tiffFile);
+        try {
+            store.write(storeFile, tiffFile);
+        } catch (IOException e) {
+            IJ.log("Failed to save " + storeFile.getPath() + " : " + e.getMessage());
         }
     }
     /**
@@ -344,7 +654,8 @@ public class Colonies {
      * @param stats double[][] containing the statistics for each label
      * @return ImagePlus object containing the filtered labels
      */
-    private ImagePlus filterLabelsByArea(ImagePlus labels, double minLabelArea, double[][] stats) {
+    static ImagePlus filterLabelsByArea(ImagePlus labels, double minLabelArea, double[][] stats) {
+        Map<String, Integer> columnMapping = getColumnMapping();
         // Create a new image processor to store the filtered labels
         ImageProcessor result = labels.getProcessor().duplicate();
         // Get the IDENTIFIER column
@@ -356,7 +667,8 @@ public class Colonies {
             if (area< minLabelArea) {
                 // If it is, set the label to 0
                 int label = identifiers[i];
-                IJ.log("Removing label " + label + " with area " + area);
+                PipelineMetrics.current().count("colonies.labelsRemoved", 1);
+                PipelineMetrics.current().log("colonies.removeLabel", "Removing label " + label + " with area " + area);
                 for (int y = 0; y < result.getHeight(); y++) {
                     for (int x = 0; x < result.getWidth(); x++) {
                         float pixel = result.getf(x, y);
@@ -370,18 +682,134 @@ public class Colonies {
         return new ImagePlus("Filtered labels", result);
     }
 
+    /**
+     * This method saves the colony labels of the frames completed before a cancellation,
+     * so that a later run can resume from them (see runColoniesComputation).
+     * The parameters of the labeling are saved with them, in a properties file (see loadPartialResults).
+     * @param path String containing the path to save the results
+     * @param filename String containing the filename of the source image
+     * @return true if there were completed frames to save
+     */
+    public boolean savePartialResults(String path, String filename) {
+        if (this.colonyLabels == null) return false;
+        String partialPath = path + FileSystems.getDefault().getSeparator() + partialLabelsFileName(filename);
+        IJ.log("Saving colony labels of " + this.colonyLabels.getStackSize() + " completed frames to " + partialPath);
+        File parametersFile = new File(path, partialParametersFileName(filename));
+        try (OutputStream out = new FileOutputStream(parametersFile)) {
+            labelingParameters(this.minLabelArea).store(out, "Parameters of " + partialLabelsFileName(filename));
+        } catch (IOException e) {
+            // Without its parameters, the partial labels would never be resumed
+            IJ.log("Failed to save " + parametersFile.getPath() + " : " + e.getMessage());
+            return false;
+        }
+        IJ.saveAsTiff(this.colonyLabels, partialPath);
+        return true;
+    }
+
+    /**
+     * This method loads the colony labels of a cancelled run, if they were computed on this image with the same
+     * parameters as this run (minimum area, preprocessing, carry-over of the labels), to resume from them.
+     * @param path String containing the path of the results
+     * @param filename String containing the filename of the source image
+     * @param minLabelArea minimum area of a label of this run
+     * @return the partial colony labels, or null if there are none or they cannot be resumed (the reason is logged)
+     */
+    public ImagePlus loadPartialResults(String path, String filename, double minLabelArea) {
+        File labelsFile = new File(path, partialLabelsFileName(filename));
+        if (!labelsFile.exists()) return null;
+        File parametersFile = new File(path, partialParametersFileName(filename));
+        Properties saved = new Properties();
+        try (InputStream in = new FileInputStream(parametersFile)) {
+            saved.load(in);
+        } catch (IOException e) {
+            IJ.log("Not resuming from " + labelsFile.getName() + " : its parameters cannot be read (" + e.getMessage() + ")");
+            return null;
+        }
+        Properties current = labelingParameters(minLabelArea);
+        List<String> changed = new ArrayList<>();
+        for (String key : current.stringPropertyNames()) {
+            if (!current.getProperty(key).equals(saved.getProperty(key))) changed.add(key);
+        }
+        if (!changed.isEmpty()) {
+            Collections.sort(changed);
+            IJ.log("Not resuming from " + labelsFile.getName() + " : computed with other parameters " + changed);
+            return null;
+        }
+        ImagePlus partialLabels = IJ.openImage(labelsFile.getPath());
+        if (partialLabels == null) {
+            IJ.log("Not resuming from " + labelsFile.getName() + " : it cannot be opened");
+            return null;
+        }
+        String mismatch = checkPartialLabels(partialLabels);
+        if (mismatch != null) {
+            IJ.log("Not resuming from " + labelsFile.getName() + " : " + mismatch);
+            return null;
+        }
+        return partialLabels;
+    }
+
+    /**
+     * Parameters of the labeling that change the labels, as saved with the partial results.
+     */
+    private Properties labelingParameters(double minLabelArea) {
+        Properties parameters = new Properties();
+        parameters.setProperty("width", Integer.toString(this.imageDIC.getWidth()));
+        parameters.setProperty("height", Integer.toString(this.imageDIC.getHeight()));
+        parameters.setProperty("frames", Integer.toString(this.imageDIC.getStackSize()));
+        parameters.setProperty("minLabelArea", Double.toString(minLabelArea));
+        parameters.setProperty("medianRadius", Integer.toString(this.medianRadius));
+        parameters.setProperty("thresholdMethod", String.valueOf(this.thresholdMethod));
+        parameters.setProperty("overlapTracking", Boolean.toString(this.overlapTracking));
+        parameters.setProperty("voronoiOnGpu", Boolean.toString(this.voronoiOnGpu));
+        return parameters;
+    }
+
+    /**
+     * @return why partial labels cannot be the first frames of the labels of imageDIC, or null if they can
+     */
+    private String checkPartialLabels(ImagePlus partialLabels) {
+        if (partialLabels.getWidth() != this.imageDIC.getWidth() || partialLabels.getHeight() != this.imageDIC.getHeight()) {
+            return "they are " + partialLabels.getWidth() + "x" + partialLabels.getHeight() + " pixels instead of "
+                    + this.imageDIC.getWidth() + "x" + this.imageDIC.getHeight();
+        }
+        if (partialLabels.getBitDepth() != 8 && partialLabels.getBitDepth() != 16) {
+            return "they are " + partialLabels.getBitDepth() + "-bit instead of 8-bit or 16-bit labels";
+        }
+        if (partialLabels.getStackSize() > this.imageDIC.getStackSize()) {
+            return "they have " + partialLabels.getStackSize() + " frames, the image only " + this.imageDIC.getStackSize();
+        }
+        return null;
+    }
+
+    /**
+     * @param filename String containing the filename of the source image
+     * @return the name of the file holding the colony labels of a cancelled run
+     */
+    public static String partialLabelsFileName(String filename) {
+        return filename + "_colony_labels_partial.tif";
+    }
+
+    /**
+     * @param filename String containing the filename of the source image
+     * @return the name of the file holding the parameters of the colony labels of a cancelled run
+     */
+    public static String partialParametersFileName(String filename) {
+        return filename + "_colony_labels_partial.properties";
+    }
+
     /**
      * This method computes the connected components labeling of an image.
      * @param slice ImagePlus object containing the slice to process. Should be binarized (mask from DIC channel)
      * @return ImagePlus object containing the connected components labeling
      */
     private ImagePlus connectedComponentsLabeling(ImagePlus slice) {
-        ClearCLBuffer input = clij2.push(slice);
+        ClearCLBuffer input = push(clij2, slice);
         ClearCLBuffer destination = clij2.create(input);
         clij2.connectedComponentsLabelingBox(input, destination);
+        PipelineMetrics.current().count("clij2.kernels", 1);
 
         // Pull the result and add it to the processed stack
-        ImagePlus destinationImagePlus = clij2.pull(destination);
+        ImagePlus destinationImagePlus = pull(clij2, destination);
 
         // Cleanup memory on GPU
         clij2.release(input);
@@ -390,16 +818,20 @@ public class Colonies {
     }
     /**
      * This method computes the Voronoi diagram of an image,
-     * by expanding instance labels using extendLabelingViaVoronoi from CLIJ2.
+     * by expanding instance labels using extendLabelingViaVoronoi from CLIJ2, or DistanceTransform (see setVoronoiOnGpu).
      * @param slice ImagePlus object containing the slice to process
      * @return ImagePlus object containing the Voronoi diagram
      */
     private ImagePlus voronoiDiagram(ImagePlus slice) {
-        ClearCLBuffer input = clij2.push(slice);
+        if (!voronoiOnGpu) {
+            return new ImagePlus("Voronoi Diagram", DistanceTransform.expandLabels(slice.getProcessor()));
+        }
+        ClearCLBuffer input = push(clij2, slice);
         ClearCLBuffer destination = clij2.create(input);
         clij2.extendLabelingViaVoronoi(input, destination);
+        PipelineMetrics.current().count("clij2.kernels", 1);
 
-        ImagePlus destinationImagePlus = clij2.pull(destination);
+        ImagePlus destinationImagePlus = pull(clij2, destination);
         destinationImagePlus.setTitle("Voronoi Diagram");
 
         clij2.release(input);
@@ -407,7 +839,24 @@ public class Colonies {
         return destinationImagePlus;
     }
 
+    /**
+     * Push an image to the GPU, counting the transfer in the pipeline metrics.
+     */
+    private static ClearCLBuffer push(CLIJ2 clij2, ImagePlus imp) {
+        ClearCLBuffer buffer = clij2.push(imp);
+        PipelineMetrics metrics = PipelineMetrics.current();
+        metrics.count("clij2.push", 1);
+        metrics.count("clij2.pushBytes", buffer.getSizeInBytes());
+        return buffer;
+    }
 
+    /**
+     * Pull an image from the GPU, counting the transfer in the pipeline metrics.
+     */
+    private static ImagePlus pull(CLIJ2 clij2, ClearCLBuffer buffer) {
+        PipelineMetrics metrics = PipelineMetrics.current();
+        metrics.count("clij2.pull", 1);
+        metrics.count("clij2.pullBytes", buffer.getSizeInBytes());
+        return clij2.pull(buffer);
+    }
 }
-
-
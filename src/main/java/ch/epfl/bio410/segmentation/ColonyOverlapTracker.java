@@ -0,0 +1,256 @@
+package ch.epfl.bio410.segmentation;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+/**
+ * Colony labels from one frame to the next by overlap, instead of the Voronoi diagram of the previous frame.
+ * The connected components of the current frame are matched to the colony labels of the previous frame
+ * with a sparse overlap matrix, built in one pass over the pixels (only the pairs of labels that overlap are stored) :
+ * - first one to one, greedily by decreasing intersection over union (IoU), if above minIoU
+ * - then the remaining components that overlap a colony (fragments of a colony) join the colony they overlap most
+ * - the components that overlap no colony are new colonies, with new labels
+ * Unlike the Voronoi carry-over, a colony entering the field gets its own label, and no Voronoi diagram is needed.
+ * When two colonies merge into one component, the component keeps the label of the colony it overlaps most.
+ * Usage :
+ * ColonyOverlapTracker tracker = new ColonyOverlapTracker(ColonyOverlapTracker.DEFAULT_MIN_IOU);
+ * ImageProcessor labels = tracker.track(previousLabels, components);
+ */
+public class ColonyOverlapTracker {
+    /** Default minimum IoU of a one to one match. */
+    public static final double DEFAULT_MIN_IOU = 0.1;
+
+    private final double minIoU;
+    private int nextLabel = 1;
+    private int lastMatched;
+    private int lastNew;
+
+    /**
+     * @param minIoU Minimum intersection over union of a component and a colony for a one to one match
+     */
+    public ColonyOverlapTracker(double minIoU) {
+        this.minIoU = minIoU;
+    }
+
+    /**
+     * This method labels the connected components of a frame with the colony labels of the previous frame.
+     * @param previousLabels Colony labels of the previous frame (0 is the background)
+     * @param components Connected components of the current frame (0 is the background), e.g. from FramePreprocessor
+     * @return the colony labels of the current frame (16-bit)
+     */
+    public ImageProcessor track(ImageProcessor previousLabels, ImageProcessor components) {
+        int width = components.getWidth();
+        int height = components.getHeight();
+        int nPixels = width * height;
+        int[] previous = toLabels(previousLabels);
+        int[] current = toLabels(components);
+        int nPrevious = 0;
+        int nCurrent = 0;
+        for (int p = 0; p < nPixels; p++) {
+            if (previous[p] > nPrevious) nPrevious = previous[p];
+            if (current[p] > nCurrent) nCurrent = current[p];
+        }
+        nextLabel = Math.max(nextLabel, nPrevious + 1);
+
+        // Areas, and overlaps in one pass over the pairs of pixels
+        int[] previousAreas = new int[nPrevious + 1];
+        int[] currentAreas = new int[nCurrent + 1];
+        OverlapMatrix overlaps = new OverlapMatrix(nCurrent + 1);
+        for (int p = 0; p < nPixels; p++) {
+            previousAreas[previous[p]]++;
+            currentAreas[current[p]]++;
+            if (previous[p] != 0 && current[p] != 0) overlaps.add(previous[p], current[p]);
+        }
+
+        // One to one matches, by decreasing IoU
+        int nPairs = overlaps.size();
+        long[] candidates = new long[nPairs];
+        int nCandidates = 0;
+        double[] ious = new double[nPairs];
+        for (int i = 0; i < nPairs; i++) {
+            int a = overlaps.previous(i);
+            int b = overlaps.current(i);
+            int intersection = overlaps.count(i);
+            ious[i] = (double) intersection / (previousAreas[a] + currentAreas[b] - intersection);
+            if (ious[i] >= minIoU) {
+                // Sort key : IoU in the high bits, pair index in the low bits
+                candidates[nCandidates++] = ((long) Float.floatToIntBits((float) ious[i]) << 32) | i;
+            }
+        }
+        Arrays.sort(candidates, 0, nCandidates);
+        int[] assigned = new int[nCurrent + 1];
+        boolean[] previousUsed = new boolean[nPrevious + 1];
+        int matched = 0;
+        for (int c = nCandidates - 1; c >= 0; c--) {
+            int i = (int) candidates[c];
+            int a = overlaps.previous(i);
+            int b = overlaps.current(i);
+            if (assigned[b] != 0 || previousUsed[a]) continue;
+            assigned[b] = a;
+            previousUsed[a] = true;
+            matched++;
+        }
+
+        // Fragments join the colony they overlap most
+        int[] bestOverlap = new int[nCurrent + 1];
+        int[] bestPrevious = new int[nCurrent + 1];
+        for (int i = 0; i < nPairs; i++) {
+            int b = overlaps.current(i);
+            if (assigned[b] == 0 && overlaps.count(i) > bestOverlap[b]) {
+                bestOverlap[b] = overlaps.count(i);
+                bestPrevious[b] = overlaps.previous(i);
+            }
+        }
+        int newColonies = 0;
+        for (int b = 1; b <= nCurrent; b++) {
+            if (assigned[b] != 0 || currentAreas[b] == 0) continue;
+            if (bestPrevious[b] != 0) {
+                assigned[b] = bestPrevious[b];
+            } else {
+                assigned[b] = nextLabel++;
+                newColonies++;
+            }
+        }
+        if (nextLabel > 65536) {
+            throw new IllegalStateException("Too many colonies for 16-bit labels : " + (nextLabel - 1));
+        }
+
+        ShortProcessor labels = new ShortProcessor(width, height);
+        short[] pixels = (short[]) labels.getPixels();
+        for (int p = 0; p < nPixels; p++) pixels[p] = (short) assigned[current[p]];
+        lastMatched = matched;
+        lastNew = newColonies;
+        return labels;
+    }
+
+    /**
+     * This method reserves the labels of earlier frames, so that new colonies never reuse them,
+     * e.g. when a run resumes from the labels of the frames completed by a cancelled run.
+     * @param labels Colony labels of a frame before the previous one
+     */
+    public void reserveLabels(ImageProcessor labels) {
+        int max = 0;
+        for (int label : toLabels(labels)) {
+            if (label > max) max = label;
+        }
+        nextLabel = Math.max(nextLabel, max + 1);
+    }
+
+    /**
+     * Labels of an image as integers, reading the pixel arrays of 8-bit and 16-bit images directly.
+     */
+    private static int[] toLabels(ImageProcessor ip) {
+        int nPixels = ip.getWidth() * ip.getHeight();
+        int[] labels = new int[nPixels];
+        Object pixels = ip.getPixels();
+        if (pixels instanceof short[]) {
+            short[] values = (short[]) pixels;
+            for (int p = 0; p < nPixels; p++) labels[p] = values[p] & 0xffff;
+        } else if (pixels instanceof byte[]) {
+            byte[] values = (byte[]) pixels;
+            for (int p = 0; p < nPixels; p++) labels[p] = values[p] & 0xff;
+        } else {
+            for (int p = 0; p < nPixels; p++) labels[p] = (int) ip.getf(p);
+        }
+        return labels;
+    }
+
+    /**
+     * @return the number of one to one matches in the last frame
+     */
+    public int getLastMatched() {
+        return lastMatched;
+    }
+
+    /**
+     * @return the number of new colonies in the last frame
+     */
+    public int getLastNew() {
+        return lastNew;
+    }
+
+    /**
+     * Sparse overlap matrix : pixel counts of the (previous label, current component) pairs that overlap,
+     * in an open addressing hash table.
+     */
+    private static class OverlapMatrix {
+        private final int nCurrent;
+        private long[] keys;
+        private int[] counts;
+        private int[] order; // slots in insertion order
+        private int size = 0;
+
+        OverlapMatrix(int nCurrent) {
+            this.nCurrent = nCurrent;
+            allocate(64);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, -1);
+            counts = new int[capacity];
+            order = new int[capacity / 2];
+        }
+
+        void add(int previous, int current) {
+            long key = (long) previous * nCurrent + current;
+            int mask = keys.length - 1;
+            int slot = (int) (mix(key) & mask);
+            while (keys[slot] != key) {
+                if (keys[slot] == -1) {
+                    if (size == order.length) {
+                        grow();
+                        add(previous, current);
+                        return;
+                    }
+                    keys[slot] = key;
+                    order[size++] = slot;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            counts[slot]++;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            int[] oldOrder = order;
+            int oldSize = size;
+            allocate(oldKeys.length * 2);
+            size = 0;
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldSize; i++) {
+                long key = oldKeys[oldOrder[i]];
+                int slot = (int) (mix(key) & mask);
+                while (keys[slot] != -1) slot = (slot + 1) & mask;
+                keys[slot] = key;
+                counts[slot] = oldCounts[oldOrder[i]];
+                order[size++] = slot;
+            }
+        }
+
+        private static long mix(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return key ^ (key >>> 32);
+        }
+
+        int size() {
+            return size;
+        }
+
+        int previous(int i) {
+            return (int) (keys[order[i]] / nCurrent);
+        }
+
+        int current(int i) {
+            return (int) (keys[order[i]] % nCurrent);
+        }
+
+        int count(int i) {
+            return counts[order[i]];
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package ch.epfl.bio410.segmentation;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Colony statistics (Colonies.colonyStats) saved next to the colony labels, to reload them without computing them again.
+ * Columnar binary file, little-endian :
+ * - header : magic "RCST", version, number of frames, number of columns (36), bit mask of the stored columns,
+ *   length, modification time and number of frames of the label TIFF the statistics belong to
+ * - index : for each frame, its number, its number of rows (labels) and the offset of its data
+ * - data : for each frame, each stored column as nRows doubles
+ * Only the columns with a non-zero value are stored (see RegionStats), the others are read as 0.
+ * On reload the file is memory-mapped, and a frame is decoded the first time it is read.
+ * Usage :
+ * ColonyStatsIO.save(colonyStats, ColonyStatsIO.statsFile(path, name), labelsFile);
+ * Map<Integer, double[][]> stats = ColonyStatsIO.load(ColonyStatsIO.statsFile(path, name), labelsFile, nFrames); // null if missing or stale
+ */
+public class ColonyStatsIO {
+    private static final int MAGIC = 0x54534352; // "RCST" in little-endian
+    /** Version of the file format, increased on any change of the layout. */
+    public static final int VERSION = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8 + 8 + 8 + 4;
+    private static final int INDEX_BYTES = 4 + 4 + 8;
+
+    /**
+     * @param path Results folder
+     * @param filename Name of the image, without extension
+     * @return the statistics file of an image, next to its colony labels
+     */
+    public static File statsFile(String path, String filename) {
+        return new File(path, filename + "_colony_stats.bin");
+    }
+
+    /**
+     * This method saves the colony statistics of each frame.
+     * The file is written next to its final name, then moved, so that a reader never sees a partial file
+     * (see replaceSidecar).
+     * @param stats Statistics of each frame (see Colonies.colonyStats)
+     * @param file File to write
+     * @param labelsFile Label TIFF the statistics belong to (already saved), to detect stale statistics on reload
+     * @param nLabelFrames Number of frames of the label TIFF
+     * @throws IOException If the file cannot be written
+     */
+    public static void save(Map<Integer, double[][]> stats, File file, File labelsFile, int nLabelFrames) throws IOException {
+        Map<Integer, double[][]> frames = new TreeMap<>(stats);
+        long columnMask = 0;
+        int nColumns = RegionStats.COLUMNS;
+        for (double[][] table : frames.values()) {
+            for (double[] row : table) {
+                for (int c = 0; c < nColumns; c++) {
+                    if (row[c] != 0) columnMask |= 1L << c;
+                }
+            }
+        }
+        int nStored = Long.bitCount(columnMask);
+        long size = HEADER_BYTES + (long) INDEX_BYTES * frames.size();
+        for (double[][] table : frames.values()) size += (long) table.length * nStored * 8;
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(frames.size()).putInt(nColumns).putLong(columnMask);
+        buffer.putLong(labelsFile.length()).putLong(labelsFile.lastModified()).putInt(nLabelFrames);
+        long offset = HEADER_BYTES + (long) INDEX_BYTES * frames.size();
+        for (Map.Entry<Integer, double[][]> frame : frames.entrySet()) {
+            buffer.putInt(frame.getKey()).putInt(frame.getValue().length).putLong(offset);
+            offset += (long) frame.getValue().length * nStored * 8;
+        }
+        for (double[][] table : frames.values()) {
+            for (int c = 0; c < nColumns; c++) {
+                if ((columnMask & (1L << c)) == 0) continue;
+                for (double[] row : table) buffer.putDouble(row[c]);
+            }
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        Files.write(temporary.toPath(), buffer.array());
+        replaceSidecar(temporary, file);
+    }
+
+    /**
+     * Move a sidecar file (statistics or LabelStore, starting with a magic number) written next to its final name
+     * over the previous version.
+     * The previous version cannot be replaced while it is mapped by a reader on Windows : it is then deleted,
+     * or if that fails too, its magic number is cleared so that it is never loaded again (readers that already
+     * mapped it do not read the magic number anymore).
+     * @param temporary New version
+     * @param file Final name
+     * @throws IOException If the new version could not replace the previous one (which is then invalid or deleted)
+     */
+    static void replaceSidecar(File temporary, File file) throws IOException {
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary.toPath());
+            if (!file.delete() && file.exists()) {
+                try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                    output.writeInt(0);
+                } catch (IOException invalidateError) {
+                    e.addSuppressed(invalidateError);
+                }
+            }
+            throw new IOException("Cannot replace " + file.getName() + " (it is discarded, to be written again by the next run)", e);
+        }
+    }
+
+    /**
+     * This method reloads colony statistics saved by save.
+     * @param file Statistics file
+     * @param labelsFile Label TIFF the statistics should belong to
+     * @param nLabelFrames Number of frames of the label image
+     * @return the statistics of each frame, decoded on first access, or null if the file is missing, of another version,
+     * or was saved for other labels or before the label TIFF was modified (the statistics then have to be computed again)
+     */
+    public static Map<Integer, double[][]> load(File file, File labelsFile, int nLabelFrames) {
+        if (!file.exists()) return null;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < HEADER_BYTES || mapped.getInt(0) != MAGIC) {
+                IJ.log("Ignoring " + file.getName() + " : not a colony statistics file");
+                return null;
+            }
+            if (mapped.getInt(4) != VERSION) {
+                IJ.log("Ignoring " + file.getName() + " : version " + mapped.getInt(4) + " instead of " + VERSION);
+                return null;
+            }
+            if (mapped.getLong(24) != labelsFile.length() || mapped.getLong(32) != labelsFile.lastModified()
+                    || mapped.getInt(40) != nLabelFrames) {
+                IJ.log("Ignoring " + file.getName() + " : saved for other colony labels");
+                return null;
+            }
+            // The mapping stays valid after the channel is closed
+            return new StatsMap(mapped);
+        } catch (IOException e) {
+            IJ.log("Failed to read " + file.getPath() + " : " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read-only map of the statistics of each frame, on the mapped file.
+     */
+    private static class StatsMap extends AbstractMap<Integer, double[][]> {
+        private final ByteBuffer data;
+        private final int nColumns;
+        private final long columnMask;
+        private final Map<Integer, Integer> frameIndex = new TreeMap<>(); // frame number -> position in the index
+        private final double[][][] decoded;
+
+        StatsMap(ByteBuffer data) {
+            this.data = data;
+            int nFrames = data.getInt(8);
+            this.nColumns = data.getInt(12);
+            this.columnMask = data.getLong(16);
+            this.decoded = new double[nFrames][][];
+            for (int i = 0; i < nFrames; i++) frameIndex.put(data.getInt(HEADER_BYTES + i * INDEX_BYTES), i);
+        }
+
+        @Override
+        public double[][] get(Object key) {
+            Integer i = frameIndex.get(key);
+            if (i == null) return null;
+            synchronized (decoded) {
+                if (decoded[i] == null) decoded[i] = decode(i);
+                return decoded[i];
+            }
+        }
+
+        private double[][] decode(int i) {
+            int entry = HEADER_BYTES + i * INDEX_BYTES;
+            int nRows = data.getInt(entry + 4);
+            int position = (int) data.getLong(entry + 8);
+            double[][] table = new double[nRows][nColumns];
+            for (int c = 0; c < nColumns; c++) {
+                if ((columnMask & (1L << c)) == 0) continue;
+                for (int r = 0; r < nRows; r++, position += 8) table[r][c] = data.getDouble(position);
+            }
+            return table;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return frameIndex.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return frameIndex.size();
+        }
+
+        @Override
+        public Set<Entry<Integer, double[][]>> entrySet() {
+            return new AbstractSet<Entry<Integer, double[][]>>() {
+                @Override
+                public Iterator<Entry<Integer, double[][]>> iterator() {
+                    Iterator<Integer> frames = frameIndex.keySet().iterator();
+                    return new Iterator<Entry<Integer, double[][]>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return frames.hasNext();
+                        }
+
+                        @Override
+                        public Entry<Integer, double[][]> next() {
+                            if (!hasNext()) throw new NoSuchElementException();
+                            Integer frame = frames.next();
+                            return new SimpleImmutableEntry<>(frame, get(frame));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return frameIndex.size();
+                }
+            };
+        }
+    }
+}
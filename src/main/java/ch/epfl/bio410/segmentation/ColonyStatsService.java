@@ -0,0 +1,102 @@
+package ch.epfl.bio410.segmentation;
+
+import ch.epfl.bio410.utils.FrameCache;
+import ch.epfl.bio410.utils.PipelineMetrics;
+import ij.ImagePlus;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Colony statistics of the frames of a label stack, computed on the CPU (see RegionStats) at most once per frame,
+ * and shared by all the tracks that need them (see Results.getColonyFeatures).
+ * Missing frames can be computed in parallel with prefetch ; the frames themselves are read one at a time.
+ * Usage :
+ * ColonyStatsService service = new ColonyStatsService(colonyLabels, imageDIC); // all the columns, as Colonies.getLabelStats
+ * service.prefetch(frames);
+ * double[][] stats = service.get(frame);
+ */
+public class ColonyStatsService {
+    private final ImagePlus labels;
+    private final ImagePlus imageDIC;
+    private final ThreadLocal<RegionStats> regionStats;
+    private final boolean needsIntensity;
+    private final Map<Integer, double[][]> stats = new ConcurrentHashMap<>();
+    private final Object readLock = new Object();
+
+    /**
+     * @param labels Colony labels
+     * @param imageDIC DIC channel, the intensity image of the statistics
+     */
+    public ColonyStatsService(ImagePlus labels, ImagePlus imageDIC) {
+        this(labels, imageDIC, Colonies.getColumnMapping().keySet().toArray(new String[0]));
+    }
+
+    /**
+     * @param labels Colony labels
+     * @param imageDIC DIC channel, the intensity image of the statistics (only read if a requested column needs it)
+     * @param features Names of the statistics to compute (see Colonies.getColumnMapping()), the other columns are left at 0
+     */
+    public ColonyStatsService(ImagePlus labels, ImagePlus imageDIC, String... features) {
+        this.labels = labels;
+        this.imageDIC = imageDIC;
+        this.needsIntensity = new RegionStats(features).needsIntensity(); // also checks the names
+        this.regionStats = ThreadLocal.withInitial(() -> new RegionStats(features));
+    }
+
+    /**
+     * @return whether the statistics are those of these images
+     */
+    public boolean isFor(ImagePlus labels, ImagePlus imageDIC) {
+        return this.labels == labels && this.imageDIC == imageDIC;
+    }
+
+    /**
+     * This method returns the statistics of a frame, computing them if they were not computed yet.
+     * @param frame Frame number, from 1 as in ImageStack
+     * @return the statistics table of the frame (not to be modified)
+     */
+    public double[][] get(int frame) {
+        double[][] cached = stats.get(frame);
+        if (cached != null) {
+            PipelineMetrics.current().count("colonyStats.hits", 1);
+            return cached;
+        }
+        // Two threads may compute the same frame, the statistics are the same
+        double[][] computed = compute(frame);
+        double[][] previous = stats.putIfAbsent(frame, computed);
+        return previous != null ? previous : computed;
+    }
+
+    /**
+     * This method computes the statistics of the frames that were not computed yet, in parallel.
+     * @param frames Frame numbers, from 1 as in ImageStack
+     */
+    public void prefetch(Collection<Integer> frames) {
+        frames.stream().distinct().filter(frame -> !stats.containsKey(frame)).parallel().forEach(this::get);
+    }
+
+    /**
+     * @return the number of frames whose statistics were computed
+     */
+    public int size() {
+        return stats.size();
+    }
+
+    private double[][] compute(int frame) {
+        long start = System.nanoTime();
+        FrameCache.Frame labelFrame;
+        FrameCache.Frame dicFrame;
+        // Virtual stacks are not safe to read from several threads
+        synchronized (readLock) {
+            labelFrame = FrameCache.getFrame(labels, "labels", frame);
+            dicFrame = needsIntensity ? FrameCache.getFrame(imageDIC, "dic", frame) : null;
+        }
+        double[][] table = regionStats.get().compute(labelFrame, dicFrame);
+        PipelineMetrics metrics = PipelineMetrics.current();
+        metrics.count("colonyStats.computed", 1);
+        metrics.recordFrame("colony_stats_service", frame, System.nanoTime() - start);
+        return table;
+    }
+}
@@ -0,0 +1,136 @@
+package ch.epfl.bio410.segmentation;
+
+/**
+ * Connected components labeling of binary masks on the CPU, with 8-connectivity
+ * (as connectedComponentsLabelingBox in CLIJ2).
+ * Two passes over the mask with a union-find on the provisional labels.
+ * Labels are numbered from 1 in the order of the first pixel of each component (row by row), as in CLIJ2.
+ * Usage :
+ * int[] labels = new int[width * height];
+ * int nLabels = ConnectedComponents.label(mask, width, height, labels);
+ * int[] areas = ConnectedComponents.areas(labels, nLabels);
+ */
+public class ConnectedComponents {
+    /** Per-thread union-find array, reused across frames. */
+    private static final ThreadLocal<int[][]> PARENT = ThreadLocal.withInitial(() -> new int[1][0]);
+
+    /**
+     * This method labels the connected components of a mask.
+     * @param mask Binary mask, any non-zero value is foreground
+     * @param width Width of the mask
+     * @param height Height of the mask
+     * @param labels Array of width*height to write the labels to (0 for the background)
+     * @return the number of labels
+     */
+    public static int label(byte[] mask, int width, int height, int[] labels) {
+        int[][] holder = PARENT.get();
+        if (holder[0].length < width * height / 2 + 2) holder[0] = new int[width * height / 2 + 2];
+        int[] parent = holder[0];
+        int next = 1;
+        // First pass : provisional labels, merged with the labels of the neighbors above and to the left
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int p = row + x;
+                if (mask[p] == 0) {
+                    labels[p] = 0;
+                    continue;
+                }
+                int label = 0;
+                if (x > 0) label = merge(parent, label, labels[p - 1]);
+                if (y > 0) {
+                    int above = p - width;
+                    if (x > 0) label = merge(parent, label, labels[above - 1]);
+                    label = merge(parent, label, labels[above]);
+                    if (x < width - 1) label = merge(parent, label, labels[above + 1]);
+                }
+                if (label == 0) {
+                    if (next >= parent.length) {
+                        parent = java.util.Arrays.copyOf(parent, parent.length * 2);
+                        holder[0] = parent;
+                    }
+                    parent[next] = next;
+                    label = next++;
+                }
+                labels[p] = label;
+            }
+        }
+        // Second pass : final labels, numbered in the order of the first pixel of each component
+        int[] relabel = new int[next];
+        int nLabels = 0;
+        for (int p = 0; p < width * height; p++) {
+            if (labels[p] == 0) continue;
+            int root = find(parent, labels[p]);
+            if (relabel[root] == 0) relabel[root] = ++nLabels;
+            labels[p] = relabel[root];
+        }
+        return nLabels;
+    }
+
+    /**
+     * This method counts the pixels of each label.
+     * @param labels Labels, from 0 to nLabels
+     * @param nLabels Number of labels
+     * @return the area of each label, indexed by label (index 0 is the background)
+     */
+    public static int[] areas(int[] labels, int nLabels) {
+        int[] areas = new int[nLabels + 1];
+        for (int label : labels) areas[label]++;
+        return areas;
+    }
+
+    /**
+     * This method sets to 0 the labels smaller than a minimum area, keeping the other labels unchanged
+     * (as Colonies.filterLabelsByArea).
+     * @param labels Labels, modified in place
+     * @param areas Area of each label
+     * @param minLabelArea Minimum area of a label to be kept
+     * @return the number of labels removed
+     */
+    public static int filterByArea(int[] labels, int[] areas, double minLabelArea) {
+        boolean[] removed = new boolean[areas.length];
+        int nRemoved = 0;
+        for (int label = 1; label < areas.length; label++) {
+            if (areas[label] < minLabelArea) {
+                removed[label] = true;
+                nRemoved++;
+            }
+        }
+        if (nRemoved == 0) return 0;
+        for (int p = 0; p < labels.length; p++) {
+            if (removed[labels[p]]) labels[p] = 0;
+        }
+        return nRemoved;
+    }
+
+    /**
+     * Union of the sets of two provisional labels (0 is no label).
+     * @return the root of the union
+     */
+    private static int merge(int[] parent, int a, int b) {
+        if (b == 0) return a;
+        if (a == 0) return find(parent, b);
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA == rootB) return rootA;
+        // Keep the smallest label as root
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+            return rootA;
+        }
+        parent[rootA] = rootB;
+        return rootB;
+    }
+
+    private static int find(int[] parent, int label) {
+        int root = label;
+        while (parent[root] != root) root = parent[root];
+        // Path compression
+        while (parent[label] != root) {
+            int next = parent[label];
+            parent[label] = root;
+            label = next;
+        }
+        return root;
+    }
+}
@@ -0,0 +1,171 @@
+package ch.epfl.bio410.segmentation;
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Exact Euclidean distance transform and nearest-label (feature) transform on the CPU,
+ * following Felzenszwalb and Huttenlocher (lower envelope of parabolas) : one pass over the columns, then one over the rows,
+ * each parallel over columns or rows.
+ * The feature transform gives, for each pixel, the index of the closest non-zero pixel of a label image :
+ * it backs the expansion of labels into a Voronoi diagram (as extendLabelingViaVoronoi in CLIJ2, without a GPU).
+ * Usage :
+ * int[] nearest = DistanceTransform.featureTransform(labels);
+ * ImageProcessor voronoi = DistanceTransform.expandLabels(labels, nearest);
+ */
+public class DistanceTransform {
+    /** Per-thread buffers of the row pass. */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+    /** Number of columns per task of the column pass. */
+    private static final int COLUMN_BLOCK = 64;
+
+    private static class Scratch {
+        int[] row = new int[0]; // closest non-zero row of each column, for the current row
+        int[] sites = new int[0]; // columns of the parabolas of the lower envelope
+        double[] bounds = new double[0]; // boundaries between the parabolas of the lower envelope
+
+        void ensure(int width) {
+            if (row.length < width) {
+                row = new int[width];
+                sites = new int[width];
+                bounds = new double[width + 1];
+            }
+        }
+    }
+
+    /**
+     * This method computes the feature transform of a label image.
+     * @param labels Label image (any type), 0 is the background
+     * @return the index (y * width + x) of the closest non-zero pixel of each pixel, -1 if the image is empty
+     */
+    public static int[] featureTransform(ImageProcessor labels) {
+        int width = labels.getWidth();
+        int height = labels.getHeight();
+        int[] nearest = new int[width * height];
+        // Columns : closest non-zero row in the same column, -1 if none.
+        // Blocks of columns in parallel, each scanned row by row to read the image in order
+        int nBlocks = (width + COLUMN_BLOCK - 1) / COLUMN_BLOCK;
+        IntStream.range(0, nBlocks).parallel().forEach(block -> {
+            int start = block * COLUMN_BLOCK;
+            int end = Math.min(width, start + COLUMN_BLOCK);
+            // Closest non-zero row above (or on) each pixel
+            for (int y = 0; y < height; y++) {
+                int offset = y * width;
+                for (int x = start; x < end; x++) {
+                    int p = offset + x;
+                    nearest[p] = labels.getf(p) != 0 ? y : (y > 0 ? nearest[p - width] : -1);
+                }
+            }
+            // Closest non-zero row below (or on) each pixel, kept if closer than the one above
+            int[] below = new int[end - start];
+            Arrays.fill(below, -1);
+            for (int y = height - 1; y >= 0; y--) {
+                int offset = y * width;
+                for (int x = start; x < end; x++) {
+                    int p = offset + x;
+                    int above = nearest[p];
+                    if (above == y) {
+                        below[x - start] = y;
+                    } else if (below[x - start] >= 0 && (above < 0 || below[x - start] - y < y - above)) {
+                        nearest[p] = below[x - start];
+                    }
+                }
+            }
+        });
+        // Rows : lower envelope of the parabolas (x - site)^2 + (y - row of the site)^2
+        IntStream.range(0, height).parallel().forEach(y -> transformRow(nearest, width, y));
+        return nearest;
+    }
+
+    /**
+     * Row pass of the feature transform, in place : replaces the closest row per column by the closest pixel.
+     */
+    private static void transformRow(int[] nearest, int width, int y) {
+        Scratch scratch = SCRATCH.get();
+        scratch.ensure(width);
+        int[] row = scratch.row;
+        int[] sites = scratch.sites;
+        double[] bounds = scratch.bounds;
+        int offset = y * width;
+        System.arraycopy(nearest, offset, row, 0, width);
+
+        int k = -1;
+        for (int q = 0; q < width; q++) {
+            if (row[q] < 0) continue;
+            double fq = sq(row[q] - y) + (double) q * q;
+            double s = Double.NEGATIVE_INFINITY;
+            while (k >= 0) {
+                int p = sites[k];
+                s = (fq - sq(row[p] - y) - (double) p * p) / (2.0 * (q - p));
+                if (s <= bounds[k]) k--;
+                else break;
+            }
+            k++;
+            sites[k] = q;
+            bounds[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+        }
+        if (k < 0) {
+            // No non-zero pixel in the image
+            for (int x = 0; x < width; x++) nearest[offset + x] = -1;
+            return;
+        }
+        bounds[k + 1] = Double.POSITIVE_INFINITY;
+        int j = 0;
+        for (int x = 0; x < width; x++) {
+            while (bounds[j + 1] < x) j++;
+            int site = sites[j];
+            nearest[offset + x] = row[site] * width + site;
+        }
+    }
+
+    /**
+     * This method computes the Euclidean distance of each pixel to the closest non-zero pixel.
+     * @param nearest Feature transform of the image (see featureTransform)
+     * @param width Width of the image
+     * @return the distances, in pixels (0 for the non-zero pixels, infinity if the image is empty)
+     */
+    public static float[] distances(int[] nearest, int width) {
+        float[] distances = new float[nearest.length];
+        for (int p = 0; p < nearest.length; p++) {
+            if (nearest[p] < 0) {
+                distances[p] = Float.POSITIVE_INFINITY;
+                continue;
+            }
+            int dx = p % width - nearest[p] % width;
+            int dy = p / width - nearest[p] / width;
+            distances[p] = (float) Math.sqrt((double) dx * dx + (double) dy * dy);
+        }
+        return distances;
+    }
+
+    /**
+     * This method expands the labels of an image to the background, each pixel taking the label of the closest labelled pixel
+     * (Voronoi diagram of the labels, as extendLabelingViaVoronoi in CLIJ2).
+     * Equidistant pixels can get a different label than with CLIJ2, which expands the labels one pixel at a time.
+     * @param labels Label image, 0 is the background
+     * @return the Voronoi diagram, of the type of the label image
+     */
+    public static ImageProcessor expandLabels(ImageProcessor labels) {
+        return expandLabels(labels, featureTransform(labels));
+    }
+
+    /**
+     * This method expands the labels of an image to the background, with a feature transform computed beforehand.
+     * @param labels Label image, 0 is the background
+     * @param nearest Feature transform of the label image (see featureTransform)
+     * @return the Voronoi diagram, of the type of the label image
+     */
+    public static ImageProcessor expandLabels(ImageProcessor labels, int[] nearest) {
+        ImageProcessor voronoi = labels.createProcessor(labels.getWidth(), labels.getHeight());
+        for (int p = 0; p < nearest.length; p++) {
+            if (nearest[p] >= 0) voronoi.setf(p, labels.getf(nearest[p]));
+        }
+        return voronoi;
+    }
+
+    private static double sq(int value) {
+        return (double) value * value;
+    }
+}
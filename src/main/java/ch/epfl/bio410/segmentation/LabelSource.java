@@ -0,0 +1,110 @@
+package ch.epfl.bio410.segmentation;
+
+import ch.epfl.bio410.utils.FrameCache;
+import ij.ImagePlus;
+import ij.plugin.FileInfoVirtualStack;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Frames of a label stack, loaded when they are needed instead of holding the whole stack in memory.
+ * Sources : an ImagePlus (possibly a virtual stack, whose decoded frames are shared between stages by FrameCache),
+ * a LabelStore, and an LRU cache of decoded frames on top of any of them.
+ * Frames are read in place (see FrameCache.Frame) : a frame cached by FrameCache is not copied.
+ * Usage :
+ * ImagePlus labels = LabelSource.openImage(tiffFile, "Colony labels"); // compressed store, or TIFF read frame by frame
+ * LabelSource source = LabelSource.cached(LabelSource.of(labels), 8);
+ * int label = source.getFrame(i).get(x, y);
+ */
+public interface LabelSource {
+    /**
+     * @return the number of frames
+     */
+    int getSize();
+
+    /**
+     * @param frame Frame number, from 1 as in ImageStack
+     * @return the labels of the frame, read-only
+     */
+    FrameCache.Frame getFrame(int frame);
+
+    /**
+     * @param image Label stack, loaded or virtual
+     * @return a source reading the frames of the stack (for a virtual stack, through the shared FrameCache)
+     */
+    static LabelSource of(ImagePlus image) {
+        return new LabelSource() {
+            @Override
+            public int getSize() {
+                return image.getStackSize();
+            }
+
+            @Override
+            public FrameCache.Frame getFrame(int frame) {
+                return FrameCache.getFrame(image, "labels", frame);
+            }
+        };
+    }
+
+    /**
+     * @param store Compressed label stack
+     * @return a source decoding the frames of the store
+     */
+    static LabelSource of(LabelStore.Reader store) {
+        return new LabelSource() {
+            @Override
+            public int getSize() {
+                return store.getSize();
+            }
+
+            @Override
+            public FrameCache.Frame getFrame(int frame) {
+                return FrameCache.Frame.of(store.getFrame(frame));
+            }
+        };
+    }
+
+    /**
+     * @param source Source of the frames
+     * @param maxFrames Maximum number of frames kept in memory
+     * @return a source keeping the last frames used, and loading the others from source
+     */
+    static LabelSource cached(LabelSource source, int maxFrames) {
+        Map<Integer, FrameCache.Frame> frames = new LinkedHashMap<Integer, FrameCache.Frame>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, FrameCache.Frame> eldest) {
+                return size() > maxFrames;
+            }
+        };
+        return new LabelSource() {
+            @Override
+            public int getSize() {
+                return source.getSize();
+            }
+
+            @Override
+            public FrameCache.Frame getFrame(int frame) {
+                synchronized (frames) {
+                    return frames.computeIfAbsent(frame, source::getFrame);
+                }
+            }
+        };
+    }
+
+    /**
+     * This method opens a saved label stack without loading all its frames :
+     * from the compressed store next to the TIFF if it matches it (see LabelStore), or else from the TIFF, frame by frame.
+     * @param tiffFile TIFF of the label stack
+     * @param title Title of the image
+     * @return the label stack, as a virtual stack, or null if the TIFF cannot be opened
+     */
+    static ImagePlus openImage(File tiffFile, String title) {
+        LabelStore.Reader store = LabelStore.open(LabelStore.storeFile(tiffFile), tiffFile);
+        if (store != null) return store.toImagePlus(title);
+        ImagePlus image = FileInfoVirtualStack.openVirtual(tiffFile.getPath());
+        if (image != null) image.setTitle(title);
+        return image;
+    }
+}
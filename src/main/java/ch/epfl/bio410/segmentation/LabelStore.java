@@ -0,0 +1,390 @@
+package ch.epfl.bio410.segmentation;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed label stacks (colony labels, Voronoi diagrams), one chunk per frame, with random access to the frames.
+ * Each frame is run-length encoded (label, run length) row by row, then compressed with Deflate :
+ * label images are long runs of the same value, and shrink by one to two orders of magnitude compared to the TIFF.
+ * File layout, little-endian :
+ * - header : magic "RLBL", version, width, height, number of frames, bit depth of the stack,
+ *   length and modification time of the TIFF saved with it (to detect a TIFF modified since)
+ * - index : for each frame, the offset and length of its chunk
+ * - chunks
+ * Frames are encoded in the background as they are added, while the next frames are labelled,
+ * by encoders shared by all the writers (ENCODER_THREADS threads), or by an executor of the caller.
+ * Usage :
+ * try (LabelStore.Writer writer = new LabelStore.Writer(width, height)) {
+ *     writer.add(frame); // for each frame, in order
+ *     writer.write(LabelStore.storeFile(tiffFile), tiffFile);
+ * } // the frames not written are dropped
+ * LabelStore.Reader reader = LabelStore.open(LabelStore.storeFile(tiffFile), tiffFile); // null if missing or stale
+ * ImagePlus labels = reader.toImagePlus("Labels"); // frames decoded when accessed
+ */
+public class LabelStore {
+    private static final int MAGIC = 0x4c424c52; // "RLBL" in little-endian
+    /** Version of the file format, increased on any change of the layout. */
+    public static final int VERSION = 2;
+    /** Threads of the encoders shared by the writers : the labeling of the frames keeps ahead of one, mostly idle. */
+    public static final int ENCODER_THREADS = 1;
+    private static final int HEADER_BYTES = 6 * 4 + 8 + 8;
+    private static final int INDEX_BYTES = 8 + 4;
+    private static ExecutorService sharedEncoders = null;
+
+    /**
+     * @return the encoders shared by the writers created without an executor (daemon threads, never shut down)
+     */
+    static synchronized ExecutorService sharedEncoders() {
+        if (sharedEncoders == null) {
+            sharedEncoders = Executors.newFixedThreadPool(ENCODER_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "LabelStore encoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sharedEncoders;
+    }
+
+    /**
+     * @param tiffFile TIFF of a label stack, e.g. {ImageName}_colony_labels.tif
+     * @return the compressed store saved next to it, e.g. {ImageName}_colony_labels.lbl
+     */
+    public static File storeFile(File tiffFile) {
+        String name = tiffFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(tiffFile.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".lbl");
+    }
+
+    /**
+     * Encodes the frames of a label stack in the background, and writes them to a store.
+     * Frames must be added in order, and not modified afterwards.
+     * Close the writer once done with it (after write, or instead of it) : the frames not encoded yet are dropped.
+     */
+    public static class Writer implements AutoCloseable {
+        private final int width;
+        private final int height;
+        private final ExecutorService encoders;
+        private final List<Future<byte[]>> chunks = new ArrayList<>();
+        private int bitDepth = 0;
+        private boolean closed = false;
+
+        /**
+         * @param width Width of the frames
+         * @param height Height of the frames
+         */
+        public Writer(int width, int height) {
+            this(width, height, sharedEncoders());
+        }
+
+        /**
+         * @param width Width of the frames
+         * @param height Height of the frames
+         * @param encoders Executor encoding the frames, not shut down by the writer
+         */
+        public Writer(int width, int height, ExecutorService encoders) {
+            this.width = width;
+            this.height = height;
+            this.encoders = encoders;
+        }
+
+        /**
+         * Add the next frame, encoded in the background.
+         * @param frame Label image (8-bit, 16-bit or 32-bit), the first frame sets the type of the stack
+         */
+        public synchronized void add(ImageProcessor frame) {
+            if (frame.getWidth() != width || frame.getHeight() != height) {
+                throw new IllegalArgumentException("Frame of " + frame.getWidth() + "x" + frame.getHeight() + " in a " + width + "x" + height + " store");
+            }
+            if (closed) throw new IllegalStateException("Frame added to a closed store");
+            if (bitDepth == 0) bitDepth = frame.getBitDepth();
+            chunks.add(encoders.submit(() -> encode(frame)));
+        }
+
+        /**
+         * @return the number of frames added
+         */
+        public synchronized int size() {
+            return chunks.size();
+        }
+
+        /**
+         * Wait for the frames to be encoded, and write the store.
+         * The file is written next to its final name, then moved, so that a reader never sees a partial file
+         * (see ColonyStatsIO.replaceSidecar).
+         * @param file File to write
+         * @param tiffFile TIFF saved with the store (already written), or null
+         * @throws IOException If the file cannot be written
+         */
+        public synchronized void write(File file, File tiffFile) throws IOException {
+            if (closed) throw new IOException("The store of " + file.getName() + " was closed before it was written");
+            List<byte[]> encoded = new ArrayList<>();
+            try {
+                for (Future<byte[]> chunk : chunks) encoded.add(chunk.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while encoding the labels", e);
+            } catch (ExecutionException | CancellationException e) {
+                throw new IOException("Failed to encode the labels", e.getCause() != null ? e.getCause() : e);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + INDEX_BYTES * encoded.size()).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(encoded.size()).putInt(bitDepth);
+            header.putLong(tiffFile != null ? tiffFile.length() : -1).putLong(tiffFile != null ? tiffFile.lastModified() : -1);
+            long offset = header.capacity();
+            for (byte[] chunk : encoded) {
+                header.putLong(offset).putInt(chunk.length);
+                offset += chunk.length;
+            }
+            File temporary = new File(file.getPath() + ".tmp");
+            try (RandomAccessFile output = new RandomAccessFile(temporary, "rw")) {
+                output.setLength(0);
+                output.write(header.array());
+                for (byte[] chunk : encoded) output.write(chunk);
+            }
+            ColonyStatsIO.replaceSidecar(temporary, file);
+        }
+
+        /**
+         * Stop encoding, and drop the frames (written or not). The encoders are left to the other writers.
+         */
+        @Override
+        public synchronized void close() {
+            closed = true;
+            for (Future<byte[]> chunk : chunks) chunk.cancel(false);
+            chunks.clear();
+        }
+    }
+
+    /**
+     * This method opens a store.
+     * @param file Store file
+     * @param tiffFile TIFF saved with the store, or null not to check it
+     * @return the reader, or null if the file is missing, of another version, or the TIFF was modified since
+     */
+    public static Reader open(File file, File tiffFile) {
+        if (!file.exists()) return null;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < HEADER_BYTES || mapped.getInt(0) != MAGIC) {
+                IJ.log("Ignoring " + file.getName() + " : not a label store");
+                return null;
+            }
+            if (mapped.getInt(4) != VERSION) {
+                IJ.log("Ignoring " + file.getName() + " : version " + mapped.getInt(4) + " instead of " + VERSION);
+                return null;
+            }
+            if (tiffFile != null && (mapped.getLong(24) != tiffFile.length() || mapped.getLong(32) != tiffFile.lastModified())) {
+                IJ.log("Ignoring " + file.getName() + " : " + tiffFile.getName() + " was modified since");
+                return null;
+            }
+            // The mapping stays valid after the channel is closed
+            return new Reader(mapped);
+        } catch (IOException e) {
+            IJ.log("Failed to read " + file.getPath() + " : " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Random access to the frames of a store. Safe to use from several threads at once.
+     */
+    public static class Reader {
+        private final ByteBuffer data;
+        private final int width;
+        private final int height;
+        private final int nFrames;
+        private final int bitDepth;
+        // Last decoded frame, as frames are often read several times in a row
+        private int cachedFrame = -1;
+        private ImageProcessor cached;
+
+        Reader(ByteBuffer data) {
+            this.data = data;
+            this.width = data.getInt(8);
+            this.height = data.getInt(12);
+            this.nFrames = data.getInt(16);
+            this.bitDepth = data.getInt(20);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return the number of frames
+         */
+        public int getSize() {
+            return nFrames;
+        }
+
+        /**
+         * This method decodes a frame.
+         * @param frame Frame number, from 1 as in ImageStack
+         * @return the labels of the frame, of the type of the stack saved (not to be modified)
+         */
+        public synchronized ImageProcessor getFrame(int frame) {
+            if (frame < 1 || frame > nFrames) {
+                throw new IllegalArgumentException("Frame " + frame + " out of 1-" + nFrames);
+            }
+            if (frame != cachedFrame) {
+                int entry = HEADER_BYTES + (frame - 1) * INDEX_BYTES;
+                long offset = data.getLong(entry);
+                int length = data.getInt(entry + 8);
+                byte[] chunk = new byte[length];
+                ByteBuffer view = data.duplicate();
+                view.position((int) offset);
+                view.get(chunk);
+                cached = decode(chunk, width, height, bitDepth);
+                cachedFrame = frame;
+            }
+            return cached;
+        }
+
+        /**
+         * @param title Title of the image
+         * @return the stack as an image, whose frames are decoded when accessed (ImageJ virtual stack)
+         */
+        public ImagePlus toImagePlus(String title) {
+            Reader reader = this;
+            VirtualStack stack = new VirtualStack(width, height, null, null) {
+                @Override
+                public ImageProcessor getProcessor(int n) {
+                    return reader.getFrame(n).duplicate();
+                }
+
+                @Override
+                public int getSize() {
+                    return nFrames;
+                }
+
+                @Override
+                public String getSliceLabel(int n) {
+                    return null;
+                }
+
+                @Override
+                public int getBitDepth() {
+                    return bitDepth;
+                }
+            };
+            return new ImagePlus(title, stack);
+        }
+    }
+
+    /**
+     * Run-length encoding of a frame (label, run length as varints, row by row), compressed with Deflate.
+     */
+    static byte[] encode(ImageProcessor frame) {
+        int nPixels = frame.getWidth() * frame.getHeight();
+        ByteArrayOutputStream runs = new ByteArrayOutputStream(1024);
+        int p = 0;
+        while (p < nPixels) {
+            int label = (int) frame.getf(p);
+            int start = p;
+            while (p < nPixels && (int) frame.getf(p) == label) p++;
+            writeVarint(runs, label);
+            writeVarint(runs, p - start);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(runs.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(runs.size() / 4 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            compressed.write(buffer, 0, n);
+        }
+        deflater.end();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Decoding of a chunk written by encode.
+     */
+    static ImageProcessor decode(byte[] chunk, int width, int height, int bitDepth) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(chunk);
+        ByteArrayOutputStream runs = new ByteArrayOutputStream(chunk.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated label chunk");
+                }
+                runs.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted label chunk", e);
+        } finally {
+            inflater.end();
+        }
+        ImageProcessor frame;
+        switch (bitDepth) {
+            case 8: frame = new ByteProcessor(width, height); break;
+            case 16: frame = new ShortProcessor(width, height); break;
+            default: frame = new FloatProcessor(width, height); break;
+        }
+        byte[] encoded = runs.toByteArray();
+        int[] position = {0};
+        int p = 0;
+        while (position[0] < encoded.length) {
+            int label = readVarint(encoded, position);
+            int length = readVarint(encoded, position);
+            if (label != 0) {
+                for (int i = p; i < p + length; i++) frame.setf(i, label);
+            }
+            p += length;
+        }
+        return frame;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] in, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[position[0]++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,281 @@
+package ch.epfl.bio410.segmentation;
+
+import ch.epfl.bio410.utils.FrameCache;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Statistics of the labels of a frame on the CPU, with the layout of statisticsOfBackgroundAndLabelledPixels in CLIJ2
+ * (one row per label from 0, the background, to the largest label, and the 36 columns of Colonies.getColumnMapping()),
+ * but only for the requested columns : the others are left at 0.
+ * All the columns need one pass over the pixels, except the distances to the mass center and centroid, which need two.
+ * The per-label accumulators are kept from one frame to the next, so that computing the statistics
+ * of a stack allocates only the tables. An instance is not thread-safe : use one per thread.
+ * Usage :
+ * RegionStats regionStats = new RegionStats("IDENTIFIER", "PIXEL_COUNT");
+ * double[][] stats = regionStats.compute(labels, null); // no intensity needed for these columns
+ * double area = stats[label][Colonies.getColumnMapping().get("PIXEL_COUNT")];
+ */
+public class RegionStats {
+    /** Number of columns of the statistics table, as in CLIJ2. */
+    public static final int COLUMNS = 36;
+    /** Columns used by the pipeline (colony areas, see Plots.plotColonyFeaturePerTrack). */
+    public static final String[] DEFAULT_FEATURES = {"IDENTIFIER", "PIXEL_COUNT"};
+
+    private static final Map<String, Integer> COLUMN = Colonies.getColumnMapping();
+
+    private final boolean[] requested = new boolean[COLUMNS];
+    private final boolean boundingBox;
+    private final boolean intensity;
+    private final boolean positions;
+    private final boolean weightedPositions;
+    private final boolean distances;
+
+    // Per-label accumulators, reused across frames
+    private int capacity = 0;
+    private long[] count;
+    private int[] minX, minY, maxX, maxY;
+    private double[] minIntensity, maxIntensity, sumIntensity, sumSquaredIntensity;
+    private double[] sumX, sumY, sumIntensityX, sumIntensityY;
+    private double[] sumDistanceMassCenter, maxDistanceMassCenter, sumDistanceCentroid, maxDistanceCentroid;
+
+    /**
+     * @param features Names of the columns to compute (see Colonies.getColumnMapping()), e.g. DEFAULT_FEATURES
+     */
+    public RegionStats(String... features) {
+        for (String feature : features) {
+            Integer column = COLUMN.get(feature);
+            if (column == null) throw new IllegalArgumentException("Unknown statistic : " + feature);
+            requested[column] = true;
+        }
+        boundingBox = any("BOUNDING_BOX_X", "BOUNDING_BOX_Y", "BOUNDING_BOX_Z", "BOUNDING_BOX_END_X", "BOUNDING_BOX_END_Y",
+                "BOUNDING_BOX_END_Z", "BOUNDING_BOX_WIDTH", "BOUNDING_BOX_HEIGHT", "BOUNDING_BOX_DEPTH");
+        distances = any("SUM_DISTANCE_TO_MASS_CENTER", "MEAN_DISTANCE_TO_MASS_CENTER", "MAX_DISTANCE_TO_MASS_CENTER",
+                "MAX_MEAN_DISTANCE_TO_MASS_CENTER_RATIO", "SUM_DISTANCE_TO_CENTROID", "MEAN_DISTANCE_TO_CENTROID",
+                "MAX_DISTANCE_TO_CENTROID", "MAX_MEAN_DISTANCE_TO_CENTROID_RATIO");
+        weightedPositions = distances || any("SUM_INTENSITY_TIMES_X", "SUM_INTENSITY_TIMES_Y", "SUM_INTENSITY_TIMES_Z",
+                "MASS_CENTER_X", "MASS_CENTER_Y", "MASS_CENTER_Z");
+        positions = distances || any("SUM_X", "SUM_Y", "SUM_Z", "CENTROID_X", "CENTROID_Y", "CENTROID_Z");
+        intensity = weightedPositions || any("MINIMUM_INTENSITY", "MAXIMUM_INTENSITY", "MEAN_INTENSITY", "SUM_INTENSITY",
+                "STANDARD_DEVIATION_INTENSITY");
+    }
+
+    private boolean any(String... features) {
+        for (String feature : features) {
+            if (requested[COLUMN.get(feature)]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the requested columns depend on the intensity image
+     */
+    public boolean needsIntensity() {
+        return intensity;
+    }
+
+    /**
+     * This method computes the statistics of the labels of a frame.
+     * @param labels Label image (0 is the background)
+     * @param intensities Intensity image of the same size (e.g. the thresholded DIC frame), or null if needsIntensity() is false
+     * @return the statistics table, one row per label from 0 to the largest label
+     */
+    public double[][] compute(ImageProcessor labels, ImageProcessor intensities) {
+        return compute(FrameCache.Frame.of(labels), intensities == null ? null : FrameCache.Frame.of(intensities));
+    }
+
+    /**
+     * This method computes the statistics of the labels of a frame, read in place (e.g. from FrameCache.getFrame).
+     * @param labels Label frame (0 is the background)
+     * @param intensities Intensity frame of the same size, or null if needsIntensity() is false
+     * @return the statistics table, one row per label from 0 to the largest label
+     */
+    public double[][] compute(FrameCache.Frame labels, FrameCache.Frame intensities) {
+        if (intensity && intensities == null) {
+            throw new IllegalArgumentException("An intensity image is needed for the requested statistics");
+        }
+        int width = labels.getWidth();
+        int height = labels.getHeight();
+        int nLabels = 0;
+        for (int p = 0; p < width * height; p++) {
+            int label = (int) labels.getf(p);
+            if (label > nLabels) nLabels = label;
+        }
+        reset(nLabels + 1);
+
+        for (int y = 0, p = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, p++) {
+                int label = (int) labels.getf(p);
+                count[label]++;
+                if (boundingBox) {
+                    if (x < minX[label]) minX[label] = x;
+                    if (x > maxX[label]) maxX[label] = x;
+                    if (y < minY[label]) minY[label] = y;
+                    if (y > maxY[label]) maxY[label] = y;
+                }
+                if (positions) {
+                    sumX[label] += x;
+                    sumY[label] += y;
+                }
+                if (intensity) {
+                    double value = intensities.getf(p);
+                    if (value < minIntensity[label]) minIntensity[label] = value;
+                    if (value > maxIntensity[label]) maxIntensity[label] = value;
+                    sumIntensity[label] += value;
+                    sumSquaredIntensity[label] += value * value;
+                    if (weightedPositions) {
+                        sumIntensityX[label] += value * x;
+                        sumIntensityY[label] += value * y;
+                    }
+                }
+            }
+        }
+        if (distances) {
+            // Second pass, once the centers are known
+            for (int y = 0, p = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, p++) {
+                    int label = (int) labels.getf(p);
+                    double toMassCenter = Math.hypot(x - sumIntensityX[label] / sumIntensity[label], y - sumIntensityY[label] / sumIntensity[label]);
+                    double toCentroid = Math.hypot(x - sumX[label] / count[label], y - sumY[label] / count[label]);
+                    sumDistanceMassCenter[label] += toMassCenter;
+                    if (toMassCenter > maxDistanceMassCenter[label]) maxDistanceMassCenter[label] = toMassCenter;
+                    sumDistanceCentroid[label] += toCentroid;
+                    if (toCentroid > maxDistanceCentroid[label]) maxDistanceCentroid[label] = toCentroid;
+                }
+            }
+        }
+        return table(nLabels + 1);
+    }
+
+    /**
+     * Size and clear the accumulators for a frame with nRows labels (including the background).
+     */
+    private void reset(int nRows) {
+        if (nRows > capacity) {
+            capacity = Math.max(nRows, capacity * 2);
+            count = new long[capacity];
+            if (boundingBox) {
+                minX = new int[capacity];
+                minY = new int[capacity];
+                maxX = new int[capacity];
+                maxY = new int[capacity];
+            }
+            if (intensity) {
+                minIntensity = new double[capacity];
+                maxIntensity = new double[capacity];
+                sumIntensity = new double[capacity];
+                sumSquaredIntensity = new double[capacity];
+            }
+            if (positions) {
+                sumX = new double[capacity];
+                sumY = new double[capacity];
+            }
+            if (weightedPositions) {
+                sumIntensityX = new double[capacity];
+                sumIntensityY = new double[capacity];
+            }
+            if (distances) {
+                sumDistanceMassCenter = new double[capacity];
+                maxDistanceMassCenter = new double[capacity];
+                sumDistanceCentroid = new double[capacity];
+                maxDistanceCentroid = new double[capacity];
+            }
+        }
+        Arrays.fill(count, 0, nRows, 0);
+        if (boundingBox) {
+            Arrays.fill(minX, 0, nRows, Integer.MAX_VALUE);
+            Arrays.fill(minY, 0, nRows, Integer.MAX_VALUE);
+            Arrays.fill(maxX, 0, nRows, Integer.MIN_VALUE);
+            Arrays.fill(maxY, 0, nRows, Integer.MIN_VALUE);
+        }
+        if (intensity) {
+            Arrays.fill(minIntensity, 0, nRows, Double.POSITIVE_INFINITY);
+            Arrays.fill(maxIntensity, 0, nRows, Double.NEGATIVE_INFINITY);
+            Arrays.fill(sumIntensity, 0, nRows, 0);
+            Arrays.fill(sumSquaredIntensity, 0, nRows, 0);
+        }
+        if (positions) {
+            Arrays.fill(sumX, 0, nRows, 0);
+            Arrays.fill(sumY, 0, nRows, 0);
+        }
+        if (weightedPositions) {
+            Arrays.fill(sumIntensityX, 0, nRows, 0);
+            Arrays.fill(sumIntensityY, 0, nRows, 0);
+        }
+        if (distances) {
+            Arrays.fill(sumDistanceMassCenter, 0, nRows, 0);
+            Arrays.fill(maxDistanceMassCenter, 0, nRows, 0);
+            Arrays.fill(sumDistanceCentroid, 0, nRows, 0);
+            Arrays.fill(maxDistanceCentroid, 0, nRows, 0);
+        }
+    }
+
+    /**
+     * Statistics table from the accumulators, with only the requested columns filled.
+     */
+    private double[][] table(int nRows) {
+        double[][] table = new double[nRows][COLUMNS];
+        for (int label = 0; label < nRows; label++) {
+            double[] row = table[label];
+            double n = count[label];
+            set(row, "IDENTIFIER", label);
+            set(row, "PIXEL_COUNT", n);
+            if (n == 0) continue;
+            if (boundingBox) {
+                set(row, "BOUNDING_BOX_X", minX[label]);
+                set(row, "BOUNDING_BOX_Y", minY[label]);
+                set(row, "BOUNDING_BOX_Z", 0);
+                set(row, "BOUNDING_BOX_END_X", maxX[label]);
+                set(row, "BOUNDING_BOX_END_Y", maxY[label]);
+                set(row, "BOUNDING_BOX_END_Z", 0);
+                set(row, "BOUNDING_BOX_WIDTH", maxX[label] - minX[label] + 1);
+                set(row, "BOUNDING_BOX_HEIGHT", maxY[label] - minY[label] + 1);
+                set(row, "BOUNDING_BOX_DEPTH", 1);
+            }
+            if (intensity) {
+                double mean = sumIntensity[label] / n;
+                set(row, "MINIMUM_INTENSITY", minIntensity[label]);
+                set(row, "MAXIMUM_INTENSITY", maxIntensity[label]);
+                set(row, "MEAN_INTENSITY", mean);
+                set(row, "SUM_INTENSITY", sumIntensity[label]);
+                set(row, "STANDARD_DEVIATION_INTENSITY", Math.sqrt(Math.max(0, sumSquaredIntensity[label] / n - mean * mean)));
+            }
+            if (weightedPositions) {
+                set(row, "SUM_INTENSITY_TIMES_X", sumIntensityX[label]);
+                set(row, "SUM_INTENSITY_TIMES_Y", sumIntensityY[label]);
+                set(row, "SUM_INTENSITY_TIMES_Z", 0);
+                set(row, "MASS_CENTER_X", sumIntensityX[label] / sumIntensity[label]);
+                set(row, "MASS_CENTER_Y", sumIntensityY[label] / sumIntensity[label]);
+                set(row, "MASS_CENTER_Z", 0);
+            }
+            if (positions) {
+                set(row, "SUM_X", sumX[label]);
+                set(row, "SUM_Y", sumY[label]);
+                set(row, "SUM_Z", 0);
+                set(row, "CENTROID_X", sumX[label] / n);
+                set(row, "CENTROID_Y", sumY[label] / n);
+                set(row, "CENTROID_Z", 0);
+            }
+            if (distances) {
+                double meanToMassCenter = sumDistanceMassCenter[label] / n;
+                double meanToCentroid = sumDistanceCentroid[label] / n;
+                set(row, "SUM_DISTANCE_TO_MASS_CENTER", sumDistanceMassCenter[label]);
+                set(row, "MEAN_DISTANCE_TO_MASS_CENTER", meanToMassCenter);
+                set(row, "MAX_DISTANCE_TO_MASS_CENTER", maxDistanceMassCenter[label]);
+                set(row, "MAX_MEAN_DISTANCE_TO_MASS_CENTER_RATIO", maxDistanceMassCenter[label] / meanToMassCenter);
+                set(row, "SUM_DISTANCE_TO_CENTROID", sumDistanceCentroid[label]);
+                set(row, "MEAN_DISTANCE_TO_CENTROID", meanToCentroid);
+                set(row, "MAX_DISTANCE_TO_CENTROID", maxDistanceCentroid[label]);
+                set(row, "MAX_MEAN_DISTANCE_TO_CENTROID_RATIO", maxDistanceCentroid[label] / meanToCentroid);
+            }
+        }
+        return table;
+    }
+
+    private void set(double[] row, String feature, double value) {
+        int column = COLUMN.get(feature);
+        if (requested[column]) row[column] = value;
+    }
+}
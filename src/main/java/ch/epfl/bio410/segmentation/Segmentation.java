@@ -2,16 +2,401 @@ package ch.epfl.bio410.segmentation;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * This class implements Segmentation.
+ * segment runs the ImageJ "Convert to Mask" command on the image, in place.
+ * denoiseAndSegment does the same as utils.remove_noise followed by segment, in pure Java :
+ * median filter (as ImageJ's Median... command) then per-frame automatic threshold (as Convert to Mask
+ * with "calculate black"), with frames processed in parallel and written to a preallocated binary stack.
+ * The per-frame step, segmentFrame, works on primitive arrays so that it can be fused with later per-frame passes.
  */
 
 public class Segmentation {
+    /** Radius of the median filter used to remove noise in the DIC channel (see utils.remove_noise). */
+    public static final int MEDIAN_RADIUS = 2;
+    /** Value of the foreground in the binary masks, as with a black background in ImageJ. */
+    public static final int FOREGROUND = 255;
+
+    /** Per-thread buffers, reused across frames. */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
 
     public static void segment(ImagePlus imp) {
         // Otsu, Default and IsoData work well
         IJ.run(imp, "Convert to Mask", "method=Otsu background=Light calculate black");
     }
 
+    /**
+     * This method removes noise and segments each frame of the DIC channel, without modifying it.
+     * Same result as utils.remove_noise then segment, with the given threshold method.
+     * @param imp ImagePlus object containing the DIC channel (8-bit, 16-bit or 32-bit)
+     * @param method Threshold method, e.g. AutoThresholder.Method.Otsu (IsoData and Default work well too)
+     * @return ImagePlus object with the binary masks (foreground 255), calibrated as imp
+     */
+    public static ImagePlus denoiseAndSegment(ImagePlus imp, AutoThresholder.Method method) {
+        ImageStack masks = denoiseAndSegment(imp.getStack(), MEDIAN_RADIUS, method, true, null);
+        ImagePlus result = new ImagePlus(imp.getTitle(), masks);
+        result.setCalibration(imp.getCalibration());
+        return result;
+    }
+
+    /**
+     * This method removes noise and segments each frame of a stack, in parallel over frames.
+     * @param stack Stack of frames (8-bit, 16-bit or 32-bit)
+     * @param medianRadius Radius of the median filter, 0 for none
+     * @param method Threshold method
+     * @param lightBackground Whether the background is lighter than the objects (as in the DIC channel)
+     * @param masks Preallocated 8-bit stack of the same size to write the masks to, or null to allocate it
+     * @return the stack of binary masks (foreground 255)
+     */
+    public static ImageStack denoiseAndSegment(ImageStack stack, int medianRadius, AutoThresholder.Method method,
+                                               boolean lightBackground, ImageStack masks) {
+        if (masks == null) {
+            masks = new ImageStack(stack.getWidth(), stack.getHeight());
+            for (int i = 1; i <= stack.getSize(); i++) {
+                masks.addSlice(stack.getSliceLabel(i), new ByteProcessor(stack.getWidth(), stack.getHeight()));
+            }
+        }
+        ImageStack output = masks;
+        IntStream.rangeClosed(1, stack.getSize()).parallel().forEach(i ->
+                segmentFrame(stack.getProcessor(i), medianRadius, method, lightBackground, (byte[]) output.getPixels(i)));
+        return output;
+    }
+
+    /**
+     * This method removes noise and segments one frame.
+     * The frame is not modified. Safe to call from several threads at once.
+     * @param frame Frame to segment (8-bit, 16-bit or 32-bit)
+     * @param medianRadius Radius of the median filter, 0 for none
+     * @param method Threshold method
+     * @param lightBackground Whether the background is lighter than the objects
+     * @param mask Array of width*height to write the binary mask to (255 foreground, 0 background), or null to allocate it
+     * @return the mask
+     */
+    public static byte[] segmentFrame(ImageProcessor frame, int medianRadius, AutoThresholder.Method method,
+                                      boolean lightBackground, byte[] mask) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (mask == null) mask = new byte[width * height];
+        Scratch scratch = SCRATCH.get();
+        if (frame instanceof ByteProcessor || frame instanceof ShortProcessor) {
+            int[] pixels = scratch.pixels(width * height);
+            readPixels(frame, pixels);
+            int[] filtered = pixels;
+            if (medianRadius > 0) {
+                filtered = scratch.filtered(width * height);
+                medianFilter(pixels, filtered, width, height, medianRadius, frame instanceof ByteProcessor ? 256 : 0, scratch);
+            }
+            thresholdInts(filtered, mask, frame instanceof ByteProcessor, method, lightBackground);
+        } else {
+            float[] pixels = (float[]) frame.convertToFloat().getPixels();
+            float[] filtered = pixels;
+            if (medianRadius > 0) {
+                filtered = new float[width * height];
+                medianFilter(pixels, filtered, width, height, medianRadius, scratch);
+            }
+            thresholdFloats(filtered, mask, width, height, method, lightBackground);
+        }
+        return mask;
+    }
+
+    /**
+     * This method applies a median filter to a stack, in parallel over frames.
+     * Same result as IJ.run(imp, "Median...", "radius=... stack"), without modifying the stack.
+     * @param stack Stack of frames (8-bit, 16-bit or 32-bit)
+     * @param radius Radius of the filter
+     * @return the filtered stack, of the same type
+     */
+    public static ImageStack medianFilter(ImageStack stack, int radius) {
+        ImageStack result = new ImageStack(stack.getWidth(), stack.getHeight());
+        ImageProcessor[] filtered = new ImageProcessor[stack.getSize()];
+        IntStream.range(0, stack.getSize()).parallel().forEach(i -> {
+            ImageProcessor frame = stack.getProcessor(i + 1);
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            ImageProcessor output;
+            Scratch scratch = SCRATCH.get();
+            if (frame instanceof ByteProcessor || frame instanceof ShortProcessor) {
+                output = frame.createProcessor(width, height);
+                int[] pixels = scratch.pixels(width * height);
+                readPixels(frame, pixels);
+                int[] values = scratch.filtered(width * height);
+                medianFilter(pixels, values, width, height, radius, frame instanceof ByteProcessor ? 256 : 0, scratch);
+                for (int p = 0; p < width * height; p++) output.set(p, values[p]);
+            } else {
+                float[] values = new float[width * height];
+                medianFilter((float[]) frame.convertToFloat().getPixels(), values, width, height, radius, scratch);
+                output = new FloatProcessor(width, height, values);
+            }
+            filtered[i] = output;
+        });
+        for (int i = 0; i < filtered.length; i++) result.addSlice(stack.getSliceLabel(i + 1), filtered[i]);
+        return result;
+    }
+
+    /**
+     * Half-widths of the rows of ImageJ's circular kernel (see RankFilters), from dy = -radius to radius.
+     */
+    static int[] kernelHalfWidths(int radius) {
+        int r2 = radius * radius + 1;
+        int[] halfWidths = new int[2 * radius + 1];
+        for (int dy = -radius; dy <= radius; dy++) {
+            halfWidths[dy + radius] = (int) Math.sqrt(r2 - dy * dy + 1e-10);
+        }
+        return halfWidths;
+    }
+
+    /**
+     * Median filter on integer pixels. Outside the image, the nearest edge pixel is used, as in ImageJ.
+     * With 8-bit data (nBins = 256), the median is tracked in a sliding histogram along each row (Huang's algorithm).
+     * With 16-bit data, the histogram would be sparse for a kernel of a few tens of pixels,
+     * so the values of the kernel are kept sorted instead, and updated as it slides (nBins = 0).
+     */
+    static void medianFilter(int[] pixels, int[] output, int width, int height, int radius, int nBins, Scratch scratch) {
+        int[] halfWidths = kernelHalfWidths(radius);
+        int kernelSize = 0;
+        for (int halfWidth : halfWidths) kernelSize += 2 * halfWidth + 1;
+        int paddedWidth = width + 2 * radius;
+        int[] padded = scratch.padded(paddedWidth * (height + 2 * radius));
+        for (int y = -radius; y < height + radius; y++) {
+            int row = Math.min(Math.max(y, 0), height - 1) * width;
+            int offset = (y + radius) * paddedWidth;
+            for (int x = -radius; x < width + radius; x++) {
+                padded[offset + x + radius] = pixels[row + Math.min(Math.max(x, 0), width - 1)];
+            }
+        }
+        int half = kernelSize / 2;
+        if (nBins > 0) {
+            int[] histogram = scratch.histogram(nBins);
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(histogram, 0);
+                // Kernel at x = 0 (padded column radius)
+                for (int k = 0; k < halfWidths.length; k++) {
+                    int offset = (y + k) * paddedWidth + radius;
+                    for (int dx = -halfWidths[k]; dx <= halfWidths[k]; dx++) histogram[padded[offset + dx]]++;
+                }
+                int median = 0;
+                int below = 0; // number of values < median
+                while (below + histogram[median] <= half) below += histogram[median++];
+                output[y * width] = median;
+                for (int x = 1; x < width; x++) {
+                    for (int k = 0; k < halfWidths.length; k++) {
+                        int offset = (y + k) * paddedWidth + radius + x;
+                        int leaving = padded[offset - halfWidths[k] - 1];
+                        int entering = padded[offset + halfWidths[k]];
+                        histogram[leaving]--;
+                        histogram[entering]++;
+                        if (leaving < median) below--;
+                        if (entering < median) below++;
+                    }
+                    while (below > half) below -= histogram[--median];
+                    while (below + histogram[median] <= half) below += histogram[median++];
+                    output[y * width + x] = median;
+                }
+            }
+        } else {
+            int[] window = scratch.kernel(kernelSize);
+            for (int y = 0; y < height; y++) {
+                // Sorted values of the kernel at x = 0, then updated as the kernel slides along the row
+                int n = 0;
+                for (int k = 0; k < halfWidths.length; k++) {
+                    int offset = (y + k) * paddedWidth + radius;
+                    for (int dx = -halfWidths[k]; dx <= halfWidths[k]; dx++) window[n++] = padded[offset + dx];
+                }
+                Arrays.sort(window, 0, n);
+                output[y * width] = window[half];
+                for (int x = 1; x < width; x++) {
+                    for (int k = 0; k < halfWidths.length; k++) {
+                        int offset = (y + k) * paddedWidth + radius + x;
+                        replace(window, n, padded[offset - halfWidths[k] - 1], padded[offset + halfWidths[k]]);
+                    }
+                    output[y * width + x] = window[half];
+                }
+            }
+        }
+    }
+
+    /**
+     * Median filter on float pixels, with a sorted window updated as the kernel slides along each row.
+     */
+    static void medianFilter(float[] pixels, float[] output, int width, int height, int radius, Scratch scratch) {
+        int[] halfWidths = kernelHalfWidths(radius);
+        int kernelSize = 0;
+        for (int halfWidth : halfWidths) kernelSize += 2 * halfWidth + 1;
+        int paddedWidth = width + 2 * radius;
+        float[] padded = new float[paddedWidth * (height + 2 * radius)];
+        for (int y = -radius; y < height + radius; y++) {
+            int row = Math.min(Math.max(y, 0), height - 1) * width;
+            int offset = (y + radius) * paddedWidth;
+            for (int x = -radius; x < width + radius; x++) {
+                padded[offset + x + radius] = pixels[row + Math.min(Math.max(x, 0), width - 1)];
+            }
+        }
+        int half = kernelSize / 2;
+        float[] window = new float[kernelSize];
+        for (int y = 0; y < height; y++) {
+            int n = 0;
+            for (int k = 0; k < halfWidths.length; k++) {
+                int offset = (y + k) * paddedWidth + radius;
+                for (int dx = -halfWidths[k]; dx <= halfWidths[k]; dx++) window[n++] = padded[offset + dx];
+            }
+            Arrays.sort(window, 0, n);
+            output[y * width] = window[half];
+            for (int x = 1; x < width; x++) {
+                for (int k = 0; k < halfWidths.length; k++) {
+                    int offset = (y + k) * paddedWidth + radius + x;
+                    float leaving = padded[offset - halfWidths[k] - 1];
+                    float entering = padded[offset + halfWidths[k]];
+                    if (leaving == entering) continue;
+                    int i = Arrays.binarySearch(window, 0, n, leaving);
+                    while (i > 0 && window[i - 1] > entering) {
+                        window[i] = window[i - 1];
+                        i--;
+                    }
+                    while (i < n - 1 && window[i + 1] < entering) {
+                        window[i] = window[i + 1];
+                        i++;
+                    }
+                    window[i] = entering;
+                }
+                output[y * width + x] = window[half];
+            }
+        }
+    }
+
+    /**
+     * Replace a value of a sorted window by another, keeping the window sorted.
+     * The cost is the number of values between the two, usually a few.
+     */
+    private static void replace(int[] window, int n, int leaving, int entering) {
+        if (leaving == entering) return;
+        int i = Arrays.binarySearch(window, 0, n, leaving);
+        while (i > 0 && window[i - 1] > entering) {
+            window[i] = window[i - 1];
+            i--;
+        }
+        while (i < n - 1 && window[i + 1] < entering) {
+            window[i] = window[i + 1];
+            i++;
+        }
+        window[i] = entering;
+    }
+
+    /**
+     * Threshold of 8-bit or 16-bit pixels, as ImageProcessor.setAutoThreshold followed by Convert to Mask :
+     * 16-bit pixels are scaled to 256 levels between their min and max, the threshold is computed on that histogram,
+     * and scaled back. With a light background, the foreground is below or at the threshold.
+     */
+    static void thresholdInts(int[] pixels, byte[] mask, boolean byteData, AutoThresholder.Method method, boolean lightBackground) {
+        int[] histogram = new int[256];
+        int min = 0;
+        int max = 255;
+        double scale = 1;
+        int n = mask.length; // the pixel buffer can be longer
+        if (!byteData) {
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
+            for (int p = 0; p < n; p++) {
+                if (pixels[p] < min) min = pixels[p];
+                if (pixels[p] > max) max = pixels[p];
+            }
+            scale = 256.0 / (max - min + 1);
+        }
+        for (int p = 0; p < n; p++) {
+            histogram[byteData ? pixels[p] : Math.min((int) ((pixels[p] - min) * scale + 0.5), 255)]++;
+        }
+        int threshold = new AutoThresholder().getThreshold(method, histogram);
+        double lower = lightBackground ? 0 : Math.min(threshold + 1, 255);
+        double upper = lightBackground ? threshold : 255;
+        if (!byteData) {
+            // Scaled back as ImageProcessor.scaleAndSetThreshold, and rounded as ShortProcessor.setThreshold
+            if (max > min) {
+                lower = lower == 0 ? 0 : Math.round(min + (lower / 255.0) * (max - min));
+                upper = upper == 255 ? 65535 : Math.round(min + (upper / 255.0) * (max - min));
+            } else {
+                lower = upper = min;
+            }
+        }
+        for (int p = 0; p < n; p++) {
+            mask[p] = pixels[p] >= lower && pixels[p] <= upper ? (byte) FOREGROUND : 0;
+        }
+    }
+
+    /**
+     * Threshold of float pixels, with the 8-bit conversion of ImageJ for the histogram.
+     */
+    static void thresholdFloats(float[] pixels, byte[] mask, int width, int height, AutoThresholder.Method method, boolean lightBackground) {
+        FloatProcessor processor = new FloatProcessor(width, height, pixels);
+        processor.resetMinAndMax();
+        double min = processor.getMin();
+        double max = processor.getMax();
+        int[] histogram = processor.convertToByte(true).getHistogram();
+        int threshold = new AutoThresholder().getThreshold(method, histogram);
+        double lower = lightBackground ? 0 : Math.min(threshold + 1, 255);
+        double upper = lightBackground ? threshold : 255;
+        if (max > min) {
+            lower = lower == 0 ? Math.min(min, -1e30) : min + (lower / 255.0) * (max - min);
+            upper = upper == 255 ? Math.max(max, 1e30) : min + (upper / 255.0) * (max - min);
+        } else {
+            lower = upper = min;
+        }
+        for (int p = 0; p < pixels.length; p++) {
+            mask[p] = pixels[p] >= lower && pixels[p] <= upper ? (byte) FOREGROUND : 0;
+        }
+    }
+
+    private static void readPixels(ImageProcessor frame, int[] pixels) {
+        if (frame instanceof ByteProcessor) {
+            byte[] bytes = (byte[]) frame.getPixels();
+            for (int p = 0; p < bytes.length; p++) pixels[p] = bytes[p] & 0xff;
+        } else {
+            short[] shorts = (short[]) frame.getPixels();
+            for (int p = 0; p < shorts.length; p++) pixels[p] = shorts[p] & 0xffff;
+        }
+    }
+
+    /**
+     * Buffers of one thread, grown as needed.
+     */
+    static class Scratch {
+        private int[] pixels = new int[0];
+        private int[] filtered = new int[0];
+        private int[] padded = new int[0];
+        private int[] histogram = new int[0];
+        private int[] kernel = new int[0];
+
+        int[] pixels(int size) {
+            if (pixels.length < size) pixels = new int[size];
+            return pixels;
+        }
+
+        int[] filtered(int size) {
+            if (filtered.length < size) filtered = new int[size];
+            return filtered;
+        }
+
+        int[] padded(int size) {
+            if (padded.length < size) padded = new int[size];
+            return padded;
+        }
+
+        int[] histogram(int size) {
+            if (histogram.length != size) histogram = new int[size];
+            return histogram;
+        }
+
+        int[] kernel(int size) {
+            if (kernel.length < size) kernel = new int[size];
+            return kernel;
+        }
+    }
 }
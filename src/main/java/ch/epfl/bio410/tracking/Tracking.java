@@ -1,5 +1,7 @@
 package ch.epfl.bio410.tracking;
 
+import ch.epfl.bio410.utils.AsyncIO;
+import ch.epfl.bio410.utils.TaskMonitor;
 import ch.epfl.bio410.utils.TrackingConfig;
 import fiji.plugin.trackmate.*;
 import fiji.plugin.trackmate.detection.DetectorKeys;
@@ -9,12 +11,17 @@ import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettingsIO;
 import fiji.plugin.trackmate.tracking.jaqaman.SparseLAPTrackerFactory;
+import fiji.plugin.trackmate.visualization.table.TablePanel;
 import fiji.plugin.trackmate.visualization.table.TrackTableView;
 import fiji.plugin.trackmate.visualization.hyperstack.HyperStackDisplayer;
 import ij.IJ;
 import ij.ImagePlus;
+
+import java.awt.Color;
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 
 
 public class Tracking {
@@ -22,6 +29,7 @@ public class Tracking {
 
     private TrackingConfig trackingConfig;
     private DisplaySettings displaySettings;
+    private TaskMonitor monitor = TaskMonitor.NONE;
 
     public String trackingConfigName;
     public String trackingConfigPath;
@@ -33,6 +41,14 @@ public class Tracking {
     public void setConfig(TrackingConfig trackingConfig) {
         this.trackingConfig = trackingConfig;
     }
+    /**
+     * Set the monitor receiving the progress of TrackMate. When it is cancelled, TrackMate is stopped
+     * at its next progress update and runTracking throws a CancellationException.
+     * @param monitor TaskMonitor, e.g. TaskMonitor.imageJ()
+     */
+    public void setMonitor(TaskMonitor monitor) {
+        this.monitor = monitor;
+    }
     /**
      * Set the configuration parameters for tracking.
      * @param detector_radius Radius of the object in um
@@ -69,9 +85,20 @@ public class Tracking {
 
     /**
      * Creates a TrackMate tracker from the specified configuration parameters, in order to track replisomes in the GFP channel.
+     * The tracks are displayed on top of the image, unless running headless.
      * @return TrackMate model object.
      */
     public Model runTracking(ImagePlus imp) {
+        return runTracking(imp, !GraphicsEnvironment.isHeadless());
+    }
+
+    /**
+     * Creates a TrackMate tracker from the specified configuration parameters, in order to track replisomes in the GFP channel.
+     * @param imp GFP channel
+     * @param display Whether to display the tracks on top of the image
+     * @return TrackMate model object.
+     */
+    public Model runTracking(ImagePlus imp, boolean display) {
         IJ.log("------------------ TRACKMATE ------------------");
         this.trackingConfig.printTrackingConfig(); // show parameters
         IJ.log("Tracking started");
@@ -81,7 +108,8 @@ public class Tracking {
         }
         // Instantiate model object and logger
         Model model = new Model();
-        model.setLogger(Logger.IJ_LOGGER);
+        MonitorLogger logger = new MonitorLogger(Logger.IJ_LOGGER, this.monitor);
+        model.setLogger(logger);
         // Prepare settings object
         Settings settings = new Settings(imp);
 
@@ -121,6 +149,7 @@ public class Tracking {
 
         // Instantiate and run trackmate
         TrackMate trackmate = new TrackMate(model, settings);
+        logger.trackmate = trackmate;
         boolean ok = trackmate.checkInput();
         if (!ok) {
             System.out.println(trackmate.getErrorMessage());
@@ -128,6 +157,9 @@ public class Tracking {
         }
 
         ok = trackmate.process();
+        if (trackmate.isCanceled()) {
+            throw new CancellationException("Tracking cancelled : " + trackmate.getCancelReason());
+        }
         if (!ok) {
             System.out.println(trackmate.getErrorMessage());
             return null;
@@ -144,9 +176,11 @@ public class Tracking {
 //        displaySettings.setTrackColorBy(DisplaySettings.TrackMateObject.TRACKS, "TRACK_DURATION");
 //        displaySettings.setSpotColorBy(DisplaySettings.TrackMateObject.SPOTS, "SPOT_QUALITY");
 //        PerTrackFeatureColorGenerator trackColor = PerTrackFeatureColorGenerator(model, "TRACK_DURATION");
-        HyperStackDisplayer displayer = new HyperStackDisplayer(model, selectionModel, imp, displaySettings);
-        displayer.render();
-        displayer.refresh();
+        if (display) {
+            HyperStackDisplayer displayer = new HyperStackDisplayer(model, selectionModel, imp, displaySettings);
+            displayer.render();
+            displayer.refresh();
+        }
 
         // Echo results with the logger we set at start:
         model.getLogger().log(model.toString());
@@ -155,6 +189,8 @@ public class Tracking {
     }
     /**
      * Save the features of the tracks to CSV files.
+     * The tables are built here, and written in the background (see AsyncIO) : they read the features from the model
+     * while they are written, so the model must not change until then (see AsyncIO.flush).
      * @param model TrackMate model object
      * @param csvFileSpots File to save the spots features
      * @param csvFileTracks File to save the tracks features
@@ -169,15 +205,96 @@ public class Tracking {
             throw new IOException("Display settings not set. Please run tracking first.");
         }
 
-        // Create tables for tracks
-        TrackTableView trackTableView = new TrackTableView(model, sm, ds, imagePath);
+        TablePanel<Spot> spotTable;
+        TablePanel<Integer> trackTable;
+        if (GraphicsEnvironment.isHeadless()) {
+            // The table view is a window : build the tables alone
+            spotTable = TrackTableView.createSpotTable(model, ds);
+            trackTable = TrackTableView.createTrackTable(model, ds);
+        } else {
+            // Create tables for tracks
+            TrackTableView trackTableView = new TrackTableView(model, sm, ds, imagePath);
+            spotTable = trackTableView.getSpotTable();
+            trackTable = trackTableView.getTrackTable();
+        }
 
         // Export the tables to CSV files
-        trackTableView.getSpotTable().exportToCsv(csvFileSpots);
-        trackTableView.getTrackTable().exportToCsv(csvFileTracks);
+        AsyncIO.shared().submit(csvFileSpots.getPath(), () -> spotTable.exportToCsv(csvFileSpots));
+        AsyncIO.shared().submit(csvFileTracks.getPath(), () -> trackTable.exportToCsv(csvFileTracks));
 
         // Save all spots table (includes all spots, even those not in tracks)
         // AllSpotsTableView spotsTableView = AllSpotsTableView(model, sm, ds);
         // spotsTableView.exportToCsv(csvFileAllSpots.getAbsolutePath());
     }
+
+    /**
+     * Save the features of the spots to a CSV file, in the background (see AsyncIO) : the spots must not change
+     * until it is written.
+     * The colony label of each spot is one of them once assigned (see Results.assignSpotsToColonies).
+     * @param model TrackMate model object
+     * @param csvFileSpots File to save the spots features
+     * @throws IOException If tracking was not run first
+     */
+    public void saveSpotsToCSV(Model model, File csvFileSpots) throws IOException {
+        if (this.displaySettings == null) {
+            throw new IOException("Display settings not set. Please run tracking first.");
+        }
+        TablePanel<Spot> spotTable = TrackTableView.createSpotTable(model, this.displaySettings);
+        AsyncIO.shared().submit(csvFileSpots.getPath(), () -> spotTable.exportToCsv(csvFileSpots));
+    }
+
+    /**
+     * Save the features of the tracks to a CSV file, in the background (see AsyncIO) : the tracks must not change
+     * until it is written (the spot features, e.g. the colony labels, may).
+     * @param model TrackMate model object
+     * @param csvFileTracks File to save the tracks features
+     * @throws IOException If tracking was not run first
+     */
+    public void saveTracksToCSV(Model model, File csvFileTracks) throws IOException {
+        if (this.displaySettings == null) {
+            throw new IOException("Display settings not set. Please run tracking first.");
+        }
+        TablePanel<Integer> trackTable = TrackTableView.createTrackTable(model, this.displaySettings);
+        AsyncIO.shared().submit(csvFileTracks.getPath(), () -> trackTable.exportToCsv(csvFileTracks));
+    }
+
+    /**
+     * Forwards the TrackMate logs to another logger, and its progress to a TaskMonitor.
+     * TrackMate has no cancellation callback, so the monitor is checked at each progress update.
+     */
+    private static class MonitorLogger extends Logger {
+        private final Logger logger;
+        private final TaskMonitor monitor;
+        private volatile String status = "Tracking";
+        private TrackMate trackmate;
+
+        MonitorLogger(Logger logger, TaskMonitor monitor) {
+            this.logger = logger;
+            this.monitor = monitor;
+        }
+
+        @Override
+        public void log(String message, Color color) {
+            logger.log(message, color);
+        }
+
+        @Override
+        public void error(String message) {
+            logger.error(message);
+        }
+
+        @Override
+        public void setProgress(double progress) {
+            monitor.progress(status, (int) Math.round(1000 * progress), 1000);
+            if (trackmate != null && !trackmate.isCanceled() && monitor.isCancelled()) {
+                trackmate.cancel("cancelled by the user");
+            }
+        }
+
+        @Override
+        public void setStatus(String status) {
+            this.status = status;
+            logger.setStatus(status);
+        }
+    }
 }
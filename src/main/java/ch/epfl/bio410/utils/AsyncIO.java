@@ -0,0 +1,165 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes of results (TIFF, CSV, PNG, ...) in the background, so that the stages do not wait for the disk.
+ * Writes run on virtual threads on JDK 21 and later, and on a small pool of platform threads otherwise (JDK 8).
+ * At most MAX_PENDING writes are queued : submit blocks beyond that (back-pressure), so that the data waiting to be
+ * written stays bounded. The data given to a write must not be modified until it completes.
+ * flush() waits for all the submitted writes, and throws the first failure : call it before reading back a file
+ * written in the background, and at the end of a run. Pending writes are also waited for when the JVM exits.
+ * Usage :
+ * AsyncIO.shared().submit("colony labels", () -> IJ.saveAsTiff(labels, path));
+ * ...
+ * AsyncIO.shared().flush(); // the files are complete
+ */
+public class AsyncIO {
+    /** Maximum number of writes queued or running. */
+    public static final int MAX_PENDING = 8;
+    /** Number of platform threads writing, when virtual threads are not available. */
+    public static final int PLATFORM_THREADS = 2;
+    private static final AsyncIO SHARED = new AsyncIO(MAX_PENDING);
+
+    /** A write, or any other I/O. */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Semaphore permits;
+    private final List<CompletableFuture<Void>> pending = new ArrayList<>(); // queued or running
+    private Throwable failure = null;
+    private String failedTask = null;
+
+    /**
+     * @param maxPending Maximum number of writes queued or running
+     */
+    public AsyncIO(int maxPending) {
+        this.permits = new Semaphore(maxPending);
+        ExecutorService virtual = null;
+        try {
+            // JDK 21+, looked up by reflection to keep compiling for JDK 8
+            virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK 8 to 20 : platform threads
+        }
+        this.virtualThreads = virtual != null;
+        if (virtual != null) {
+            this.executor = virtual;
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(PLATFORM_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "replisome-io-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }, "replisome-io-shutdown"));
+    }
+
+    /**
+     * @return the writer shared by the stages of the plugin
+     */
+    public static AsyncIO shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return whether the writes run on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * This method queues a write, waiting first if MAX_PENDING writes are already queued or running.
+     * A failure is logged, and thrown by the next flush().
+     * @param name Description of the write, for the logs (e.g. the file name)
+     * @param task The write
+     * @return a future completed when the write is done (exceptionally if it failed)
+     */
+    public CompletableFuture<Void> submit(String name, Task task) {
+        long start = System.nanoTime();
+        permits.acquireUninterruptibly();
+        PipelineMetrics metrics = PipelineMetrics.current();
+        metrics.count("asyncIO.writes", 1);
+        metrics.count("asyncIO.waitMillis", (System.nanoTime() - start) / 1000000);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (pending) {
+            pending.add(future);
+        }
+        try {
+            executor.execute(() -> write(name, task, future));
+        } catch (RuntimeException e) {
+            // The executor refused the write (e.g. the JVM is exiting) : write it here
+            write(name, task, future);
+        }
+        return future;
+    }
+
+    private void write(String name, Task task, CompletableFuture<Void> future) {
+        try {
+            task.run();
+            future.complete(null);
+        } catch (Throwable e) {
+            IJ.log("ERROR : Failed to write " + name + " : " + e);
+            synchronized (pending) {
+                if (failure == null) {
+                    failure = e;
+                    failedTask = name;
+                }
+            }
+            future.completeExceptionally(e);
+        } finally {
+            synchronized (pending) {
+                pending.remove(future);
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * This method waits for all the submitted writes.
+     * @throws IOException The first failure of a write since the last flush
+     */
+    public void flush() throws IOException {
+        List<CompletableFuture<Void>> writes;
+        synchronized (pending) {
+            writes = new ArrayList<>(pending);
+        }
+        for (CompletableFuture<Void> write : writes) {
+            try {
+                write.join();
+            } catch (RuntimeException e) {
+                // Kept in failure
+            }
+        }
+        Throwable error;
+        String name;
+        synchronized (pending) {
+            error = failure;
+            name = failedTask;
+            failure = null;
+            failedTask = null;
+        }
+        if (error instanceof IOException) throw (IOException) error;
+        if (error != null) throw new IOException("Failed to write " + name + " : " + error, error);
+    }
+}
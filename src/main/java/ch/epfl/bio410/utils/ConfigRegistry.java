@@ -0,0 +1,283 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Index of the TrackingConfig files, built once, with the parsed and validated configs cached.
+ * Configs are searched, by file name, in :
+ * - the user folder : the replisome.configDir system property, or ~/.replisome/configs by default
+ * - the configs bundled in the resources of the plugin (read from the class path, never copied) ;
+ *   get() also finds a bundled config the index missed (e.g. if the resources of the jar cannot be listed)
+ * A config of the user folder replaces a bundled config with the same name. Files can also be registered one by one
+ * (e.g. the --config option of BatchWorker).
+ * A config file is parsed again when it changes on disk ; if the new version is not valid, the last valid one is kept.
+ * For batch runs, watch() also follows the folders of the configs, to pick up added, changed and deleted configs
+ * between two jobs.
+ * Usage :
+ * ConfigRegistry registry = ConfigRegistry.shared();
+ * List<String> names = registry.names(); // e.g. for a dialog
+ * TrackingConfig config = registry.get("Merged1_config.properties");
+ */
+public class ConfigRegistry {
+    /** Folder of the bundled configs, in the resources. */
+    public static final String RESOURCE_FOLDER = "configs";
+    /** Extension of the config files. */
+    public static final String EXTENSION = ".properties";
+    private static ConfigRegistry shared = null;
+
+    /** A config file, on disk or in the resources, and its last valid parsed version. */
+    private static class Source {
+        private final String name;
+        private final File file; // null for a bundled config
+        private TrackingConfig config = null;
+        private long lastModified = -1;
+        private long length = -1;
+
+        private Source(String name, File file) {
+            this.name = name;
+            this.file = file;
+        }
+    }
+
+    private final File userFolder;
+    private final Map<String, Source> bundled = new TreeMap<>();
+    private final Map<String, Source> userConfigs = new TreeMap<>();
+    private final Map<String, Source> registered = new TreeMap<>();
+    private WatchService watcher = null;
+    private final Map<WatchKey, Path> watchedFolders = new HashMap<>();
+    private final List<Consumer<String>> listeners = new ArrayList<>();
+
+    /**
+     * @param userFolder Folder of the user configs (need not exist), or null for the bundled configs only
+     */
+    public ConfigRegistry(File userFolder) {
+        this.userFolder = userFolder;
+        List<String> resources = utils.listFilesInResourceFolder(RESOURCE_FOLDER);
+        if (resources != null) {
+            for (String resource : resources) {
+                String name = new File(resource).getName();
+                if (name.endsWith(EXTENSION)) bundled.put(name, new Source(name, null));
+            }
+        }
+        indexUserFolder();
+    }
+
+    /**
+     * @return the registry of the plugin, on the user folder (see defaultUserFolder()) and the bundled configs
+     */
+    public static synchronized ConfigRegistry shared() {
+        if (shared == null) shared = new ConfigRegistry(defaultUserFolder());
+        return shared;
+    }
+
+    /**
+     * @return the folder of the user configs : the replisome.configDir system property, or ~/.replisome/configs
+     */
+    public static File defaultUserFolder() {
+        String folder = System.getProperty("replisome.configDir");
+        if (folder != null) return new File(folder);
+        return new File(System.getProperty("user.home"), ".replisome" + File.separator + "configs");
+    }
+
+    /**
+     * @return the names of the available configs, sorted, each once
+     */
+    public synchronized List<String> names() {
+        Set<String> names = new HashSet<>(bundled.keySet());
+        names.addAll(userConfigs.keySet());
+        names.addAll(registered.keySet());
+        List<String> sorted = new ArrayList<>(names);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    /**
+     * This method adds a config file outside the search path, under its file name.
+     * @param file Config file
+     * @return the name of the config, for get()
+     * @throws IOException If the file does not exist
+     */
+    public synchronized String register(File file) throws IOException {
+        if (!file.isFile()) throw new IOException("Config file not found : " + file.getPath());
+        File absolute = file.getAbsoluteFile();
+        registered.put(absolute.getName(), new Source(absolute.getName(), absolute));
+        if (watcher != null) watchFolder(absolute.getParentFile());
+        return absolute.getName();
+    }
+
+    /**
+     * This method returns a config, parsed and validated the first time, and again only if its file changed.
+     * @param name Name of the config (file name, e.g. "Merged1_config.properties")
+     * @return a copy of the config, that the caller may modify
+     * @throws IOException If there is no such config, or it cannot be read
+     * @throws IllegalArgumentException If the config is not valid, and no earlier version was
+     */
+    public synchronized TrackingConfig get(String name) throws IOException {
+        Source source = registered.get(name);
+        if (source == null) source = userConfigs.get(name);
+        if (source == null) source = bundled.get(name);
+        if (source == null && isBundled(name)) {
+            // Not listed by the index of the resources (e.g. a class path it cannot list), but on the class path
+            source = new Source(name, null);
+            bundled.put(name, source);
+        }
+        if (source == null) throw new IOException("No config named " + name + " (available : " + names() + ")");
+        PipelineMetrics metrics = PipelineMetrics.current();
+        if (source.config != null && !changed(source)) {
+            metrics.count("configs.hits", 1);
+            return source.config.copy();
+        }
+        metrics.count("configs.parsed", 1);
+        try {
+            load(source);
+        } catch (IOException | IllegalArgumentException e) {
+            if (source.config == null) throw e;
+            IJ.log("ERROR : Config " + name + " : " + e.getMessage() + " ; using its last valid version");
+        }
+        return source.config.copy();
+    }
+
+    private static boolean isBundled(String name) {
+        return name.endsWith(EXTENSION) && name.indexOf('/') < 0 && name.indexOf('\\') < 0
+                && ConfigRegistry.class.getClassLoader().getResource(RESOURCE_FOLDER + "/" + name) != null;
+    }
+
+    private static boolean changed(Source source) {
+        return source.file != null && (source.file.lastModified() != source.lastModified || source.file.length() != source.length);
+    }
+
+    private static void load(Source source) throws IOException {
+        Properties properties = new Properties();
+        String path;
+        if (source.file != null) {
+            long lastModified = source.file.lastModified();
+            long length = source.file.length();
+            try (InputStream in = Files.newInputStream(source.file.toPath())) {
+                properties.load(in);
+            }
+            path = source.file.getAbsolutePath();
+            source.lastModified = lastModified;
+            source.length = length;
+        } else {
+            path = RESOURCE_FOLDER + "/" + source.name; // system file separator is not applicable here
+            try (InputStream in = ConfigRegistry.class.getClassLoader().getResourceAsStream(path)) {
+                if (in == null) throw new IOException("Resource not found : " + path);
+                properties.load(in);
+            }
+        }
+        source.config = TrackingConfig.fromProperties(properties, source.name, path);
+    }
+
+    /**
+     * List the configs of the user folder.
+     */
+    private void indexUserFolder() {
+        File[] files = userFolder == null ? null : userFolder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isFile()) userConfigs.put(file.getName(), new Source(file.getName(), file.getAbsoluteFile()));
+        }
+    }
+
+    /**
+     * This method starts following the folders of the configs (the user folder and those of the registered files),
+     * in a background thread : listeners are told of the configs added, changed or deleted.
+     * The next get() of a changed config parses it again.
+     * @param listener Receives the name of each config that changed (not on the thread of the caller)
+     * @throws IOException If the folders cannot be watched
+     */
+    public synchronized void watch(Consumer<String> listener) throws IOException {
+        listeners.add(listener);
+        if (watcher != null) return;
+        WatchService service = FileSystems.getDefault().newWatchService();
+        watcher = service;
+        if (userFolder != null && userFolder.isDirectory()) watchFolder(userFolder);
+        for (Source source : registered.values()) watchFolder(source.file.getParentFile());
+        Thread thread = new Thread(() -> follow(service), "replisome-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchFolder(File folder) throws IOException {
+        Path path = folder.getAbsoluteFile().toPath();
+        if (watchedFolders.containsValue(path)) return;
+        WatchKey key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        watchedFolders.put(key, path);
+    }
+
+    private void follow(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Set<String> changed = new HashSet<>();
+            List<Consumer<String>> toNotify;
+            synchronized (this) {
+                Path folder = watchedFolders.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (folder == null || !(event.context() instanceof Path)) continue;
+                    String name = event.context().toString();
+                    if (!name.endsWith(EXTENSION)) continue;
+                    Path file = folder.resolve(name);
+                    Source source = registered.get(name);
+                    if (source == null || !source.file.toPath().equals(file)) {
+                        if (userFolder == null || !folder.equals(userFolder.getAbsoluteFile().toPath())) continue;
+                        source = userConfigs.get(name);
+                    }
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE && userConfigs.get(name) == source) {
+                        userConfigs.remove(name); // the bundled config of the same name, if any, is used again
+                    } else if (source == null) {
+                        userConfigs.put(name, new Source(name, file.toFile()));
+                    }
+                    changed.add(name);
+                }
+                toNotify = new ArrayList<>(listeners);
+            }
+            if (!key.reset()) {
+                synchronized (this) {
+                    watchedFolders.remove(key);
+                }
+            }
+            for (String name : changed) {
+                for (Consumer<String> listener : toNotify) listener.accept(name);
+            }
+        }
+    }
+
+    /**
+     * This method stops following the folders of the configs (see watch()).
+     * @throws IOException If the watcher cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+            watchedFolders.clear();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package ch.epfl.bio410.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Streaming CSV writer, field by field, for large exports (e.g. the tracks with their colony labels).
+ * The output is the same, byte for byte, as a CSVPrinter with CSVFormat.DEFAULT on a FileWriter :
+ * comma delimiter, CRLF record separator, fields quoted only when needed (commons-csv QuoteMode.MINIMAL),
+ * in the default charset.
+ * Fields are copied into a large char buffer, encoded into a large byte buffer and written to a FileChannel
+ * when it is full : no list, map or string is allocated per record.
+ * Usage :
+ * try (CsvWriter csv = new CsvWriter(file)) {
+ *     csv.record(header);
+ *     csv.field("42").field(label).endRecord();
+ * }
+ */
+public class CsvWriter implements AutoCloseable {
+    /** Size of the buffers, in chars and in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    private static final char DELIMITER = ',';
+    private static final char QUOTE = '"';
+    private static final char COMMENT = '#';
+    private static final char SP = ' ';
+    private static final char CR = '\r';
+    private static final char LF = '\n';
+
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+    private final char[] chars;
+    private final CharBuffer charBuffer;
+    private final ByteBuffer bytes;
+    private final char[] digits = new char[11];
+    private int length = 0; // chars in the buffer
+    private boolean newRecord = true;
+
+    /**
+     * @param file File to write, replaced if it exists
+     * @throws IOException If the file cannot be opened
+     */
+    public CsvWriter(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param file File to write, replaced if it exists
+     * @param bufferSize Size of the buffers
+     * @throws IOException If the file cannot be opened
+     */
+    public CsvWriter(File file, int bufferSize) throws IOException {
+        this.stream = new FileOutputStream(file);
+        this.channel = stream.getChannel();
+        // As FileWriter : default charset, malformed input replaced
+        this.encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = new char[Math.max(64, bufferSize)];
+        this.charBuffer = CharBuffer.wrap(chars);
+        // A heap buffer, so that the encoder works on both arrays (it goes char by char on a direct buffer)
+        this.bytes = ByteBuffer.allocate(Math.max(64, bufferSize));
+    }
+
+    /**
+     * This method writes a field of the current record, quoted if needed.
+     * @param value Value of the field, null is written as an empty field (never quoted)
+     * @return this, for chaining
+     * @throws IOException If the buffer cannot be written
+     */
+    public CsvWriter field(CharSequence value) throws IOException {
+        if (!newRecord) append(DELIMITER);
+        if (value == null) {
+            // As CSVPrinter without a null string
+        } else if (needsQuotes(value)) {
+            append(QUOTE);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == QUOTE) append(QUOTE);
+                append(c);
+            }
+            append(QUOTE);
+        } else if (value instanceof String) {
+            // Copied in bulk
+            String string = (String) value;
+            int start = 0;
+            while (start < string.length()) {
+                if (length == chars.length) drain(false);
+                int end = Math.min(string.length(), start + chars.length - length);
+                string.getChars(start, end, chars, length);
+                length += end - start;
+                start = end;
+            }
+        } else {
+            for (int i = 0; i < value.length(); i++) append(value.charAt(i));
+        }
+        newRecord = false;
+        return this;
+    }
+
+    /**
+     * This method writes an integer field of the current record, without converting it to a String first.
+     * @param value Value of the field
+     * @return this, for chaining
+     * @throws IOException If the buffer cannot be written
+     */
+    public CsvWriter field(int value) throws IOException {
+        if (!newRecord) append(DELIMITER);
+        newRecord = false;
+        if (value == Integer.MIN_VALUE) {
+            for (char c : Integer.toString(value).toCharArray()) append(c);
+            return this;
+        }
+        // Digits are never quoted, nor is a leading '-' (after '#')
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) append(digits[--n]);
+        return this;
+    }
+
+    /**
+     * This method ends the current record.
+     * @return this, for chaining
+     * @throws IOException If the buffer cannot be written
+     */
+    public CsvWriter endRecord() throws IOException {
+        append(CR);
+        append(LF);
+        newRecord = true;
+        return this;
+    }
+
+    /**
+     * This method writes a whole record.
+     * @param values Fields of the record
+     * @return this, for chaining
+     * @throws IOException If the buffer cannot be written
+     */
+    public CsvWriter record(Iterable<? extends CharSequence> values) throws IOException {
+        for (CharSequence value : values) field(value);
+        return endRecord();
+    }
+
+    /**
+     * Same rules as CSVFormat.printWithQuotes with QuoteMode.MINIMAL (commons-csv 1.8).
+     */
+    private boolean needsQuotes(CharSequence value) {
+        int len = value.length();
+        if (len == 0) {
+            // An empty first field is quoted, otherwise a record with one empty field would be an empty line
+            return newRecord;
+        }
+        char c = value.charAt(0);
+        if (c <= COMMENT) return true;
+        for (int i = 0; i < len; i++) {
+            c = value.charAt(i);
+            if (c == LF || c == CR || c == QUOTE || c == DELIMITER) return true;
+        }
+        // Trailing whitespace or control character
+        return value.charAt(len - 1) <= SP;
+    }
+
+    private void append(char c) throws IOException {
+        if (length == chars.length) drain(false);
+        chars[length++] = c;
+    }
+
+    /**
+     * Encode the buffered chars and write them. A surrogate pair split at the end of the buffer is kept for the next call.
+     */
+    private void drain(boolean endOfInput) throws IOException {
+        charBuffer.limit(length).position(0);
+        while (true) {
+            CoderResult result = encoder.encode(charBuffer, bytes, endOfInput);
+            if (result.isOverflow()) {
+                writeBytes();
+                continue;
+            }
+            if (result.isError()) result.throwException();
+            break;
+        }
+        if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) writeBytes();
+        }
+        writeBytes();
+        int remaining = charBuffer.remaining();
+        System.arraycopy(chars, charBuffer.position(), chars, 0, remaining);
+        length = remaining;
+    }
+
+    private void writeBytes() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) channel.write(bytes);
+        bytes.clear();
+    }
+
+    /**
+     * This method writes the buffered records and closes the file.
+     * @throws IOException If the records cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            drain(true);
+        } finally {
+            stream.close();
+        }
+    }
+}
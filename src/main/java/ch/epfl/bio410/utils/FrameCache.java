@@ -0,0 +1,323 @@
+package ch.epfl.bio410.utils;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Cache of frames shared by the stages (colonies, statistics, analysis), keyed by (dataset, channel, frame).
+ * Frames are kept off the Java heap, in direct buffers, within a budget in bytes (least recently used frames are evicted),
+ * so that a large cache does not compete with the images ImageJ keeps on the heap.
+ * A cached frame is read in place through read-only views (get, getf, buffer) : the statistics (RegionStats) and
+ * the label lookups (LabelSource, Results) read the frames this way, through getFrame. toProcessor copies a frame
+ * to a new ImageProcessor for the ImageJ and CLIJ2 methods that need one (e.g. the segmentation of the DIC frames),
+ * which is still much cheaper than decoding it again (e.g. from a LabelStore or a virtual TIFF stack).
+ * Only virtual stacks go through the cache : the frames of a loaded stack are already on the heap,
+ * and getFrame reads them in place (Frame.of), without copying nor caching them.
+ * Hits, misses and evictions are counted in the PipelineMetrics of the run (frameCache.*).
+ * Usage :
+ * FrameCache.Frame frame = FrameCache.shared().get(imageName, "colony_labels", i, () -> stack.getProcessor(i));
+ * int label = frame.get(x, y);
+ * FrameCache.Frame labels = FrameCache.getFrame(imageLabels, "labels", i); // cached only if imageLabels is a virtual stack
+ * ImageProcessor dic = FrameCache.getProcessor(imageDIC, "dic", i); // a copy if imageDIC is a virtual stack
+ * The budget of the shared cache is 512 MB, or -Dreplisome.frameCache.mb=...
+ */
+public class FrameCache {
+    private static final FrameCache SHARED = new FrameCache(Long.getLong("replisome.frameCache.mb", 512L) * 1024 * 1024);
+
+    private final long budget;
+    private long bytes = 0;
+    private final Map<Key, Frame> frames = new LinkedHashMap<>(64, 0.75f, true);
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param budget Maximum number of bytes of the cached frames
+     */
+    public FrameCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return the cache shared by the stages of the plugin
+     */
+    public static FrameCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * This method returns a frame of an image, to be read only : the frames of a virtual stack are read through
+     * the shared cache (and copied to a new processor), the frames of a loaded stack are returned as they are.
+     * Use getFrame instead when the frame is only read pixel by pixel : it does not copy cached frames.
+     * @param image Image, loaded or virtual
+     * @param channel Channel of the frame, e.g. "dic"
+     * @param frame Frame number, from 1 as in ImageStack
+     * @return the frame (not to be modified)
+     */
+    public static ImageProcessor getProcessor(ImagePlus image, String channel, int frame) {
+        if (!image.getStack().isVirtual()) return image.getStack().getProcessor(frame);
+        return SHARED.get(dataset(image), channel, frame, () -> image.getStack().getProcessor(frame)).toProcessor();
+    }
+
+    /**
+     * This method returns a frame of an image, read in place : the frames of a virtual stack are read through
+     * the shared cache (a cached frame is not copied), the frames of a loaded stack are read from the stack.
+     * @param image Image, loaded or virtual
+     * @param channel Channel of the frame, e.g. "labels"
+     * @param frame Frame number, from 1 as in ImageStack
+     * @return a read-only view of the frame
+     */
+    public static Frame getFrame(ImagePlus image, String channel, int frame) {
+        if (!image.getStack().isVirtual()) return Frame.of(image.getStack().getProcessor(frame));
+        return SHARED.get(dataset(image), channel, frame, () -> image.getStack().getProcessor(frame));
+    }
+
+    private static String dataset(ImagePlus image) {
+        // The ID tells apart two images with the same title
+        return image.getTitle() + "#" + image.getID();
+    }
+
+    /** Identifies a frame : dataset (e.g. the image name), channel (e.g. "dic", "colony_labels") and frame number. */
+    public static final class Key {
+        final String dataset;
+        final String channel;
+        final int frame;
+
+        public Key(String dataset, String channel, int frame) {
+            this.dataset = dataset;
+            this.channel = channel;
+            this.frame = frame;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return frame == key.frame && dataset.equals(key.dataset) && channel.equals(key.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(dataset, channel, frame);
+        }
+    }
+
+    /**
+     * A cached frame, off the heap and read-only, or a view of a frame on the heap (see of).
+     */
+    public static final class Frame {
+        private final ByteBuffer pixels; // null for a view of a frame on the heap
+        private final ImageProcessor processor; // frame on the heap, read in place, or null for a cached frame
+        private final int width;
+        private final int height;
+        private final int bitDepth;
+
+        private Frame(ImageProcessor processor, boolean copy) {
+            this.width = processor.getWidth();
+            this.height = processor.getHeight();
+            this.bitDepth = processor.getBitDepth();
+            if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+                throw new IllegalArgumentException("Frames of " + bitDepth + " bits cannot be cached");
+            }
+            if (!copy) {
+                this.pixels = null;
+                this.processor = processor;
+                return;
+            }
+            this.processor = null;
+            int nPixels = width * height;
+            Object array = processor.getPixels();
+            switch (bitDepth) {
+                case 8:
+                    pixels = ByteBuffer.allocateDirect(nPixels).order(ByteOrder.nativeOrder());
+                    pixels.put((byte[]) array);
+                    break;
+                case 16:
+                    pixels = ByteBuffer.allocateDirect(nPixels * 2).order(ByteOrder.nativeOrder());
+                    pixels.asShortBuffer().put((short[]) array);
+                    break;
+                default:
+                    pixels = ByteBuffer.allocateDirect(nPixels * 4).order(ByteOrder.nativeOrder());
+                    pixels.asFloatBuffer().put((float[]) array);
+                    break;
+            }
+            pixels.clear();
+        }
+
+        /**
+         * @param processor Frame on the heap (8, 16 or 32 bits), e.g. of a loaded stack or decoded from a LabelStore
+         * @return a view of the frame, read in place (not copied, nor cached) : the frame is not to be modified
+         */
+        public static Frame of(ImageProcessor processor) {
+            return new Frame(processor, false);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getBitDepth() {
+            return bitDepth;
+        }
+
+        /**
+         * @param index Pixel index, y * width + x
+         * @return the value of the pixel (unsigned for 8-bit and 16-bit frames)
+         */
+        public float getf(int index) {
+            if (processor != null) return processor.getf(index);
+            switch (bitDepth) {
+                case 8: return pixels.get(index) & 0xff;
+                case 16: return pixels.getShort(index * 2) & 0xffff;
+                default: return pixels.getFloat(index * 4);
+            }
+        }
+
+        /**
+         * @param x Position x
+         * @param y Position y
+         * @return the value of the pixel as an integer (e.g. a label), 0 outside the frame
+         */
+        public int get(int x, int y) {
+            if (x < 0 || y < 0 || x >= width || y >= height) return 0;
+            return (int) getf(y * width + x);
+        }
+
+        /**
+         * @return a read-only view of the pixels, in native byte order, without copying them
+         * (for a view of a frame on the heap, a copy : see of)
+         */
+        public ByteBuffer buffer() {
+            if (processor != null) return toBuffer(processor).asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+            return pixels.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * @return a copy of the frame, as a new ImageProcessor of the same type
+         */
+        public ImageProcessor toProcessor() {
+            if (processor != null) return processor.duplicate();
+            ByteBuffer view = buffer();
+            switch (bitDepth) {
+                case 8: {
+                    byte[] array = new byte[width * height];
+                    view.get(array);
+                    return new ByteProcessor(width, height, array);
+                }
+                case 16: {
+                    short[] array = new short[width * height];
+                    view.asShortBuffer().get(array);
+                    return new ShortProcessor(width, height, array, null);
+                }
+                default: {
+                    float[] array = new float[width * height];
+                    view.asFloatBuffer().get(array);
+                    return new FloatProcessor(width, height, array);
+                }
+            }
+        }
+
+        long size() {
+            return pixels.capacity();
+        }
+
+        private static ByteBuffer toBuffer(ImageProcessor processor) {
+            return new Frame(processor, true).pixels;
+        }
+    }
+
+    /**
+     * This method returns a frame, loading it and adding it to the cache if it is not cached.
+     * @param dataset Dataset of the frame, e.g. the image name
+     * @param channel Channel of the frame, e.g. "colony_labels"
+     * @param frame Frame number
+     * @param loader Loads the frame on a miss (the processor is copied, and not kept)
+     * @return the cached frame
+     */
+    public Frame get(String dataset, String channel, int frame, Supplier<ImageProcessor> loader) {
+        Key key = new Key(dataset, channel, frame);
+        synchronized (this) {
+            Frame cached = frames.get(key);
+            if (cached != null) {
+                hits++;
+                PipelineMetrics.current().count("frameCache.hits", 1);
+                return cached;
+            }
+        }
+        // Load outside of the lock : two threads may load the same frame, the second one replaces the first
+        Frame loaded = new Frame(loader.get(), true);
+        synchronized (this) {
+            misses++;
+            PipelineMetrics metrics = PipelineMetrics.current();
+            metrics.count("frameCache.misses", 1);
+            Frame previous = frames.put(key, loaded);
+            if (previous != null) bytes -= previous.size();
+            bytes += loaded.size();
+            Iterator<Frame> eldest = frames.values().iterator();
+            while (bytes > budget && eldest.hasNext()) {
+                Frame evicted = eldest.next();
+                if (evicted == loaded) break;
+                eldest.remove();
+                bytes -= evicted.size();
+                evictions++;
+                metrics.count("frameCache.evictions", 1);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Remove the frames of a dataset, e.g. when its images were modified.
+     * @param dataset Dataset of the frames
+     */
+    public synchronized void invalidate(String dataset) {
+        Iterator<Map.Entry<Key, Frame>> entries = frames.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, Frame> entry = entries.next();
+            if (entry.getKey().dataset.equals(dataset)) {
+                bytes -= entry.getValue().size();
+                entries.remove();
+            }
+        }
+    }
+
+    /** Remove all the frames. */
+    public synchronized void clear() {
+        frames.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the number of bytes of the cached frames
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
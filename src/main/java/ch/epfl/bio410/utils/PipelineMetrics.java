@@ -0,0 +1,451 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of one run of the pipeline :
+ * - per stage : wall time, CPU time, allocated bytes, peak and final heap (see ResourceUsage),
+ *   and the stages it overlapped with (see stage)
+ * - per frame : time spent on each frame by the per-frame stages
+ * - counters : CLIJ2 transfers, tracks processed, labels removed, ...
+ * The pipeline reports to the current run, see PipelineMetrics.current().
+ * Usage :
+ * PipelineMetrics metrics = PipelineMetrics.startRun("image");
+ * try (PipelineMetrics.Stage stage = metrics.stage("colonies")) { ... stage.count("colonies.frames", n); }
+ * metrics.recordFrame("colonies", i, nanos);
+ * metrics.count("clij2.push", 1);
+ * metrics.log("colonies.frame", "Finished labeling frame " + i); // rate-limited
+ * metrics.saveReport(resultsPath, "image");
+ * The report is saved as metrics_[name].json and frame_timings_[name].csv.
+ * Set the system property replisome.metrics.jmx=true to also expose the current run through JMX,
+ * as ch.epfl.bio410:type=PipelineMetrics (e.g. in JConsole or VisualVM).
+ */
+public class PipelineMetrics {
+    /** Minimum time between two log lines with the same key. */
+    public static final long LOG_INTERVAL_MILLIS = 2000;
+    private static final String JMX_PROPERTY = "replisome.metrics.jmx";
+    private static final String JMX_NAME = "ch.epfl.bio410:type=PipelineMetrics";
+    private static volatile PipelineMetrics current = new PipelineMetrics("none");
+
+    private final String name;
+    private final long startMillis = System.currentTimeMillis();
+    private final List<StageResult> stages = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final List<FrameTiming> frames = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, LogState> logState = new HashMap<>();
+    private final List<Stage> openStages = new ArrayList<>();
+    private volatile String currentStage = "";
+
+    /** Measures of a finished stage. */
+    static class StageResult {
+        final String name;
+        final ResourceUsage usage;
+        final long heapAfterBytes;
+        final Set<String> overlapsWith;
+
+        StageResult(String name, ResourceUsage usage, long heapAfterBytes, Set<String> overlapsWith) {
+            this.name = name;
+            this.usage = usage;
+            this.heapAfterBytes = heapAfterBytes;
+            this.overlapsWith = overlapsWith;
+        }
+    }
+
+    /** State of a rate-limited log key : last time a message was logged, and the messages skipped since. */
+    private static class LogState {
+        long lastMillis = Long.MIN_VALUE;
+        long skipped = 0;
+        String lastSkipped = null;
+    }
+
+    /** Time spent on one frame by one stage. */
+    static class FrameTiming {
+        final String stage;
+        final int frame;
+        final long nanos;
+
+        FrameTiming(String stage, int frame, long nanos) {
+            this.stage = stage;
+            this.frame = frame;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * A running stage, closed at the end of a try-with-resources block.
+     */
+    public class Stage implements AutoCloseable {
+        private final String name;
+        private final ResourceUsage usage;
+        private final Set<String> overlapsWith = new TreeSet<>(); // guarded by openStages
+
+        private Stage(String name) {
+            this.name = name;
+            synchronized (openStages) {
+                for (Stage open : openStages) {
+                    open.overlapsWith.add(name);
+                    overlapsWith.add(open.name);
+                }
+                // The peak heap is only reset when no other stage is running
+                this.usage = ResourceUsage.start(openStages.isEmpty());
+                openStages.add(this);
+            }
+            currentStage = name;
+        }
+
+        /**
+         * Add to a counter of the run, see PipelineMetrics.count.
+         * @param counter Name of the counter
+         * @param delta Value to add
+         */
+        public void count(String counter, long delta) {
+            PipelineMetrics.this.count(counter, delta);
+        }
+
+        /**
+         * Rate-limited log, see PipelineMetrics.log.
+         * @param key Key of the message
+         * @param message Message to log
+         */
+        public void log(String key, String message) {
+            PipelineMetrics.this.log(key, message);
+        }
+
+        /**
+         * Record the time spent on a frame by this stage.
+         * @param frame Frame number (1-based, as in ImageJ stacks)
+         * @param nanos Time spent, in nanoseconds
+         */
+        public void recordFrame(int frame, long nanos) {
+            PipelineMetrics.this.recordFrame(name, frame, nanos);
+        }
+
+        @Override
+        public void close() {
+            Set<String> overlaps;
+            synchronized (openStages) {
+                openStages.remove(this);
+                overlaps = new TreeSet<>(overlapsWith);
+            }
+            stages.add(new StageResult(name, usage.stop(), ResourceUsage.usedHeapBytes(), overlaps));
+            currentStage = "";
+            // The last skipped message of each key would otherwise never be logged
+            flushLog();
+        }
+    }
+
+    private PipelineMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Start the metrics of a new run, which becomes the current one.
+     * @param name Name of the run, usually the image name
+     * @return the metrics of the run
+     */
+    public static PipelineMetrics startRun(String name) {
+        current = new PipelineMetrics(name);
+        if (Boolean.getBoolean(JMX_PROPERTY)) registerMBean();
+        return current;
+    }
+
+    /**
+     * Metrics of the current run. Outside of a run, the metrics are collected but never saved.
+     * @return the metrics of the current run
+     */
+    public static PipelineMetrics current() {
+        return current;
+    }
+
+    /**
+     * Start measuring a stage. Stages may overlap (e.g. run at the same time by StageScheduler) : the peak heap
+     * is only reset when no other stage is running, so the peak heap of overlapping stages is the peak
+     * since the first of them started, not their own. Such stages list the others in overlapsWith in the report,
+     * and the peak heap of the whole run is reported as peakHeapBytes.
+     * @param name Name of the stage
+     * @return the running stage, to close when the stage is done
+     */
+    public Stage stage(String name) {
+        return new Stage(name);
+    }
+
+    /**
+     * @param stage Name of a stage
+     * @param other Name of another stage
+     * @return whether the two stages of the run overlapped at some point (see stage), false if either did not run
+     */
+    public boolean overlapped(String stage, String other) {
+        synchronized (stages) {
+            for (StageResult result : stages) {
+                if (result.name.equals(stage) && result.overlapsWith.contains(other)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This method checks that two independent stages ran at the same time, e.g. colonies and tracking :
+     * with more than one processor, the threads they declare to StageScheduler must fit together.
+     * @param stage Name of a stage
+     * @param other Name of another stage
+     * @return whether the two stages overlapped, a warning is logged if not
+     */
+    public boolean checkOverlapped(String stage, String other) {
+        boolean overlapped = overlapped(stage, other);
+        if (!overlapped && Runtime.getRuntime().availableProcessors() > 1) {
+            IJ.log("WARNING : stages " + stage + " and " + other + " did not run at the same time");
+        }
+        return overlapped;
+    }
+
+    /**
+     * Record the time spent on a frame.
+     * @param stage Name of the stage
+     * @param frame Frame number (1-based, as in ImageJ stacks)
+     * @param nanos Time spent, in nanoseconds
+     */
+    public void recordFrame(String stage, int frame, long nanos) {
+        frames.add(new FrameTiming(stage, frame, nanos));
+    }
+
+    /**
+     * Add to a counter, created at 0 on first use.
+     * @param counter Name of the counter
+     * @param delta Value to add
+     */
+    public void count(String counter, long delta) {
+        counters.computeIfAbsent(counter, key -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * @param counter Name of the counter
+     * @return the value of the counter, 0 if never incremented
+     */
+    public long getCount(String counter) {
+        AtomicLong value = counters.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * Rate-limited IJ.log : a message is logged only if the last one with the same key
+     * was logged more than LOG_INTERVAL_MILLIS ago. The number of skipped messages is appended.
+     * The last skipped message of each key is logged when a stage closes (see flushLog).
+     * Use it for messages repeated per frame, per label or per track.
+     * @param key Key of the message, e.g. "colonies.frame"
+     * @param message Message to log
+     */
+    public void log(String key, String message) {
+        long now = System.currentTimeMillis();
+        long skipped;
+        synchronized (logState) {
+            LogState state = logState.computeIfAbsent(key, k -> new LogState());
+            if (state.lastMillis != Long.MIN_VALUE && now - state.lastMillis < LOG_INTERVAL_MILLIS) {
+                state.skipped++;
+                state.lastSkipped = message;
+                return;
+            }
+            skipped = state.skipped;
+            state.lastMillis = now;
+            state.skipped = 0;
+            state.lastSkipped = null;
+        }
+        IJ.log(skipped > 0 ? message + " (" + skipped + " similar messages skipped)" : message);
+    }
+
+    /**
+     * Log the last skipped message of each rate-limited key, with the number of messages skipped before it.
+     */
+    public void flushLog() {
+        List<String> pending = new ArrayList<>();
+        synchronized (logState) {
+            for (LogState state : logState.values()) {
+                if (state.skipped == 0) continue;
+                pending.add(state.skipped > 1 ? state.lastSkipped + " (" + (state.skipped - 1) + " similar messages skipped)" : state.lastSkipped);
+                state.skipped = 0;
+                state.lastSkipped = null;
+            }
+        }
+        for (String message : pending) IJ.log(message);
+    }
+
+    /**
+     * Save the report of the run to the results folder :
+     * metrics_[name].json with the stages, counters and a summary of the frame timings,
+     * and frame_timings_[name].csv with the time of each frame (STAGE, FRAME, MILLIS).
+     * @param resultsPath Path to the results folder
+     * @param imageName Name of the image, used in the file names
+     * @throws IOException If the files cannot be written
+     */
+    public void saveReport(String resultsPath, String imageName) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(Paths.get(resultsPath, "metrics_" + imageName + ".json").toString()))) {
+            writer.write(toJson());
+        }
+        try (CSVPrinter csvPrinter = new CSVPrinter(new BufferedWriter(new FileWriter(Paths.get(resultsPath, "frame_timings_" + imageName + ".csv").toString())), CSVFormat.DEFAULT)) {
+            csvPrinter.printRecord("STAGE", "FRAME", "MILLIS");
+            synchronized (frames) {
+                for (FrameTiming timing : frames) {
+                    csvPrinter.printRecord(timing.stage, timing.frame, timing.nanos / 1e6);
+                }
+            }
+        }
+        IJ.log("Run metrics saved to " + Paths.get(resultsPath, "metrics_" + imageName + ".json"));
+    }
+
+    /**
+     * @return the report as JSON
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"name\" : ").append(quote(name)).append(",\n");
+        json.append("  \"startMillis\" : ").append(startMillis).append(",\n");
+        json.append("  \"javaVersion\" : ").append(quote(System.getProperty("java.version"))).append(",\n");
+        json.append("  \"availableProcessors\" : ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"maxHeapBytes\" : ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+        long peakHeap = -1;
+        StringBuilder stagesJson = new StringBuilder();
+        synchronized (stages) {
+            for (int i = 0; i < stages.size(); i++) {
+                StageResult stage = stages.get(i);
+                // Each peak is reset only between non-overlapping stages : the largest one is the peak of the run
+                peakHeap = Math.max(peakHeap, stage.usage.getPeakHeapBytes());
+                stagesJson.append(i == 0 ? "\n" : ",\n");
+                stagesJson.append("    {\"name\" : ").append(quote(stage.name))
+                        .append(", \"wallNanos\" : ").append(stage.usage.getWallNanos())
+                        .append(", \"cpuNanos\" : ").append(stage.usage.getCpuNanos())
+                        .append(", \"allocatedBytes\" : ").append(stage.usage.getAllocatedBytes())
+                        .append(", \"peakHeapBytes\" : ").append(stage.usage.getPeakHeapBytes())
+                        .append(", \"heapAfterBytes\" : ").append(stage.heapAfterBytes)
+                        .append(", \"overlapsWith\" : [");
+                int o = 0;
+                for (String other : stage.overlapsWith) stagesJson.append(o++ == 0 ? "" : ", ").append(quote(other));
+                stagesJson.append("]}");
+            }
+        }
+        json.append("  \"peakHeapBytes\" : ").append(peakHeap).append(",\n");
+        json.append("  \"stages\" : [").append(stagesJson);
+        json.append("\n  ],\n");
+        json.append("  \"counters\" : {");
+        int c = 0;
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(counters).entrySet()) {
+            json.append(c++ == 0 ? "\n" : ",\n");
+            json.append("    ").append(quote(counter.getKey())).append(" : ").append(counter.getValue().get());
+        }
+        json.append("\n  },\n");
+        json.append("  \"frames\" : {");
+        int s = 0;
+        for (Map.Entry<String, List<FrameTiming>> stage : framesByStage().entrySet()) {
+            List<FrameTiming> timings = stage.getValue();
+            long total = 0;
+            FrameTiming slowest = timings.get(0);
+            for (FrameTiming timing : timings) {
+                total += timing.nanos;
+                if (timing.nanos > slowest.nanos) slowest = timing;
+            }
+            json.append(s++ == 0 ? "\n" : ",\n");
+            json.append("    ").append(quote(stage.getKey()))
+                    .append(" : {\"count\" : ").append(timings.size())
+                    .append(", \"totalNanos\" : ").append(total)
+                    .append(", \"meanNanos\" : ").append(total / timings.size())
+                    .append(", \"slowestFrame\" : ").append(slowest.frame)
+                    .append(", \"slowestNanos\" : ").append(slowest.nanos).append("}");
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private Map<String, List<FrameTiming>> framesByStage() {
+        Map<String, List<FrameTiming>> byStage = new LinkedHashMap<>();
+        synchronized (frames) {
+            for (FrameTiming timing : frames) {
+                byStage.computeIfAbsent(timing.stage, key -> new ArrayList<>()).add(timing);
+            }
+        }
+        return byStage;
+    }
+
+    private static String quote(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char ch : value.toCharArray()) {
+            if (ch == '"' || ch == '\\') builder.append('\\').append(ch);
+            else if (ch < 0x20) builder.append(String.format("\\u%04x", (int) ch));
+            else builder.append(ch);
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * Attributes of the current run, as exposed through JMX.
+     */
+    public interface MetricsMXBean {
+        String getRunName();
+
+        String getCurrentStage();
+
+        Map<String, Long> getCounters();
+
+        Map<String, Long> getStageWallMillis();
+
+        int getFramesRecorded();
+    }
+
+    /**
+     * Always reads the current run, so that it only has to be registered once.
+     */
+    static class CurrentRunMXBean implements MetricsMXBean {
+        @Override
+        public String getRunName() {
+            return current.name;
+        }
+
+        @Override
+        public String getCurrentStage() {
+            return current.currentStage;
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            Map<String, Long> values = new TreeMap<>();
+            for (Map.Entry<String, AtomicLong> counter : current.counters.entrySet()) {
+                values.put(counter.getKey(), counter.getValue().get());
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getStageWallMillis() {
+            Map<String, Long> values = new LinkedHashMap<>();
+            synchronized (current.stages) {
+                for (StageResult stage : current.stages) values.put(stage.name, stage.usage.getWallNanos() / 1000000);
+            }
+            return values;
+        }
+
+        @Override
+        public int getFramesRecorded() {
+            return current.frames.size();
+        }
+    }
+
+    private static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_NAME);
+            if (!server.isRegistered(objectName)) server.registerMBean(new CurrentRunMXBean(), objectName);
+        } catch (Exception e) {
+            IJ.log("Failed to register the metrics MBean : " + e.getMessage());
+        }
+    }
+}
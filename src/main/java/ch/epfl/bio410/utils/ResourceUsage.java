@@ -0,0 +1,137 @@
+package ch.epfl.bio410.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the resources used by a section of code, from the JVM management beans :
+ * - wall time
+ * - CPU time of the whole process (so that work done by parallel streams and other threads is included)
+ * - bytes allocated by all live threads
+ * - peak heap usage
+ * Usage :
+ * ResourceUsage usage = ResourceUsage.start();
+ * ... work ...
+ * usage.stop();
+ * usage.getWallNanos(), usage.getCpuNanos(), ...
+ * Values the JVM cannot provide are reported as -1.
+ * Note : peak heap usage is tracked by the JVM per memory pool and reset by start(),
+ * so only one measure should be running at a time for it to be meaningful ;
+ * a measure overlapping others is started with start(false), and shares their peak (see PipelineMetrics.stage).
+ */
+public class ResourceUsage {
+    private final long startWall;
+    private final long startCpu;
+    private final long startAllocated;
+    private long wallNanos = -1;
+    private long cpuNanos = -1;
+    private long allocatedBytes = -1;
+    private long peakHeapBytes = -1;
+
+    private ResourceUsage(boolean resetPeakHeap) {
+        if (resetPeakHeap) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.isValid()) pool.resetPeakUsage();
+            }
+        }
+        this.startAllocated = allocatedBytes();
+        this.startCpu = processCpuNanos();
+        this.startWall = System.nanoTime();
+    }
+
+    /**
+     * Start measuring.
+     * @return the running measure
+     */
+    public static ResourceUsage start() {
+        return new ResourceUsage(true);
+    }
+
+    /**
+     * Start measuring, while other measures may be running.
+     * @param resetPeakHeap Whether to reset the peak heap usage : false keeps the peak of the running measures,
+     * so that the peak of this one is the peak since the first of them started
+     * @return the running measure
+     */
+    public static ResourceUsage start(boolean resetPeakHeap) {
+        return new ResourceUsage(resetPeakHeap);
+    }
+
+    /**
+     * Stop measuring. The getters return the values from start to this call.
+     * @return this, for chaining
+     */
+    public ResourceUsage stop() {
+        this.wallNanos = System.nanoTime() - startWall;
+        long cpu = processCpuNanos();
+        this.cpuNanos = cpu < 0 || startCpu < 0 ? -1 : cpu - startCpu;
+        long allocated = allocatedBytes();
+        this.allocatedBytes = allocated < 0 || startAllocated < 0 ? -1 : allocated - startAllocated;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        this.peakHeapBytes = peak;
+        return this;
+    }
+
+    /** @return the wall time, in nanoseconds */
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /** @return the CPU time of the process, in nanoseconds (-1 if unavailable) */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * Allocations of threads that ended during the measure are not counted.
+     * @return the bytes allocated by live threads (-1 if unavailable)
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /** @return the sum of the peak usage of the heap memory pools, in bytes */
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    /** @return the heap currently in use, in bytes */
+    public static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * CPU time of the whole process, from the HotSpot extension of the operating system bean.
+     */
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Bytes allocated so far by all live threads, from the HotSpot extension of the thread bean.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) return -1;
+        long total = 0;
+        for (long allocated : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) total += allocated;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,262 @@
+package ch.epfl.bio410.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the stages of the pipeline as a graph : each stage declares the data it reads (inputs) and writes (outputs),
+ * and starts as soon as all its inputs were written, concurrently with the other ready stages.
+ * A stage also declares the resources it needs, and a ready stage waits until they are available :
+ * - threads : CPU threads it keeps busy, within the threads of the scheduler (by default, the number of processors)
+ * - GPU : stages using CLIJ2 run one at a time, as they would share the OpenCL queue
+ * - memory : an estimate of the heap it needs, within the memory budget (by default, the maximum heap)
+ * A stage that needs more than the whole budget still runs, alone.
+ * If a stage fails (or is cancelled), no other stage is started, the TaskMonitor of the stages (see setMonitor)
+ * is cancelled so that the running ones stop at their next checkCancelled, they are waited for,
+ * and run() throws the first failure (a CancellationException as it is).
+ * Note : the PipelineMetrics stages of concurrent stages overlap : their peak heap is the peak since the first of them
+ * started, and the report lists the stages each one overlapped with (see PipelineMetrics.stage).
+ * Usage :
+ * StageScheduler scheduler = new StageScheduler();
+ * scheduler.setMonitor(monitor); // the monitor of colonies and tracking
+ * scheduler.add("colonies", () -> ...).outputs("colonyLabels").gpu().memory(bytes);
+ * scheduler.add("tracking", () -> ...).outputs("tracks");
+ * scheduler.add("analysis", () -> ...).inputs("colonyLabels", "tracks");
+ * scheduler.run();
+ */
+public class StageScheduler {
+    /** Work of a stage. */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * A stage of the graph, with its inputs, outputs and resources.
+     */
+    public static class Stage {
+        private final String name;
+        private final Task task;
+        private final Set<String> inputs = new HashSet<>();
+        private final Set<String> outputs = new HashSet<>();
+        private int threads = 1;
+        private boolean gpu = false;
+        private long memory = 0;
+
+        private Stage(String name, Task task) {
+            this.name = name;
+            this.task = task;
+        }
+
+        /**
+         * @param names Data the stage reads
+         * @return this, for chaining
+         */
+        public Stage inputs(String... names) {
+            inputs.addAll(Arrays.asList(names));
+            return this;
+        }
+
+        /**
+         * @param names Data the stage writes
+         * @return this, for chaining
+         */
+        public Stage outputs(String... names) {
+            outputs.addAll(Arrays.asList(names));
+            return this;
+        }
+
+        /**
+         * @param threads Number of CPU threads the stage keeps busy
+         * @return this, for chaining
+         */
+        public Stage threads(int threads) {
+            this.threads = Math.max(1, threads);
+            return this;
+        }
+
+        /**
+         * The stage uses CLIJ2, and does not run at the same time as the other GPU stages.
+         * @return this, for chaining
+         */
+        public Stage gpu() {
+            this.gpu = true;
+            return this;
+        }
+
+        /**
+         * @param bytes Estimate of the heap the stage needs
+         * @return this, for chaining
+         */
+        public Stage memory(long bytes) {
+            this.memory = Math.max(0, bytes);
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final int maxThreads;
+    private final long memoryBudget;
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final Set<String> available = new HashSet<>();
+    private TaskMonitor monitor = TaskMonitor.NONE;
+
+    public StageScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory());
+    }
+
+    /**
+     * @param maxThreads CPU threads shared by the running stages
+     * @param memoryBudget Heap, in bytes, shared by the running stages
+     */
+    public StageScheduler(int maxThreads, long memoryBudget) {
+        this.maxThreads = Math.max(1, maxThreads);
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set the monitor checked by the stages, cancelled when a stage fails.
+     * A monitor shared with other runs should be given as a child (see TaskMonitor.child), as it stays cancelled.
+     * @param monitor TaskMonitor of the stages
+     */
+    public void setMonitor(TaskMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Add a stage, in the order in which stages are started when several are ready.
+     * @param name Name of the stage
+     * @param task Work of the stage
+     * @return the stage, to declare its inputs, outputs and resources
+     */
+    public Stage add(String name, Task task) {
+        if (stages.containsKey(name)) throw new IllegalArgumentException("Stage " + name + " added twice");
+        Stage stage = new Stage(name, task);
+        stages.put(name, stage);
+        return stage;
+    }
+
+    /**
+     * Declare data available before the run (e.g. results of a previous run, read from disk).
+     * @param names Data available
+     */
+    public void provide(String... names) {
+        available.addAll(Arrays.asList(names));
+    }
+
+    /**
+     * This method runs all the stages, each as soon as its inputs and resources are available, and returns
+     * once they are all done.
+     * @throws IllegalStateException If an input is never written, or the stages depend on each other in a cycle
+     * @throws Exception The first failure of a stage
+     */
+    public void run() throws Exception {
+        check();
+        Set<String> written = new HashSet<>(available);
+        List<Stage> waiting = new ArrayList<>(stages.values());
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "replisome-stage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ExecutorCompletionService<Stage> completion = new ExecutorCompletionService<>(executor);
+        int running = 0;
+        int usedThreads = 0;
+        long usedMemory = 0;
+        boolean gpuBusy = false;
+        Exception failure = null;
+        try {
+            while (running > 0 || (failure == null && !waiting.isEmpty())) {
+                if (failure == null) {
+                    for (int i = 0; i < waiting.size(); i++) {
+                        Stage stage = waiting.get(i);
+                        if (!written.containsAll(stage.inputs)) continue;
+                        boolean alone = running == 0;
+                        if (!alone && (usedThreads + stage.threads > maxThreads || usedMemory + stage.memory > memoryBudget
+                                || (stage.gpu && gpuBusy))) {
+                            continue;
+                        }
+                        waiting.remove(i--);
+                        running++;
+                        usedThreads += stage.threads;
+                        usedMemory += stage.memory;
+                        gpuBusy |= stage.gpu;
+                        PipelineMetrics.current().count("scheduler.stages", 1);
+                        completion.submit(() -> {
+                            stage.task.run();
+                            return stage;
+                        });
+                    }
+                }
+                if (running == 0) break;
+                Future<Stage> done = completion.take();
+                running--;
+                Stage stage;
+                try {
+                    stage = done.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+                        // Stop the running stages instead of waiting for them to complete (NONE is shared by all the runs)
+                        if (running > 0 && monitor != TaskMonitor.NONE) monitor.cancel();
+                    }
+                    // The resources of a failed stage are not needed anymore : no stage is started after a failure
+                    continue;
+                }
+                usedThreads -= stage.threads;
+                usedMemory -= stage.memory;
+                if (stage.gpu) gpuBusy = false;
+                written.addAll(stage.outputs);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Check that each input is written by a stage or available, and that there is no cycle.
+     */
+    private void check() {
+        Set<String> written = new HashSet<>(available);
+        for (Stage stage : stages.values()) written.addAll(stage.outputs);
+        for (Stage stage : stages.values()) {
+            for (String input : stage.inputs) {
+                if (!written.contains(input)) {
+                    throw new IllegalStateException("Input " + input + " of stage " + stage.name + " is never written");
+                }
+            }
+        }
+        // Run the graph without the tasks : every stage must become ready
+        Set<String> reached = new HashSet<>(available);
+        List<Stage> remaining = new ArrayList<>(stages.values());
+        boolean progress = true;
+        while (progress && !remaining.isEmpty()) {
+            progress = false;
+            for (int i = 0; i < remaining.size(); i++) {
+                if (reached.containsAll(remaining.get(i).inputs)) {
+                    reached.addAll(remaining.remove(i--).outputs);
+                    progress = true;
+                }
+            }
+        }
+        if (!remaining.isEmpty()) {
+            List<String> names = new ArrayList<>();
+            for (Stage stage : remaining) names.add(stage.name);
+            throw new IllegalStateException("Stages " + names + " depend on each other in a cycle");
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Progress reporting and cooperative cancellation for the long-running stages
+ * (colonies, colony statistics, tracking, statistics per track).
+ * Stages call progress(stage, done, total) and checkCancelled() once per frame or per track :
+ * checkCancelled throws a CancellationException once cancel() was called, and the stage leaves its
+ * partial results in a consistent state (e.g. the colony labels of the completed frames, see Colonies).
+ * Usage :
+ * TaskMonitor monitor = TaskMonitor.imageJ(); // status bar and progress bar of ImageJ, Esc cancels
+ * TaskMonitor monitor = TaskMonitor.console(System.err); // text progress bar
+ * colonies.setMonitor(monitor);
+ */
+public class TaskMonitor {
+    /** Receives the progress of the stages. */
+    public interface ProgressListener {
+        /**
+         * @param stage Name of the stage
+         * @param done Number of completed steps (frames, tracks)
+         * @param total Total number of steps
+         */
+        void progress(String stage, int done, int total);
+    }
+
+    /** Monitor that reports nothing and is only cancelled by cancel(). */
+    public static final TaskMonitor NONE = new TaskMonitor((stage, done, total) -> { }, false);
+
+    private final ProgressListener listener;
+    private final boolean escapeCancels;
+    private final TaskMonitor parent; // cancels this monitor, or null
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param listener Receives the progress of the stages
+     * @param escapeCancels Whether pressing Esc in ImageJ cancels the task
+     */
+    public TaskMonitor(ProgressListener listener, boolean escapeCancels) {
+        this(listener, escapeCancels, null);
+    }
+
+    private TaskMonitor(ProgressListener listener, boolean escapeCancels, TaskMonitor parent) {
+        this.listener = listener;
+        this.escapeCancels = escapeCancels;
+        this.parent = parent;
+    }
+
+    /**
+     * Monitor for one run of a monitor shared by several (e.g. the jobs of a BatchWorker) : it reports to the same
+     * listener and is cancelled with this monitor, but cancelling it (e.g. by StageScheduler) does not cancel this one.
+     * @return a new monitor
+     */
+    public TaskMonitor child() {
+        return new TaskMonitor(listener, false, this);
+    }
+
+    /**
+     * Monitor for the GUI : progress in the ImageJ status and progress bars, Esc cancels.
+     * @return a new monitor
+     */
+    public static TaskMonitor imageJ() {
+        IJ.resetEscape();
+        return new TaskMonitor((stage, done, total) -> {
+            IJ.showStatus(stage + " " + done + "/" + total + " (Esc to cancel)");
+            IJ.showProgress(done, total);
+        }, true);
+    }
+
+    /**
+     * Monitor for the command line : a text progress bar per stage, redrawn in place.
+     * @param out Stream to draw the progress bar on
+     * @return a new monitor
+     */
+    public static TaskMonitor console(PrintStream out) {
+        return new TaskMonitor((stage, done, total) -> {
+            int width = 30;
+            int filled = total > 0 ? (int) ((long) width * done / total) : width;
+            StringBuilder bar = new StringBuilder("\r");
+            bar.append(String.format(Locale.ROOT, "%-12s [", stage));
+            for (int i = 0; i < width; i++) bar.append(i < filled ? '#' : ' ');
+            bar.append(String.format(Locale.ROOT, "] %d/%d", done, total));
+            if (done >= total) bar.append('\n');
+            out.print(bar);
+            out.flush();
+        }, false);
+    }
+
+    /**
+     * Report the progress of a stage.
+     * @param stage Name of the stage
+     * @param done Number of completed steps
+     * @param total Total number of steps
+     */
+    public void progress(String stage, int done, int total) {
+        listener.progress(stage, done, total);
+    }
+
+    /** Request the running stages to stop, at their next checkCancelled. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return whether the task was cancelled (by cancel(), or by Esc in ImageJ if enabled)
+     */
+    public boolean isCancelled() {
+        if (!cancelled && escapeCancels && IJ.escapePressed()) cancelled = true;
+        if (!cancelled && parent != null && parent.isCancelled()) cancelled = true;
+        return cancelled;
+    }
+
+    /**
+     * To call between two steps of a stage.
+     * @param stage Name of the stage, for the message of the exception
+     * @throws CancellationException If the task was cancelled
+     */
+    public void checkCancelled(String stage) {
+        if (isCancelled()) throw new CancellationException(stage + " cancelled");
+    }
+}
@@ -2,15 +2,22 @@ package ch.epfl.bio410.utils;
 
 import ij.IJ;
 
-import java.io.*;
-import java.net.URL;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
 public class TrackingConfig {
+    /** Parameters of a config file. */
+    private static final List<String> KEYS = Arrays.asList("COLONY_MIN_AREA", "DETECTOR_RADIUS", "DETECTOR_THRESHOLD",
+            "DETECTOR_MEDIAN_FILTER", "TRACKER_LINKING_MAX_DISTANCE", "TRACKER_GAP_CLOSING_MAX_DISTANCE",
+            "TRACKER_MAX_FRAME_GAP", "TRACK_DURATION_MIN");
+
     public int colony_min_area;
     public double detector_radius;
     public double detector_threshold;
@@ -77,46 +84,143 @@ public class TrackingConfig {
         this.track_duration_min = track_duration_min;
     }
     /**
-     * Create a TrackingConfig object from a properties file.
-     * @param filename Name of the file to load from resources.
+     * Create a TrackingConfig object from a config of the search path (see ConfigRegistry).
+     * @param filename Name of the config, e.g. "Merged1_config.properties"
      * @return TrackingConfig object with the loaded parameters.
+     * @throws IllegalArgumentException If the config is not valid
+     * @throws UncheckedIOException If there is no such config, or it cannot be read
      */
     public static TrackingConfig createFromPropertiesFile(String filename) {
-        String config_path = accessConfigPathFromResources(filename);
-        TrackingConfig config = new TrackingConfig(0, 0, 0, false, 0, 0, 0, 0);
-        if (config_path != null) {
-            config.loadFromPropertiesFile(config_path);
+        try {
+            return ConfigRegistry.shared().get(filename);
+        } catch (IOException e) {
+            IJ.log("ERROR : Failed to load config " + filename + " : " + e.getMessage());
+            throw new UncheckedIOException("Failed to load config " + filename + " : " + e.getMessage(), e);
         }
-        config.configName = filename;
-        config.configPath = config_path;
-        return config;
     }
     /**
      * Create a TrackingConfig object from a properties file.
      * @param filename File to load from.
      * @return TrackingConfig object with the loaded parameters.
+     * @throws IllegalArgumentException If the config is not valid
+     * @throws UncheckedIOException If the file cannot be read
      */
     public static TrackingConfig createFromPropertiesFile(File filename) {
-        TrackingConfig config = new TrackingConfig(0, 0, 0, false, 0, 0, 0, 0);
-        if (filename != null) {
-            config.loadFromPropertiesFile(filename.getAbsolutePath());
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(filename.toPath())) {
+            properties.load(in);
+        } catch (IOException e) {
+            IJ.log("ERROR : Failed to read config " + filename.getPath() + " : " + e.getMessage());
+            throw new UncheckedIOException("Failed to read config " + filename.getPath() + " : " + e.getMessage(), e);
+        }
+        return fromProperties(properties, filename.getName(), filename.getAbsolutePath());
+    }
+
+    /**
+     * Create a TrackingConfig object from the properties of a config file, checking each parameter.
+     * @param properties Properties of the config file (COLONY_MIN_AREA, DETECTOR_RADIUS, ...)
+     * @param name Name of the config
+     * @param path Path of the config, shown in the logs
+     * @return TrackingConfig object with the loaded parameters.
+     * @throws IllegalArgumentException If a parameter is missing or not valid, with all the problems of the config
+     */
+    public static TrackingConfig fromProperties(Properties properties, String name, String path) {
+        List<String> errors = new ArrayList<>();
+        TrackingConfig config = new TrackingConfig(
+                parseInt(properties, "COLONY_MIN_AREA", errors),
+                parseDouble(properties, "DETECTOR_RADIUS", errors),
+                parseDouble(properties, "DETECTOR_THRESHOLD", errors),
+                parseBoolean(properties, "DETECTOR_MEDIAN_FILTER", errors),
+                parseDouble(properties, "TRACKER_LINKING_MAX_DISTANCE", errors),
+                parseDouble(properties, "TRACKER_GAP_CLOSING_MAX_DISTANCE", errors),
+                parseInt(properties, "TRACKER_MAX_FRAME_GAP", errors),
+                parseDouble(properties, "TRACK_DURATION_MIN", errors)
+        );
+        if (errors.isEmpty()) errors.addAll(config.check());
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid config " + path + " : " + String.join(", ", errors));
         }
-        config.configName = filename.getName();
-        config.configPath = filename.getAbsolutePath();
+        for (String key : properties.stringPropertyNames()) {
+            if (!KEYS.contains(key)) IJ.log("WARNING : Config " + name + " : unknown parameter " + key + " ignored");
+        }
+        config.configName = name;
+        config.configPath = path;
         return config;
     }
-    /** Backup function to be used if loading directly from resources fails.
-     * This instead copies the file to the user's Downloads folder for loading.
-     * See ResourcesFolder.java for the implementation of copyFileFromResources.
+
+    /**
+     * This method checks the parameters : sizes, distances and durations must not be negative, the radius must be positive.
+     * @throws IllegalArgumentException If a parameter is not valid, with all the problems of the config
      */
-    public static String copyFromResources(String pathInResources) {
+    public void validate() {
+        List<String> errors = check();
+        if (!errors.isEmpty()) throw new IllegalArgumentException("Invalid config : " + String.join(", ", errors));
+    }
+
+    private List<String> check() {
+        List<String> errors = new ArrayList<>();
+        if (colony_min_area < 0) errors.add("COLONY_MIN_AREA must be >= 0");
+        if (!(detector_radius > 0) || Double.isInfinite(detector_radius)) errors.add("DETECTOR_RADIUS must be > 0");
+        if (!(detector_threshold >= 0) || Double.isInfinite(detector_threshold)) errors.add("DETECTOR_THRESHOLD must be >= 0");
+        if (!(tracker_linking_max_distance >= 0) || Double.isInfinite(tracker_linking_max_distance)) errors.add("TRACKER_LINKING_MAX_DISTANCE must be >= 0");
+        if (!(tracker_gap_closing_max_distance >= 0) || Double.isInfinite(tracker_gap_closing_max_distance)) errors.add("TRACKER_GAP_CLOSING_MAX_DISTANCE must be >= 0");
+        if (tracker_max_frame_gap < 0) errors.add("TRACKER_MAX_FRAME_GAP must be >= 0");
+        if (!(track_duration_min >= 0) || Double.isInfinite(track_duration_min)) errors.add("TRACK_DURATION_MIN must be >= 0");
+        return errors;
+    }
+
+    private static String property(Properties properties, String key, List<String> errors) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            errors.add(key + " is missing");
+            return null;
+        }
+        return value.trim();
+    }
+
+    private static int parseInt(Properties properties, String key, List<String> errors) {
+        String value = property(properties, key, errors);
+        if (value == null) return 0;
         try {
-        return ResourcesFolder.copyFileFromResources(pathInResources).getAbsolutePath();
-    } catch (NullPointerException e) {
-        return null;
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            errors.add(key + " is not an integer (" + value + ")");
+            return 0;
         }
     }
 
+    private static double parseDouble(Properties properties, String key, List<String> errors) {
+        String value = property(properties, key, errors);
+        if (value == null) return 0;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            errors.add(key + " is not a number (" + value + ")");
+            return 0;
+        }
+    }
+
+    private static boolean parseBoolean(Properties properties, String key, List<String> errors) {
+        String value = property(properties, key, errors);
+        if (value == null) return false;
+        // Boolean.parseBoolean reads any typo as false
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            errors.add(key + " is not true or false (" + value + ")");
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * @return a copy of this config
+     */
+    public TrackingConfig copy() {
+        TrackingConfig copy = new TrackingConfig(colony_min_area, detector_radius, detector_threshold, detector_median_filter,
+                tracker_linking_max_distance, tracker_gap_closing_max_distance, tracker_max_frame_gap, track_duration_min);
+        copy.configName = configName;
+        copy.configPath = configPath;
+        return copy;
+    }
+
     /**
      * Print the tracking configuration parameters.
      */
@@ -162,65 +266,9 @@ public class TrackingConfig {
     }
 
     /**
-     * Access a file from the resources folder.
-     * @param filename Name of the config file to load from resources.
-     * @return Path to the file.
+     * @return the names of the configs of the search path (see ConfigRegistry)
      */
-    private static String accessConfigPathFromResources(String filename) {
-        try {
-            String path = "configs/" + filename; // system file separator is not applicable here
-            URL resourceUrl = TrackingConfig.class.getClassLoader().getResource(path);
-            if (resourceUrl != null) {
-                String real_path = resourceUrl.getPath();
-                // if the path starts with a '/', remove it
-                if (real_path.charAt(0) == '/') {
-                    real_path = real_path.substring(1);
-                }
-                return real_path;
-            } else {
-                System.out.println("Resource not found: " + path);
-                return null;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
     public static List<String> listAvailableConfigs() {
-        try {
-            List<String> configPaths = new ArrayList<>();
-            List<String> filePaths = utils.listFilesInResourceFolder("configs");
-            System.out.println(filePaths);
-            if (filePaths == null) {
-                return null;
-            }
-            for (String filepath : filePaths) {
-                File file = new File(filepath);
-                if (file.isFile() && file.getName().endsWith(".properties")) {
-                    configPaths.add(file.getName());
-                }
-            }
-            return configPaths;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-    private void loadFromPropertiesFile(String filePath) {
-        try {
-            Properties properties = new Properties();
-            properties.load(Files.newInputStream(Paths.get(filePath)));
-
-            this.colony_min_area = Integer.parseInt(properties.getProperty("COLONY_MIN_AREA"));
-            this.detector_radius = Double.parseDouble(properties.getProperty("DETECTOR_RADIUS"));
-            this.detector_threshold = Double.parseDouble(properties.getProperty("DETECTOR_THRESHOLD"));
-            this.detector_median_filter = Boolean.parseBoolean(properties.getProperty("DETECTOR_MEDIAN_FILTER"));
-            this.tracker_linking_max_distance = Double.parseDouble(properties.getProperty("TRACKER_LINKING_MAX_DISTANCE"));
-            this.tracker_gap_closing_max_distance = Double.parseDouble(properties.getProperty("TRACKER_GAP_CLOSING_MAX_DISTANCE"));
-            this.tracker_max_frame_gap = Integer.parseInt(properties.getProperty("TRACKER_MAX_FRAME_GAP"));
-            this.track_duration_min = Double.parseDouble(properties.getProperty("TRACK_DURATION_MIN"));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return ConfigRegistry.shared().names();
     }
 }
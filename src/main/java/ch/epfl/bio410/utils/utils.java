@@ -139,7 +139,8 @@ public class utils {
                 if (parts[0].contains("-sources")) {
                     parts[0] = parts[0].replace("-sources", "");
                 }
-                try (JarFile jarFile = new JarFile(parts[0].substring(5))) {
+                // The path of the jar is URL-encoded in the URI (e.g. %20 for a space) : decoded by new File(URI)
+                try (JarFile jarFile = new JarFile(new File(new URI(parts[0].substring(4))))) {
                     Enumeration<JarEntry> entries = jarFile.entries();
                     while (entries.hasMoreElements()) {
                         String name = entries.nextElement().getName();